@@ -0,0 +1,40 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+/**
+ * CRC-32 de zlib y gzip (polinomio 0xEDB88320), CLDC no tiene
+ * java.util.zip. Se calcula por bytes con una tabla de 256 entradas.
+ */
+public class OGAgentCRC32 {
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;
+            }
+            TABLE[n] = c;
+        }
+    }
+
+    private OGAgentCRC32()
+    {
+    }
+
+    // CRC de los bytes continuando uno anterior, empezar con 0
+    public static int update(int _crc, byte[] _data, int _offset, int _length)
+    {
+        int c = ~_crc;
+        int end = _offset + _length;
+        for (int i = _offset; i < end; i++) {
+            c = TABLE[(c ^ _data[i]) & 0xFF] ^ (c >>> 8);
+        }
+        return ~c;
+    }
+}
@@ -0,0 +1,537 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import amplia.util.json.JSONObject;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Hashtable;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Recoge periodicamente los valores de los tags y los envia a la plataforma
+ * como datastreams, como hacia el programa BASIC
+ * PacecoOpenGateDatastreamsBuildAndSending.
+ *
+ * En cada ciclo los valores se leen todos de una vez del origen de tags y el
+ * JSON se escribe en un buffer que se reutiliza. La parte de cada datastream
+ * que no cambia, hasta el instante del valor, se codifica al cargar los tags,
+ * asi el coste por tag en cada ciclo es copiarla y escribir el valor.
+ *
+ * Si el origen avisa de los cambios (OGAgentTagEventSourceInterface) los
+ * valores no se leen en cada ciclo: los cambios se guardan en un
+ * OGAgentTagChangeBuffer y cada ciclo envia solo los tags que han cambiado,
+ * con todas sus muestras. Al cargar los tags se envia una vez el valor de
+ * todos. La memoria de las muestras es fija, se reparte entre los tags al
+ * cargarlos.
+ *
+ * Con un OGAgentDatastreamJournal los datastreams que no se pueden enviar se
+ * guardan en el diario, y mientras haya pendientes los nuevos tambien, para
+ * no desordenarlos. Cada ciclo reenvia los pendientes del mas antiguo al mas
+ * nuevo, juntando varios en cada envio. En el diario se guarda solo el
+ * contenido del array "datastreams", asi los registros se juntan sin
+ * analizar el JSON.
+ */
+public class OGAgentDatastreamCollector {
+
+    /* Formato, sin espacios ni saltos de linea
+    {
+        "version" : "1.0.1",
+        "datastreams" : [
+            {
+                "id" : "crane.hoist.load",
+                "feed" : "",
+                "datapoints" : [
+                    {"at" : 1431602523,"value" : 41}
+                ]
+            }
+        ]
+    }
+    */
+    private static final byte[] DOCUMENT_START = "{\"version\":\"1.0.1\",\"datastreams\":[".getBytes();
+    private static final byte[] DATASTREAM_ID = "{\"id\":".getBytes();
+    private static final byte[] DATASTREAM_DATAPOINTS = ",\"feed\":\"\",\"datapoints\":[{\"at\":".getBytes();
+    private static final byte[] DATAPOINT_VALUE = ",\"value\":".getBytes();
+    private static final byte[] DATAPOINT_SEPARATOR = "},{\"at\":".getBytes();
+    private static final byte[] DATASTREAM_END = "}]}".getBytes();
+    private static final byte[] DOCUMENT_END = "]}".getBytes();
+    private static final byte[] SEPARATOR = ",".getBytes();
+    private static final byte[] NULL_VALUE = "null".getBytes();
+    private static final byte[] UNKNOWN_VALUE_NAME = "\"UNKNOWN\"".getBytes();
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private static final int CHANGE_CAPACITY_DEFAULT_VALUE = 32;
+    private static final int CHANGE_BUDGET_DEFAULT_VALUE = 512 * 1024;
+
+    private static final int REPLAY_BATCH_SIZE_DEFAULT_VALUE = 32 * 1024;
+
+    // Envios de pendientes como mucho en cada ciclo
+    private static final int MAX_REPLAY_BATCHES = 8;
+
+    private OGAgentTagSourceInterface m_tagSource;
+
+    // Si es null los datastreams se recogen pero no se envian
+    private OGAgentDatastreamPublisherInterface m_publisher = null;
+
+    // Solo se envian los tags cuyo nombre contiene el filtro, todos si es
+    // null
+    private String m_nameFilter = null;
+
+    // Nombre del tag -> String[] con el texto de cada valor entero
+    private final Hashtable m_valueNames = new Hashtable();
+
+    // Por cada tag cargado: el comienzo de su datastream hasta el instante
+    // del valor y el texto de sus valores, o null si se envia el numero.
+    // m_heads es null hasta que se cargan los tags
+    private byte[][] m_heads = null;
+    private byte[][][] m_encodedValueNames;
+    private double[] m_values;
+
+    // JSON del ultimo ciclo
+    private byte[] m_buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int m_length = 0;
+
+    // Captura de cambios, si es false se leen todos los valores en cada
+    // ciclo aunque el origen avise de los cambios
+    private boolean m_eventDriven = true;
+    private int m_changeCapacity = CHANGE_CAPACITY_DEFAULT_VALUE;
+    private long m_changeBudget = CHANGE_BUDGET_DEFAULT_VALUE;
+    private int m_overflowPolicy = OGAgentTagChangeBuffer.OVERWRITE_OLDEST;
+
+    // Cambios pendientes y muestras del tag que se esta escribiendo,
+    // m_changes es null si los valores se leen en cada ciclo
+    private OGAgentTagChangeBuffer m_changes = null;
+    private long[] m_sampleTimes;
+    private double[] m_sampleValues;
+
+    // El siguiente ciclo envia el valor de todos los tags
+    private boolean m_snapshotPending = false;
+
+    // Diario de los datastreams sin enviar, null si se pierden
+    private OGAgentDatastreamJournal m_journal = null;
+    private int m_replayBatchSize = REPLAY_BATCH_SIZE_DEFAULT_VALUE;
+
+    private Timer m_timer = null;
+
+    public OGAgentDatastreamCollector(OGAgentTagSourceInterface _tagSource)
+    {
+        m_tagSource = _tagSource;
+    }
+
+    public synchronized void setTagSource(OGAgentTagSourceInterface _tagSource)
+    {
+        unsubscribe();
+        m_tagSource = _tagSource;
+        m_heads = null;
+    }
+
+    public synchronized void setPublisher(OGAgentDatastreamPublisherInterface _publisher)
+    {
+        m_publisher = _publisher;
+    }
+
+    public synchronized void setNameFilter(String _nameFilter)
+    {
+        m_nameFilter = _nameFilter;
+        m_heads = null;
+    }
+
+    public synchronized void setEventDriven(boolean _eventDriven)
+    {
+        m_eventDriven = _eventDriven;
+        m_heads = null;
+    }
+
+    // Muestras de cada tag que se guardan como mucho entre dos ciclos
+    public synchronized void setChangeCapacity(int _changeCapacity)
+    {
+        m_changeCapacity = _changeCapacity;
+        m_heads = null;
+    }
+
+    // Bytes para las muestras de todos los tags, si no caben las de
+    // setChangeCapacity se guardan menos de cada tag
+    public synchronized void setChangeBudget(long _changeBudget)
+    {
+        m_changeBudget = _changeBudget;
+        m_heads = null;
+    }
+
+    // OGAgentTagChangeBuffer.OVERWRITE_OLDEST o DROP_NEWEST, que hacer si un
+    // tag cambia mas veces de las que se guardan
+    public synchronized void setOverflowPolicy(int _overflowPolicy)
+    {
+        m_overflowPolicy = _overflowPolicy;
+        m_heads = null;
+    }
+
+    // El diario debe estar abierto
+    public synchronized void setJournal(OGAgentDatastreamJournal _journal)
+    {
+        m_journal = _journal;
+    }
+
+    // Bytes de datastreams pendientes que se juntan en un envio, se supera
+    // con el ultimo registro
+    public synchronized void setReplayBatchSize(int _replayBatchSize)
+    {
+        m_replayBatchSize = _replayBatchSize;
+    }
+
+    // Los valores enteros del tag se envian como el texto con ese indice,
+    // "UNKNOWN" si no lo hay
+    public synchronized void addValueNames(String _tagName, String[] _names)
+    {
+        m_valueNames.put(_tagName, _names);
+        m_heads = null;
+    }
+
+    // Recoge y envia los datastreams cada _period ms, el primer ciclo enseguida
+    public synchronized void start(long _period)
+    {
+        stop();
+        m_timer = new Timer();
+        m_timer.schedule(new CollectTask(), 0, _period);
+    }
+
+    public synchronized void stop()
+    {
+        if (m_timer != null) {
+            m_timer.cancel();
+            m_timer = null;
+        }
+        unsubscribe();
+        if (m_journal != null) {
+            m_journal.close();
+        }
+    }
+
+    // Un ciclo: lee los valores, escribe el JSON y lo envia, y despues
+    // reenvia los pendientes del diario. Retorna false si no se ha podido
+    // leer o enviar
+    public synchronized boolean collect()
+    {
+        int length;
+        try {
+            length = build(System.currentTimeMillis() / 1000);
+        } catch (IOException ex) {
+            System.out.println("OGAgentDatastreamCollector: error leyendo los tags: " + ex.toString());
+            return false;
+        }
+        if (m_publisher == null) {
+            return true;
+        }
+        if (m_journal == null) {
+            // Si ningun tag tiene valor no se envia nada
+            return length == 0 || m_publisher.publish(m_buffer, length);
+        }
+        if (!m_journal.hasPending()) {
+            if (length == 0 || m_publisher.publish(m_buffer, length)) {
+                return true;
+            }
+            // No hay conexion, se guarda y se reintenta en el siguiente ciclo
+            store(length);
+            return false;
+        }
+        if (length > 0) {
+            store(length);
+        }
+        return replay();
+    }
+
+    // Guarda en el diario el contenido del array "datastreams" del JSON
+    private void store(int _length)
+    {
+        try {
+            int start = DOCUMENT_START.length;
+            int end = _length - DOCUMENT_END.length;
+            if (!m_journal.append(m_buffer, start, end - start)) {
+                System.out.println("OGAgentDatastreamCollector: los datastreams no caben en el diario, se pierden");
+            }
+        } catch (IOException ex) {
+            System.out.println("OGAgentDatastreamCollector: error guardando en el diario: " + ex.toString());
+        }
+    }
+
+    // Reenvia los pendientes del diario en envios de hasta m_replayBatchSize
+    // bytes. Retorna false si alguno falla
+    private boolean replay()
+    {
+        try {
+            for (int batch = 0; batch < MAX_REPLAY_BATCHES && m_journal.hasPending(); batch++) {
+                m_length = 0;
+                write(DOCUMENT_START);
+                int records = 0;
+                int length;
+                while (m_length < m_replayBatchSize && (length = m_journal.nextRecord()) >= 0) {
+                    if (records > 0) {
+                        write(SEPARATOR);
+                    }
+                    write(m_journal.getRecord(), 0, length);
+                    records++;
+                }
+                if (records == 0) {
+                    // Solo quedaban registros no validos
+                    m_journal.commit();
+                    return true;
+                }
+                write(DOCUMENT_END);
+                if (!m_publisher.publish(m_buffer, m_length)) {
+                    m_journal.rewind();
+                    return false;
+                }
+                m_journal.commit();
+            }
+            return true;
+        } catch (IOException ex) {
+            System.out.println("OGAgentDatastreamCollector: error leyendo el diario: " + ex.toString());
+            m_journal.rewind();
+            return false;
+        }
+    }
+
+    // Lee los valores y escribe el JSON en el buffer con el instante
+    // indicado en segundos. Con captura de cambios escribe los cambios con
+    // su propio instante. Retorna su longitud, 0 si ningun tag tiene valor
+    public synchronized int build(long _time) throws IOException
+    {
+        if (m_heads == null || m_tagSource.isTagListChanged()) {
+            loadTags();
+        }
+        if (m_changes != null && !m_snapshotPending) {
+            return buildChanges();
+        }
+        m_snapshotPending = false;
+        m_tagSource.readValues(m_values);
+
+        m_length = 0;
+        write(DOCUMENT_START);
+        int count = 0;
+        for (int i = 0; i < m_values.length; i++) {
+            double value = m_values[i];
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            if (count > 0) {
+                write(SEPARATOR);
+            }
+            write(m_heads[i]);
+            writeLong(_time);
+            write(DATAPOINT_VALUE);
+            writeValue(m_encodedValueNames[i], value);
+            write(DATASTREAM_END);
+            count++;
+        }
+        if (count == 0) {
+            m_length = 0;
+            return 0;
+        }
+        write(DOCUMENT_END);
+        return m_length;
+    }
+
+    private int buildChanges()
+    {
+        m_length = 0;
+        write(DOCUMENT_START);
+        int changedCount = 0;
+        m_changes.beginDrain();
+        int index;
+        while ((index = m_changes.nextChangedTag()) >= 0) {
+            int count = m_changes.takeSamples(index, m_sampleTimes, m_sampleValues);
+            if (count == 0) {
+                continue;
+            }
+            if (changedCount > 0) {
+                write(SEPARATOR);
+            }
+            write(m_heads[index]);
+            for (int j = 0; j < count; j++) {
+                if (j > 0) {
+                    write(DATAPOINT_SEPARATOR);
+                }
+                writeLong(m_sampleTimes[j] / 1000);
+                write(DATAPOINT_VALUE);
+                double value = m_sampleValues[j];
+                if (Double.isNaN(value)) {
+                    write(NULL_VALUE);
+                } else {
+                    writeValue(m_encodedValueNames[index], value);
+                }
+            }
+            write(DATASTREAM_END);
+            changedCount++;
+        }
+        if (changedCount == 0) {
+            m_length = 0;
+            return 0;
+        }
+        write(DOCUMENT_END);
+        return m_length;
+    }
+
+    // Muestras perdidas porque un tag cambio mas veces de las que se guardan
+    // entre dos ciclos, con la carga de tags actual
+    public synchronized int getLostChanges()
+    {
+        return m_changes != null ? m_changes.getOverwritten() + m_changes.getDropped() : 0;
+    }
+
+    // Buffer con el JSON del ultimo ciclo, valido hasta el siguiente
+    public synchronized byte[] getBuffer()
+    {
+        return m_buffer;
+    }
+
+    private void loadTags() throws IOException
+    {
+        unsubscribe();
+        int count = m_tagSource.loadTags(m_nameFilter);
+        byte[][] heads = new byte[count][];
+        byte[][][] encodedValueNames = new byte[count][][];
+        for (int i = 0; i < count; i++) {
+            String name = m_tagSource.getTagName(i);
+            byte[] id = encode(JSONObject.quote(name));
+            byte[] head = new byte[DATASTREAM_ID.length + id.length + DATASTREAM_DATAPOINTS.length];
+            System.arraycopy(DATASTREAM_ID, 0, head, 0, DATASTREAM_ID.length);
+            System.arraycopy(id, 0, head, DATASTREAM_ID.length, id.length);
+            System.arraycopy(DATASTREAM_DATAPOINTS, 0, head, DATASTREAM_ID.length + id.length, DATASTREAM_DATAPOINTS.length);
+            heads[i] = head;
+
+            String[] valueNames = (String[])m_valueNames.get(name);
+            if (valueNames != null) {
+                encodedValueNames[i] = new byte[valueNames.length][];
+                for (int j = 0; j < valueNames.length; j++) {
+                    if (valueNames[j] != null) {
+                        encodedValueNames[i][j] = encode(JSONObject.quote(valueNames[j]));
+                    }
+                }
+            }
+        }
+        m_heads = heads;
+        m_encodedValueNames = encodedValueNames;
+        m_values = new double[count];
+        System.out.println("OGAgentDatastreamCollector: " + count + " tags cargados");
+
+        if (m_eventDriven && m_tagSource instanceof OGAgentTagEventSourceInterface) {
+            int capacity = OGAgentTagChangeBuffer.capacityFor(m_changeBudget, count, m_changeCapacity);
+            m_changes = new OGAgentTagChangeBuffer(count, capacity, m_overflowPolicy);
+            m_sampleTimes = new long[m_changes.getCapacity()];
+            m_sampleValues = new double[m_changes.getCapacity()];
+            ((OGAgentTagEventSourceInterface)m_tagSource).subscribe(m_changes);
+            // El primer ciclo lee el valor de todos. Los cambios de en medio
+            // ya estan en el buffer y se envian en el siguiente
+            m_snapshotPending = true;
+            System.out.println("OGAgentDatastreamCollector: " + m_changes.getCapacity() + " muestras por tag");
+        }
+    }
+
+    private void unsubscribe()
+    {
+        if (m_changes != null) {
+            ((OGAgentTagEventSourceInterface)m_tagSource).unsubscribe();
+            m_changes = null;
+            m_sampleTimes = null;
+            m_sampleValues = null;
+        }
+    }
+
+    private static byte[] encode(String _s)
+    {
+        try {
+            return _s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            return _s.getBytes();
+        }
+    }
+
+    private void writeValue(byte[][] _valueNames, double _value)
+    {
+        if (_valueNames != null) {
+            int index = (int)_value;
+            if (index == _value && index >= 0 && index < _valueNames.length && _valueNames[index] != null) {
+                write(_valueNames[index]);
+            } else {
+                write(UNKNOWN_VALUE_NAME);
+            }
+        } else if (Double.isInfinite(_value)) {
+            write(NULL_VALUE);
+        } else if (_value == (long)_value && Math.abs(_value) < 1e15) {
+            writeLong((long)_value);
+        } else if ((float)_value == _value) {
+            // Los tags del eWON son float, asi se envia 12.3 y no
+            // 12.300000190734863
+            writeAscii(Float.toString((float)_value));
+        } else {
+            writeAscii(Double.toString(_value));
+        }
+    }
+
+    private void write(byte[] _bytes)
+    {
+        write(_bytes, 0, _bytes.length);
+    }
+
+    private void write(byte[] _bytes, int _offset, int _count)
+    {
+        ensureCapacity(_count);
+        System.arraycopy(_bytes, _offset, m_buffer, m_length, _count);
+        m_length += _count;
+    }
+
+    private void writeAscii(String _s)
+    {
+        int count = _s.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            m_buffer[m_length++] = (byte)_s.charAt(i);
+        }
+    }
+
+    private void writeLong(long _value)
+    {
+        ensureCapacity(20);
+        if (_value < 0) {
+            m_buffer[m_length++] = '-';
+            _value = -_value;
+        }
+        long divisor = 1;
+        while (_value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            m_buffer[m_length++] = (byte)('0' + (int)(_value / divisor % 10));
+        }
+    }
+
+    private void ensureCapacity(int _count)
+    {
+        if (m_length + _count > m_buffer.length) {
+            byte[] buffer = new byte[Math.max(m_buffer.length * 2, m_length + _count)];
+            System.arraycopy(m_buffer, 0, buffer, 0, m_length);
+            m_buffer = buffer;
+        }
+    }
+
+    /**
+     * Ciclo de recogida en el hilo del temporizador.
+     */
+    private class CollectTask extends TimerTask {
+
+        // @Override
+        public void run()
+        {
+            try {
+                collect();
+            } catch (RuntimeException ex) {
+                // El temporizador no debe parar por un error del ciclo
+                System.out.println("OGAgentDatastreamCollector: error en el ciclo: " + ex.toString());
+            }
+        }
+    }
+}
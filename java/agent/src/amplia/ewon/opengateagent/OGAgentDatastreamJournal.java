@@ -0,0 +1,415 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Vector;
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+/**
+ * Diario en fichero de los datastreams que no se han podido enviar, para
+ * reenviarlos cuando vuelva la conexion.
+ *
+ * El diario es un directorio con segmentos "00000001.jnl", "00000002.jnl"...
+ * en los que solo se anade al final. Cada registro lleva una cabecera con una
+ * marca, la longitud y el CRC-32 de los datos; al leer, un registro que no
+ * cuadra termina su segmento. Al abrir el diario se empieza un segmento
+ * nuevo, nunca se escribe en uno que existia, asi un corte a mitad de una
+ * escritura solo puede dejar incompleto el ultimo registro del ultimo
+ * segmento.
+ *
+ * Los registros se leen del mas antiguo al mas nuevo con nextRecord. commit
+ * da por enviados los leidos y borra los segmentos terminados, rewind vuelve
+ * al ultimo commit para reintentar. Lo enviado despues del ultimo segmento
+ * borrado se puede reenviar si el agente se reinicia.
+ *
+ * El tamano total esta limitado, si no cabe un registro se borran los
+ * segmentos mas antiguos. Funciona con cualquier URL file:// de
+ * FileConnection, p.e. "file:////usr/ogjournal/" en el eWON o un directorio
+ * local en Linux.
+ */
+public class OGAgentDatastreamJournal {
+
+    private static final String SEGMENT_SUFFIX = ".jnl";
+    private static final int SEGMENT_NUMBER_DIGITS = 8;
+
+    // Cabecera de cada registro: marca (2), longitud (4) y CRC-32 (4)
+    private static final int RECORD_MAGIC = 0x4F47;
+    private static final int HEADER_SIZE = 10;
+
+    private final String m_directoryUrl;
+    private final int m_segmentSize;
+    private final long m_maxSize;
+
+    // Segmentos del mas antiguo al mas nuevo
+    private final Vector m_segments = new Vector();
+    private long m_totalSize = 0;
+
+    // Segmento en el que se anade, si es null la siguiente escritura empieza
+    // uno nuevo
+    private Segment m_writeSegment = null;
+    private int m_nextNumber = 1;
+
+    // Lo confirmado es siempre del primer segmento, los anteriores se borran
+    private long m_commitOffset = 0;
+
+    // Siguiente registro por leer
+    private int m_readIndex = 0;
+    private long m_readOffset = 0;
+    private FileConnection m_inputConnection = null;
+    private InputStream m_input = null;
+
+    // Ultimo registro leido
+    private byte[] m_record = new byte[1024];
+    private final byte[] m_header = new byte[HEADER_SIZE];
+
+    // Bytes borrados porque el diario estaba lleno
+    private long m_droppedSize = 0;
+
+    // _directoryUrl termina en '/'. _segmentSize: tamano a partir del que se
+    // empieza otro segmento. _maxSize: tamano maximo de todos los segmentos
+    public OGAgentDatastreamJournal(String _directoryUrl, int _segmentSize, long _maxSize)
+    {
+        m_directoryUrl = _directoryUrl.endsWith("/") ? _directoryUrl : _directoryUrl + "/";
+        m_segmentSize = _segmentSize;
+        m_maxSize = _maxSize;
+    }
+
+    // Crea el directorio si no existe y carga los segmentos que hay
+    public synchronized void open() throws IOException
+    {
+        closeInput();
+        m_segments.removeAllElements();
+        m_totalSize = 0;
+        FileConnection directory = (FileConnection)Connector.open(m_directoryUrl, Connector.READ_WRITE);
+        try {
+            if (!directory.exists()) {
+                directory.mkdir();
+            }
+            Enumeration names = directory.list();
+            while (names.hasMoreElements()) {
+                int number = parseSegmentNumber((String)names.nextElement());
+                if (number >= 0) {
+                    insertSegment(new Segment(number));
+                }
+            }
+        } finally {
+            directory.close();
+        }
+        for (int i = 0; i < m_segments.size(); i++) {
+            Segment segment = (Segment)m_segments.elementAt(i);
+            FileConnection file = (FileConnection)Connector.open(segmentUrl(segment), Connector.READ);
+            try {
+                segment.m_size = file.fileSize();
+            } finally {
+                file.close();
+            }
+            m_totalSize += segment.m_size;
+        }
+        m_nextNumber = m_segments.isEmpty() ? 1 : ((Segment)m_segments.lastElement()).m_number + 1;
+        m_writeSegment = null;
+        m_commitOffset = 0;
+        m_readIndex = 0;
+        m_readOffset = 0;
+        if (!m_segments.isEmpty()) {
+            System.out.println("OGAgentDatastreamJournal: " + m_segments.size() + " segmentos, " + m_totalSize + " bytes pendientes");
+        }
+    }
+
+    // Anade un registro. Retorna false si no cabe en el diario
+    public synchronized boolean append(byte[] _data, int _offset, int _length) throws IOException
+    {
+        int recordSize = HEADER_SIZE + _length;
+        if (recordSize > m_maxSize) {
+            return false;
+        }
+        while (m_totalSize + recordSize > m_maxSize && !m_segments.isEmpty()) {
+            dropOldestSegment();
+        }
+        // La lectura reabre el segmento despues de la escritura
+        closeInput();
+        if (m_writeSegment == null || (m_writeSegment.m_size > 0 && m_writeSegment.m_size + recordSize > m_segmentSize)) {
+            m_writeSegment = new Segment(m_nextNumber++);
+            FileConnection file = (FileConnection)Connector.open(segmentUrl(m_writeSegment), Connector.READ_WRITE);
+            try {
+                if (!file.exists()) {
+                    file.create();
+                }
+            } finally {
+                file.close();
+            }
+            m_segments.addElement(m_writeSegment);
+        }
+
+        int crc = OGAgentCRC32.update(0, _data, _offset, _length);
+        m_header[0] = (byte)(RECORD_MAGIC >> 8);
+        m_header[1] = (byte)RECORD_MAGIC;
+        putInt(m_header, 2, _length);
+        putInt(m_header, 6, crc);
+
+        FileConnection file = (FileConnection)Connector.open(segmentUrl(m_writeSegment), Connector.READ_WRITE);
+        try {
+            OutputStream output = file.openOutputStream(m_writeSegment.m_size);
+            try {
+                output.write(m_header, 0, HEADER_SIZE);
+                output.write(_data, _offset, _length);
+                output.flush();
+            } finally {
+                output.close();
+            }
+        } catch (IOException ex) {
+            // El segmento puede haber quedado con un registro incompleto, no
+            // se anade mas en el
+            m_writeSegment = null;
+            throw ex;
+        } finally {
+            file.close();
+        }
+        m_writeSegment.m_size += recordSize;
+        m_totalSize += recordSize;
+        return true;
+    }
+
+    // Hay registros sin confirmar
+    public synchronized boolean hasPending()
+    {
+        return m_totalSize > m_commitOffset;
+    }
+
+    // Lee el siguiente registro. Retorna su longitud, -1 si no hay mas. Los
+    // datos quedan en getRecord() hasta la siguiente lectura
+    public synchronized int nextRecord() throws IOException
+    {
+        while (m_readIndex < m_segments.size()) {
+            Segment segment = (Segment)m_segments.elementAt(m_readIndex);
+            if (m_readOffset + HEADER_SIZE <= segment.m_size) {
+                if (m_input == null) {
+                    openInput(segment);
+                }
+                int length = readRecord(segment);
+                if (length >= 0) {
+                    return length;
+                }
+                System.out.println("OGAgentDatastreamJournal: registro no valido en " + segmentUrl(segment) + ":" + m_readOffset + ", se ignora el resto del segmento");
+            }
+            closeInput();
+            m_readIndex++;
+            m_readOffset = 0;
+        }
+        return -1;
+    }
+
+    public synchronized byte[] getRecord()
+    {
+        return m_record;
+    }
+
+    // Da por enviados los registros leidos y borra los segmentos terminados
+    public synchronized void commit() throws IOException
+    {
+        closeInput();
+        for (; m_readIndex > 0; m_readIndex--) {
+            deleteOldestSegment();
+        }
+        m_commitOffset = m_readOffset;
+        if (!m_segments.isEmpty()) {
+            Segment first = (Segment)m_segments.firstElement();
+            if (first != m_writeSegment && m_commitOffset >= first.m_size) {
+                deleteOldestSegment();
+                m_readOffset = 0;
+                m_commitOffset = 0;
+            }
+        }
+    }
+
+    // Vuelve al ultimo commit, los registros leidos se volveran a leer
+    public synchronized void rewind()
+    {
+        closeInput();
+        m_readIndex = 0;
+        m_readOffset = m_commitOffset;
+    }
+
+    public synchronized void close()
+    {
+        closeInput();
+    }
+
+    // Bytes en el diario, incluidos los confirmados del primer segmento
+    public synchronized long getSize()
+    {
+        return m_totalSize;
+    }
+
+    public synchronized long getDroppedSize()
+    {
+        return m_droppedSize;
+    }
+
+    private int readRecord(Segment _segment) throws IOException
+    {
+        if (!readFully(m_header, HEADER_SIZE)) {
+            return -1;
+        }
+        int magic = ((m_header[0] & 0xFF) << 8) | (m_header[1] & 0xFF);
+        int length = getInt(m_header, 2);
+        int crc = getInt(m_header, 6);
+        if (magic != RECORD_MAGIC || length < 0 || length > _segment.m_size - m_readOffset - HEADER_SIZE) {
+            return -1;
+        }
+        if (length > m_record.length) {
+            m_record = new byte[length];
+        }
+        if (!readFully(m_record, length) || OGAgentCRC32.update(0, m_record, 0, length) != crc) {
+            return -1;
+        }
+        m_readOffset += HEADER_SIZE + length;
+        return length;
+    }
+
+    private boolean readFully(byte[] _buffer, int _length) throws IOException
+    {
+        int offset = 0;
+        while (offset < _length) {
+            int count = m_input.read(_buffer, offset, _length - offset);
+            if (count < 0) {
+                return false;
+            }
+            offset += count;
+        }
+        return true;
+    }
+
+    private void openInput(Segment _segment) throws IOException
+    {
+        m_inputConnection = (FileConnection)Connector.open(segmentUrl(_segment), Connector.READ);
+        m_input = m_inputConnection.openInputStream();
+        long skipped = 0;
+        while (skipped < m_readOffset) {
+            long count = m_input.skip(m_readOffset - skipped);
+            if (count <= 0) {
+                throw new IOException("No se puede saltar a " + m_readOffset);
+            }
+            skipped += count;
+        }
+    }
+
+    private void closeInput()
+    {
+        try {
+            if (m_input != null) {
+                m_input.close();
+            }
+            if (m_inputConnection != null) {
+                m_inputConnection.close();
+            }
+        } catch (IOException ex) {
+        }
+        m_input = null;
+        m_inputConnection = null;
+    }
+
+    // El diario esta lleno: se pierde el segmento mas antiguo, aunque no se
+    // haya enviado
+    private void dropOldestSegment() throws IOException
+    {
+        closeInput();
+        Segment oldest = (Segment)m_segments.firstElement();
+        System.out.println("OGAgentDatastreamJournal: diario lleno, se borra " + segmentUrl(oldest));
+        m_droppedSize += oldest.m_size - m_commitOffset;
+        deleteOldestSegment();
+        m_commitOffset = 0;
+        if (m_readIndex > 0) {
+            m_readIndex--;
+        } else {
+            m_readOffset = 0;
+        }
+    }
+
+    private void deleteOldestSegment() throws IOException
+    {
+        Segment oldest = (Segment)m_segments.firstElement();
+        m_segments.removeElementAt(0);
+        m_totalSize -= oldest.m_size;
+        if (oldest == m_writeSegment) {
+            m_writeSegment = null;
+        }
+        FileConnection file = (FileConnection)Connector.open(segmentUrl(oldest), Connector.READ_WRITE);
+        try {
+            if (file.exists()) {
+                file.delete();
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void insertSegment(Segment _segment)
+    {
+        int i = m_segments.size();
+        while (i > 0 && ((Segment)m_segments.elementAt(i - 1)).m_number > _segment.m_number) {
+            i--;
+        }
+        m_segments.insertElementAt(_segment, i);
+    }
+
+    private String segmentUrl(Segment _segment)
+    {
+        String number = Integer.toString(_segment.m_number);
+        StringBuffer url = new StringBuffer(m_directoryUrl);
+        for (int i = number.length(); i < SEGMENT_NUMBER_DIGITS; i++) {
+            url.append('0');
+        }
+        return url.append(number).append(SEGMENT_SUFFIX).toString();
+    }
+
+    // Numero del segmento, -1 si el fichero no es un segmento
+    private static int parseSegmentNumber(String _name)
+    {
+        if (_name.length() != SEGMENT_NUMBER_DIGITS + SEGMENT_SUFFIX.length() || !_name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(_name.substring(0, SEGMENT_NUMBER_DIGITS));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static void putInt(byte[] _buffer, int _offset, int _value)
+    {
+        _buffer[_offset] = (byte)(_value >> 24);
+        _buffer[_offset + 1] = (byte)(_value >> 16);
+        _buffer[_offset + 2] = (byte)(_value >> 8);
+        _buffer[_offset + 3] = (byte)_value;
+    }
+
+    private static int getInt(byte[] _buffer, int _offset)
+    {
+        return ((_buffer[_offset] & 0xFF) << 24) | ((_buffer[_offset + 1] & 0xFF) << 16)
+            | ((_buffer[_offset + 2] & 0xFF) << 8) | (_buffer[_offset + 3] & 0xFF);
+    }
+
+    /**
+     * Segmento del diario.
+     */
+    private static class Segment {
+
+        private final int m_number;
+
+        // Bytes escritos, hasta el ultimo registro completo de esta ejecucion
+        private long m_size = 0;
+
+        public Segment(int _number)
+        {
+            m_number = _number;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+/**
+ * Envio a la plataforma de los datastreams recogidos en cada ciclo.
+ */
+public interface OGAgentDatastreamPublisherInterface {
+    // Envia los _length primeros bytes de _json, que no se deben guardar
+    // porque el buffer se reutiliza en el ciclo siguiente
+    // Retorna true si la plataforma los ha aceptado
+    public boolean publish(byte[] _json, int _length);
+}
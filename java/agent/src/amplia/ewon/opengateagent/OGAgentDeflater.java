@@ -0,0 +1,843 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresor deflate (RFC 1951) en flujo, CLDC no tiene java.util.zip. Los
+ * datos se comprimen segun se escriben y la salida va al OutputStream por
+ * bloques, sin guardar el resultado entero.
+ *
+ * Busca las repeticiones (LZ77) en una ventana de tamano fijo con cadenas de
+ * hash, y aplaza cada repeticion un byte por si la siguiente es mas larga,
+ * como zlib. Los simbolos se guardan hasta que se llena el buffer de
+ * simbolos y el bloque se escribe con los codigos Huffman fijos, con codigos
+ * calculados para el bloque o sin comprimir, lo que ocupe menos.
+ *
+ * La memoria es fija: 2 ventanas de bytes, 2 tablas de ints del tamano de la
+ * ventana y el buffer de simbolos, p.e. 64 KB con una ventana de 4 KB.
+ *
+ * Puede escribir deflate sin cabecera, zlib (RFC 1950, el "deflate" de
+ * Content-Encoding) o gzip (RFC 1952). Un compresor sirve para varios flujos
+ * seguidos, cada uno empieza con reset.
+ */
+public class OGAgentDeflater {
+
+    public static final int FORMAT_RAW = 0;
+    public static final int FORMAT_ZLIB = 1;
+    public static final int FORMAT_GZIP = 2;
+
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = 258;
+
+    // Datos por delante que hacen falta para buscar una repeticion de la
+    // longitud maxima sin llegar al final
+    private static final int MIN_LOOKAHEAD = MAX_MATCH + MIN_MATCH + 1;
+
+    // Simbolos de cada bloque, 3 bytes por simbolo
+    private static final int SYMBOL_BUFFER_SIZE = 8192;
+
+    // Bytes como mucho de un bloque sin comprimir
+    private static final int MAX_STORED = 65535;
+
+    private static final int END_OF_BLOCK = 256;
+    private static final int LITERAL_CODES = 286;
+    private static final int DISTANCE_CODES = 30;
+    private static final int LENGTH_CODES = 19;
+    private static final int MAX_BITS = 15;
+    private static final int MAX_LENGTH_BITS = 7;
+
+    // Simbolos de la codificacion de las longitudes de los codigos: repetir
+    // la anterior 3-6 veces, 3-10 ceros y 11-138 ceros
+    private static final int REPEAT_PREVIOUS = 16;
+    private static final int REPEAT_ZERO = 17;
+    private static final int REPEAT_ZERO_LONG = 18;
+
+    // Orden en que se escriben las longitudes de los codigos de longitudes
+    private static final int[] LENGTH_ORDER = {
+        16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+    // Codigos de longitud 257..285: longitud base y bits extra
+    private static final int[] LENGTH_BASE = {
+        3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+        35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+    private static final int[] LENGTH_EXTRA = {
+        0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+        3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+
+    // Codigos de distancia 0..29: distancia base y bits extra
+    private static final int[] DISTANCE_BASE = {
+        1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+        257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+    private static final int[] DISTANCE_EXTRA = {
+        0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+        7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+
+    // Codigo de cada longitud 3..258, indice en LENGTH_BASE
+    private static final byte[] LENGTH_CODE = new byte[MAX_MATCH + 1];
+
+    // Codigo de cada distancia: las 256 primeras una a una, las demas de 128
+    // en 128
+    private static final byte[] DISTANCE_CODE = new byte[512];
+
+    // Codigos Huffman fijos. Todos los codigos se guardan con los bits
+    // invertidos, deflate los escribe empezando por el mas significativo
+    private static final int[] FIXED_LITERAL_CODE = new int[288];
+    private static final byte[] FIXED_LITERAL_BITS = new byte[288];
+    private static final int[] FIXED_DISTANCE_CODE = new int[DISTANCE_CODES];
+    private static final byte[] FIXED_DISTANCE_BITS = new byte[DISTANCE_CODES];
+
+    static {
+        for (int code = 0; code < LENGTH_BASE.length; code++) {
+            int end = code + 1 < LENGTH_BASE.length ? LENGTH_BASE[code + 1] : MAX_MATCH + 1;
+            for (int length = LENGTH_BASE[code]; length < end; length++) {
+                LENGTH_CODE[length] = (byte)code;
+            }
+        }
+        // La longitud 258 tiene su propio codigo
+        LENGTH_CODE[MAX_MATCH] = (byte)(LENGTH_BASE.length - 1);
+        for (int code = 0; code < DISTANCE_CODES; code++) {
+            int end = code + 1 < DISTANCE_CODES ? DISTANCE_BASE[code + 1] : 32769;
+            for (int distance = DISTANCE_BASE[code]; distance < end; distance++) {
+                if (distance <= 256) {
+                    DISTANCE_CODE[distance - 1] = (byte)code;
+                } else {
+                    DISTANCE_CODE[256 + ((distance - 1) >> 7)] = (byte)code;
+                }
+            }
+        }
+        for (int symbol = 0; symbol < 288; symbol++) {
+            int code;
+            int bits;
+            if (symbol < 144) {
+                code = 0x30 + symbol;
+                bits = 8;
+            } else if (symbol < 256) {
+                code = 0x190 + symbol - 144;
+                bits = 9;
+            } else if (symbol < 280) {
+                code = symbol - 256;
+                bits = 7;
+            } else {
+                code = 0xC0 + symbol - 280;
+                bits = 8;
+            }
+            FIXED_LITERAL_CODE[symbol] = reverse(code, bits);
+            FIXED_LITERAL_BITS[symbol] = (byte)bits;
+        }
+        for (int code = 0; code < DISTANCE_CODES; code++) {
+            FIXED_DISTANCE_CODE[code] = reverse(code, 5);
+            FIXED_DISTANCE_BITS[code] = 5;
+        }
+    }
+
+    private final int m_format;
+    private final int m_windowBits;
+    private final int m_windowSize;
+    private final int m_windowMask;
+    private final int m_hashShift;
+
+    // Cadenas mas largas que se siguen buscando una repeticion, y longitud a
+    // partir de la que se deja de buscar
+    private final int m_maxChain;
+    private final int m_niceLength;
+
+    // Dos ventanas: la de atras es el historial, la de delante los datos por
+    // comprimir. Al llenarse se desplaza una ventana
+    private final byte[] m_window;
+
+    // Ultima posicion con cada hash y posicion anterior con el mismo hash,
+    // -1 si no hay
+    private final int[] m_head;
+    private final int[] m_prev;
+
+    // Siguiente posicion por comprimir y fin de los datos en la ventana
+    private int m_start = 0;
+    private int m_end = 0;
+
+    // Repeticion encontrada en m_start - 1, que se escribe si la de m_start
+    // no es mas larga. Si no la hay, el byte de m_start - 1 esta pendiente
+    // si m_matchAvailable
+    private boolean m_matchAvailable = false;
+    private int m_matchLength = MIN_MATCH - 1;
+    private int m_matchDistance = 0;
+
+    // Simbolos del bloque: el literal o la longitud - 3, y la distancia, 0
+    // en los literales
+    private final byte[] m_symbolLengths = new byte[SYMBOL_BUFFER_SIZE];
+    private final short[] m_symbolDistances = new short[SYMBOL_BUFFER_SIZE];
+    private int m_symbolCount = 0;
+
+    // Posicion en la ventana del primer byte del bloque, negativa si ya no
+    // esta y el bloque no se puede escribir sin comprimir
+    private int m_blockStart = 0;
+
+    // Frecuencias y codigos del bloque
+    private final int[] m_literalFrequencies = new int[LITERAL_CODES];
+    private final int[] m_distanceFrequencies = new int[DISTANCE_CODES];
+    private final int[] m_lengthFrequencies = new int[LENGTH_CODES];
+    private final byte[] m_literalBits = new byte[LITERAL_CODES];
+    private final int[] m_literalCodes = new int[LITERAL_CODES];
+    private final byte[] m_distanceBits = new byte[DISTANCE_CODES];
+    private final int[] m_distanceCodes = new int[DISTANCE_CODES];
+    private final byte[] m_lengthBits = new byte[LENGTH_CODES];
+    private final int[] m_lengthCodes = new int[LENGTH_CODES];
+
+    // Longitudes de los codigos del bloque codificadas, con sus bits extra
+    private final byte[] m_lengthSymbols = new byte[LITERAL_CODES + DISTANCE_CODES];
+    private final byte[] m_lengthSymbolExtras = new byte[LITERAL_CODES + DISTANCE_CODES];
+    private int m_lengthSymbolCount = 0;
+
+    // Para construir los arboles Huffman: hojas ordenadas por frecuencia y
+    // nodos, primero las hojas y despues los internos
+    private final int[] m_leaves = new int[LITERAL_CODES];
+    private final int[] m_nodeWeights = new int[2 * LITERAL_CODES];
+    private final int[] m_nodeParents = new int[2 * LITERAL_CODES];
+    private final int[] m_nextCodes = new int[MAX_BITS + 1];
+
+    private OutputStream m_output = null;
+    private final byte[] m_outputBuffer = new byte[512];
+    private int m_outputCount = 0;
+    private int m_bitBuffer = 0;
+    private int m_bitCount = 0;
+
+    // Sumas de comprobacion de los datos sin comprimir
+    private int m_crc = 0;
+    private int m_adlerA = 1;
+    private int m_adlerB = 0;
+    private int m_totalIn = 0;
+    private int m_totalOut = 0;
+
+    // _windowBits: ventana de 2^_windowBits bytes, de 9 a 15. _maxChain:
+    // posiciones que se prueban como mucho en cada busqueda
+    public OGAgentDeflater(int _windowBits, int _maxChain, int _format)
+    {
+        if (_windowBits < 9 || _windowBits > 15) {
+            throw new IllegalArgumentException("windowBits " + _windowBits);
+        }
+        m_format = _format;
+        m_windowBits = _windowBits;
+        m_windowSize = 1 << _windowBits;
+        m_windowMask = m_windowSize - 1;
+        m_hashShift = 32 - _windowBits;
+        m_maxChain = _maxChain;
+        m_niceLength = _maxChain >= 128 ? MAX_MATCH : 32 + _maxChain;
+        m_window = new byte[2 * m_windowSize];
+        m_head = new int[m_windowSize];
+        m_prev = new int[m_windowSize];
+    }
+
+    // Empieza un flujo nuevo que se escribe en _output
+    public void reset(OutputStream _output) throws IOException
+    {
+        m_output = _output;
+        m_outputCount = 0;
+        m_bitBuffer = 0;
+        m_bitCount = 0;
+        m_start = 0;
+        m_end = 0;
+        m_matchAvailable = false;
+        m_matchLength = MIN_MATCH - 1;
+        m_blockStart = 0;
+        for (int i = 0; i < m_windowSize; i++) {
+            m_head[i] = -1;
+        }
+        clearBlock();
+        m_crc = 0;
+        m_adlerA = 1;
+        m_adlerB = 0;
+        m_totalIn = 0;
+        m_totalOut = 0;
+
+        if (m_format == FORMAT_GZIP) {
+            // Sin nombre ni fecha, sistema desconocido
+            putByte(0x1F);
+            putByte(0x8B);
+            putByte(8);
+            for (int i = 0; i < 6; i++) {
+                putByte(0);
+            }
+            putByte(0xFF);
+        } else if (m_format == FORMAT_ZLIB) {
+            int cmf = ((m_windowBits - 8) << 4) | 8;
+            int flg = 31 - (cmf * 256) % 31;
+            putByte(cmf);
+            putByte(flg);
+        }
+    }
+
+    public void write(byte[] _data, int _offset, int _length) throws IOException
+    {
+        updateChecksums(_data, _offset, _length);
+        while (_length > 0) {
+            if (m_end == m_window.length) {
+                slide();
+            }
+            int count = Math.min(_length, m_window.length - m_end);
+            System.arraycopy(_data, _offset, m_window, m_end, count);
+            m_end += count;
+            _offset += count;
+            _length -= count;
+            compress(false);
+        }
+    }
+
+    // Comprime lo que queda y termina el flujo
+    public void finish() throws IOException
+    {
+        compress(true);
+        if (m_matchAvailable) {
+            addLiteral(m_window[m_start - 1] & 0xFF);
+            m_matchAvailable = false;
+        }
+        writeBlock(true);
+        if (m_bitCount > 0) {
+            writeBits(0, 8 - m_bitCount);
+        }
+        if (m_format == FORMAT_GZIP) {
+            putIntLittleEndian(m_crc);
+            putIntLittleEndian(m_totalIn);
+        } else if (m_format == FORMAT_ZLIB) {
+            int adler = (m_adlerB << 16) | m_adlerA;
+            putByte(adler >>> 24);
+            putByte(adler >>> 16);
+            putByte(adler >>> 8);
+            putByte(adler);
+        }
+        flushOutput();
+        m_output = null;
+    }
+
+    // Bytes del flujo actual, sin comprimir y comprimidos
+    public int getTotalIn()
+    {
+        return m_totalIn;
+    }
+
+    public int getTotalOut()
+    {
+        return m_totalOut + m_outputCount;
+    }
+
+    private void compress(boolean _finish) throws IOException
+    {
+        int minLookahead = _finish ? 1 : MIN_LOOKAHEAD;
+        while (m_end - m_start >= minLookahead) {
+            int previousLength = m_matchLength;
+            int previousDistance = m_matchDistance;
+            m_matchLength = MIN_MATCH - 1;
+            if (m_end - m_start >= MIN_MATCH) {
+                int hash = hash(m_start);
+                int candidate = m_head[hash];
+                m_head[hash] = m_start;
+                m_prev[m_start & m_windowMask] = candidate;
+                if (candidate >= 0 && previousLength < m_niceLength) {
+                    findMatch(candidate, previousLength);
+                }
+            }
+            if (previousLength >= MIN_MATCH && m_matchLength <= previousLength) {
+                // La repeticion de la posicion anterior es la mejor. Sus
+                // posiciones tambien se anaden a las cadenas
+                addMatch(previousLength, previousDistance);
+                int end = m_start - 1 + previousLength;
+                int insertEnd = Math.min(end, m_end - MIN_MATCH + 1);
+                for (int position = m_start + 1; position < insertEnd; position++) {
+                    int hash = hash(position);
+                    m_prev[position & m_windowMask] = m_head[hash];
+                    m_head[hash] = position;
+                }
+                m_start = end;
+                m_matchAvailable = false;
+                m_matchLength = MIN_MATCH - 1;
+            } else {
+                if (m_matchAvailable) {
+                    addLiteral(m_window[m_start - 1] & 0xFF);
+                }
+                m_matchAvailable = true;
+                m_start++;
+            }
+            if (m_symbolCount == SYMBOL_BUFFER_SIZE) {
+                writeBlock(false);
+            }
+        }
+    }
+
+    // Busca en la cadena de _candidate una repeticion de m_start mas larga
+    // que _minLength, la deja en m_matchLength y m_matchDistance
+    private void findMatch(int _candidate, int _minLength)
+    {
+        byte[] window = m_window;
+        int start = m_start;
+        int maxLength = Math.min(m_end - start, MAX_MATCH);
+        // Posiciones fuera de la ventana o sin cadena (-1)
+        int limit = Math.max(start - m_windowSize, -1);
+        int bestLength = Math.max(_minLength, MIN_MATCH - 1);
+        if (bestLength >= maxLength) {
+            return;
+        }
+        int candidate = _candidate;
+        int chain = m_maxChain;
+        while (candidate > limit && chain-- > 0) {
+            // Primero el byte que alargaria la mejor encontrada
+            if (window[candidate + bestLength] == window[start + bestLength] && window[candidate] == window[start]) {
+                int length = 1;
+                while (length < maxLength && window[candidate + length] == window[start + length]) {
+                    length++;
+                }
+                if (length > bestLength) {
+                    bestLength = length;
+                    m_matchLength = length;
+                    m_matchDistance = start - candidate;
+                    if (length >= m_niceLength || length == maxLength) {
+                        return;
+                    }
+                }
+            }
+            int next = m_prev[candidate & m_windowMask];
+            if (next >= candidate) {
+                return;
+            }
+            candidate = next;
+        }
+    }
+
+    // Desplaza una ventana hacia atras. Solo se llama con m_start en la
+    // ventana de delante
+    private void slide()
+    {
+        System.arraycopy(m_window, m_windowSize, m_window, 0, m_windowSize);
+        m_start -= m_windowSize;
+        m_end -= m_windowSize;
+        m_blockStart -= m_windowSize;
+        for (int i = 0; i < m_windowSize; i++) {
+            int head = m_head[i];
+            m_head[i] = head >= m_windowSize ? head - m_windowSize : -1;
+            int prev = m_prev[i];
+            m_prev[i] = prev >= m_windowSize ? prev - m_windowSize : -1;
+        }
+    }
+
+    private int hash(int _position)
+    {
+        int key = ((m_window[_position] & 0xFF) << 16) | ((m_window[_position + 1] & 0xFF) << 8) | (m_window[_position + 2] & 0xFF);
+        return (key * 0x9E3779B1) >>> m_hashShift;
+    }
+
+    private void addLiteral(int _literal)
+    {
+        m_symbolLengths[m_symbolCount] = (byte)_literal;
+        m_symbolDistances[m_symbolCount] = 0;
+        m_symbolCount++;
+        m_literalFrequencies[_literal]++;
+    }
+
+    private void addMatch(int _length, int _distance)
+    {
+        m_symbolLengths[m_symbolCount] = (byte)(_length - MIN_MATCH);
+        m_symbolDistances[m_symbolCount] = (short)_distance;
+        m_symbolCount++;
+        m_literalFrequencies[257 + LENGTH_CODE[_length]]++;
+        m_distanceFrequencies[distanceCode(_distance)]++;
+    }
+
+    private static int distanceCode(int _distance)
+    {
+        return _distance <= 256 ? DISTANCE_CODE[_distance - 1] : DISTANCE_CODE[256 + ((_distance - 1) >> 7)];
+    }
+
+    private void clearBlock()
+    {
+        m_symbolCount = 0;
+        for (int i = 0; i < LITERAL_CODES; i++) {
+            m_literalFrequencies[i] = 0;
+        }
+        for (int i = 0; i < DISTANCE_CODES; i++) {
+            m_distanceFrequencies[i] = 0;
+        }
+    }
+
+    // Escribe los simbolos guardados como un bloque, de la forma que ocupe
+    // menos
+    private void writeBlock(boolean _last) throws IOException
+    {
+        int blockEnd = m_matchAvailable ? m_start - 1 : m_start;
+        m_literalFrequencies[END_OF_BLOCK]++;
+
+        // Al menos dos codigos de cada, hay descompresores que no aceptan
+        // uno solo
+        ensureTwoCodes(m_literalFrequencies, LITERAL_CODES);
+        ensureTwoCodes(m_distanceFrequencies, DISTANCE_CODES);
+        buildCode(m_literalFrequencies, LITERAL_CODES, MAX_BITS, m_literalBits, m_literalCodes);
+        buildCode(m_distanceFrequencies, DISTANCE_CODES, MAX_BITS, m_distanceBits, m_distanceCodes);
+        int literalCount = LITERAL_CODES;
+        while (literalCount > 257 && m_literalBits[literalCount - 1] == 0) {
+            literalCount--;
+        }
+        int distanceCount = DISTANCE_CODES;
+        while (distanceCount > 1 && m_distanceBits[distanceCount - 1] == 0) {
+            distanceCount--;
+        }
+        encodeLengths(literalCount, distanceCount);
+        buildCode(m_lengthFrequencies, LENGTH_CODES, MAX_LENGTH_BITS, m_lengthBits, m_lengthCodes);
+        int lengthCount = LENGTH_CODES;
+        while (lengthCount > 4 && m_lengthBits[LENGTH_ORDER[lengthCount - 1]] == 0) {
+            lengthCount--;
+        }
+
+        // Bits de cada forma, los extra son los mismos en las dos
+        // comprimidas
+        long fixedBits = 3;
+        long dynamicBits = 3 + 5 + 5 + 4 + 3 * lengthCount;
+        for (int i = 0; i < m_lengthSymbolCount; i++) {
+            int symbol = m_lengthSymbols[i];
+            dynamicBits += m_lengthBits[symbol] + lengthSymbolExtraBits(symbol);
+        }
+        for (int i = 0; i < LITERAL_CODES; i++) {
+            int frequency = m_literalFrequencies[i];
+            int extra = i > END_OF_BLOCK ? LENGTH_EXTRA[i - 257] : 0;
+            fixedBits += (long)frequency * (FIXED_LITERAL_BITS[i] + extra);
+            dynamicBits += (long)frequency * (m_literalBits[i] + extra);
+        }
+        for (int i = 0; i < DISTANCE_CODES; i++) {
+            int frequency = m_distanceFrequencies[i];
+            fixedBits += (long)frequency * (FIXED_DISTANCE_BITS[i] + DISTANCE_EXTRA[i]);
+            dynamicBits += (long)frequency * (m_distanceBits[i] + DISTANCE_EXTRA[i]);
+        }
+        int storedLength = blockEnd - m_blockStart;
+        long storedBits = Long.MAX_VALUE;
+        if (m_blockStart >= 0) {
+            // Cabecera, relleno hasta el byte y longitudes de cada bloque
+            storedBits = (long)(storedLength / MAX_STORED + 1) * (3 + 7 + 32) + 8L * storedLength;
+        }
+
+        if (storedBits <= fixedBits && storedBits <= dynamicBits) {
+            writeStored(m_blockStart, storedLength, _last);
+        } else if (fixedBits <= dynamicBits) {
+            writeBits(_last ? 1 : 0, 1);
+            writeBits(1, 2);
+            writeSymbols(FIXED_LITERAL_CODE, FIXED_LITERAL_BITS, FIXED_DISTANCE_CODE, FIXED_DISTANCE_BITS);
+        } else {
+            writeBits(_last ? 1 : 0, 1);
+            writeBits(2, 2);
+            writeBits(literalCount - 257, 5);
+            writeBits(distanceCount - 1, 5);
+            writeBits(lengthCount - 4, 4);
+            for (int i = 0; i < lengthCount; i++) {
+                writeBits(m_lengthBits[LENGTH_ORDER[i]], 3);
+            }
+            for (int i = 0; i < m_lengthSymbolCount; i++) {
+                int symbol = m_lengthSymbols[i];
+                writeBits(m_lengthCodes[symbol], m_lengthBits[symbol]);
+                writeBits(m_lengthSymbolExtras[i], lengthSymbolExtraBits(symbol));
+            }
+            writeSymbols(m_literalCodes, m_literalBits, m_distanceCodes, m_distanceBits);
+        }
+        m_blockStart = blockEnd;
+        clearBlock();
+    }
+
+    private void writeSymbols(int[] _literalCodes, byte[] _literalBits, int[] _distanceCodes, byte[] _distanceBits) throws IOException
+    {
+        for (int i = 0; i < m_symbolCount; i++) {
+            int length = m_symbolLengths[i] & 0xFF;
+            int distance = m_symbolDistances[i];
+            if (distance == 0) {
+                writeBits(_literalCodes[length], _literalBits[length]);
+                continue;
+            }
+            int lengthCode = LENGTH_CODE[length + MIN_MATCH];
+            int symbol = 257 + lengthCode;
+            writeBits(_literalCodes[symbol], _literalBits[symbol]);
+            writeBits(length + MIN_MATCH - LENGTH_BASE[lengthCode], LENGTH_EXTRA[lengthCode]);
+            int distanceCode = distanceCode(distance);
+            writeBits(_distanceCodes[distanceCode], _distanceBits[distanceCode]);
+            writeBits(distance - DISTANCE_BASE[distanceCode], DISTANCE_EXTRA[distanceCode]);
+        }
+        writeBits(_literalCodes[END_OF_BLOCK], _literalBits[END_OF_BLOCK]);
+    }
+
+    // Bloques sin comprimir con los bytes de la ventana
+    private void writeStored(int _offset, int _length, boolean _last) throws IOException
+    {
+        do {
+            int count = Math.min(_length, MAX_STORED);
+            _length -= count;
+            writeBits(_last && _length == 0 ? 1 : 0, 1);
+            writeBits(0, 2);
+            if (m_bitCount > 0) {
+                writeBits(0, 8 - m_bitCount);
+            }
+            putByte(count);
+            putByte(count >>> 8);
+            putByte(~count);
+            putByte(~count >>> 8);
+            for (int i = 0; i < count; i++) {
+                putByte(m_window[_offset + i]);
+            }
+            _offset += count;
+        } while (_length > 0);
+    }
+
+    private static void ensureTwoCodes(int[] _frequencies, int _count)
+    {
+        int used = 0;
+        for (int i = 0; i < _count && used < 2; i++) {
+            if (_frequencies[i] > 0) {
+                used++;
+            }
+        }
+        for (int i = 0; i < _count && used < 2; i++) {
+            if (_frequencies[i] == 0) {
+                _frequencies[i] = 1;
+                used++;
+            }
+        }
+    }
+
+    // Codifica las longitudes de los codigos de literales y distancias con
+    // las repeticiones, y cuenta los simbolos en m_lengthFrequencies
+    private void encodeLengths(int _literalCount, int _distanceCount)
+    {
+        for (int i = 0; i < LENGTH_CODES; i++) {
+            m_lengthFrequencies[i] = 0;
+        }
+        m_lengthSymbolCount = 0;
+        int total = _literalCount + _distanceCount;
+        int i = 0;
+        while (i < total) {
+            int bits = codeLength(i, _literalCount);
+            int run = 1;
+            while (i + run < total && codeLength(i + run, _literalCount) == bits) {
+                run++;
+            }
+            i += run;
+            if (bits == 0) {
+                while (run >= 11) {
+                    int count = Math.min(run, 138);
+                    addLengthSymbol(REPEAT_ZERO_LONG, count - 11);
+                    run -= count;
+                }
+                if (run >= 3) {
+                    addLengthSymbol(REPEAT_ZERO, run - 3);
+                    run = 0;
+                }
+            } else {
+                addLengthSymbol(bits, 0);
+                run--;
+                while (run >= 3) {
+                    int count = Math.min(run, 6);
+                    addLengthSymbol(REPEAT_PREVIOUS, count - 3);
+                    run -= count;
+                }
+            }
+            while (run-- > 0) {
+                addLengthSymbol(bits, 0);
+            }
+        }
+    }
+
+    private int codeLength(int _index, int _literalCount)
+    {
+        return _index < _literalCount ? m_literalBits[_index] : m_distanceBits[_index - _literalCount];
+    }
+
+    private void addLengthSymbol(int _symbol, int _extra)
+    {
+        m_lengthSymbols[m_lengthSymbolCount] = (byte)_symbol;
+        m_lengthSymbolExtras[m_lengthSymbolCount] = (byte)_extra;
+        m_lengthSymbolCount++;
+        m_lengthFrequencies[_symbol]++;
+    }
+
+    private static int lengthSymbolExtraBits(int _symbol)
+    {
+        if (_symbol == REPEAT_PREVIOUS) {
+            return 2;
+        } else if (_symbol == REPEAT_ZERO) {
+            return 3;
+        } else if (_symbol == REPEAT_ZERO_LONG) {
+            return 7;
+        }
+        return 0;
+    }
+
+    // Calcula los codigos Huffman de las frecuencias, de _maxBits como
+    // mucho. Si el arbol sale mas profundo se reducen las frecuencias a la
+    // mitad hasta que cabe
+    private void buildCode(int[] _frequencies, int _count, int _maxBits, byte[] _bits, int[] _codes)
+    {
+        // Hojas ordenadas por frecuencia, asi el arbol se construye con dos
+        // colas sin ordenar los nodos internos
+        int leafCount = 0;
+        for (int symbol = 0; symbol < _count; symbol++) {
+            _bits[symbol] = 0;
+            int frequency = _frequencies[symbol];
+            if (frequency == 0) {
+                continue;
+            }
+            int j = leafCount++;
+            while (j > 0 && _frequencies[m_leaves[j - 1]] > frequency) {
+                m_leaves[j] = m_leaves[j - 1];
+                j--;
+            }
+            m_leaves[j] = symbol;
+        }
+        if (leafCount == 1) {
+            _bits[m_leaves[0]] = 1;
+        } else if (leafCount > 1) {
+            int shift = 0;
+            while (!buildTree(_frequencies, leafCount, shift, _maxBits, _bits)) {
+                shift++;
+            }
+        }
+
+        // Codigos canonicos: por longitud, y en cada longitud por simbolo
+        for (int bits = 0; bits <= _maxBits; bits++) {
+            m_nextCodes[bits] = 0;
+        }
+        for (int symbol = 0; symbol < _count; symbol++) {
+            m_nextCodes[_bits[symbol]]++;
+        }
+        int code = 0;
+        int previousCount = 0;
+        for (int bits = 1; bits <= _maxBits; bits++) {
+            code = (code + previousCount) << 1;
+            previousCount = m_nextCodes[bits];
+            m_nextCodes[bits] = code;
+        }
+        for (int symbol = 0; symbol < _count; symbol++) {
+            int bits = _bits[symbol];
+            if (bits > 0) {
+                _codes[symbol] = reverse(m_nextCodes[bits]++, bits);
+            }
+        }
+    }
+
+    // Arbol Huffman de las hojas ordenadas, con las frecuencias divididas
+    // por 2^_shift sin llegar a 0. Retorna false si alguna hoja pasa de
+    // _maxBits
+    private boolean buildTree(int[] _frequencies, int _leafCount, int _shift, int _maxBits, byte[] _bits)
+    {
+        int[] weights = m_nodeWeights;
+        int[] parents = m_nodeParents;
+        for (int i = 0; i < _leafCount; i++) {
+            int weight = _frequencies[m_leaves[i]] >> _shift;
+            weights[i] = weight > 0 ? weight : 1;
+        }
+        // Cola de hojas desde leaf y de nodos internos desde node, los
+        // internos se crean ya ordenados
+        int leaf = 0;
+        int node = _leafCount;
+        int next = _leafCount;
+        for (int k = 0; k < _leafCount - 1; k++) {
+            int first;
+            if (leaf < _leafCount && (node == next || weights[leaf] <= weights[node])) {
+                first = leaf++;
+            } else {
+                first = node++;
+            }
+            int second;
+            if (leaf < _leafCount && (node == next || weights[leaf] <= weights[node])) {
+                second = leaf++;
+            } else {
+                second = node++;
+            }
+            weights[next] = weights[first] + weights[second];
+            parents[first] = next;
+            parents[second] = next;
+            next++;
+        }
+        // Profundidad de cada nodo en los pesos, que ya no hacen falta. Los
+        // padres estan despues de los hijos
+        int root = next - 1;
+        weights[root] = 0;
+        for (int i = root - 1; i >= 0; i--) {
+            weights[i] = weights[parents[i]] + 1;
+        }
+        for (int i = 0; i < _leafCount; i++) {
+            if (weights[i] > _maxBits) {
+                return false;
+            }
+        }
+        for (int i = 0; i < _leafCount; i++) {
+            _bits[m_leaves[i]] = (byte)weights[i];
+        }
+        return true;
+    }
+
+    // Deflate empaqueta los bits empezando por el menos significativo
+    private void writeBits(int _value, int _bits) throws IOException
+    {
+        m_bitBuffer |= _value << m_bitCount;
+        m_bitCount += _bits;
+        while (m_bitCount >= 8) {
+            putByte(m_bitBuffer);
+            m_bitBuffer >>>= 8;
+            m_bitCount -= 8;
+        }
+    }
+
+    private void putByte(int _value) throws IOException
+    {
+        if (m_outputCount == m_outputBuffer.length) {
+            flushOutput();
+        }
+        m_outputBuffer[m_outputCount++] = (byte)_value;
+    }
+
+    private void putIntLittleEndian(int _value) throws IOException
+    {
+        putByte(_value);
+        putByte(_value >>> 8);
+        putByte(_value >>> 16);
+        putByte(_value >>> 24);
+    }
+
+    private void flushOutput() throws IOException
+    {
+        if (m_outputCount > 0) {
+            m_output.write(m_outputBuffer, 0, m_outputCount);
+            m_totalOut += m_outputCount;
+            m_outputCount = 0;
+        }
+    }
+
+    private void updateChecksums(byte[] _data, int _offset, int _length)
+    {
+        m_totalIn += _length;
+        if (m_format == FORMAT_GZIP) {
+            m_crc = OGAgentCRC32.update(m_crc, _data, _offset, _length);
+        } else if (m_format == FORMAT_ZLIB) {
+            int a = m_adlerA;
+            int b = m_adlerB;
+            int end = _offset + _length;
+            while (_offset < end) {
+                // 5552 bytes caben sin desbordar antes del modulo
+                int blockEnd = Math.min(end, _offset + 5552);
+                for (; _offset < blockEnd; _offset++) {
+                    a += _data[_offset] & 0xFF;
+                    b += a;
+                }
+                a %= 65521;
+                b %= 65521;
+            }
+            m_adlerA = a;
+            m_adlerB = b;
+        }
+    }
+
+    private static int reverse(int _code, int _bits)
+    {
+        int reversed = 0;
+        for (int i = 0; i < _bits; i++) {
+            reversed = (reversed << 1) | (_code & 1);
+            _code >>>= 1;
+        }
+        return reversed;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import com.ewon.ewonitf.DefaultEventHandler;
+import com.ewon.ewonitf.EWException;
+import com.ewon.ewonitf.EventHandlerThread;
+import com.ewon.ewonitf.EvtTagValueListener;
+import com.ewon.ewonitf.IOManager;
+import com.ewon.ewonitf.TagControl;
+import java.util.Vector;
+
+/**
+ * Tags del eWON. Al cargar se recorre la tabla de tags por indice y se guarda
+ * un TagControl por cada tag que pasa el filtro, despues cada ciclo lee los
+ * valores directamente de esos TagControl.
+ *
+ * Con subscribe se registra un EvtTagValueListener por tag en el
+ * DefaultEventHandler, y el eWON avisa de cada cambio desde el hilo del
+ * gestor de eventos.
+ */
+public class OGAgentEwonTagSource implements OGAgentTagEventSourceInterface {
+
+    // El gestor de eventos del eWON es unico, su hilo se arranca una vez
+    private static boolean s_eventManagerStarted = false;
+
+    private TagControl[] m_tags = new TagControl[0];
+    private String[] m_names = new String[0];
+
+    // Numero de tags del equipo en la ultima carga
+    private int m_deviceTagCount = -1;
+
+    // Listeners registrados, null si no hay suscripcion
+    private TagValueListener[] m_listeners = null;
+
+    // @Override
+    public int loadTags(String _nameFilter)
+    {
+        unsubscribe();
+        int deviceTagCount = IOManager.getNbTags();
+        Vector tags = new Vector();
+        Vector names = new Vector();
+        for (int i = 0; i < deviceTagCount; i++) {
+            try {
+                TagControl tag = new TagControl(TagControl.BY_NDX, i);
+                String name = tag.getTagName();
+                if (name != null && (_nameFilter == null || name.indexOf(_nameFilter) >= 0)) {
+                    tags.addElement(tag);
+                    names.addElement(name);
+                }
+            } catch (EWException ex) {
+                System.out.println("OGAgentEwonTagSource: no se puede leer el tag " + i + ": " + ex.toString());
+            }
+        }
+        m_tags = new TagControl[tags.size()];
+        tags.copyInto(m_tags);
+        m_names = new String[names.size()];
+        names.copyInto(m_names);
+        m_deviceTagCount = deviceTagCount;
+        return m_tags.length;
+    }
+
+    // @Override
+    public String getTagName(int _index)
+    {
+        return m_names[_index];
+    }
+
+    // @Override
+    public boolean isTagListChanged()
+    {
+        return IOManager.getNbTags() != m_deviceTagCount;
+    }
+
+    // @Override
+    public void readValues(double[] _values)
+    {
+        TagControl[] tags = m_tags;
+        for (int i = 0; i < tags.length; i++) {
+            _values[i] = tags[i].getTagValueAsDouble();
+        }
+    }
+
+    // @Override
+    public synchronized void subscribe(OGAgentTagChangeListenerInterface _listener)
+    {
+        unsubscribe();
+        TagControl[] tags = m_tags;
+        TagValueListener[] listeners = new TagValueListener[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            listeners[i] = new TagValueListener(tags[i], i, _listener);
+            DefaultEventHandler.addTagValueListener(listeners[i]);
+        }
+        m_listeners = listeners;
+        startEventManager();
+    }
+
+    // @Override
+    public synchronized void unsubscribe()
+    {
+        if (m_listeners == null) {
+            return;
+        }
+        for (int i = 0; i < m_listeners.length; i++) {
+            DefaultEventHandler.delTagValueListener(m_listeners[i]);
+        }
+        m_listeners = null;
+    }
+
+    private static synchronized void startEventManager()
+    {
+        if (!s_eventManagerStarted) {
+            new EventHandlerThread(true);
+            s_eventManagerStarted = true;
+        }
+    }
+
+    /**
+     * Pasa los cambios de un tag al listener con el indice de la carga.
+     */
+    private static class TagValueListener extends EvtTagValueListener {
+
+        private final int m_index;
+        private final OGAgentTagChangeListenerInterface m_listener;
+
+        public TagValueListener(TagControl _tag, int _index, OGAgentTagChangeListenerInterface _listener)
+        {
+            super(_tag);
+            m_index = _index;
+            m_listener = _listener;
+        }
+
+        // @Override
+        public void callTagChanged()
+        {
+            m_listener.tagChanged(m_index, System.currentTimeMillis(), getChangedValueAsDouble());
+        }
+    }
+}
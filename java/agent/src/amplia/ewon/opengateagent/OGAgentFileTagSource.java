@@ -0,0 +1,196 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Hashtable;
+import java.util.Vector;
+import javax.microedition.io.Connector;
+
+/**
+ * Tags leidos de un fichero de texto, para probar el envio de datastreams
+ * fuera del eWON. Cada linea tiene el nombre y el valor de un tag separados
+ * por ';', el nombre puede ir entre comillas como en las exportaciones:
+ *
+ *   "crane.hoist.load";12.5
+ *
+ * Las lineas que no tienen un valor numerico se ignoran. El fichero se lee
+ * entero en cada ciclo, quien lo escribe hace de equipo.
+ */
+public class OGAgentFileTagSource implements OGAgentTagSourceInterface {
+
+    private final String m_url;
+
+    private String[] m_names = new String[0];
+
+    // Nombre -> Integer con el indice del tag cargado
+    private Hashtable m_indexes = new Hashtable();
+
+    private String m_nameFilter = null;
+
+    // La ultima lectura ha encontrado un tag que no estaba cargado
+    private boolean m_tagListChanged = false;
+
+    // Contenido del fichero, se reutiliza en cada lectura
+    private byte[] m_data = new byte[1024];
+    private int m_length = 0;
+
+    // _url: URL del fichero, p.e. "file:///usr/tags.txt"
+    public OGAgentFileTagSource(String _url)
+    {
+        m_url = _url;
+    }
+
+    // @Override
+    public int loadTags(String _nameFilter) throws IOException
+    {
+        m_nameFilter = _nameFilter;
+        read();
+        Vector names = new Vector();
+        Hashtable indexes = new Hashtable();
+        int start = 0;
+        while (start < m_length) {
+            int end = lineEnd(start);
+            String name = parseName(start, end);
+            if (name != null && !indexes.containsKey(name) && !Double.isNaN(parseValue(start, end))) {
+                indexes.put(name, new Integer(names.size()));
+                names.addElement(name);
+            }
+            start = end + 1;
+        }
+        m_names = new String[names.size()];
+        names.copyInto(m_names);
+        m_indexes = indexes;
+        m_tagListChanged = false;
+        return m_names.length;
+    }
+
+    // @Override
+    public String getTagName(int _index)
+    {
+        return m_names[_index];
+    }
+
+    // @Override
+    public boolean isTagListChanged()
+    {
+        return m_tagListChanged;
+    }
+
+    // @Override
+    public void readValues(double[] _values) throws IOException
+    {
+        for (int i = 0; i < m_names.length; i++) {
+            _values[i] = Double.NaN;
+        }
+        read();
+        int start = 0;
+        while (start < m_length) {
+            int end = lineEnd(start);
+            String name = parseName(start, end);
+            if (name != null) {
+                double value = parseValue(start, end);
+                Integer index = (Integer)m_indexes.get(name);
+                if (index != null) {
+                    _values[index.intValue()] = value;
+                } else if (!Double.isNaN(value)) {
+                    m_tagListChanged = true;
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    // Lee el fichero entero en m_data
+    private void read() throws IOException
+    {
+        InputStream input = Connector.openInputStream(m_url);
+        try {
+            m_length = 0;
+            int count;
+            while ((count = input.read(m_data, m_length, m_data.length - m_length)) > 0) {
+                m_length += count;
+                if (m_length == m_data.length) {
+                    byte[] data = new byte[m_data.length * 2];
+                    System.arraycopy(m_data, 0, data, 0, m_length);
+                    m_data = data;
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private int lineEnd(int _start)
+    {
+        int end = _start;
+        while (end < m_length && m_data[end] != '\n') {
+            end++;
+        }
+        return end;
+    }
+
+    // Nombre del tag de la linea si pasa el filtro, null si no
+    private String parseName(int _start, int _end)
+    {
+        int separator = indexOf(';', _start, _end);
+        if (separator < 0) {
+            return null;
+        }
+        int nameStart = _start;
+        int nameEnd = separator;
+        if (nameEnd - nameStart >= 2 && m_data[nameStart] == '"' && m_data[nameEnd - 1] == '"') {
+            nameStart++;
+            nameEnd--;
+        }
+        if (nameEnd == nameStart) {
+            return null;
+        }
+        String name;
+        try {
+            name = new String(m_data, nameStart, nameEnd - nameStart, "UTF-8");
+        } catch (IOException ex) {
+            return null;
+        }
+        if (m_nameFilter != null && name.indexOf(m_nameFilter) < 0) {
+            return null;
+        }
+        return name;
+    }
+
+    // Valor de la linea, NaN si no es un numero
+    private double parseValue(int _start, int _end)
+    {
+        int separator = indexOf(';', _start, _end);
+        int valueStart = separator + 1;
+        int valueEnd = _end;
+        while (valueEnd > valueStart && m_data[valueEnd - 1] <= ' ') {
+            valueEnd--;
+        }
+        while (valueStart < valueEnd && m_data[valueStart] <= ' ') {
+            valueStart++;
+        }
+        if (valueStart == valueEnd) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(new String(m_data, valueStart, valueEnd - valueStart));
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    private int indexOf(int _byte, int _start, int _end)
+    {
+        for (int i = _start; i < _end; i++) {
+            if (m_data[i] == _byte) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
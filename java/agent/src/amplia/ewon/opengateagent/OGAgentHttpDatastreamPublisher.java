@@ -0,0 +1,56 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import java.io.IOException;
+
+/**
+ * Envia los datastreams a la plataforma con un POST, p.e. a
+ * "/v70/devices/{deviceId}/collect/iot".
+ */
+public class OGAgentHttpDatastreamPublisher implements OGAgentDatastreamPublisherInterface {
+
+    private final String m_host;
+    private final int m_port;
+    private final String m_path;
+
+    // Cabecera X-ApiKey, null si no se envia
+    private final String m_apiKey;
+
+    // Compresion de los datastreams, null si no se comprimen
+    private OGAgentPayloadEncoder m_encoder = null;
+
+    // _path puede contener {deviceId}, que se sustituye por _deviceId
+    public OGAgentHttpDatastreamPublisher(String _host, int _port, String _path, String _deviceId, String _apiKey)
+    {
+        m_host = _host;
+        m_port = _port;
+        m_path = OGAgentHttpResultPublisher.expandPath(_path, _deviceId);
+        m_apiKey = _apiKey;
+    }
+
+    public void setEncoder(OGAgentPayloadEncoder _encoder)
+    {
+        m_encoder = _encoder;
+    }
+
+    // @Override
+    public boolean publish(byte[] _json, int _length)
+    {
+        try
+        {
+            int statusCode = OGAgentHttpResultPublisher.post(m_host, m_port, m_path, m_apiKey, m_encoder, _json, _length);
+            if (statusCode >= 200 && statusCode < 300) {
+                return true;
+            }
+            System.out.println("OGAgentHttpDatastreamPublisher: la plataforma respondio " + statusCode);
+        } catch (IOException ex)
+        {
+            System.out.println("OGAgentHttpDatastreamPublisher: error enviando los datastreams: " + ex.toString());
+        }
+        return false;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.microedition.io.Connector;
+import javax.microedition.io.SocketConnection;
+
+/**
+ * Envia el resultado final de las operaciones a la plataforma con un POST
+ * HTTP/1.1 sobre un socket, ya que el perfil no dispone de HttpConnection.
+ *
+ * La ruta puede contener {deviceId}, que se sustituye por el dispositivo de
+ * la operacion, p.e. "/v70/devices/{deviceId}/operation/responses".
+ */
+public class OGAgentHttpResultPublisher implements OGAgentResultPublisherInterface {
+
+    private static final String DEVICE_ID_VARIABLE = "{deviceId}";
+
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+    private final String m_host;
+    private final int m_port;
+    private final String m_path;
+
+    // Cabecera X-ApiKey, null si no se envia
+    private final String m_apiKey;
+
+    // Compresion de las respuestas, null si no se comprimen
+    private OGAgentPayloadEncoder m_encoder = null;
+
+    public OGAgentHttpResultPublisher(String _host, int _port, String _path, String _apiKey)
+    {
+        m_host = _host;
+        m_port = _port;
+        m_path = _path;
+        m_apiKey = _apiKey;
+    }
+
+    public void setEncoder(OGAgentPayloadEncoder _encoder)
+    {
+        m_encoder = _encoder;
+    }
+
+    // @Override
+    public boolean publish(OGAgentJob _job, String _responseJSON)
+    {
+        try
+        {
+            byte[] body = _responseJSON.getBytes("UTF-8");
+            int statusCode = post(m_host, m_port, getPath(_job.getDeviceId()), m_apiKey, m_encoder, body, body.length);
+            if (statusCode >= 200 && statusCode < 300) {
+                return true;
+            }
+            System.out.println("OGAgentHttpResultPublisher: la plataforma respondio " + statusCode + " a la operacion " + _job.getId());
+        } catch (IOException ex)
+        {
+            System.out.println("OGAgentHttpResultPublisher: error enviando la operacion " + _job.getId() + ": " + ex.toString());
+        }
+        return false;
+    }
+
+    // Envia un POST con el cuerpo JSON, comprimido si _contentEncoding no es
+    // null, y retorna el codigo de estado de la respuesta, -1 si no es
+    // valido. Lo usa tambien el envio de datastreams
+    /* package */ static int post(String _host, int _port, String _path, String _apiKey, String _contentEncoding, byte[] _body, int _length) throws IOException
+    {
+        SocketConnection connection = null;
+        InputStream input = null;
+        OutputStream output = null;
+        try
+        {
+            StringBuffer head = new StringBuffer(256);
+            head.append("POST ").append(_path).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(_host).append(':').append(_port).append("\r\n");
+            head.append("Content-Type: application/json; charset=utf-8\r\n");
+            if (_contentEncoding != null) {
+                head.append("Content-Encoding: ").append(_contentEncoding).append("\r\n");
+            }
+            head.append("Content-Length: ").append(_length).append("\r\n");
+            if (_apiKey != null) {
+                head.append("X-ApiKey: ").append(_apiKey).append("\r\n");
+            }
+            head.append("Connection: close\r\n\r\n");
+
+            connection = (SocketConnection)Connector.open("socket://" + _host + ":" + _port);
+            output = connection.openOutputStream();
+            output.write(head.toString().getBytes());
+            output.write(_body, 0, _length);
+            output.flush();
+
+            // Solo interesa el codigo de estado: "HTTP/1.1 200 ..."
+            input = connection.openInputStream();
+            return readStatusCode(input);
+        } finally
+        {
+            close(input);
+            close(output);
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException ex) {}
+            }
+        }
+    }
+
+    private String getPath(String _deviceId)
+    {
+        return expandPath(m_path, _deviceId);
+    }
+
+    // Envia el cuerpo comprimido con _encoder si procede, que puede ser
+    // null. Si la plataforma no acepta la compresion (415) se envia sin
+    // comprimir y no se vuelve a comprimir con ese _encoder
+    /* package */ static int post(String _host, int _port, String _path, String _apiKey, OGAgentPayloadEncoder _encoder, byte[] _body, int _length) throws IOException
+    {
+        if (_encoder != null && _encoder.accepts(_length)) {
+            // Lo comprimido se copia: el encoder se comparte y solo se
+            // bloquea mientras comprime, no durante el envio
+            byte[] encoded = null;
+            synchronized (_encoder) {
+                if (_encoder.encode(_body, 0, _length)) {
+                    encoded = new byte[_encoder.getLength()];
+                    System.arraycopy(_encoder.getBuffer(), 0, encoded, 0, encoded.length);
+                }
+            }
+            if (encoded != null) {
+                int statusCode = post(_host, _port, _path, _apiKey, _encoder.getContentEncoding(), encoded, encoded.length);
+                if (statusCode != HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                    return statusCode;
+                }
+                System.out.println("OGAgentHttpResultPublisher: la plataforma no acepta Content-Encoding " + _encoder.getContentEncoding() + ", se envia sin comprimir");
+                _encoder.disable();
+            }
+        }
+        return post(_host, _port, _path, _apiKey, (String)null, _body, _length);
+    }
+
+    // Sustituye {deviceId} en la ruta
+    /* package */ static String expandPath(String _path, String _deviceId)
+    {
+        int index = _path.indexOf(DEVICE_ID_VARIABLE);
+        if (index < 0) {
+            return _path;
+        }
+        return _path.substring(0, index) + _deviceId + _path.substring(index + DEVICE_ID_VARIABLE.length());
+    }
+
+    // Lee el codigo de la linea de estado, -1 si no es valida
+    private static int readStatusCode(InputStream _input) throws IOException
+    {
+        // Se salta la version hasta el primer espacio
+        int c;
+        do {
+            c = _input.read();
+            if (c == -1 || c == '\n') {
+                return -1;
+            }
+        } while (c != ' ');
+
+        int statusCode = 0;
+        for (int i = 0; i < 3; i++) {
+            c = _input.read();
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            statusCode = statusCode * 10 + (c - '0');
+        }
+        return statusCode;
+    }
+
+    private static void close(InputStream _input)
+    {
+        if (_input != null) {
+            try {
+                _input.close();
+            } catch (IOException ex) {}
+        }
+    }
+
+    private static void close(OutputStream _output)
+    {
+        if (_output != null) {
+            try {
+                _output.close();
+            } catch (IOException ex) {}
+        }
+    }
+}
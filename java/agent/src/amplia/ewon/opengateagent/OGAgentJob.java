@@ -0,0 +1,245 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import amplia.util.json.JSONArray;
+import amplia.util.json.JSONPool;
+import java.util.TimerTask;
+
+/**
+ * Operacion recibida de la plataforma y su estado de ejecucion. Se guarda en
+ * la tabla de trabajos mientras se ejecuta y despues, para poder consultar el
+ * resultado final.
+ */
+public class OGAgentJob {
+
+    // Estados de la operacion
+    public static final int STATE_PENDING = 0;   // En la cola del ejecutor
+    public static final int STATE_RUNNING = 1;   // Ejecutandose
+    public static final int STATE_FINISHED = 2;  // Terminada, hay respuesta final
+
+    private final String m_id;
+    private final String m_deviceId;
+    private final String m_name;
+
+    // Ruta y parametros, null despues de devolverlos al pool
+    private JSONArray m_path;
+    private JSONArray m_parameters;
+
+    // Momento de recepcion de la peticion
+    private final long m_createdTime;
+
+    // Estado y respuesta final, se leen desde otros hilos. La respuesta es
+    // null hasta que termina la operacion
+    private volatile int m_state = STATE_PENDING;
+    private volatile String m_responseJSON = null;
+
+    // Momento en que termino la operacion, 0 si no ha terminado
+    private volatile long m_finishedTime = 0;
+
+    // Tiempo maximo de ejecucion en ms indicado en la peticion, 0 si no se
+    // indica y se usa el del nombre de la operacion
+    private long m_timeout = 0;
+
+    // Se activa al vencer el plazo, el manejador debe dejar la operacion
+    private volatile boolean m_cancelled = false;
+
+    // Hilo que ejecuta la operacion, null si no se esta ejecutando
+    private Thread m_worker = null;
+
+    // Comprobacion del plazo, se anula al terminar la operacion
+    private TimerTask m_deadlineTask = null;
+
+    // Operacion del registro, null si la ejecuta el manejador general. Al
+    // terminar se libera su sitio
+    private OGAgentOperation m_operation = null;
+
+    public OGAgentJob(String _id, String _deviceId, JSONArray _path, String _name, JSONArray _parameters)
+    {
+        m_id = _id;
+        m_deviceId = _deviceId;
+        m_path = _path;
+        m_name = _name;
+        m_parameters = _parameters;
+        m_createdTime = System.currentTimeMillis();
+    }
+
+    public String getId()
+    {
+        return m_id;
+    }
+
+    public String getDeviceId()
+    {
+        return m_deviceId;
+    }
+
+    public JSONArray getPath()
+    {
+        return m_path;
+    }
+
+    public String getName()
+    {
+        return m_name;
+    }
+
+    public JSONArray getParameters()
+    {
+        return m_parameters;
+    }
+
+    // Devuelve la ruta y los parametros al pool cuando el manejador ya no
+    // los usa. La operacion sigue en la tabla sin ellos
+    /* package */ void releaseRequest(JSONPool _pool)
+    {
+        JSONArray path = m_path;
+        JSONArray parameters = m_parameters;
+        m_path = null;
+        m_parameters = null;
+        _pool.release(path);
+        _pool.release(parameters);
+    }
+
+    public long getCreatedTime()
+    {
+        return m_createdTime;
+    }
+
+    public int getState()
+    {
+        return m_state;
+    }
+
+    public boolean isFinished()
+    {
+        return m_state == STATE_FINISHED;
+    }
+
+    public long getFinishedTime()
+    {
+        return m_finishedTime;
+    }
+
+    public long getTimeout()
+    {
+        return m_timeout;
+    }
+
+    public void setTimeout(long _timeout)
+    {
+        m_timeout = _timeout;
+    }
+
+    public OGAgentOperation getOperation()
+    {
+        return m_operation;
+    }
+
+    public void setOperation(OGAgentOperation _operation)
+    {
+        m_operation = _operation;
+    }
+
+    // true si ha vencido el plazo de la operacion
+    public boolean isCancelled()
+    {
+        return m_cancelled;
+    }
+
+    // Respuesta JSON actual: OPERATION_PENDING hasta que termina la operacion
+    public String getResponseJSON()
+    {
+        String response = m_responseJSON;
+        if (response == null) {
+            response = getPendingResponse().toString();
+        }
+        return response;
+    }
+
+    // Respuesta OPERATION_PENDING, con el momento de recepcion
+    public OGAgentOperationResponse getPendingResponse()
+    {
+        return new OGAgentOperationResponse(m_id, m_createdTime, m_deviceId, m_name, OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_PENDING, "");
+    }
+
+    // Pasa la operacion a ejecucion en el hilo. Retorna false si ya ha
+    // terminado, p.e. porque vencio el plazo mientras estaba en la cola
+    /* package */ synchronized boolean setRunning(Thread _worker)
+    {
+        if (m_state != STATE_PENDING) {
+            return false;
+        }
+        m_worker = _worker;
+        m_state = STATE_RUNNING;
+        return true;
+    }
+
+    // Termina la operacion con la respuesta. Solo cuenta la primera
+    // respuesta: retorna false si la operacion ya habia terminado
+    /* package */ synchronized boolean setFinished(String _responseJSON)
+    {
+        if (m_state == STATE_FINISHED) {
+            return false;
+        }
+        m_responseJSON = _responseJSON;
+        m_finishedTime = System.currentTimeMillis();
+        m_worker = null;
+        m_state = STATE_FINISHED;
+        if (m_deadlineTask != null) {
+            m_deadlineTask.cancel();
+            m_deadlineTask = null;
+        }
+        if (m_operation != null) {
+            m_operation.release();
+        }
+        notifyAll();
+        return true;
+    }
+
+    // Espera a que termine la operacion como mucho el tiempo indicado en ms.
+    // Retorna true si ha terminado
+    public synchronized boolean waitFinished(long _timeout)
+    {
+        long deadline = System.currentTimeMillis() + _timeout;
+        while (m_state != STATE_FINISHED && _timeout > 0) {
+            try {
+                wait(_timeout);
+            } catch (InterruptedException ex) {
+                break;
+            }
+            _timeout = deadline - System.currentTimeMillis();
+        }
+        return m_state == STATE_FINISHED;
+    }
+
+    // Marca la operacion como cancelada y despierta al hilo que la ejecuta
+    // si esta esperando. Retorna el estado en que estaba la operacion
+    /* package */ synchronized int cancel()
+    {
+        m_cancelled = true;
+        if (m_worker != null) {
+            m_worker.interrupt();
+        }
+        return m_state;
+    }
+
+    // Retorna false si la operacion ya ha terminado, entonces la tarea no
+    // se guarda y no hay que programarla
+    /* package */ synchronized boolean setDeadlineTask(TimerTask _deadlineTask)
+    {
+        if (m_state == STATE_FINISHED) {
+            return false;
+        }
+        m_deadlineTask = _deadlineTask;
+        return true;
+    }
+
+    /* package */ synchronized Thread getWorker()
+    {
+        return m_worker;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Tabla en memoria de las operaciones por su id. El numero de entradas esta
+ * limitado: al llenarse se descarta la operacion terminada mas antigua, y si
+ * ninguna ha terminado la nueva operacion se rechaza, asi la memoria no crece
+ * aunque la plataforma envie muchas peticiones.
+ *
+ * Sirve tambien de cache de idempotencia: una operacion con un id que ya esta
+ * en la tabla no se vuelve a ejecutar, se retorna la existente. Las
+ * operaciones terminadas caducan pasado el tiempo de vida, despues un id
+ * repetido se trata como una operacion nueva.
+ *
+ * Es segura para varios hilos.
+ */
+public class OGAgentJobTable {
+
+    private final int m_capacity;
+
+    // Tiempo que se guarda una operacion terminada en ms, 0 para no caducar
+    private final long m_timeToLive;
+
+    // id -> OGAgentJob
+    private final Hashtable m_jobs;
+
+    // ids en orden de llegada, el mas antiguo primero
+    private final Vector m_order;
+
+    public OGAgentJobTable(int _capacity)
+    {
+        this(_capacity, 0);
+    }
+
+    public OGAgentJobTable(int _capacity, long _timeToLive)
+    {
+        if (_capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be bigger than 0");
+        }
+        m_capacity = _capacity;
+        m_timeToLive = _timeToLive;
+        m_jobs = new Hashtable(_capacity * 2);
+        m_order = new Vector(_capacity);
+    }
+
+    // Anade la operacion si no hay otra con el mismo id. Retorna la
+    // operacion anadida, la que ya estaba con ese id, o null si la tabla esta
+    // llena de operaciones sin terminar
+    public synchronized OGAgentJob addIfAbsent(OGAgentJob _job)
+    {
+        long now = System.currentTimeMillis();
+        OGAgentJob existing = get(_job.getId(), now);
+        if (existing != null) {
+            return existing;
+        }
+        if (m_order.size() >= m_capacity) {
+            evictExpired(now);
+            if (m_order.size() >= m_capacity && !evictOldestFinished()) {
+                return null;
+            }
+        }
+        m_jobs.put(_job.getId(), _job);
+        m_order.addElement(_job.getId());
+        return _job;
+    }
+
+    // Retorna la operacion o null si no esta en la tabla o ha caducado
+    public synchronized OGAgentJob get(String _id)
+    {
+        return get(_id, System.currentTimeMillis());
+    }
+
+    public synchronized void remove(String _id)
+    {
+        if (m_jobs.remove(_id) != null) {
+            m_order.removeElement(_id);
+        }
+    }
+
+    public synchronized int size()
+    {
+        return m_order.size();
+    }
+
+    public int getCapacity()
+    {
+        return m_capacity;
+    }
+
+    private OGAgentJob get(String _id, long _now)
+    {
+        OGAgentJob job = (OGAgentJob)m_jobs.get(_id);
+        if (job != null && isExpired(job, _now)) {
+            m_jobs.remove(_id);
+            m_order.removeElement(_id);
+            return null;
+        }
+        return job;
+    }
+
+    private boolean isExpired(OGAgentJob _job, long _now)
+    {
+        return m_timeToLive > 0 && _job.isFinished() && _now - _job.getFinishedTime() >= m_timeToLive;
+    }
+
+    private void evictExpired(long _now)
+    {
+        for (int i = m_order.size() - 1; i >= 0; i--) {
+            String id = (String)m_order.elementAt(i);
+            if (isExpired((OGAgentJob)m_jobs.get(id), _now)) {
+                m_jobs.remove(id);
+                m_order.removeElementAt(i);
+            }
+        }
+    }
+
+    private boolean evictOldestFinished()
+    {
+        for (int i = 0; i < m_order.size(); i++) {
+            String id = (String)m_order.elementAt(i);
+            if (((OGAgentJob)m_jobs.get(id)).isFinished()) {
+                m_jobs.remove(id);
+                m_order.removeElementAt(i);
+                return true;
+            }
+        }
+        return false;
+    }
+}
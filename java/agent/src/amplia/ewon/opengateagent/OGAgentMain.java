@@ -20,6 +20,10 @@ import com.ewon.ewonitf.SysControlBlock;
  */
 public class OGAgentMain implements OGAgentOperationHandlerInterface 
 {
+    // Plazo de REBOOT_EQUIPMENT en ms: la espera previa mas la escritura del
+    // tag
+    private static final long REBOOT_EQUIPMENT_TIMEOUT = 10000;
+
     public static void main(String[] _args)
     {
         // Obtengo el device ID
@@ -37,7 +41,27 @@ public class OGAgentMain implements OGAgentOperationHandlerInterface
         }
         
         OGAgentWebServer ogAgentWebServer = new OGAgentWebServer(deviceId);
-        ogAgentWebServer.setOGAgentOperationHandler(new OGAgentMain());
+
+        // Operaciones soportadas, las demas se contestan NOT_SUPPORTED
+        ogAgentWebServer.registerOperation(new OGAgentOperation("REBOOT_EQUIPMENT", new OGAgentMain())
+            .setMaxConcurrency(1)
+            .setTimeout(REBOOT_EQUIPMENT_TIMEOUT));
+
+        // Datastreams de los tags de la grua, los tags de estado se envian
+        // con el texto de su valor
+        OGAgentDatastreamCollector datastreamCollector = new OGAgentDatastreamCollector(new OGAgentEwonTagSource());
+        datastreamCollector.addValueNames("crane.feeding.hdg.hybridManagementSystem.status", new String[] {
+            "IDLE", "REGENERATING", "SUPPORTING", "CHARGING", "DERATING", null, null, "STOPPED", null, null,
+            "INIT_HYBRID", "PRECHARGE", "STAND_BY", "DISCHARGING", "EMERGENCY", "SAFETY" });
+        datastreamCollector.addValueNames("crane.feeding.hdg.hybridManagement.forceMode", new String[] {
+            "UNKNOWN", "AUTOMATIC", "MANUAL" });
+        datastreamCollector.addValueNames("crane.hoist.joystick.status", new String[] {
+            null, "UP", "DOWN", "ZERO" });
+        datastreamCollector.addValueNames("crane.trolley.joystick.status", new String[] {
+            null, "FWD", "REV", "ZERO" });
+        datastreamCollector.addValueNames("crane.gantry.joystick.status", new String[] {
+            null, "LEFT", "RIGHT", "ZERO" });
+        ogAgentWebServer.setDatastreamCollector(datastreamCollector);
         
         try{
            System.out.println("OpengateAgentMain.Starting...");        
@@ -49,20 +73,10 @@ public class OGAgentMain implements OGAgentOperationHandlerInterface
         }
     }
 
+    // Manejador de REBOOT_EQUIPMENT
     public String handle(String _id, String _deviceId, JSONArray _path, String _operationName, JSONArray _parameters) {
-        String ret = "";
-        
-        if(_operationName.equals("REBOOT_EQUIPMENT"))
-        {
-            ret = OGAgentResponseUtils.operationResponseJSON(_id, null, _deviceId, _operationName, OGAgentResponseUtils.RESPONSE_RESULT_CODE_SUCCESSFUL , "");
-            doRebootEquipment(_parameters);
-        }
-        else
-        {
-            
-        }
-        
-        return ret;
+        doRebootEquipment(_parameters);
+        return OGAgentResponseUtils.operationResponseJSON(_id, null, _deviceId, _operationName, OGAgentResponseUtils.RESPONSE_RESULT_CODE_SUCCESSFUL , "");
     }
 
     private void doRebootEquipment(JSONArray _parameters)
@@ -72,7 +86,13 @@ public class OGAgentMain implements OGAgentOperationHandlerInterface
             try
             {
                 Thread.sleep(2000);
-            } catch (Exception ex) {}
+            } catch (InterruptedException ex) {}
+            // Si ha vencido el plazo de la operacion no se escribe el tag
+            if (OGAgentOperationEngine.isCurrentOperationCancelled())
+            {
+                System.out.println("doRebootEquipment: operacion cancelada");
+                return;
+            }
             // RuntimeControl.reboot(); 
             try
             {
@@ -0,0 +1,180 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import amplia.util.json.JSONArray;
+import amplia.util.json.JSONObject;
+
+/**
+ * Definicion de una operacion del registro: el manejador que la ejecuta, los
+ * parametros que admite, cuantas operaciones con este nombre pueden estar en
+ * curso a la vez y su plazo.
+ *
+ * Las operaciones en curso cuentan desde que se aceptan hasta que terminan,
+ * tambien mientras esperan en la cola, asi una operacion lenta que se pide
+ * muchas veces no llena la cola y no deja sin sitio a las demas.
+ */
+public class OGAgentOperation {
+
+    // Tipos de los valores de los parametros
+    public static final int PARAMETER_TYPE_ANY = 0;
+    public static final int PARAMETER_TYPE_STRING = 1;
+    public static final int PARAMETER_TYPE_NUMBER = 2;
+    public static final int PARAMETER_TYPE_BOOLEAN = 3;
+    public static final int PARAMETER_TYPE_OBJECT = 4;
+    public static final int PARAMETER_TYPE_ARRAY = 5;
+
+    // Limite de operaciones en curso por defecto
+    public static final int DEFAULT_MAX_CONCURRENCY = 1;
+
+    private final String m_name;
+    private final OGAgentOperationHandlerInterface m_handler;
+
+    // Esquema de los parametros, en el orden en que se declaran
+    private String[] m_parameterNames = new String[0];
+    private int[] m_parameterTypes = new int[0];
+    private boolean[] m_parameterRequired = new boolean[0];
+
+    // Maximo de operaciones en curso, 0 sin limite
+    private int m_maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+
+    // Plazo en ms, 0 para usar el plazo por defecto del motor
+    private long m_timeout = 0;
+
+    // Operaciones aceptadas que no han terminado
+    private int m_active = 0;
+
+    public OGAgentOperation(String _name, OGAgentOperationHandlerInterface _handler)
+    {
+        if (_name == null || _handler == null) {
+            throw new NullPointerException("Name and handler must not be null");
+        }
+        m_name = _name;
+        m_handler = _handler;
+    }
+
+    public String getName()
+    {
+        return m_name;
+    }
+
+    public OGAgentOperationHandlerInterface getHandler()
+    {
+        return m_handler;
+    }
+
+    // Declara un parametro. Retorna la propia operacion para encadenar
+    public synchronized OGAgentOperation addParameter(String _name, int _type, boolean _required)
+    {
+        int count = m_parameterNames.length;
+        String[] names = new String[count + 1];
+        int[] types = new int[count + 1];
+        boolean[] required = new boolean[count + 1];
+        System.arraycopy(m_parameterNames, 0, names, 0, count);
+        System.arraycopy(m_parameterTypes, 0, types, 0, count);
+        System.arraycopy(m_parameterRequired, 0, required, 0, count);
+        names[count] = _name;
+        types[count] = _type;
+        required[count] = _required;
+        m_parameterNames = names;
+        m_parameterTypes = types;
+        m_parameterRequired = required;
+        return this;
+    }
+
+    public OGAgentOperation setMaxConcurrency(int _maxConcurrency)
+    {
+        m_maxConcurrency = _maxConcurrency;
+        return this;
+    }
+
+    public int getMaxConcurrency()
+    {
+        return m_maxConcurrency;
+    }
+
+    public OGAgentOperation setTimeout(long _timeout)
+    {
+        m_timeout = _timeout;
+        return this;
+    }
+
+    public long getTimeout()
+    {
+        return m_timeout;
+    }
+
+    // Comprueba los parametros de la peticion, una lista de objetos
+    // {"name": ..., "value": ...}. Retorna null si son validos o la
+    // descripcion del error. Se admiten parametros no declarados
+    public String validateParameters(JSONArray _parameters)
+    {
+        String[] names;
+        int[] types;
+        boolean[] required;
+        synchronized (this) {
+            names = m_parameterNames;
+            types = m_parameterTypes;
+            required = m_parameterRequired;
+        }
+        int count = _parameters == null ? 0 : _parameters.length();
+        for (int i = 0; i < names.length; i++) {
+            Object value = null;
+            boolean found = false;
+            for (int j = 0; j < count && !found; j++) {
+                JSONObject parameter = _parameters.optJSONObject(j);
+                if (parameter != null && names[i].equals(parameter.optString("name", null))) {
+                    value = parameter.opt("value");
+                    found = true;
+                }
+            }
+            if (!found) {
+                if (required[i]) {
+                    return "Missing parameter " + names[i];
+                }
+            } else if (!isOfType(value, types[i])) {
+                return "Invalid value of parameter " + names[i];
+            }
+        }
+        return null;
+    }
+
+    // Reserva sitio para una operacion. Retorna false si ya hay tantas en
+    // curso como permite el limite
+    public synchronized boolean tryAcquire()
+    {
+        if (m_maxConcurrency > 0 && m_active >= m_maxConcurrency) {
+            return false;
+        }
+        m_active++;
+        return true;
+    }
+
+    // Libera el sitio de una operacion que ha terminado
+    public synchronized void release()
+    {
+        if (m_active > 0) {
+            m_active--;
+        }
+    }
+
+    public synchronized int getActiveCount()
+    {
+        return m_active;
+    }
+
+    private static boolean isOfType(Object _value, int _type)
+    {
+        switch (_type) {
+            case PARAMETER_TYPE_STRING: return _value instanceof String;
+            case PARAMETER_TYPE_NUMBER: return _value instanceof Integer || _value instanceof Long || _value instanceof Double;
+            case PARAMETER_TYPE_BOOLEAN: return _value instanceof Boolean;
+            case PARAMETER_TYPE_OBJECT: return _value instanceof JSONObject;
+            case PARAMETER_TYPE_ARRAY: return _value instanceof JSONArray;
+            default: return _value != null && _value != JSONObject.NULL;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import amplia.util.json.JSONPool;
+import com.oracle.jmee.samples.webserver.ThreadSafeQueue;
+import java.util.Hashtable;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Ejecuta las operaciones de forma asincrona. La peticion HTTP se contesta
+ * con OPERATION_PENDING en cuanto la operacion entra en la cola, y la
+ * operacion se ejecuta despues en hilos propios, separados de los del
+ * servidor web, asi la latencia HTTP no depende de lo que dure la operacion.
+ *
+ * El resultado final se guarda en la tabla de trabajos, donde se puede
+ * consultar por el id de la operacion, y se envia a la plataforma si hay un
+ * publicador configurado.
+ *
+ * Cada operacion tiene un plazo: el indicado en la peticion, el del nombre de
+ * la operacion o el plazo por defecto. Un temporizador comprueba el plazo:
+ * - Si la operacion sigue en la cola, se cancela sin ejecutarla y se
+ *   responde TIMEOUT_CANCELLED.
+ * - Si se esta ejecutando, se cancela de forma cooperativa: se marca como
+ *   cancelada y se interrumpe su hilo. Si el manejador la deja dentro del
+ *   periodo de gracia se responde TIMEOUT_CANCELLED_INTERNAL.
+ * - Si el manejador no la deja a tiempo se responde ERROR_TIMEOUT, el hilo
+ *   se abandona y se arranca otro en su lugar, asi un manejador bloqueado
+ *   no deja al agente sin hilos. El numero de hilos abandonados esta
+ *   limitado.
+ *
+ * Los manejadores comprueban la cancelacion con
+ * {@link #isCurrentOperationCancelled()}.
+ */
+public class OGAgentOperationEngine {
+
+    // Plazo por defecto de las operaciones en ms
+    public static final long DEFAULT_TIMEOUT = 60000;
+
+    // Tiempo que se espera a que el manejador deje una operacion cancelada
+    public static final long DEFAULT_CANCEL_GRACE_PERIOD = 1000;
+
+    // Maximo de hilos abandonados a la vez por manejadores bloqueados. Si se
+    // alcanza no se arrancan mas hilos hasta que alguno termine
+    private static final int MAX_ABANDONED_WORKERS = 4;
+
+    private final OGAgentOperationHandlerInterface m_operationHandler;
+
+    private final OGAgentJobTable m_jobTable;
+
+    // Operaciones pendientes de ejecutar (OGAgentJob)
+    private final ThreadSafeQueue m_queue;
+
+    // Comprobacion de los plazos
+    private final Timer m_timer = new Timer();
+
+    // Plazos por nombre de operacion: String -> Long
+    private final Hashtable m_operationTimeouts = new Hashtable();
+
+    private long m_defaultTimeout = DEFAULT_TIMEOUT;
+
+    private long m_cancelGracePeriod = DEFAULT_CANCEL_GRACE_PERIOD;
+
+    // Hilos abandonados que aun no han terminado
+    private int m_abandonedWorkers = 0;
+
+    private volatile boolean m_stopped = false;
+
+    // Envio del resultado final a la plataforma, puede ser null
+    private OGAgentResultPublisherInterface m_resultPublisher = null;
+
+    // Pool al que se devuelven la ruta y los parametros de las operaciones
+    // cuando el manejador termina, null si no se usa
+    private JSONPool m_jsonPool = null;
+
+    public OGAgentOperationEngine(OGAgentOperationHandlerInterface _operationHandler, int _workersNumber, int _queueCapacity, int _jobTableCapacity)
+    {
+        this(_operationHandler, _workersNumber, _queueCapacity, _jobTableCapacity, 0);
+    }
+
+    // _jobTimeToLive: tiempo en ms que se recuerda una operacion terminada
+    // para no repetirla, 0 para recordarla hasta que se necesite su sitio
+    public OGAgentOperationEngine(OGAgentOperationHandlerInterface _operationHandler, int _workersNumber, int _queueCapacity, int _jobTableCapacity, long _jobTimeToLive)
+    {
+        if (_workersNumber <= 0) {
+            throw new IllegalArgumentException("Workers number must be bigger than 0");
+        }
+        m_operationHandler = _operationHandler;
+        m_jobTable = new OGAgentJobTable(_jobTableCapacity, _jobTimeToLive);
+        m_queue = new ThreadSafeQueue(_queueCapacity);
+        for (int i = 0; i < _workersNumber; i++) {
+            new OperationWorker().start();
+        }
+    }
+
+    public void setResultPublisher(OGAgentResultPublisherInterface _resultPublisher)
+    {
+        m_resultPublisher = _resultPublisher;
+    }
+
+    // Plazo de las operaciones que no tienen uno propio, 0 para no limitar
+    public void setDefaultTimeout(long _timeout)
+    {
+        m_defaultTimeout = _timeout;
+    }
+
+    // Plazo de las operaciones con el nombre, 0 para no limitar
+    public void setOperationTimeout(String _operationName, long _timeout)
+    {
+        synchronized (m_operationTimeouts) {
+            m_operationTimeouts.put(_operationName, new Long(_timeout));
+        }
+    }
+
+    public void setCancelGracePeriod(long _cancelGracePeriod)
+    {
+        m_cancelGracePeriod = _cancelGracePeriod;
+    }
+
+    // Con pool el manejador no debe guardar la ruta ni los parametros
+    // despues de retornar
+    public void setJSONPool(JSONPool _jsonPool)
+    {
+        m_jsonPool = _jsonPool;
+    }
+
+    public OGAgentJobTable getJobTable()
+    {
+        return m_jobTable;
+    }
+
+    // Encola la operacion. Si ya hay una operacion con el mismo id, en curso
+    // o terminada, no se ejecuta otra vez y se retorna la existente. Retorna
+    // null si la tabla o la cola estan llenas, en ese caso la operacion no se
+    // ejecuta
+    public OGAgentJob submit(OGAgentJob _job)
+    {
+        if (m_stopped) {
+            return null;
+        }
+        OGAgentJob job = m_jobTable.addIfAbsent(_job);
+        if (job != _job) {
+            return job;
+        }
+        if (!m_queue.offer(_job)) {
+            m_jobTable.remove(_job.getId());
+            return null;
+        }
+        // Un plazo tan largo que la hora de vencimiento no cabe en un long
+        // no se programa, el temporizador no lo acepta
+        long timeout = getTimeout(_job);
+        if (timeout > 0 && timeout <= Long.MAX_VALUE - System.currentTimeMillis()) {
+            DeadlineTask deadlineTask = new DeadlineTask(_job);
+            // Puede haber terminado ya, la tarea retendria la operacion
+            // hasta su hora
+            if (!_job.setDeadlineTask(deadlineTask)) {
+                return _job;
+            }
+            try {
+                m_timer.schedule(deadlineTask, timeout);
+            } catch (IllegalStateException ex) {
+                // El temporizador se ha parado con el motor
+            }
+        }
+        return _job;
+    }
+
+    // Retorna la operacion o null si no esta en la tabla
+    public OGAgentJob getJob(String _id)
+    {
+        return m_jobTable.get(_id);
+    }
+
+    // Termina las operaciones encoladas y para los hilos y el temporizador
+    public void stop()
+    {
+        m_stopped = true;
+        m_queue.close();
+        m_timer.cancel();
+    }
+
+    // true si la operacion que ejecuta el hilo actual ha sido cancelada. Los
+    // manejadores lo comprueban en las esperas y antes de cada paso largo
+    public static boolean isCurrentOperationCancelled()
+    {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof OperationWorker) {
+            OGAgentJob job = ((OperationWorker)thread).m_job;
+            return job != null && job.isCancelled();
+        }
+        return false;
+    }
+
+    private long getTimeout(OGAgentJob _job)
+    {
+        if (_job.getTimeout() > 0) {
+            return _job.getTimeout();
+        }
+        Long timeout;
+        synchronized (m_operationTimeouts) {
+            timeout = (Long)m_operationTimeouts.get(_job.getName());
+        }
+        return timeout != null ? timeout.longValue() : m_defaultTimeout;
+    }
+
+    private void execute(OperationWorker _worker, OGAgentJob _job)
+    {
+        if (!_job.setRunning(_worker)) {
+            // Cancelada mientras estaba en la cola
+            releaseRequest(_job);
+            return;
+        }
+        _worker.m_job = _job;
+        String response;
+        try
+        {
+            OGAgentOperationHandlerInterface handler = _job.getOperation() != null ? _job.getOperation().getHandler() : m_operationHandler;
+            response = handler.handle(_job.getId(), _job.getDeviceId(), _job.getPath(), _job.getName(), _job.getParameters());
+            if (response == null || response.length() == 0) {
+                // El manejador no conoce la operacion
+                response = responseJSON(_job, OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_NOT_SUPPORTED);
+            }
+        } catch (RuntimeException ex)
+        {
+            System.out.println("OGAgentOperationEngine: error en la operacion " + _job.getId() + ": " + ex.toString());
+            response = responseJSON(_job, OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_ERROR_PROCESSING);
+        } finally
+        {
+            _worker.m_job = null;
+            releaseRequest(_job);
+        }
+        if (_job.isCancelled()) {
+            // El manejador ha dejado la operacion al vencer el plazo, su
+            // respuesta no vale
+            response = responseJSON(_job, OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_TIMEOUT_CANCELLED_INTERNAL);
+        }
+        if (_job.setFinished(response)) {
+            publish(_job, response);
+        }
+    }
+
+    private void releaseRequest(OGAgentJob _job)
+    {
+        JSONPool jsonPool = m_jsonPool;
+        if (jsonPool != null) {
+            _job.releaseRequest(jsonPool);
+        }
+    }
+
+    private void publish(OGAgentJob _job, String _response)
+    {
+        OGAgentResultPublisherInterface publisher = m_resultPublisher;
+        if (publisher != null) {
+            publisher.publish(_job, _response);
+        }
+    }
+
+    // Termina la operacion por el plazo, salvo que ya hubiera terminado. El
+    // envio puede tardar, se hace en otro hilo para no retrasar al
+    // temporizador. Retorna false si la operacion ya habia terminado
+    private boolean finishByTimer(final OGAgentJob _job, int _resultCode)
+    {
+        final String response = responseJSON(_job, _resultCode);
+        if (!_job.setFinished(response)) {
+            return false;
+        }
+        if (m_resultPublisher != null) {
+            new Thread() {
+                public void run() {
+                    publish(_job, response);
+                }
+            }.start();
+        }
+        return true;
+    }
+
+    private static String responseJSON(OGAgentJob _job, int _resultCode)
+    {
+        return OGAgentResponseUtils.operationResponseJSON(_job.getId(), null, _job.getDeviceId(), _job.getName(), _resultCode, "");
+    }
+
+    // Abandona el hilo bloqueado en una operacion y arranca otro en su lugar
+    private void abandon(OperationWorker _worker)
+    {
+        synchronized (this) {
+            if (m_stopped || m_abandonedWorkers >= MAX_ABANDONED_WORKERS) {
+                System.out.println("OGAgentOperationEngine: demasiados hilos bloqueados, no se arranca otro");
+                return;
+            }
+            m_abandonedWorkers++;
+        }
+        _worker.m_abandoned = true;
+        new OperationWorker().start();
+    }
+
+    private synchronized void abandonedWorkerFinished()
+    {
+        m_abandonedWorkers--;
+    }
+
+    /**
+     * Hilo que ejecuta las operaciones de la cola.
+     */
+    private class OperationWorker extends Thread {
+
+        // Operacion en ejecucion, null si no hay
+        private volatile OGAgentJob m_job = null;
+
+        // El hilo se abandono porque su operacion no termino a tiempo, ya hay
+        // otro en su lugar y este termina al acabar la operacion
+        private volatile boolean m_abandoned = false;
+
+        // @Override
+        public void run()
+        {
+            while (!m_abandoned) {
+                OGAgentJob job;
+                try {
+                    job = (OGAgentJob)m_queue.take();
+                } catch (InterruptedException ex) {
+                    // Interrupcion de una operacion ya terminada
+                    continue;
+                }
+                if (job == null) {
+                    // Cola cerrada y vacia
+                    break;
+                }
+                execute(this, job);
+                if (job.isCancelled()) {
+                    clearInterrupt();
+                }
+            }
+            if (m_abandoned) {
+                abandonedWorkerFinished();
+            }
+        }
+
+        // Quita la interrupcion que haya quedado de una operacion cancelada,
+        // p.e. si el manejador no la atendio o el plazo vencio justo al
+        // terminar. Si no, la siguiente operacion la recibiria en su primer
+        // sleep o wait. CLDC no tiene Thread.interrupted(), un wait con la
+        // interrupcion pendiente la consume. Terminada la operacion ya no se
+        // puede interrumpir el hilo: la operacion lo olvida al terminar
+        private synchronized void clearInterrupt()
+        {
+            try {
+                wait(1);
+            } catch (InterruptedException ex) {
+                // Interrupcion consumida
+            }
+        }
+    }
+
+    /**
+     * Comprueba el plazo de una operacion.
+     */
+    private class DeadlineTask extends TimerTask {
+
+        // Se olvida al anularla: el temporizador guarda las tareas anuladas
+        // hasta su hora y no deben retener la operacion terminada
+        private volatile OGAgentJob m_job;
+
+        DeadlineTask(OGAgentJob _job)
+        {
+            m_job = _job;
+        }
+
+        // @Override
+        public boolean cancel()
+        {
+            m_job = null;
+            return super.cancel();
+        }
+
+        // @Override
+        public void run()
+        {
+            OGAgentJob job = m_job;
+            if (job == null) {
+                return;
+            }
+            int state = job.cancel();
+            if (state == OGAgentJob.STATE_PENDING) {
+                // No ha empezado, no se ejecutara
+                finishByTimer(job, OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_TIMEOUT_CANCELLED);
+            } else if (state == OGAgentJob.STATE_RUNNING) {
+                try {
+                    m_timer.schedule(new GraceTask(job), m_cancelGracePeriod);
+                } catch (IllegalStateException ex) {
+                    // El temporizador se ha parado con el motor
+                }
+            }
+        }
+    }
+
+    /**
+     * Comprueba si el manejador ha dejado la operacion cancelada.
+     */
+    private class GraceTask extends TimerTask {
+
+        private final OGAgentJob m_job;
+
+        GraceTask(OGAgentJob _job)
+        {
+            m_job = _job;
+        }
+
+        // @Override
+        public void run()
+        {
+            // El hilo se lee antes de terminar la operacion, que lo olvida
+            Thread worker = m_job.getWorker();
+            if (finishByTimer(m_job, OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_ERROR_TIMEOUT)) {
+                System.out.println("OGAgentOperationEngine: la operacion " + m_job.getId() + " no ha terminado en su plazo");
+                if (worker instanceof OperationWorker) {
+                    abandon((OperationWorker)worker);
+                }
+            }
+        }
+    }
+}
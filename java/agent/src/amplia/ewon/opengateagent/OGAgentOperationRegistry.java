@@ -0,0 +1,64 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import amplia.util.json.JSONArray;
+import java.util.Hashtable;
+
+/**
+ * Registro de las operaciones por nombre. La busqueda de una operacion es una
+ * consulta a una tabla hash, no depende de cuantas operaciones haya
+ * registradas.
+ *
+ * El registro es tambien un manejador: ejecuta cada operacion con el
+ * manejador registrado para su nombre.
+ */
+public class OGAgentOperationRegistry implements OGAgentOperationHandlerInterface {
+
+    // Nombre -> OGAgentOperation
+    private final Hashtable m_operations = new Hashtable();
+
+    // Registra la operacion, sustituye a la que hubiera con el mismo nombre
+    public void register(OGAgentOperation _operation)
+    {
+        m_operations.put(_operation.getName(), _operation);
+    }
+
+    // Registra un manejador con el limite y el plazo por defecto y sin
+    // esquema de parametros
+    public OGAgentOperation register(String _name, OGAgentOperationHandlerInterface _handler)
+    {
+        OGAgentOperation operation = new OGAgentOperation(_name, _handler);
+        register(operation);
+        return operation;
+    }
+
+    public void unregister(String _name)
+    {
+        m_operations.remove(_name);
+    }
+
+    // Retorna la operacion o null si no esta registrada
+    public OGAgentOperation get(String _name)
+    {
+        return _name == null ? null : (OGAgentOperation)m_operations.get(_name);
+    }
+
+    public boolean isEmpty()
+    {
+        return m_operations.isEmpty();
+    }
+
+    // @Override
+    public String handle(String _id, String _deviceId, JSONArray _path, String _operationName, JSONArray _parameters)
+    {
+        OGAgentOperation operation = get(_operationName);
+        if (operation == null) {
+            return OGAgentResponseUtils.operationResponseJSON(_id, null, _deviceId, _operationName, OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_NOT_SUPPORTED, "");
+        }
+        return operation.getHandler().handle(_id, _deviceId, _path, _operationName, _parameters);
+    }
+}
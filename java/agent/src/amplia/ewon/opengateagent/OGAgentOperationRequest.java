@@ -0,0 +1,93 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import amplia.util.json.JSONArray;
+import amplia.util.json.JSONPool;
+
+/**
+ * Campos de una peticion de operacion tal como llegan de la plataforma. Lo
+ * rellena OGAgentOperationRequestReader, los campos que no se usan no se
+ * guardan.
+ */
+public class OGAgentOperationRequest {
+
+    /* package */ String m_id;
+    /* package */ String m_deviceId;
+    /* package */ JSONArray m_path;
+    /* package */ String m_name;
+    /* package */ JSONArray m_parameters;
+
+    // Plazo en ms indicado en la peticion, 0 si no se indica
+    /* package */ long m_timeout;
+
+    // Los parametros no se han guardado porque la operacion no esta
+    // registrada
+    /* package */ boolean m_parametersSkipped;
+
+    public String getId()
+    {
+        return m_id;
+    }
+
+    // deviceId de la peticion, null si no se indica
+    public String getDeviceId()
+    {
+        return m_deviceId;
+    }
+
+    public String getDeviceId(String _defaultDeviceId)
+    {
+        return m_deviceId != null ? m_deviceId : _defaultDeviceId;
+    }
+
+    // Ruta de la peticion, una lista vacia si no se indica
+    public JSONArray getPath()
+    {
+        if (m_path == null) {
+            m_path = new JSONArray();
+        }
+        return m_path;
+    }
+
+    public String getName()
+    {
+        return m_name;
+    }
+
+    // Parametros de la peticion, null si no se han guardado
+    public JSONArray getParameters()
+    {
+        return m_parameters;
+    }
+
+    public boolean isParametersSkipped()
+    {
+        return m_parametersSkipped;
+    }
+
+    public long getTimeout()
+    {
+        return m_timeout;
+    }
+
+    // La ruta y los parametros pasan a la operacion aceptada, que los
+    // devuelve al pool cuando termina
+    /* package */ void handOver()
+    {
+        m_path = null;
+        m_parameters = null;
+    }
+
+    // Devuelve al pool la ruta y los parametros que no se han pasado a una
+    // operacion
+    /* package */ void release(JSONPool _pool)
+    {
+        _pool.release(m_path);
+        _pool.release(m_parameters);
+        handOver();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import amplia.util.json.JSONArray;
+import amplia.util.json.JSONException;
+import amplia.util.json.JSONPullParser;
+
+/**
+ * Lee las peticiones de operacion del cuerpo de un POST sin construir el
+ * arbol JSON completo. Admite una peticion
+ *
+ *   { "operation" : { "request" : {...} } }
+ *
+ * o un lote
+ *
+ *   { "operation" : { "requests" : [ {...}, {...} ] } }
+ *
+ * De cada peticion se guardan id, deviceId, path, name, parameters y timeout,
+ * el resto de campos se recorre sin guardarlo. Solo path y parameters se
+ * construyen como JSONArray, porque es lo que reciben los manejadores.
+ */
+public class OGAgentOperationRequestReader {
+
+    private final JSONPullParser m_parser;
+
+    // Si se indica, no se guardan los parametros de las operaciones que no
+    // estan registradas, que no se van a ejecutar
+    private OGAgentOperationRegistry m_registry = null;
+
+    // El cuerpo es un lote
+    private boolean m_batch = false;
+
+    // Numero de peticiones leidas
+    private int m_count = 0;
+
+    // Se ha leido el cuerpo hasta el final
+    private boolean m_finished = false;
+
+    public OGAgentOperationRequestReader(JSONPullParser _parser)
+    {
+        m_parser = _parser;
+    }
+
+    public void setRegistry(OGAgentOperationRegistry _registry)
+    {
+        m_registry = _registry;
+    }
+
+    // Lee el sobre hasta la primera peticion. Retorna true si es un lote
+    public boolean readEnvelope() throws JSONException
+    {
+        if (m_parser.next() != JSONPullParser.START_OBJECT) {
+            throw m_parser.syntaxError("A JSONObject text must begin with '{'");
+        }
+        if (!findKey("operation", null)) {
+            throw new JSONException("JSONObject[\"operation\"] not found.");
+        }
+        if (m_parser.next() != JSONPullParser.START_OBJECT) {
+            throw new JSONException("JSONObject[\"operation\"] is not a JSONObject.");
+        }
+        if (!findKey("request", "requests")) {
+            throw new JSONException("JSONObject[\"request\"] not found.");
+        }
+        m_batch = m_parser.textEquals("requests");
+        int event = m_parser.next();
+        if (m_batch && event != JSONPullParser.START_ARRAY) {
+            throw new JSONException("JSONObject[\"requests\"] is not a JSONArray.");
+        }
+        if (!m_batch && event != JSONPullParser.START_OBJECT) {
+            throw new JSONException("JSONObject[\"request\"] is not a JSONObject.");
+        }
+        return m_batch;
+    }
+
+    // Lee la siguiente peticion. Retorna null cuando no quedan, despues de
+    // comprobar el resto del cuerpo
+    public OGAgentOperationRequest nextRequest() throws JSONException
+    {
+        if (m_finished) {
+            return null;
+        }
+        if (m_batch) {
+            int event = m_parser.next();
+            if (event == JSONPullParser.END_ARRAY) {
+                finish();
+                return null;
+            }
+            if (event != JSONPullParser.START_OBJECT) {
+                throw new JSONException("JSONArray[" + m_count + "] is not a JSONObject.");
+            }
+        } else if (m_count > 0) {
+            finish();
+            return null;
+        }
+        m_count++;
+        return readRequest();
+    }
+
+    // Recorre el resto del cuerpo para comprobar que es JSON valido
+    public void finish() throws JSONException
+    {
+        while (!m_finished) {
+            int event = m_parser.next();
+            m_parser.skipValue();
+            m_finished = event == JSONPullParser.END_DOCUMENT;
+        }
+    }
+
+    // Avanza hasta la clave indicada del objeto actual, o la alternativa si
+    // no es null, saltando las demas. Retorna false si el objeto termina
+    private boolean findKey(String _key, String _alternative) throws JSONException
+    {
+        while (m_parser.next() == JSONPullParser.KEY) {
+            if (m_parser.textEquals(_key) || (_alternative != null && m_parser.textEquals(_alternative))) {
+                return true;
+            }
+            m_parser.next();
+            m_parser.skipValue();
+        }
+        return false;
+    }
+
+    // Lee los campos de una peticion, el parser esta en su START_OBJECT
+    private OGAgentOperationRequest readRequest() throws JSONException
+    {
+        OGAgentOperationRequest request = new OGAgentOperationRequest();
+        boolean hasParameters = false;
+        while (m_parser.next() == JSONPullParser.KEY) {
+            if (m_parser.textEquals("id")) {
+                request.m_id = readString("id");
+            } else if (m_parser.textEquals("deviceId")) {
+                request.m_deviceId = readString("deviceId");
+            } else if (m_parser.textEquals("name")) {
+                request.m_name = readString("name");
+            } else if (m_parser.textEquals("path")) {
+                request.m_path = readArray("path");
+            } else if (m_parser.textEquals("parameters")) {
+                hasParameters = true;
+                // Si el nombre ya se conoce y no esta registrado los
+                // parametros solo se comprueban
+                if (m_registry != null && request.m_name != null && m_registry.get(request.m_name) == null) {
+                    if (m_parser.next() != JSONPullParser.START_ARRAY) {
+                        throw new JSONException("JSONObject[\"parameters\"] is not a JSONArray.");
+                    }
+                    m_parser.skipValue();
+                    request.m_parametersSkipped = true;
+                } else {
+                    request.m_parameters = readArray("parameters");
+                }
+            } else if (m_parser.textEquals("timeout")) {
+                if (m_parser.next() == JSONPullParser.VALUE_NUMBER) {
+                    // Un plazo que no cabe en un long se ignora y se usa el
+                    // de la operacion
+                    if (m_parser.isLong()) {
+                        request.m_timeout = m_parser.getLong();
+                    } else {
+                        double timeout = m_parser.getDouble();
+                        if (timeout > Long.MIN_VALUE && timeout < Long.MAX_VALUE) {
+                            request.m_timeout = (long)timeout;
+                        }
+                    }
+                } else {
+                    m_parser.skipValue();
+                }
+            } else {
+                m_parser.next();
+                m_parser.skipValue();
+            }
+        }
+        if (request.m_id == null) {
+            throw new JSONException("JSONObject[\"id\"] not found.");
+        }
+        if (request.m_name == null) {
+            throw new JSONException("JSONObject[\"name\"] not found.");
+        }
+        if (!hasParameters) {
+            throw new JSONException("JSONObject[\"parameters\"] not found.");
+        }
+        return request;
+    }
+
+    // Lee el valor de un campo de texto. Se admiten numeros, como hacia
+    // JSONObject.getString
+    private String readString(String _key) throws JSONException
+    {
+        int event = m_parser.next();
+        if (event != JSONPullParser.VALUE_STRING && event != JSONPullParser.VALUE_NUMBER) {
+            throw new JSONException("JSONObject[\"" + _key + "\"] is not a string.");
+        }
+        return m_parser.getString();
+    }
+
+    private JSONArray readArray(String _key) throws JSONException
+    {
+        if (m_parser.next() != JSONPullParser.START_ARRAY) {
+            throw new JSONException("JSONObject[\"" + _key + "\"] is not a JSONArray.");
+        }
+        return (JSONArray)m_parser.readTree();
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import java.io.InputStream;
+
+/**
+ * Respuesta de una operacion generada por el agente. El JSON no se guarda:
+ * se escribe cuando se necesita, como cadena con toString o como bytes UTF-8
+ * directamente en el buffer de quien lo lee con getInputStream, que es el
+ * buffer de salida de la respuesta HTTP.
+ *
+ * Los textos se escapan como hace JSONObject.quote, una comilla en la
+ * descripcion no rompe el JSON.
+ */
+public class OGAgentOperationResponse {
+
+    private static final String HEX_DIGITS = "0123456789abcdef";
+
+    // Partes fijas del JSON, como texto y codificadas
+    private static final int PART_ID = 0;
+    private static final int PART_TIMESTAMP = 1;
+    private static final int PART_DEVICE_ID = 2;
+    private static final int PART_QUOTE = 3;
+    private static final int PART_NAME = 4;
+    private static final int PART_RESULT_CODE = 5;
+    private static final int PART_RESULT_DESCRIPTION = 6;
+    private static final int PART_END = 7;
+    private static final String[] PARTS = {
+        "{\"version\":\"7.0\",\"operation\":{\"response\":{\"id\":\"",
+        "\",\"timestamp\":",
+        ",\"deviceId\":\"",
+        "\"",
+        ",\"name\":\"",
+        "\",\"resultCode\":\"",
+        "\",\"resultDescription\":\"",
+        "\"}}}"
+    };
+    private static final byte[][] PART_BYTES = new byte[PARTS.length][];
+    static {
+        for (int i = 0; i < PARTS.length; i++) {
+            PART_BYTES[i] = PARTS[i].getBytes();
+        }
+    }
+
+    // Caracteres de los textos que se copian de una vez
+    private static final int SCRATCH_SIZE = 64;
+
+    private final String m_id;
+    private final long m_timestamp;
+    private final String m_deviceId;
+    private final String m_name;
+    private final int m_resultCode;
+    private final String m_resultDescription;
+
+    // Longitud en bytes UTF-8, -1 hasta que se calcula
+    private int m_length = -1;
+
+    // Estado de la escritura en curso. Con m_chars se escriben caracteres,
+    // si no se escriben en m_buffer los bytes desde la posicion m_from, o se
+    // cuentan si m_buffer es null
+    private StringBuffer m_chars;
+    private byte[] m_buffer;
+    private int m_from;
+    private int m_out;
+    private int m_end;
+    private int m_position;
+    private char[] m_scratch;
+
+    public OGAgentOperationResponse(String _id, long _timestamp, String _deviceId, String _name, int _resultCode, String _resultDescription)
+    {
+        m_id = _id;
+        m_timestamp = _timestamp;
+        m_deviceId = _deviceId;
+        m_name = _name;
+        m_resultCode = _resultCode;
+        m_resultDescription = _resultDescription;
+    }
+
+    public String getId()
+    {
+        return m_id;
+    }
+
+    public int getResultCode()
+    {
+        return m_resultCode;
+    }
+
+    // Longitud del JSON en bytes UTF-8
+    public synchronized int getLength()
+    {
+        if (m_length < 0) {
+            m_buffer = null;
+            m_out = 0;
+            m_end = 0;
+            m_from = 0;
+            m_length = encode();
+        }
+        return m_length;
+    }
+
+    // Copia en el buffer los bytes del JSON desde la posicion indicada.
+    // Retorna el numero de bytes copiados
+    public synchronized int write(byte[] _buffer, int _offset, int _length, int _position)
+    {
+        m_buffer = _buffer;
+        m_out = _offset;
+        m_end = _offset + _length;
+        m_from = _position;
+        encode();
+        m_buffer = null;
+        return m_out - _offset;
+    }
+
+    // Flujo con el JSON en UTF-8, para usarlo como cuerpo de la respuesta
+    // HTTP con su longitud
+    public InputStream getInputStream()
+    {
+        return new ResponseInputStream();
+    }
+
+    // @Override
+    public synchronized String toString()
+    {
+        m_chars = new StringBuffer(m_length > 0 ? m_length : 256);
+        encode();
+        String ret = m_chars.toString();
+        m_chars = null;
+        return ret;
+    }
+
+    /* Formato, sin espacios ni saltos de linea
+    {
+        "version" : "7.0",
+        "operation" : {
+            "response" : {
+                "id" : "f508ce84-01e9-11e5-a322-1697f925ec7b",
+                "timestamp" : 1432454282000,
+                "deviceId" : "device_1",
+                "name" : "SET_CLOCK",
+                "resultCode" : "SUCCESSFUL",
+                "resultDescription" : "No Error"
+            }
+        }
+    }
+    */
+    // Escribe el JSON y retorna su longitud en bytes. Entre las partes se
+    // deja de escribir si el buffer esta lleno
+    private int encode()
+    {
+        m_position = 0;
+        emitPart(PART_ID);
+        emitString(m_id);
+        emitPart(PART_TIMESTAMP);
+        emitNumber(m_timestamp);
+        if (isFull()) {
+            return m_position;
+        }
+        if (m_deviceId != null && m_deviceId.length() > 0) {
+            emitPart(PART_DEVICE_ID);
+            emitString(m_deviceId);
+            emitPart(PART_QUOTE);
+        }
+        emitPart(PART_NAME);
+        emitString(m_name);
+        if (isFull()) {
+            return m_position;
+        }
+        emitPart(PART_RESULT_CODE);
+        emitString(OGAgentResponseUtils.responseResultCodeToString(m_resultCode));
+        emitPart(PART_RESULT_DESCRIPTION);
+        emitString(m_resultDescription);
+        emitPart(PART_END);
+        return m_position;
+    }
+
+    private boolean isFull()
+    {
+        return m_buffer != null && m_out == m_end;
+    }
+
+    private void emit(int _byte)
+    {
+        if (m_chars != null) {
+            m_chars.append((char)_byte);
+            return;
+        }
+        if (m_buffer != null && m_position >= m_from && m_out < m_end) {
+            m_buffer[m_out++] = (byte)_byte;
+        }
+        m_position++;
+    }
+
+    // Escribe una parte fija, ya codificada
+    private void emitPart(int _part)
+    {
+        if (m_chars != null) {
+            m_chars.append(PARTS[_part]);
+            return;
+        }
+        byte[] bytes = PART_BYTES[_part];
+        int skip = m_from - m_position;
+        if (m_buffer != null && skip < bytes.length) {
+            if (skip < 0) {
+                skip = 0;
+            }
+            int copy = bytes.length - skip;
+            if (copy > m_end - m_out) {
+                copy = m_end - m_out;
+            }
+            System.arraycopy(bytes, skip, m_buffer, m_out, copy);
+            m_out += copy;
+        }
+        m_position += bytes.length;
+    }
+
+    // Escribe los caracteres de _start a _end, que son ASCII y no se
+    // escapan. Solo se copia la parte que va en el buffer
+    private void emitPlain(char[] _chars, int _start, int _end)
+    {
+        int count = _end - _start;
+        if (m_chars != null) {
+            m_chars.append(_chars, _start, count);
+            return;
+        }
+        int skip = m_from - m_position;
+        if (m_buffer != null && skip < count) {
+            if (skip < 0) {
+                skip = 0;
+            }
+            int copy = count - skip;
+            if (copy > m_end - m_out) {
+                copy = m_end - m_out;
+            }
+            byte[] buffer = m_buffer;
+            int out = m_out;
+            for (int i = _start + skip, last = i + copy; i < last; i++) {
+                buffer[out++] = (byte)_chars[i];
+            }
+            m_out = out;
+        }
+        m_position += count;
+    }
+
+    private void emitNumber(long _value)
+    {
+        if (_value < 0) {
+            emitString(String.valueOf(_value));
+            return;
+        }
+        long divisor = 1;
+        while (_value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            emit('0' + (int)(_value / divisor % 10));
+        }
+    }
+
+    // Escribe el texto escapado como JSONObject.quote, sin las comillas. Los
+    // caracteres no ASCII se codifican en UTF-8. El texto se recorre por
+    // tramos copiados a m_scratch, los caracteres que no se escapan se
+    // copian seguidos
+    private void emitString(String _s)
+    {
+        if (_s == null) {
+            return;
+        }
+        if (m_scratch == null) {
+            m_scratch = new char[SCRATCH_SIZE];
+        }
+        char[] chars = m_scratch;
+        int length = _s.length();
+        int offset = 0;
+        while (offset < length) {
+            int count = length - offset < chars.length ? length - offset : chars.length;
+            _s.getChars(offset, offset + count, chars, 0);
+            int i = 0;
+            while (i < count) {
+                int start = i;
+                char c = 0;
+                while (i < count && (c = chars[i]) >= ' ' && c < 0x80 && c != '"' && c != '\\' && c != '/') {
+                    i++;
+                }
+                if (i > start) {
+                    emitPlain(chars, start, i);
+                }
+                if (i == count) {
+                    break;
+                }
+                int index = offset + i;
+                switch (c) {
+                    case '\\':
+                    case '"':
+                        emit('\\');
+                        emit(c);
+                        break;
+                    case '/':
+                        if (index > 0 && _s.charAt(index - 1) == '<') {
+                            emit('\\');
+                        }
+                        emit(c);
+                        break;
+                    case '\b':
+                        emit('\\');
+                        emit('b');
+                        break;
+                    case '\t':
+                        emit('\\');
+                        emit('t');
+                        break;
+                    case '\n':
+                        emit('\\');
+                        emit('n');
+                        break;
+                    case '\f':
+                        emit('\\');
+                        emit('f');
+                        break;
+                    case '\r':
+                        emit('\\');
+                        emit('r');
+                        break;
+                    default:
+                        if (c < ' ') {
+                            emit('\\');
+                            emit('u');
+                            emit('0');
+                            emit('0');
+                            emit(HEX_DIGITS.charAt(c >> 4));
+                            emit(HEX_DIGITS.charAt(c & 0xF));
+                        } else if (m_chars != null) {
+                            m_chars.append(c);
+                        } else if (c < 0x800) {
+                            emit(0xC0 | (c >> 6));
+                            emit(0x80 | (c & 0x3F));
+                        } else if (c >= 0xD800 && c < 0xDC00 && index + 1 < length && _s.charAt(index + 1) >= 0xDC00 && _s.charAt(index + 1) < 0xE000) {
+                            int codePoint = 0x10000 + ((c - 0xD800) << 10) + (_s.charAt(index + 1) - 0xDC00);
+                            emit(0xF0 | (codePoint >> 18));
+                            emit(0x80 | ((codePoint >> 12) & 0x3F));
+                            emit(0x80 | ((codePoint >> 6) & 0x3F));
+                            emit(0x80 | (codePoint & 0x3F));
+                            // El segundo caracter del par puede estar en
+                            // el tramo siguiente
+                            i++;
+                        } else if (c >= 0xD800 && c < 0xE000) {
+                            // Sustituto sin pareja
+                            emit('?');
+                        } else {
+                            emit(0xE0 | (c >> 12));
+                            emit(0x80 | ((c >> 6) & 0x3F));
+                            emit(0x80 | (c & 0x3F));
+                        }
+                }
+                i++;
+            }
+            offset += i;
+        }
+    }
+
+    // Lee el JSON escribiendolo directamente en el buffer del lector
+    private class ResponseInputStream extends InputStream
+    {
+        private int m_read = 0;
+
+        // @Override
+        public int read()
+        {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        // @Override
+        public int read(byte[] _buffer, int _offset, int _length)
+        {
+            if (m_read >= getLength()) {
+                return -1;
+            }
+            int count = write(_buffer, _offset, _length, m_read);
+            m_read += count;
+            return count;
+        }
+
+        // @Override
+        public int available()
+        {
+            return getLength() - m_read;
+        }
+    }
+}
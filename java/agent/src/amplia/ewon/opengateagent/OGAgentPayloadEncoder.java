@@ -0,0 +1,130 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Comprime el cuerpo de los POST a la plataforma, con la cabecera
+ * Content-Encoding "gzip" o "deflate" (zlib). El resultado se escribe en un
+ * buffer que se reutiliza, hace falta la longitud antes de enviar la
+ * cabecera.
+ *
+ * Los cuerpos mas pequenos que el umbral, o que comprimidos no ocupan menos,
+ * se envian sin comprimir. Lo que se comprime vale hasta la siguiente
+ * compresion, quien lo comparta entre hilos debe sincronizar en el encoder
+ * mientras comprime y copia el resultado.
+ */
+public class OGAgentPayloadEncoder {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    // Posiciones probadas en cada busqueda de repeticiones
+    private static final int MAX_CHAIN = 32;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final String m_contentEncoding;
+    private final int m_threshold;
+    private final OGAgentDeflater m_deflater;
+
+    // Pasa a false si la plataforma no acepta la compresion
+    private volatile boolean m_enabled = true;
+
+    private byte[] m_buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int m_length = 0;
+
+    private final OutputStream m_sink = new OutputStream() {
+        // @Override
+        public void write(int _byte)
+        {
+            ensureCapacity(1);
+            m_buffer[m_length++] = (byte)_byte;
+        }
+
+        // @Override
+        public void write(byte[] _data, int _offset, int _length)
+        {
+            ensureCapacity(_length);
+            System.arraycopy(_data, _offset, m_buffer, m_length, _length);
+            m_length += _length;
+        }
+    };
+
+    // _contentEncoding: GZIP o DEFLATE. _windowBits: ventana de
+    // 2^_windowBits bytes, de 9 a 15
+    public OGAgentPayloadEncoder(String _contentEncoding, int _windowBits, int _threshold)
+    {
+        if (!GZIP.equals(_contentEncoding) && !DEFLATE.equals(_contentEncoding)) {
+            throw new IllegalArgumentException("Content-Encoding " + _contentEncoding);
+        }
+        m_contentEncoding = _contentEncoding;
+        m_threshold = _threshold;
+        m_deflater = new OGAgentDeflater(_windowBits, MAX_CHAIN, GZIP.equals(_contentEncoding) ? OGAgentDeflater.FORMAT_GZIP : OGAgentDeflater.FORMAT_ZLIB);
+    }
+
+    public String getContentEncoding()
+    {
+        return m_contentEncoding;
+    }
+
+    // Deja de comprimir
+    public void disable()
+    {
+        m_enabled = false;
+    }
+
+    // Un cuerpo de _length bytes se intenta comprimir
+    public boolean accepts(int _length)
+    {
+        return m_enabled && _length >= m_threshold;
+    }
+
+    // Comprime los bytes en el buffer. Retorna false si se deben enviar sin
+    // comprimir
+    public boolean encode(byte[] _data, int _offset, int _length)
+    {
+        if (!accepts(_length)) {
+            return false;
+        }
+        m_length = 0;
+        try {
+            m_deflater.reset(m_sink);
+            m_deflater.write(_data, _offset, _length);
+            m_deflater.finish();
+        } catch (IOException ex) {
+            // El buffer no da errores
+            return false;
+        }
+        return m_length < _length;
+    }
+
+    // Buffer con el ultimo cuerpo comprimido, valido hasta el siguiente
+    public byte[] getBuffer()
+    {
+        return m_buffer;
+    }
+
+    public int getLength()
+    {
+        return m_length;
+    }
+
+    private void ensureCapacity(int _count)
+    {
+        if (m_length + _count > m_buffer.length) {
+            int size = m_buffer.length * 2;
+            while (size < m_length + _count) {
+                size *= 2;
+            }
+            byte[] buffer = new byte[size];
+            System.arraycopy(m_buffer, 0, buffer, 0, m_length);
+            m_buffer = buffer;
+        }
+    }
+}
@@ -5,7 +5,6 @@
  */
 package amplia.ewon.opengateagent;
 
-import java.util.Calendar;
 import java.util.Date;
 
 /**
@@ -43,61 +42,18 @@ public class OGAgentResponseUtils {
         }
     }
             
-    /* Formato
+    // Respuesta en JSON. Si no se indica el momento se usa el actual
+    public static String operationResponseJSON(String _id, Date _timestamp, String _deviceId, String _name, int _resultCode, String _resultDescription)
     {
-        "version" : "7.0",
-        "operation" :
-        {
-            "response" :
-            {
-                "id" : "f508ce84-01e9-11e5-a322-1697f925ec7b",
-                "timestamp" : 1432454282000,
-                "deviceId" : "device_1",
-                "name" : "SET_CLOCK",
-                "resultCode" : "SUCCESS",
-                "resultDescription" : "No Error",
-            }
-        }
+        long timestamp = _timestamp != null ? _timestamp.getTime() : System.currentTimeMillis();
+        return new OGAgentOperationResponse(_id, timestamp, _deviceId, _name, _resultCode, _resultDescription).toString();
     }
-    */
-    public static String operationResponseJSON(String _id, Date _timestamp, String _deviceId, String _name, int _resultCode, String _resultDescription)
+
+    // Respuesta con el momento actual que se escribe al enviarla, sin
+    // construir la cadena JSON
+    public static OGAgentOperationResponse operationResponse(String _id, String _deviceId, String _name, int _resultCode, String _resultDescription)
     {
-        String ret = "";
-        
-        ret =  "{\n";
-        ret += "    \"version\" : \"7.0\",";
-        ret += "    \"operation\" :";
-        ret += "    {";
-        ret += "        \"response\" :";
-        ret += "        {";
-        ret += "            \"id\" : \"" + _id + "\",\n";
-        
-        Date timestamp;
-        
-        if(_timestamp!=null)
-        {
-            timestamp = _timestamp;
-        } else
-        {
-            // Cojo la fecha y hora actuales de la máquina
-            timestamp = new Date();
-            timestamp.setTime(System.currentTimeMillis());
-        }
-        ret += "            \"timestamp\" :" + timestamp.getTime() + ",\n";
-        
-        if(_deviceId != null && _deviceId.length()>0)
-        {
-            ret += "            \"deviceId\" : \"" + _deviceId + "\",\n";
-        }
-        
-        ret += "            \"name\" : \"" + _name + "\",\n";
-        ret += "            \"resultCode\" : \"" + responseResultCodeToString(_resultCode) + "\",\n";
-        ret += "            \"resultDescription\" : \"" + _resultDescription + "\"\n";
-        ret += "        }";
-        ret += "    }";
-        ret += "}";
-        
-        return ret;
+        return new OGAgentOperationResponse(_id, System.currentTimeMillis(), _deviceId, _name, _resultCode, _resultDescription);
     }
 
 }
@@ -0,0 +1,15 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+/**
+ * Envio a la plataforma del resultado final de las operaciones asincronas.
+ */
+public interface OGAgentResultPublisherInterface {
+    // Envia la respuesta JSON de la operacion terminada
+    // Retorna true si la plataforma la ha aceptado
+    public boolean publish(OGAgentJob _job, String _responseJSON);
+}
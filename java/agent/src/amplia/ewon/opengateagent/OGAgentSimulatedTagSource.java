@@ -0,0 +1,146 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import java.util.Random;
+
+/**
+ * Tags simulados, para probar la captura de cambios fuera del eWON. Los tags
+ * se llaman "crane.simulated.tag<n>" y un hilo cambia tags al azar al ritmo
+ * indicado, cada cambio suma o resta una unidad al valor.
+ */
+public class OGAgentSimulatedTagSource implements OGAgentTagEventSourceInterface {
+
+    private static final String TAG_NAME_PREFIX = "crane.simulated.tag";
+
+    // Cada cuanto se generan los cambios acumulados, en ms
+    private static final int TICK = 100;
+
+    private final String[] m_allNames;
+    private final int m_changesPerSecond;
+
+    // Indices en m_allNames de los tags cargados
+    private int[] m_loaded = new int[0];
+
+    private final double[] m_allValues;
+
+    private final Random m_random = new Random();
+
+    // Hilo que genera los cambios, null si no hay suscripcion
+    private Thread m_thread = null;
+
+    public OGAgentSimulatedTagSource(int _tagCount, int _changesPerSecond)
+    {
+        m_allNames = new String[_tagCount];
+        m_allValues = new double[_tagCount];
+        for (int i = 0; i < _tagCount; i++) {
+            m_allNames[i] = TAG_NAME_PREFIX + i;
+        }
+        m_changesPerSecond = _changesPerSecond;
+    }
+
+    // @Override
+    public synchronized int loadTags(String _nameFilter)
+    {
+        unsubscribe();
+        int[] loaded = new int[m_allNames.length];
+        int count = 0;
+        for (int i = 0; i < m_allNames.length; i++) {
+            if (_nameFilter == null || m_allNames[i].indexOf(_nameFilter) >= 0) {
+                loaded[count++] = i;
+            }
+        }
+        m_loaded = new int[count];
+        System.arraycopy(loaded, 0, m_loaded, 0, count);
+        return count;
+    }
+
+    // @Override
+    public synchronized String getTagName(int _index)
+    {
+        return m_allNames[m_loaded[_index]];
+    }
+
+    // @Override
+    public boolean isTagListChanged()
+    {
+        return false;
+    }
+
+    // @Override
+    public synchronized void readValues(double[] _values)
+    {
+        for (int i = 0; i < m_loaded.length; i++) {
+            _values[i] = m_allValues[m_loaded[i]];
+        }
+    }
+
+    // @Override
+    public synchronized void subscribe(OGAgentTagChangeListenerInterface _listener)
+    {
+        unsubscribe();
+        m_thread = new ChangeThread(_listener);
+        m_thread.start();
+    }
+
+    // @Override
+    public synchronized void unsubscribe()
+    {
+        if (m_thread != null) {
+            m_thread.interrupt();
+            m_thread = null;
+        }
+    }
+
+    // Genera un cambio en un tag cargado al azar
+    private synchronized boolean change(Thread _thread, OGAgentTagChangeListenerInterface _listener)
+    {
+        if (m_thread != _thread) {
+            return false;
+        }
+        if (m_loaded.length > 0) {
+            int index = m_random.nextInt(m_loaded.length);
+            double value = m_allValues[m_loaded[index]] + (m_random.nextInt(2) == 0 ? -1 : 1);
+            m_allValues[m_loaded[index]] = value;
+            _listener.tagChanged(index, System.currentTimeMillis(), value);
+        }
+        return true;
+    }
+
+    /**
+     * Genera los cambios hasta que se anula la suscripcion.
+     */
+    private class ChangeThread extends Thread {
+
+        private final OGAgentTagChangeListenerInterface m_listener;
+
+        public ChangeThread(OGAgentTagChangeListenerInterface _listener)
+        {
+            m_listener = _listener;
+        }
+
+        // @Override
+        public void run()
+        {
+            // Cambios pendientes en milesimas, para ritmos que no son multiplo
+            // de los ticks por segundo
+            long pending = 0;
+            while (true) {
+                try {
+                    Thread.sleep(TICK);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                pending += (long)m_changesPerSecond * TICK;
+                for (; pending >= 1000; pending -= 1000) {
+                    if (!change(this, m_listener)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
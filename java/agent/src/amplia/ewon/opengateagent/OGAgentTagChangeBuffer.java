@@ -0,0 +1,259 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+/**
+ * Cambios de valor de los tags pendientes de enviar. Cada tag tiene un anillo
+ * de muestras de tamano fijo en arrays de long y double, sin objetos por
+ * muestra. Se guarda la cola de los tags que han cambiado, asi el vaciado
+ * recorre solo esos.
+ *
+ * Hay un solo productor, el hilo de eventos que llama a tagChanged, y un solo
+ * consumidor, el recolector, y no se usan locks: cada lado escribe solo sus
+ * indices y los publica con una escritura volatile que el otro lee antes de
+ * usarlos. Los indices de cada tag cuentan las muestras escritas y leidas
+ * desde el principio, la posicion en el anillo es el indice & m_mask.
+ *
+ * Si el anillo de un tag esta lleno, con OVERWRITE_OLDEST se escribe encima
+ * de la muestra mas antigua y con DROP_NEWEST se descarta la nueva.
+ */
+public class OGAgentTagChangeBuffer implements OGAgentTagChangeListenerInterface {
+
+    public static final int OVERWRITE_OLDEST = 0;
+    public static final int DROP_NEWEST = 1;
+
+    // Bytes de cada muestra, el instante y el valor
+    public static final int SAMPLE_SIZE = 16;
+
+    private final int m_tagCount;
+    private final int m_capacity;
+    private final int m_mask;
+    private final int m_policy;
+
+    // Las muestras del tag i ocupan [i * m_capacity, (i + 1) * m_capacity)
+    private final long[] m_times;
+    private final double[] m_values;
+
+    // Muestras escritas de cada tag, solo las escribe el productor
+    private final int[] m_writes;
+
+    // Muestras leidas de cada tag, solo las escribe el consumidor
+    private final int[] m_reads;
+
+    // El tag esta en la cola de cambiados. Lo pone el productor y lo quita el
+    // consumidor antes de leer las muestras, asi un cambio nunca se queda sin
+    // encolar
+    private final boolean[] m_queued;
+
+    // Cola de tags cambiados. Cada tag esta a lo sumo una vez, el doble de
+    // sitio cubre las lecturas atrasadas de m_queueHead
+    private final int[] m_queue;
+    private final int m_queueMask;
+    private volatile int m_queueTail = 0;
+    private volatile int m_queueHead = 0;
+
+    // Si la cola se llena, el siguiente vaciado recorre todos los tags
+    private volatile boolean m_rescan = false;
+
+    // Escrituras volatile que publican las muestras del productor y los
+    // indices del consumidor. Sus valores no se usan, solo ordenan los
+    // accesos a los arrays, cada lectura explica el orden que da
+    private volatile int m_published = 0;
+    private volatile int m_consumed = 0;
+
+    // Estado del vaciado en curso, solo del consumidor
+    private int m_drainEnd = 0;
+    private int m_rescanIndex = -1;
+
+    // Muestras descartadas por el productor con DROP_NEWEST
+    private int m_dropped = 0;
+
+    // Muestras perdidas con OVERWRITE_OLDEST, las cuenta el consumidor
+    private int m_overwritten = 0;
+
+    // _capacity se redondea a potencia de 2 hacia abajo
+    public OGAgentTagChangeBuffer(int _tagCount, int _capacity, int _policy)
+    {
+        int capacity = 1;
+        while (capacity * 2 <= _capacity) {
+            capacity *= 2;
+        }
+        int queueSize = 1;
+        while (queueSize < 2 * _tagCount) {
+            queueSize *= 2;
+        }
+        m_tagCount = _tagCount;
+        m_capacity = capacity;
+        m_mask = capacity - 1;
+        m_policy = _policy;
+        m_times = new long[_tagCount * capacity];
+        m_values = new double[_tagCount * capacity];
+        m_writes = new int[_tagCount];
+        m_reads = new int[_tagCount];
+        m_queued = new boolean[_tagCount];
+        m_queue = new int[queueSize];
+        m_queueMask = queueSize - 1;
+    }
+
+    // Muestras por tag que caben en _budget bytes, como mucho _maxCapacity y
+    // al menos 1
+    public static int capacityFor(long _budget, int _tagCount, int _maxCapacity)
+    {
+        long capacity = _tagCount > 0 ? _budget / ((long)_tagCount * SAMPLE_SIZE) : _maxCapacity;
+        if (capacity > _maxCapacity) {
+            capacity = _maxCapacity;
+        }
+        return capacity < 1 ? 1 : (int)capacity;
+    }
+
+    public int getTagCount()
+    {
+        return m_tagCount;
+    }
+
+    public int getCapacity()
+    {
+        return m_capacity;
+    }
+
+    // Productor
+
+    // @Override
+    public void tagChanged(int _index, long _time, double _value)
+    {
+        if (_index < 0 || _index >= m_tagCount) {
+            return;
+        }
+        int write = m_writes[_index];
+        if (m_policy == DROP_NEWEST) {
+            // Solo importa el orden, no el valor: la lectura volatile de
+            // m_consumed va antes de la de m_reads. Si ve la escritura de
+            // takeSamples, ve su m_reads y las copias que hizo antes, asi no
+            // se escribe encima de una muestra que se esta leyendo. Con un
+            // m_reads atrasado solo se descarta de mas
+            int consumed = m_consumed;
+            if (write - m_reads[_index] >= m_capacity) {
+                m_dropped++;
+                return;
+            }
+        }
+        int position = _index * m_capacity + (write & m_mask);
+        m_times[position] = _time;
+        m_values[position] = _value;
+        m_writes[_index] = write + 1;
+        m_published = write;
+
+        // Solo importa el orden, no el valor: escritura volatile de
+        // m_published y despues lectura volatile de m_consumed, y el
+        // consumidor escribe m_consumed en nextChangedTag y despues lee
+        // m_published en takeSamples. Las operaciones volatile tienen un
+        // orden total, asi que o el consumidor ve la muestra o aqui se ve
+        // m_queued a false y el tag se vuelve a encolar
+        int consumed = m_consumed;
+        if (!m_queued[_index]) {
+            m_queued[_index] = true;
+            int tail = m_queueTail;
+            if (tail - m_queueHead < m_queue.length) {
+                m_queue[tail & m_queueMask] = _index;
+                m_queueTail = tail + 1;
+            } else {
+                m_rescan = true;
+            }
+        }
+    }
+
+    // Consumidor
+
+    // Empieza un vaciado, que cubre los cambios encolados hasta ahora
+    public void beginDrain()
+    {
+        m_drainEnd = m_queueTail;
+        if (m_rescan) {
+            m_rescan = false;
+            m_rescanIndex = 0;
+        }
+    }
+
+    // Siguiente tag que ha cambiado, -1 si no hay mas en este vaciado. Puede
+    // retornar tags sin muestras
+    public int nextChangedTag()
+    {
+        int index;
+        if (m_rescanIndex >= 0 && m_rescanIndex < m_tagCount) {
+            index = m_rescanIndex++;
+        } else {
+            m_rescanIndex = -1;
+            int head = m_queueHead;
+            if (head == m_drainEnd) {
+                return -1;
+            }
+            index = m_queue[head & m_queueMask];
+            m_queueHead = head + 1;
+        }
+        m_queued[index] = false;
+        m_consumed = index;
+        return index;
+    }
+
+    // Copia las muestras pendientes del tag, de la mas antigua a la mas
+    // reciente, en arrays de getCapacity() elementos. Retorna cuantas
+    public int takeSamples(int _index, long[] _times, double[] _values)
+    {
+        // Solo importa el orden, no el valor: la lectura volatile de
+        // m_published va antes de la de m_writes. El productor escribe
+        // m_published despues de la muestra y de m_writes, asi que se ven
+        // las muestras hasta ese m_writes. Cierra el cruce con tagChanged
+        // despues de escribir m_consumed en nextChangedTag
+        int published = m_published;
+        int write = m_writes[_index];
+        int read = m_reads[_index];
+        int start = write - read > m_capacity ? write - m_capacity : read;
+        int count = write - start;
+        int base = _index * m_capacity;
+        int position = start & m_mask;
+        // El anillo puede dar la vuelta, se copia en dos trozos
+        int first = Math.min(count, m_capacity - position);
+        System.arraycopy(m_times, base + position, _times, 0, first);
+        System.arraycopy(m_values, base + position, _values, 0, first);
+        System.arraycopy(m_times, base, _times, first, count - first);
+        System.arraycopy(m_values, base, _values, first, count - first);
+
+        if (m_policy == OVERWRITE_OLDEST) {
+            // El productor ha podido escribir encima mientras se copiaba: la
+            // muestra w - capacidad se esta sobrescribiendo si el productor
+            // va por la w, solo valen las posteriores. La escritura volatile
+            // de m_consumed deja las copias antes y la lectura volatile de
+            // m_published deja despues la nueva lectura de m_writes, que es
+            // al menos tan reciente como lo que se ha copiado
+            m_consumed = read;
+            published = m_published;
+            int valid = m_writes[_index] - m_capacity + 1;
+            if (valid - start > 0) {
+                int skip = Math.min(count, valid - start);
+                System.arraycopy(_times, skip, _times, 0, count - skip);
+                System.arraycopy(_values, skip, _values, 0, count - skip);
+                count -= skip;
+                start += skip;
+            }
+        }
+        m_overwritten += start - read;
+        m_reads[_index] = write;
+        m_consumed = write;
+        return count;
+    }
+
+    // Muestras descartadas porque el anillo del tag estaba lleno
+    public int getDropped()
+    {
+        return m_dropped;
+    }
+
+    // Muestras perdidas porque se escribio encima antes de leerlas
+    public int getOverwritten()
+    {
+        return m_overwritten;
+    }
+}
@@ -0,0 +1,15 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+/**
+ * Recibe los cambios de valor de los tags de un OGAgentTagEventSourceInterface.
+ */
+public interface OGAgentTagChangeListenerInterface {
+    // El tag con el indice de la carga ha cambiado. _time en ms desde 1970.
+    // Se llama desde el hilo de eventos del origen, no debe bloquear
+    public void tagChanged(int _index, long _time, double _value);
+}
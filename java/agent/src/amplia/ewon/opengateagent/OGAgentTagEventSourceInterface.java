@@ -0,0 +1,19 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+/**
+ * Origen de tags que avisa de los cambios de valor, asi no hace falta leer
+ * todos los tags en cada ciclo.
+ */
+public interface OGAgentTagEventSourceInterface extends OGAgentTagSourceInterface {
+    // Empieza a avisar de los cambios de los tags cargados. Una nueva carga
+    // de tags anula la suscripcion
+    public void subscribe(OGAgentTagChangeListenerInterface _listener);
+
+    // Deja de avisar de los cambios
+    public void unsubscribe();
+}
@@ -0,0 +1,29 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.ewon.opengateagent;
+
+import java.io.IOException;
+
+/**
+ * Origen de los valores de los tags que se envian como datastreams. La lista
+ * de tags se carga una vez y en cada ciclo se leen todos los valores de una
+ * vez, sin abrir una exportacion por tag.
+ */
+public interface OGAgentTagSourceInterface {
+    // Carga los tags cuyo nombre contiene el filtro, todos si es null.
+    // Retorna el numero de tags cargados
+    public int loadTags(String _nameFilter) throws IOException;
+
+    // Nombre del tag cargado con el indice indicado
+    public String getTagName(int _index);
+
+    // true si la lista de tags ha cambiado desde la ultima carga
+    public boolean isTagListChanged();
+
+    // Lee el valor actual de todos los tags cargados, en el orden de la
+    // carga. Los tags que no se pueden leer quedan con NaN
+    public void readValues(double[] _values) throws IOException;
+}
@@ -10,18 +10,17 @@ package amplia.ewon.opengateagent;
 // import com.oracle.jmee.samples.webserver.FileSystemRequestHandler;
 import amplia.util.json.JSONArray;
 import amplia.util.json.JSONException;
-import amplia.util.json.JSONObject;
-import amplia.util.json.JSONTokener;
-import com.oracle.jmee.samples.webserver.HttpCookie;
+import amplia.util.json.JSONPool;
+import amplia.util.json.JSONPullParser;
 import com.oracle.jmee.samples.webserver.HttpRequest;
 import com.oracle.jmee.samples.webserver.HttpResponse;
 import com.oracle.jmee.samples.webserver.RequestHandler;
 import com.oracle.jmee.samples.webserver.ResourceRequestHandler;
+import com.oracle.jmee.samples.webserver.Status;
 import com.oracle.jmee.samples.webserver.WebServer;
 import com.oracle.jmee.samples.webserverdemo.CookieTestRequestHandler;
 import com.oracle.jmee.samples.webserverdemo.TraceRequestHandler;
 import java.io.IOException;
-import java.util.Enumeration;
 import java.util.Vector;
 import javax.microedition.midlet.MIDlet;
 
@@ -41,6 +40,27 @@ public class OGAgentWebServer /* extends MIDlet */ implements RequestHandler
     private static final String LISTENING_PORT_PROPERTY_NAME = "WebServerApplication-ListeningPort";
     private static final int LISTENING_PORT_DEFAULT_VALUE = 1123;
 
+    private static final String WORKERS_NUMBER_PROPERTY_NAME = "WebServerApplication-WorkersNumber";
+    private static final int WORKERS_NUMBER_DEFAULT_VALUE = 3;
+
+    private static final String TASK_QUEUE_CAPACITY_PROPERTY_NAME = "WebServerApplication-TaskQueueCapacity";
+    private static final int TASK_QUEUE_CAPACITY_DEFAULT_VALUE = 8;
+
+    private static final String CONNECTION_IDLE_TIMEOUT_PROPERTY_NAME = "WebServerApplication-ConnectionIdleTimeout";
+    private static final int CONNECTION_IDLE_TIMEOUT_DEFAULT_VALUE = 15000;
+
+    private static final String MAX_REQUESTS_PER_CONNECTION_PROPERTY_NAME = "WebServerApplication-MaxRequestsPerConnection";
+    private static final int MAX_REQUESTS_PER_CONNECTION_DEFAULT_VALUE = 100;
+
+    private static final String POLLING_ENGINE_PROPERTY_NAME = "WebServerApplication-PollingEngine";
+    private static final boolean POLLING_ENGINE_DEFAULT_VALUE = true;
+
+    private static final String MAX_CONNECTIONS_PROPERTY_NAME = "WebServerApplication-MaxConnections";
+    private static final int MAX_CONNECTIONS_DEFAULT_VALUE = 128;
+
+    private static final String MAXIMUM_HEAD_SIZE_PROPERTY_NAME = "WebServerApplication-MaximumHeadSize";
+    private static final int MAXIMUM_HEAD_SIZE_DEFAULT_VALUE = 8192;
+
     private static final String PRINT_DIRECTORY_CONTENTS_PROPERTY_NAME = "WebServerApplication-FileSystemRequestHandler-PrintDirectoryContents";
     private static final boolean PRINT_DIRECTORY_CONTENTS_DEFAULT_VALUE = true;
 
@@ -50,16 +70,197 @@ public class OGAgentWebServer /* extends MIDlet */ implements RequestHandler
     private static final String RESOURCE_HANDLER_ROOT_PROPERTY_NAME = "WebServerApplication-JarResourceRequestHandler-Root";
     private static final String RESOURCE_HANDLER_ROOT_DEFAULT_VALUE = "/resources";
     
-    private static final String NEW_LINES_CHARACTERS = "\r\n";
+    // Ejecucion asincrona de las operaciones
+    private static final String OPERATION_WORKERS_PROPERTY_NAME = "OGAgent-OperationWorkers";
+    private static final int OPERATION_WORKERS_DEFAULT_VALUE = 1;
+
+    private static final String OPERATION_QUEUE_CAPACITY_PROPERTY_NAME = "OGAgent-OperationQueueCapacity";
+    private static final int OPERATION_QUEUE_CAPACITY_DEFAULT_VALUE = 8;
+
+    private static final String JOB_TABLE_CAPACITY_PROPERTY_NAME = "OGAgent-JobTableCapacity";
+    private static final int JOB_TABLE_CAPACITY_DEFAULT_VALUE = 32;
+
+    // Tiempo en ms que se recuerda una operacion terminada, los reintentos
+    // de la plataforma con el mismo id reciben la respuesta guardada
+    private static final String JOB_TIME_TO_LIVE_PROPERTY_NAME = "OGAgent-JobTimeToLive";
+    private static final int JOB_TIME_TO_LIVE_DEFAULT_VALUE = 600000;
+
+    // Plazo de las operaciones en ms si la peticion no indica otro, y tiempo
+    // que se espera a que el manejador deje una operacion fuera de plazo
+    private static final String OPERATION_TIMEOUT_PROPERTY_NAME = "OGAgent-OperationTimeout";
+    private static final int OPERATION_TIMEOUT_DEFAULT_VALUE = 60000;
+
+    private static final String OPERATION_CANCEL_GRACE_PERIOD_PROPERTY_NAME = "OGAgent-OperationCancelGracePeriod";
+    private static final int OPERATION_CANCEL_GRACE_PERIOD_DEFAULT_VALUE = 1000;
+
+    // Lotes de operaciones: maximo de operaciones por lote, cuantas pueden
+    // estar en curso a la vez y tiempo que se espera a sus resultados en ms
+    private static final String MAX_BATCH_SIZE_PROPERTY_NAME = "OGAgent-MaxBatchSize";
+    private static final int MAX_BATCH_SIZE_DEFAULT_VALUE = 100;
+
+    private static final String BATCH_PARALLELISM_PROPERTY_NAME = "OGAgent-BatchParallelism";
+    private static final int BATCH_PARALLELISM_DEFAULT_VALUE = 4;
+
+    private static final String BATCH_TIMEOUT_PROPERTY_NAME = "OGAgent-BatchTimeout";
+    private static final int BATCH_TIMEOUT_DEFAULT_VALUE = 30000;
+
+    // Nodos JSONObject y JSONArray libres que se guardan para construir la
+    // ruta y los parametros de las siguientes peticiones, 0 para no usar pool
+    private static final String JSON_POOL_SIZE_PROPERTY_NAME = "OGAgent-JSONPoolSize";
+    private static final int JSON_POOL_SIZE_DEFAULT_VALUE = 0;
+
+    // Envio del resultado final a la plataforma, no se envia si no hay host
+    private static final String PLATFORM_HOST_PROPERTY_NAME = "OGAgent-PlatformHost";
+    private static final String PLATFORM_HOST_DEFAULT_VALUE = null;
+
+    private static final String PLATFORM_PORT_PROPERTY_NAME = "OGAgent-PlatformPort";
+    private static final int PLATFORM_PORT_DEFAULT_VALUE = 80;
+
+    private static final String PLATFORM_RESPONSES_PATH_PROPERTY_NAME = "OGAgent-PlatformResponsesPath";
+    private static final String PLATFORM_RESPONSES_PATH_DEFAULT_VALUE = "/v70/devices/{deviceId}/operation/responses";
+
+    private static final String PLATFORM_API_KEY_PROPERTY_NAME = "OGAgent-PlatformApiKey";
+    private static final String PLATFORM_API_KEY_DEFAULT_VALUE = null;
+
+    // Compresion de los envios a la plataforma: "gzip", "deflate" o vacio
+    // para no comprimir. Si la plataforma contesta 415 se envia sin comprimir
+    private static final String PLATFORM_CONTENT_ENCODING_PROPERTY_NAME = "OGAgent-PlatformContentEncoding";
+    private static final String PLATFORM_CONTENT_ENCODING_DEFAULT_VALUE = "gzip";
+
+    // Los envios mas pequenos no se comprimen, en bytes
+    private static final String PLATFORM_COMPRESSION_THRESHOLD_PROPERTY_NAME = "OGAgent-PlatformCompressionThreshold";
+    private static final int PLATFORM_COMPRESSION_THRESHOLD_DEFAULT_VALUE = 256;
+
+    // Ventana de la compresion de 2^n bytes, de 9 a 15. La memoria es unas
+    // 10 ventanas mas 24 KB
+    private static final String PLATFORM_COMPRESSION_WINDOW_BITS_PROPERTY_NAME = "OGAgent-PlatformCompressionWindowBits";
+    private static final int PLATFORM_COMPRESSION_WINDOW_BITS_DEFAULT_VALUE = 12;
+
+    // Envio periodico de los datastreams a la plataforma, con el host, el
+    // puerto y el API key de arriba. Periodo en ms, 0 para no enviarlos
+    private static final String DATASTREAM_PERIOD_PROPERTY_NAME = "OGAgent-DatastreamPeriod";
+    private static final int DATASTREAM_PERIOD_DEFAULT_VALUE = 10000;
+
+    private static final String DATASTREAM_PATH_PROPERTY_NAME = "OGAgent-DatastreamPath";
+    private static final String DATASTREAM_PATH_DEFAULT_VALUE = "/v70/devices/{deviceId}/collect/iot";
+
+    // Solo se envian los tags cuyo nombre contiene el filtro
+    private static final String DATASTREAM_TAG_FILTER_PROPERTY_NAME = "OGAgent-DatastreamTagFilter";
+    private static final String DATASTREAM_TAG_FILTER_DEFAULT_VALUE = "crane";
+
+    // URL de un fichero con los tags, para probar sin eWON. Si no hay se usa
+    // el origen de tags del recolector
+    private static final String DATASTREAM_TAG_FILE_PROPERTY_NAME = "OGAgent-DatastreamTagFile";
+    private static final String DATASTREAM_TAG_FILE_DEFAULT_VALUE = null;
+
+    // Envio solo de los tags que han cambiado, con los avisos de cambio del
+    // origen de tags. Si es false se leen todos en cada ciclo
+    private static final String DATASTREAM_EVENT_DRIVEN_PROPERTY_NAME = "OGAgent-DatastreamEventDriven";
+    private static final boolean DATASTREAM_EVENT_DRIVEN_DEFAULT_VALUE = true;
+
+    // Cambios de cada tag que se guardan como mucho entre dos envios
+    private static final String DATASTREAM_CHANGE_CAPACITY_PROPERTY_NAME = "OGAgent-DatastreamChangeCapacity";
+    private static final int DATASTREAM_CHANGE_CAPACITY_DEFAULT_VALUE = 32;
+
+    // Bytes para los cambios de todos los tags, 16 por cambio. Con muchos
+    // tags se guardan menos cambios de cada uno
+    private static final String DATASTREAM_CHANGE_BUDGET_PROPERTY_NAME = "OGAgent-DatastreamChangeBudget";
+    private static final int DATASTREAM_CHANGE_BUDGET_DEFAULT_VALUE = 512 * 1024;
+
+    // Si un tag cambia mas veces: "overwrite-oldest" pierde los cambios mas
+    // antiguos y "drop-newest" los nuevos
+    private static final String DATASTREAM_OVERFLOW_POLICY_PROPERTY_NAME = "OGAgent-DatastreamOverflowPolicy";
+    private static final String DATASTREAM_OVERFLOW_POLICY_DEFAULT_VALUE = "overwrite-oldest";
+
+    // Directorio del diario de los datastreams que no se han podido enviar,
+    // vacio para no guardarlos
+    private static final String DATASTREAM_JOURNAL_DIRECTORY_PROPERTY_NAME = "OGAgent-DatastreamJournalDirectory";
+    private static final String DATASTREAM_JOURNAL_DIRECTORY_DEFAULT_VALUE = "file:////usr/ogjournal/";
+
+    // Tamano maximo del diario y de cada segmento, en bytes
+    private static final String DATASTREAM_JOURNAL_SIZE_PROPERTY_NAME = "OGAgent-DatastreamJournalSize";
+    private static final int DATASTREAM_JOURNAL_SIZE_DEFAULT_VALUE = 2 * 1024 * 1024;
+
+    private static final String DATASTREAM_JOURNAL_SEGMENT_SIZE_PROPERTY_NAME = "OGAgent-DatastreamJournalSegmentSize";
+    private static final int DATASTREAM_JOURNAL_SEGMENT_SIZE_DEFAULT_VALUE = 64 * 1024;
+
+    // Bytes de pendientes que se juntan en cada reenvio
+    private static final String DATASTREAM_REPLAY_BATCH_SIZE_PROPERTY_NAME = "OGAgent-DatastreamReplayBatchSize";
+    private static final int DATASTREAM_REPLAY_BATCH_SIZE_DEFAULT_VALUE = 32 * 1024;
+
+    // Tags simulados que cambian al ritmo indicado (cambios por segundo),
+    // para probar sin eWON. 0 para usar el origen de tags del recolector
+    private static final String DATASTREAM_SIMULATED_TAGS_PROPERTY_NAME = "OGAgent-DatastreamSimulatedTags";
+    private static final int DATASTREAM_SIMULATED_TAGS_DEFAULT_VALUE = 0;
+
+    private static final String DATASTREAM_SIMULATED_CHANGE_RATE_PROPERTY_NAME = "OGAgent-DatastreamSimulatedChangeRate";
+    private static final int DATASTREAM_SIMULATED_CHANGE_RATE_DEFAULT_VALUE = 10;
+
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
     
     private String m_deviceId = "";
     
     private OGAgentOperationHandlerInterface m_operationHandler = null;
     
+    // Operaciones registradas por nombre
+    private final OGAgentOperationRegistry m_operationRegistry = new OGAgentOperationRegistry();
+
+    // Ejecutor de las operaciones, se crea al arrancar si hay manejador u
+    // operaciones registradas
+    private OGAgentOperationEngine m_operationEngine = null;
+
+    // Limites de los lotes de operaciones
+    private int m_maxBatchSize = MAX_BATCH_SIZE_DEFAULT_VALUE;
+    private int m_batchParallelism = BATCH_PARALLELISM_DEFAULT_VALUE;
+    private long m_batchTimeout = BATCH_TIMEOUT_DEFAULT_VALUE;
+
+    // Pool de la ruta y los parametros de las peticiones, null si no se usa
+    private JSONPool m_jsonPool = null;
+
+    // Publicador del resultado final, si es null se crea a partir de las
+    // propiedades
+    private OGAgentResultPublisherInterface m_resultPublisher = null;
+
+    // Recolector de los datastreams, no se envian si es null
+    private OGAgentDatastreamCollector m_datastreamCollector = null;
+
+    // Compresion de los envios a la plataforma, la comparten las respuestas
+    // y los datastreams: solo se bloquea mientras se comprime, cada envio
+    // lleva su copia. Se crea la primera vez que hace falta
+    private OGAgentPayloadEncoder m_payloadEncoder = null;
+    private boolean m_payloadEncoderCreated = false;
+    
     public void setOGAgentOperationHandler(OGAgentOperationHandlerInterface _operationHandler)
     {
         m_operationHandler = _operationHandler;
     }
+
+    public OGAgentOperationRegistry getOperationRegistry()
+    {
+        return m_operationRegistry;
+    }
+
+    // Registra una operacion. Las operaciones registradas tienen preferencia
+    // sobre el manejador general
+    public void registerOperation(OGAgentOperation _operation)
+    {
+        m_operationRegistry.register(_operation);
+    }
+
+    public void setOGAgentResultPublisher(OGAgentResultPublisherInterface _resultPublisher)
+    {
+        m_resultPublisher = _resultPublisher;
+    }
+
+    public void setDatastreamCollector(OGAgentDatastreamCollector _datastreamCollector)
+    {
+        m_datastreamCollector = _datastreamCollector;
+    }
+
+    public OGAgentOperationEngine getOperationEngine()
+    {
+        return m_operationEngine;
+    }
     
     public OGAgentWebServer(String _deviceId)
     {
@@ -82,6 +283,27 @@ public class OGAgentWebServer /* extends MIDlet */ implements RequestHandler
         } else if(_propertyName.equals(LISTENING_PORT_PROPERTY_NAME))
         {
             return "" + LISTENING_PORT_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(WORKERS_NUMBER_PROPERTY_NAME))
+        {
+            return "" + WORKERS_NUMBER_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(TASK_QUEUE_CAPACITY_PROPERTY_NAME))
+        {
+            return "" + TASK_QUEUE_CAPACITY_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(CONNECTION_IDLE_TIMEOUT_PROPERTY_NAME))
+        {
+            return "" + CONNECTION_IDLE_TIMEOUT_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(MAX_REQUESTS_PER_CONNECTION_PROPERTY_NAME))
+        {
+            return "" + MAX_REQUESTS_PER_CONNECTION_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(POLLING_ENGINE_PROPERTY_NAME))
+        {
+            return "" + POLLING_ENGINE_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(MAX_CONNECTIONS_PROPERTY_NAME))
+        {
+            return "" + MAX_CONNECTIONS_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(MAXIMUM_HEAD_SIZE_PROPERTY_NAME))
+        {
+            return "" + MAXIMUM_HEAD_SIZE_DEFAULT_VALUE;        
         } else if(_propertyName.equals(PRINT_DIRECTORY_CONTENTS_PROPERTY_NAME))
         {
             return "" + PRINT_DIRECTORY_CONTENTS_DEFAULT_VALUE;        
@@ -91,6 +313,99 @@ public class OGAgentWebServer /* extends MIDlet */ implements RequestHandler
         } else if(_propertyName.equals(RESOURCE_HANDLER_ROOT_PROPERTY_NAME))
         {
             return RESOURCE_HANDLER_ROOT_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(OPERATION_WORKERS_PROPERTY_NAME))
+        {
+            return "" + OPERATION_WORKERS_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(OPERATION_QUEUE_CAPACITY_PROPERTY_NAME))
+        {
+            return "" + OPERATION_QUEUE_CAPACITY_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(JOB_TABLE_CAPACITY_PROPERTY_NAME))
+        {
+            return "" + JOB_TABLE_CAPACITY_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(JOB_TIME_TO_LIVE_PROPERTY_NAME))
+        {
+            return "" + JOB_TIME_TO_LIVE_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(OPERATION_TIMEOUT_PROPERTY_NAME))
+        {
+            return "" + OPERATION_TIMEOUT_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(OPERATION_CANCEL_GRACE_PERIOD_PROPERTY_NAME))
+        {
+            return "" + OPERATION_CANCEL_GRACE_PERIOD_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(MAX_BATCH_SIZE_PROPERTY_NAME))
+        {
+            return "" + MAX_BATCH_SIZE_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(BATCH_PARALLELISM_PROPERTY_NAME))
+        {
+            return "" + BATCH_PARALLELISM_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(BATCH_TIMEOUT_PROPERTY_NAME))
+        {
+            return "" + BATCH_TIMEOUT_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(JSON_POOL_SIZE_PROPERTY_NAME))
+        {
+            return "" + JSON_POOL_SIZE_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(PLATFORM_HOST_PROPERTY_NAME))
+        {
+            return PLATFORM_HOST_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(PLATFORM_PORT_PROPERTY_NAME))
+        {
+            return "" + PLATFORM_PORT_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(PLATFORM_RESPONSES_PATH_PROPERTY_NAME))
+        {
+            return PLATFORM_RESPONSES_PATH_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(PLATFORM_API_KEY_PROPERTY_NAME))
+        {
+            return PLATFORM_API_KEY_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(PLATFORM_CONTENT_ENCODING_PROPERTY_NAME))
+        {
+            return PLATFORM_CONTENT_ENCODING_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(PLATFORM_COMPRESSION_THRESHOLD_PROPERTY_NAME))
+        {
+            return "" + PLATFORM_COMPRESSION_THRESHOLD_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(PLATFORM_COMPRESSION_WINDOW_BITS_PROPERTY_NAME))
+        {
+            return "" + PLATFORM_COMPRESSION_WINDOW_BITS_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_PERIOD_PROPERTY_NAME))
+        {
+            return "" + DATASTREAM_PERIOD_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_PATH_PROPERTY_NAME))
+        {
+            return DATASTREAM_PATH_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_TAG_FILTER_PROPERTY_NAME))
+        {
+            return DATASTREAM_TAG_FILTER_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_TAG_FILE_PROPERTY_NAME))
+        {
+            return DATASTREAM_TAG_FILE_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_EVENT_DRIVEN_PROPERTY_NAME))
+        {
+            return "" + DATASTREAM_EVENT_DRIVEN_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_CHANGE_CAPACITY_PROPERTY_NAME))
+        {
+            return "" + DATASTREAM_CHANGE_CAPACITY_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_CHANGE_BUDGET_PROPERTY_NAME))
+        {
+            return "" + DATASTREAM_CHANGE_BUDGET_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_OVERFLOW_POLICY_PROPERTY_NAME))
+        {
+            return DATASTREAM_OVERFLOW_POLICY_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_JOURNAL_DIRECTORY_PROPERTY_NAME))
+        {
+            return DATASTREAM_JOURNAL_DIRECTORY_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_JOURNAL_SIZE_PROPERTY_NAME))
+        {
+            return "" + DATASTREAM_JOURNAL_SIZE_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_JOURNAL_SEGMENT_SIZE_PROPERTY_NAME))
+        {
+            return "" + DATASTREAM_JOURNAL_SEGMENT_SIZE_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_REPLAY_BATCH_SIZE_PROPERTY_NAME))
+        {
+            return "" + DATASTREAM_REPLAY_BATCH_SIZE_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_SIMULATED_TAGS_PROPERTY_NAME))
+        {
+            return "" + DATASTREAM_SIMULATED_TAGS_DEFAULT_VALUE;        
+        } else if(_propertyName.equals(DATASTREAM_SIMULATED_CHANGE_RATE_PROPERTY_NAME))
+        {
+            return "" + DATASTREAM_SIMULATED_CHANGE_RATE_DEFAULT_VALUE;        
         }
         return null;
     }
@@ -109,16 +424,54 @@ public class OGAgentWebServer /* extends MIDlet */ implements RequestHandler
             return;
         }
         
+        // Several working threads so a long operation does not block the
+        // requests which arrive meanwhile
+        int workersNumber = getIntFromProperty(WORKERS_NUMBER_PROPERTY_NAME, WORKERS_NUMBER_DEFAULT_VALUE);
+        if (workersNumber <= 0) {
+            workersNumber = WORKERS_NUMBER_DEFAULT_VALUE;
+        }
+
+        // The polling engine keeps idle connections without holding a working
+        // thread for each of them
+        int engine = getBooleanFromProperty(POLLING_ENGINE_PROPERTY_NAME, POLLING_ENGINE_DEFAULT_VALUE) ? WebServer.POLLING_ENGINE : WebServer.BLOCKING_ENGINE;
+
         // Creating a web server instance
-        webServer = new WebServer(listeningPort);
+        webServer = new WebServer(listeningPort, workersNumber, engine);
+
+        System.out.println("WebServer instance created with " + workersNumber + " workers");
 
-        System.out.println("WebServer instance created");
+        int maxConnections = getIntFromProperty(MAX_CONNECTIONS_PROPERTY_NAME, MAX_CONNECTIONS_DEFAULT_VALUE);
+        if (maxConnections <= 0) {
+            maxConnections = MAX_CONNECTIONS_DEFAULT_VALUE;
+        }
+        webServer.setMaxConnections(maxConnections);
+
+        int taskQueueCapacity = getIntFromProperty(TASK_QUEUE_CAPACITY_PROPERTY_NAME, TASK_QUEUE_CAPACITY_DEFAULT_VALUE);
+        if (taskQueueCapacity <= 0) {
+            taskQueueCapacity = TASK_QUEUE_CAPACITY_DEFAULT_VALUE;
+        }
+        webServer.setTaskQueueCapacity(taskQueueCapacity);
         
-        // Persisting connections is disabled due to memory limitations
-        webServer.setPersistConnections(false);
+        // Persisting connections saves a TCP handshake per operation over
+        // the cellular link. Idle connections are closed by the server so they
+        // do not hold the working threads
+        webServer.setPersistConnections(true);
+
+        int connectionIdleTimeout = getIntFromProperty(CONNECTION_IDLE_TIMEOUT_PROPERTY_NAME, CONNECTION_IDLE_TIMEOUT_DEFAULT_VALUE);
+        if (connectionIdleTimeout <= 0) {
+            connectionIdleTimeout = CONNECTION_IDLE_TIMEOUT_DEFAULT_VALUE;
+        }
+        webServer.setConnectionIdleTimeout(connectionIdleTimeout);
+        webServer.setMaxRequestsPerConnection(getIntFromProperty(MAX_REQUESTS_PER_CONNECTION_PROPERTY_NAME, MAX_REQUESTS_PER_CONNECTION_DEFAULT_VALUE));
 
-        // Setting buffer size
+        // Setting buffer size. The receiving buffer of a connection grows up
+        // to the maximum head size if the request headers do not fit it
         webServer.setTransferBufferSize(1024);
+        int maximumHeadSize = getIntFromProperty(MAXIMUM_HEAD_SIZE_PROPERTY_NAME, MAXIMUM_HEAD_SIZE_DEFAULT_VALUE);
+        if (maximumHeadSize <= 0) {
+            maximumHeadSize = MAXIMUM_HEAD_SIZE_DEFAULT_VALUE;
+        }
+        webServer.setMaximumHeadSize(maximumHeadSize);
 
         System.out.println("WebServer instance setTransferBufferSize done");
 
@@ -165,10 +518,23 @@ public class OGAgentWebServer /* extends MIDlet */ implements RequestHandler
 
         // webServer.addRequestHandler("/trace", new TraceRequestHandler());
         
-        // Registrando Handler para peticiones OG
-        String ogAgentUrl= "/v70/devices/"+m_deviceId+"/operation/requests";        
-        webServer.addRequestHandler(ogAgentUrl, this);
+        // Registrando Handler para peticiones OG. La plantilla acepta el
+        // dispositivo propio y los subdispositivos, el deviceId de la URL se
+        // recoge como variable y solo se atienden peticiones POST
+        String ogAgentUrl= "/v70/devices/{deviceId}/operation/requests";        
+        webServer.addRequestHandler("POST", ogAgentUrl, this);
         System.out.println("Registrada URL: "+ogAgentUrl);
+
+        // Consulta del estado de las operaciones asincronas
+        String ogAgentStatusUrl= ogAgentUrl + "/{operationId}";
+        webServer.addRequestHandler("GET", ogAgentStatusUrl, this);
+        System.out.println("Registrada URL: "+ogAgentStatusUrl);
+
+        if (m_operationHandler != null || !m_operationRegistry.isEmpty()) {
+            createOperationEngine();
+        }
+
+        startDatastreamCollector();
         
         try {
 
@@ -189,6 +555,162 @@ public class OGAgentWebServer /* extends MIDlet */ implements RequestHandler
         }
     }
 
+    private void createOperationEngine() {
+        int operationWorkers = getIntFromProperty(OPERATION_WORKERS_PROPERTY_NAME, OPERATION_WORKERS_DEFAULT_VALUE);
+        if (operationWorkers <= 0) {
+            operationWorkers = OPERATION_WORKERS_DEFAULT_VALUE;
+        }
+        int operationQueueCapacity = getIntFromProperty(OPERATION_QUEUE_CAPACITY_PROPERTY_NAME, OPERATION_QUEUE_CAPACITY_DEFAULT_VALUE);
+        if (operationQueueCapacity <= 0) {
+            operationQueueCapacity = OPERATION_QUEUE_CAPACITY_DEFAULT_VALUE;
+        }
+        int jobTableCapacity = getIntFromProperty(JOB_TABLE_CAPACITY_PROPERTY_NAME, JOB_TABLE_CAPACITY_DEFAULT_VALUE);
+        if (jobTableCapacity <= 0) {
+            jobTableCapacity = JOB_TABLE_CAPACITY_DEFAULT_VALUE;
+        }
+        int jobTimeToLive = getIntFromProperty(JOB_TIME_TO_LIVE_PROPERTY_NAME, JOB_TIME_TO_LIVE_DEFAULT_VALUE);
+        if (jobTimeToLive < 0) {
+            jobTimeToLive = JOB_TIME_TO_LIVE_DEFAULT_VALUE;
+        }
+        // Las operaciones registradas usan su propio manejador, el general
+        // atiende las demas
+        OGAgentOperationHandlerInterface operationHandler = m_operationHandler != null ? m_operationHandler : m_operationRegistry;
+        m_operationEngine = new OGAgentOperationEngine(operationHandler, operationWorkers, operationQueueCapacity, jobTableCapacity, jobTimeToLive);
+
+        int operationTimeout = getIntFromProperty(OPERATION_TIMEOUT_PROPERTY_NAME, OPERATION_TIMEOUT_DEFAULT_VALUE);
+        if (operationTimeout < 0) {
+            operationTimeout = OPERATION_TIMEOUT_DEFAULT_VALUE;
+        }
+        m_operationEngine.setDefaultTimeout(operationTimeout);
+        int cancelGracePeriod = getIntFromProperty(OPERATION_CANCEL_GRACE_PERIOD_PROPERTY_NAME, OPERATION_CANCEL_GRACE_PERIOD_DEFAULT_VALUE);
+        if (cancelGracePeriod < 0) {
+            cancelGracePeriod = OPERATION_CANCEL_GRACE_PERIOD_DEFAULT_VALUE;
+        }
+        m_operationEngine.setCancelGracePeriod(cancelGracePeriod);
+
+        m_maxBatchSize = getIntFromProperty(MAX_BATCH_SIZE_PROPERTY_NAME, MAX_BATCH_SIZE_DEFAULT_VALUE);
+        if (m_maxBatchSize <= 0) {
+            m_maxBatchSize = MAX_BATCH_SIZE_DEFAULT_VALUE;
+        }
+        m_batchParallelism = getIntFromProperty(BATCH_PARALLELISM_PROPERTY_NAME, BATCH_PARALLELISM_DEFAULT_VALUE);
+        if (m_batchParallelism <= 0) {
+            m_batchParallelism = BATCH_PARALLELISM_DEFAULT_VALUE;
+        }
+        m_batchTimeout = getIntFromProperty(BATCH_TIMEOUT_PROPERTY_NAME, BATCH_TIMEOUT_DEFAULT_VALUE);
+        if (m_batchTimeout <= 0) {
+            m_batchTimeout = BATCH_TIMEOUT_DEFAULT_VALUE;
+        }
+
+        int jsonPoolSize = getIntFromProperty(JSON_POOL_SIZE_PROPERTY_NAME, JSON_POOL_SIZE_DEFAULT_VALUE);
+        if (jsonPoolSize > 0) {
+            m_jsonPool = new JSONPool(jsonPoolSize);
+            m_operationEngine.setJSONPool(m_jsonPool);
+        }
+
+        OGAgentResultPublisherInterface resultPublisher = m_resultPublisher;
+        String platformHost = getAppProperty(PLATFORM_HOST_PROPERTY_NAME);
+        if (resultPublisher == null && platformHost != null && platformHost.length() > 0) {
+            String responsesPath = getAppProperty(PLATFORM_RESPONSES_PATH_PROPERTY_NAME);
+            if (responsesPath == null) {
+                responsesPath = PLATFORM_RESPONSES_PATH_DEFAULT_VALUE;
+            }
+            OGAgentHttpResultPublisher httpResultPublisher = new OGAgentHttpResultPublisher(platformHost, getIntFromProperty(PLATFORM_PORT_PROPERTY_NAME, PLATFORM_PORT_DEFAULT_VALUE), responsesPath, getAppProperty(PLATFORM_API_KEY_PROPERTY_NAME));
+            httpResultPublisher.setEncoder(getPayloadEncoder());
+            resultPublisher = httpResultPublisher;
+        }
+        m_operationEngine.setResultPublisher(resultPublisher);
+        System.out.println("Ejecutor de operaciones creado con " + operationWorkers + " hilos");
+    }
+
+    private void startDatastreamCollector() {
+        String platformHost = getAppProperty(PLATFORM_HOST_PROPERTY_NAME);
+        int datastreamPeriod = getIntFromProperty(DATASTREAM_PERIOD_PROPERTY_NAME, DATASTREAM_PERIOD_DEFAULT_VALUE);
+        if (m_datastreamCollector == null || platformHost == null || platformHost.length() == 0 || datastreamPeriod <= 0) {
+            return;
+        }
+        String datastreamPath = getAppProperty(DATASTREAM_PATH_PROPERTY_NAME);
+        if (datastreamPath == null) {
+            datastreamPath = DATASTREAM_PATH_DEFAULT_VALUE;
+        }
+        OGAgentHttpDatastreamPublisher datastreamPublisher = new OGAgentHttpDatastreamPublisher(platformHost, getIntFromProperty(PLATFORM_PORT_PROPERTY_NAME, PLATFORM_PORT_DEFAULT_VALUE), datastreamPath, m_deviceId, getAppProperty(PLATFORM_API_KEY_PROPERTY_NAME));
+        datastreamPublisher.setEncoder(getPayloadEncoder());
+        m_datastreamCollector.setPublisher(datastreamPublisher);
+        m_datastreamCollector.setNameFilter(getAppProperty(DATASTREAM_TAG_FILTER_PROPERTY_NAME));
+        String datastreamTagFile = getAppProperty(DATASTREAM_TAG_FILE_PROPERTY_NAME);
+        if (datastreamTagFile != null && datastreamTagFile.length() > 0) {
+            m_datastreamCollector.setTagSource(new OGAgentFileTagSource(datastreamTagFile));
+        }
+        int simulatedTags = getIntFromProperty(DATASTREAM_SIMULATED_TAGS_PROPERTY_NAME, DATASTREAM_SIMULATED_TAGS_DEFAULT_VALUE);
+        if (simulatedTags > 0) {
+            m_datastreamCollector.setTagSource(new OGAgentSimulatedTagSource(simulatedTags, getIntFromProperty(DATASTREAM_SIMULATED_CHANGE_RATE_PROPERTY_NAME, DATASTREAM_SIMULATED_CHANGE_RATE_DEFAULT_VALUE)));
+        }
+        m_datastreamCollector.setEventDriven(getBooleanFromProperty(DATASTREAM_EVENT_DRIVEN_PROPERTY_NAME, DATASTREAM_EVENT_DRIVEN_DEFAULT_VALUE));
+        int changeCapacity = getIntFromProperty(DATASTREAM_CHANGE_CAPACITY_PROPERTY_NAME, DATASTREAM_CHANGE_CAPACITY_DEFAULT_VALUE);
+        if (changeCapacity <= 0) {
+            changeCapacity = DATASTREAM_CHANGE_CAPACITY_DEFAULT_VALUE;
+        }
+        m_datastreamCollector.setChangeCapacity(changeCapacity);
+        int changeBudget = getIntFromProperty(DATASTREAM_CHANGE_BUDGET_PROPERTY_NAME, DATASTREAM_CHANGE_BUDGET_DEFAULT_VALUE);
+        if (changeBudget <= 0) {
+            changeBudget = DATASTREAM_CHANGE_BUDGET_DEFAULT_VALUE;
+        }
+        m_datastreamCollector.setChangeBudget(changeBudget);
+        String overflowPolicy = getAppProperty(DATASTREAM_OVERFLOW_POLICY_PROPERTY_NAME);
+        m_datastreamCollector.setOverflowPolicy("drop-newest".equals(overflowPolicy) ? OGAgentTagChangeBuffer.DROP_NEWEST : OGAgentTagChangeBuffer.OVERWRITE_OLDEST);
+
+        String journalDirectory = getAppProperty(DATASTREAM_JOURNAL_DIRECTORY_PROPERTY_NAME);
+        if (journalDirectory != null && journalDirectory.length() > 0) {
+            int journalSize = getIntFromProperty(DATASTREAM_JOURNAL_SIZE_PROPERTY_NAME, DATASTREAM_JOURNAL_SIZE_DEFAULT_VALUE);
+            if (journalSize <= 0) {
+                journalSize = DATASTREAM_JOURNAL_SIZE_DEFAULT_VALUE;
+            }
+            int journalSegmentSize = getIntFromProperty(DATASTREAM_JOURNAL_SEGMENT_SIZE_PROPERTY_NAME, DATASTREAM_JOURNAL_SEGMENT_SIZE_DEFAULT_VALUE);
+            if (journalSegmentSize <= 0) {
+                journalSegmentSize = DATASTREAM_JOURNAL_SEGMENT_SIZE_DEFAULT_VALUE;
+            }
+            OGAgentDatastreamJournal journal = new OGAgentDatastreamJournal(journalDirectory, journalSegmentSize, journalSize);
+            try {
+                journal.open();
+                m_datastreamCollector.setJournal(journal);
+            } catch (IOException ex) {
+                System.out.println("No se puede abrir el diario de datastreams " + journalDirectory + ": " + ex.toString());
+            }
+        }
+        int replayBatchSize = getIntFromProperty(DATASTREAM_REPLAY_BATCH_SIZE_PROPERTY_NAME, DATASTREAM_REPLAY_BATCH_SIZE_DEFAULT_VALUE);
+        if (replayBatchSize <= 0) {
+            replayBatchSize = DATASTREAM_REPLAY_BATCH_SIZE_DEFAULT_VALUE;
+        }
+        m_datastreamCollector.setReplayBatchSize(replayBatchSize);
+        m_datastreamCollector.start(datastreamPeriod);
+        System.out.println("Envio de datastreams cada " + datastreamPeriod + " ms");
+    }
+
+    // Compresion de los envios segun las propiedades, null si no se
+    // comprimen
+    private synchronized OGAgentPayloadEncoder getPayloadEncoder() {
+        if (m_payloadEncoderCreated) {
+            return m_payloadEncoder;
+        }
+        m_payloadEncoderCreated = true;
+        String contentEncoding = getAppProperty(PLATFORM_CONTENT_ENCODING_PROPERTY_NAME);
+        if (contentEncoding == null || contentEncoding.trim().length() == 0) {
+            return null;
+        }
+        contentEncoding = contentEncoding.trim().toLowerCase();
+        if (!contentEncoding.equals(OGAgentPayloadEncoder.GZIP) && !contentEncoding.equals(OGAgentPayloadEncoder.DEFLATE)) {
+            System.out.println("Content-Encoding " + contentEncoding + " no soportado, los envios no se comprimen");
+            return null;
+        }
+        int windowBits = getIntFromProperty(PLATFORM_COMPRESSION_WINDOW_BITS_PROPERTY_NAME, PLATFORM_COMPRESSION_WINDOW_BITS_DEFAULT_VALUE);
+        if (windowBits < 9 || windowBits > 15) {
+            windowBits = PLATFORM_COMPRESSION_WINDOW_BITS_DEFAULT_VALUE;
+        }
+        int threshold = getIntFromProperty(PLATFORM_COMPRESSION_THRESHOLD_PROPERTY_NAME, PLATFORM_COMPRESSION_THRESHOLD_DEFAULT_VALUE);
+        m_payloadEncoder = new OGAgentPayloadEncoder(contentEncoding, windowBits, threshold);
+        System.out.println("Envios a la plataforma con Content-Encoding " + contentEncoding);
+        return m_payloadEncoder;
+    }
+
     private int getIntFromProperty(String propertyName, int defaultValue) {
         // Getting property from the current Application properties without delimeters
         String intStringValue = getAppProperty(propertyName);
@@ -218,6 +740,12 @@ public class OGAgentWebServer /* extends MIDlet */ implements RequestHandler
 
     // @Override
     public void destroyApp(boolean unconditional) {
+        if (m_datastreamCollector != null) {
+            m_datastreamCollector.stop();
+        }
+        if (m_operationEngine != null) {
+            m_operationEngine.stop();
+        }
         if (webServer != null) {
             try {
                 webServer.stop();
@@ -234,83 +762,24 @@ public class OGAgentWebServer /* extends MIDlet */ implements RequestHandler
     }
 
     public HttpResponse handle(HttpRequest request, String contextPath, String relativePath) {
-                // Gathering information about request in the string builder
-        StringBuffer info = new StringBuffer();
-        info.append("Handling request from ").append(request.getRemoteAddress()).append(": ").append(NEW_LINES_CHARACTERS);
-        info.append("\tVersion: ").append(request.getHttpVersion()).append(NEW_LINES_CHARACTERS);
-        info.append("\tRequested URI: ").append(request.getRequestUri()).append(NEW_LINES_CHARACTERS);
-        info.append("\tRequested path: ").append(request.getRequestPath()).append(NEW_LINES_CHARACTERS);
-        info.append("\tContext path: ").append(contextPath).append(NEW_LINES_CHARACTERS);
-        info.append("\tRelative to the context path: ").append(relativePath).append(NEW_LINES_CHARACTERS);
-        info.append("\tUsed method: ").append(request.getRequestMethodAsString()).append(NEW_LINES_CHARACTERS);
-
-        // Gathering information about headers
-        Enumeration headersNamesEnumeration = request.getHeadersNames();
-        if (headersNamesEnumeration.hasMoreElements()) {
-            info.append(NEW_LINES_CHARACTERS);
-            info.append("Headers: ").append(NEW_LINES_CHARACTERS);
-            
-            for (;headersNamesEnumeration.hasMoreElements();) 
-            {
-                String headerName = (String)headersNamesEnumeration.nextElement();
-                info.append('\t').append(headerName).append(": ").append(request.getHeaderValue(headerName)).append(NEW_LINES_CHARACTERS);
-            }
-        }
-
-        // Gathering information about URI parameters
-        Enumeration uriParametersNamesEnumeration = request.getUriParametersNames();
-        if (uriParametersNamesEnumeration.hasMoreElements()) {
-            info.append(NEW_LINES_CHARACTERS);
-            info.append("GET parameters: ").append(NEW_LINES_CHARACTERS);
-            for (;uriParametersNamesEnumeration.hasMoreElements();) 
-            {
-                String parameterName = (String)uriParametersNamesEnumeration.nextElement();
-                info.append('\t').append(parameterName).append("=").append(request.getUriParameter(parameterName)).append(NEW_LINES_CHARACTERS);
-            }
-        }
-
-        // Gathering information about body parameters
-        Enumeration postParametersNamesEnumeration = request.getPostParametersNames();
-        if (postParametersNamesEnumeration.hasMoreElements()) {
-            info.append(NEW_LINES_CHARACTERS);
-            info.append("POST parameters: ").append(NEW_LINES_CHARACTERS);
-            for (;postParametersNamesEnumeration.hasMoreElements();) 
-            {
-                String parameterName = (String)postParametersNamesEnumeration.nextElement();
-                info.append('\t').append(parameterName).append("=").append(request.getPostParameter(parameterName)).append(NEW_LINES_CHARACTERS);
-            }
-        }
-
-        // Gathering information about cookies
-        Vector httpCookies = request.getHttpCookies();
-        if (httpCookies.size() > 0) {
-            info.append(NEW_LINES_CHARACTERS);
-            info.append("Cookies: ").append(NEW_LINES_CHARACTERS);
-            for (Enumeration cookiesEnumeration = httpCookies.elements();cookiesEnumeration.hasMoreElements();) {
-                HttpCookie cookie = (HttpCookie)cookiesEnumeration.nextElement();
-                info.append('\t').append(cookie).append(NEW_LINES_CHARACTERS);
-            }
+        // Consulta del estado de una operacion
+        String operationId = request.getPathVariable("operationId");
+        if (operationId != null) {
+            return ogOperationStatus(operationId);
         }
 
-        // Appending request body
-        String requestBodyAsString = request.getRequestBodyAsString();
-        if (requestBodyAsString != null && requestBodyAsString.length() > 0) {
-            info.append(NEW_LINES_CHARACTERS);
-            info.append("Body:").append(NEW_LINES_CHARACTERS);
-            info.append(requestBodyAsString).append(NEW_LINES_CHARACTERS);
-        }
-        // System.out.println(info.toString());
-        
-        String httpResponse = "";
-        
         try 
         {
-            httpResponse = ogRequestParse(requestBodyAsString);
-            return HttpResponse.created(httpResponse).setContentType("application/json; charset=utf-8");
+            // Si el cuerpo no indica deviceId se usa el de la URL
+            String urlDeviceId = request.getPathVariable("deviceId");
+            if (urlDeviceId == null) urlDeviceId = m_deviceId;
+            JSONPullParser json = new JSONPullParser(request.getRequestBodyStream());
+            json.setPool(m_jsonPool);
+            return ogRequestParse(json, urlDeviceId);
         } catch (JSONException ex)
         {
             // Hay que construir el formato de respuesta con error
-            return HttpResponse.badRequest(ex.toString()).setContentType("application/json; charset=utf-8");    
+            return HttpResponse.badRequest(ex.toString()).setContentType(JSON_CONTENT_TYPE);    
         }
 
         // Sending response with the collection information as a plain text
@@ -349,39 +818,309 @@ public class OGAgentWebServer /* extends MIDlet */ implements RequestHandler
             }
         }    
     */
-    private String ogRequestParse(String _json) throws JSONException
+    /*  FORMATO DE LOTE: varias peticiones en un solo POST
+        {
+            "operation" :
+            {
+                "requests" : [
+                    { "id" : "...", "name" : "...", "parameters" : [...] },
+                    { "id" : "...", "name" : "...", "parameters" : [...] }
+                ]
+            }
+        }
+        Se contesta con las respuestas en el mismo orden:
+        { "version" : "7.0", "operations" : [ {respuesta}, {respuesta} ] }
+    */
+    // El cuerpo se lee con un parser de eventos: solo se construyen path y
+    // parameters, el resto de campos no se guarda
+    private HttpResponse ogRequestParse(JSONPullParser _json, String _defaultDeviceId) throws JSONException
     {
-        String ret = "";
-        JSONObject jsonParser = new JSONObject(new JSONTokener(_json));
-        JSONObject jsonRequest = jsonParser.getJSONObject("operation").getJSONObject("request");
-        
-        
-        String operationId = jsonRequest.getString("id");     
-        
-        String deviceId = ""; 
-        if(jsonRequest.has("deviceId"))
+        OGAgentOperationRequestReader reader = new OGAgentOperationRequestReader(_json);
+        // Sin manejador general los parametros de las operaciones que no
+        // estan registradas no se guardan
+        if (m_operationHandler == null)
         {
-            deviceId = jsonRequest.getString("deviceId");
-            
+            reader.setRegistry(m_operationRegistry);
         }
+        if (reader.readEnvelope())
+        {
+            return ogBatchRequest(reader, _defaultDeviceId);
+        }
+
+        OGAgentOperationRequest request = reader.nextRequest();
+        // Se comprueba el resto del cuerpo antes de aceptar la operacion
+        reader.finish();
+        OGSubmission submission = ogSubmit(request, _defaultDeviceId);
+        releaseRequest(request);
+        return submission.toHttpResponse();
+    }
 
-        JSONArray path = new JSONArray();
-        if(jsonRequest.has("path"))
+    // Ejecuta las operaciones del lote con un numero limitado en curso a la
+    // vez y espera sus resultados hasta el plazo del lote. Las que no han
+    // terminado se contestan con su estado actual y siguen en curso, se
+    // pueden consultar despues por su id
+    private HttpResponse ogBatchRequest(OGAgentOperationRequestReader _reader, String _defaultDeviceId) throws JSONException
+    {
+        // Se leen todas las peticiones antes de ejecutar ninguna, un error en
+        // el cuerpo no deja el lote a medias
+        Vector requests = new Vector();
+        OGAgentOperationRequest request;
+        while ((request = _reader.nextRequest()) != null)
         {
-            path = jsonRequest.getJSONArray("path");;
-            
+            if (requests.size() == m_maxBatchSize)
+            {
+                releaseRequests(requests);
+                return HttpResponse.badRequest("{\"error\" : \"Batch too large\"}").setContentType(JSON_CONTENT_TYPE);
+            }
+            requests.addElement(request);
         }
+        int count = requests.size();
+        long deadline = System.currentTimeMillis() + m_batchTimeout;
+
+        String[] responses = new String[count];
+        OGAgentJob[] jobs = new OGAgentJob[count];
+
+        // Indices de las operaciones del lote que estan en curso, la mas
+        // antigua primero
+        int[] window = new int[m_batchParallelism];
+        int windowStart = 0;
+        int windowCount = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            request = (OGAgentOperationRequest)requests.elementAt(i);
+
+            // Si la ventana esta llena se espera a la mas antigua del lote
+            while (windowCount == m_batchParallelism && jobs[window[windowStart]].waitFinished(deadline - System.currentTimeMillis()))
+            {
+                windowStart = (windowStart + 1) % m_batchParallelism;
+                windowCount--;
+            }
+            if (windowCount == m_batchParallelism)
+            {
+                // No ha llegado a empezar dentro del plazo del lote
+                responses[i] = OGAgentResponseUtils.operationResponse(request.getId(),request.getDeviceId(_defaultDeviceId),request.getName(),OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_TIMEOUT_CANCELLED,"Batch timeout").toString();
+                continue;
+            }
+
+            // Si no cabe por el limite de su nombre o por la cola, se vuelve
+            // a intentar cuando termine otra operacion del lote
+            OGSubmission submission = ogSubmit(request, _defaultDeviceId);
+            while (submission.m_busy && windowCount > 0 && jobs[window[windowStart]].waitFinished(deadline - System.currentTimeMillis()))
+            {
+                windowStart = (windowStart + 1) % m_batchParallelism;
+                windowCount--;
+                submission = ogSubmit(request, _defaultDeviceId);
+            }
+            responses[i] = submission.getResponseJSON();
+            jobs[i] = submission.m_job;
+            if (jobs[i] != null && !jobs[i].isFinished())
+            {
+                window[(windowStart + windowCount) % m_batchParallelism] = i;
+                windowCount++;
+            }
+        }
+
+        // Respuestas en el orden de las peticiones
+        StringBuffer ret = new StringBuffer(count * 256 + 64);
+        ret.append("{\"version\":\"7.0\",\"operations\":[");
+        for (int i = 0; i < count; i++)
+        {
+            if (jobs[i] != null)
+            {
+                jobs[i].waitFinished(deadline - System.currentTimeMillis());
+                responses[i] = jobs[i].getResponseJSON();
+            }
+            if (i > 0)
+            {
+                ret.append(',');
+            }
+            ret.append(responses[i]);
+        }
+        ret.append("]}");
+        releaseRequests(requests);
+        return HttpResponse.ok(ret.toString()).setContentType(JSON_CONTENT_TYPE);
+    }
+
+    // Devuelve al pool la ruta y los parametros de una peticion que no se
+    // han pasado a una operacion
+    private void releaseRequest(OGAgentOperationRequest _request)
+    {
+        if (m_jsonPool != null)
+        {
+            _request.release(m_jsonPool);
+        }
+    }
+
+    private void releaseRequests(Vector _requests)
+    {
+        for (int i = 0; i < _requests.size(); i++)
+        {
+            releaseRequest((OGAgentOperationRequest)_requests.elementAt(i));
+        }
+    }
+
+    // Resultado de aceptar una operacion
+    private static class OGSubmission
+    {
+        // Estado HTTP y respuesta si la operacion se contesta sola: la
+        // guardada de una operacion terminada o una nueva, que se escribe al
+        // enviarla
+        Status m_status;
+        String m_response;
+        OGAgentOperationResponse m_operationResponse;
+
+        // Operacion aceptada o recibida antes, null si no se ejecuta
+        OGAgentJob m_job;
+
+        // No se ha aceptado por el limite de su nombre o porque la cola esta
+        // llena, se puede volver a intentar cuando termine otra
+        boolean m_busy;
+
+        OGSubmission(Status _status, String _response, OGAgentJob _job, boolean _busy)
+        {
+            m_status = _status;
+            m_response = _response;
+            m_job = _job;
+            m_busy = _busy;
+        }
+
+        OGSubmission(Status _status, OGAgentOperationResponse _response, OGAgentJob _job, boolean _busy)
+        {
+            this(_status, (String)null, _job, _busy);
+            m_operationResponse = _response;
+        }
+
+        String getResponseJSON()
+        {
+            return m_response != null ? m_response : m_operationResponse.toString();
+        }
+
+        HttpResponse toHttpResponse()
+        {
+            HttpResponse response;
+            if (m_response != null)
+            {
+                response = new HttpResponse(m_status).setBody(m_response).setContentType(JSON_CONTENT_TYPE);
+            }
+            else
+            {
+                response = ogJSONResponse(m_status, m_operationResponse);
+            }
+            if (m_busy)
+            {
+                response.addHeader("Retry-After", "1");
+            }
+            return response;
+        }
+    }
+
+    // Respuesta HTTP cuyo cuerpo se escribe directamente en el buffer de
+    // salida, sin construir la cadena JSON
+    private static HttpResponse ogJSONResponse(Status _status, OGAgentOperationResponse _response)
+    {
+        return new HttpResponse(_status).setContentLength(_response.getLength()).setBody(_response.getInputStream()).setContentType(JSON_CONTENT_TYPE);
+    }
+
+    // Acepta una peticion de operacion: comprueba el nombre, los
+    // parametros y los limites y la encola
+    private OGSubmission ogSubmit(OGAgentOperationRequest _request, String _defaultDeviceId)
+    {
+        String operationId = _request.getId();
+        String deviceId = _request.getDeviceId(_defaultDeviceId);
+        String operationName = _request.getName();
+        JSONArray parameters = _request.getParameters();
         
-        String operationName = jsonRequest.getString("name");
-        JSONArray parameters = jsonRequest.getJSONArray("parameters");
-        
-        if(m_operationHandler==null)
+        // Las operaciones que no estan registradas solo se aceptan si hay
+        // manejador general
+        OGAgentOperation operation = m_operationRegistry.get(operationName);
+        if(m_operationEngine==null || (operation==null && m_operationHandler==null))
+        {
+            OGAgentOperationResponse ret = OGAgentResponseUtils.operationResponse(operationId,deviceId,operationName,OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_NOT_SUPPORTED,m_operationEngine==null ? "Operation handler not registered" : "Unknown operation");
+            return new OGSubmission(Status.CREATED, ret, null, false);
+        }
+
+        // Un reintento de una operacion ya recibida no se vuelve a ejecutar
+        OGAgentJob existing = m_operationEngine.getJob(operationId);
+        if (existing != null)
+        {
+            return ogDuplicateResponse(existing);
+        }
+
+        if (operation != null)
         {
-            ret = OGAgentResponseUtils.operationResponseJSON(operationId,null,deviceId,operationName,OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_NOT_SUPPORTED,"Operation handler not registered");
-        } else
+            String error = operation.validateParameters(parameters);
+            if (error != null)
+            {
+                OGAgentOperationResponse ret = OGAgentResponseUtils.operationResponse(operationId,deviceId,operationName,OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_ERROR_IN_PARAM,error);
+                return new OGSubmission(Status.CREATED, ret, null, false);
+            }
+            // Limite de operaciones en curso con este nombre. No se ha
+            // ejecutado ni se guarda con su id, se puede reintentar
+            if (!operation.tryAcquire())
+            {
+                OGAgentOperationResponse ret = OGAgentResponseUtils.operationResponse(operationId,deviceId,operationName,OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_ERROR_PROCESSING,"Concurrency limit reached");
+                return new OGSubmission(Status.SERVICE_UNAVAILABLE, ret, null, true);
+            }
+        }
+
+        // La operacion se ejecuta despues, se contesta que esta pendiente
+        OGAgentJob job = new OGAgentJob(operationId, deviceId, _request.getPath(), operationName, parameters);
+        job.setOperation(operation);
+        // Plazo propio de la operacion en ms, si la peticion lo indica
+        long timeout = _request.getTimeout();
+        if (timeout <= 0 && operation != null)
+        {
+            timeout = operation.getTimeout();
+        }
+        job.setTimeout(timeout);
+        // Se toma antes de encolar, la operacion puede terminar enseguida
+        OGAgentOperationResponse pendingResponse = job.getPendingResponse();
+        OGAgentJob submitted = m_operationEngine.submit(job);
+        if (submitted != job && operation != null)
         {
-            ret = m_operationHandler.handle(operationId, deviceId, path, operationName, parameters);
+            // No se ha aceptado, se libera su sitio
+            operation.release();
         }
-        return ret;
-    }    
+        if (submitted == null)
+        {
+            OGAgentOperationResponse ret = OGAgentResponseUtils.operationResponse(operationId,deviceId,operationName,OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_ERROR_PROCESSING,"Operation queue is full");
+            return new OGSubmission(Status.SERVICE_UNAVAILABLE, ret, null, true);
+        }
+        if (submitted != job)
+        {
+            return ogDuplicateResponse(submitted);
+        }
+        // La operacion devuelve la ruta y los parametros al pool al terminar
+        _request.handOver();
+        return new OGSubmission(Status.ACCEPTED, pendingResponse, job, false);
+    }
+
+    // Respuesta a un reintento: la respuesta final si la operacion ha
+    // terminado o ALREADY_IN_PROGRESS si sigue en curso
+    private static OGSubmission ogDuplicateResponse(OGAgentJob _job)
+    {
+        if (_job.isFinished())
+        {
+            return new OGSubmission(Status.CREATED, _job.getResponseJSON(), _job, false);
+        }
+        OGAgentOperationResponse ret = OGAgentResponseUtils.operationResponse(_job.getId(),_job.getDeviceId(),_job.getName(),OGAgentResponseUtils.RESPONSE_RESULT_CODE_OPERATION_ALREADY_IN_PROGRESS,"");
+        return new OGSubmission(Status.ACCEPTED, ret, _job, false);
+    }
+
+    // Respuesta actual de la operacion: OPERATION_PENDING mientras se
+    // ejecuta y el resultado final despues
+    private HttpResponse ogOperationStatus(String _operationId)
+    {
+        OGAgentJob job = m_operationEngine == null ? null : m_operationEngine.getJob(_operationId);
+        if (job == null)
+        {
+            return HttpResponse.notFound("{\"error\" : \"Unknown operation\"}").setContentType(JSON_CONTENT_TYPE);
+        }
+        if (!job.isFinished())
+        {
+            return ogJSONResponse(Status.OK, job.getPendingResponse());
+        }
+        return HttpResponse.ok(job.getResponseJSON()).setContentType(JSON_CONTENT_TYPE);
+    }
 }
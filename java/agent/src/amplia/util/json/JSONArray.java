@@ -87,6 +87,12 @@ public class JSONArray {
     private Vector myArrayList;
 
 
+    /**
+     * Set while the array is free in a JSONPool.
+     */
+    boolean myPooled;
+
+
     /**
      * Construct an empty JSONArray.
      */
@@ -101,6 +107,17 @@ public class JSONArray {
      */
     public JSONArray(JSONTokener x) throws JSONException {
         this();
+        parse(x);
+    }
+
+
+    /**
+     * Read the values of a JSONArray text from a JSONTokener into this
+     * array.
+     * @param x A JSONTokener
+     * @throws JSONException If there is a syntax error.
+     */
+    void parse(JSONTokener x) throws JSONException {
         if (x.nextClean() != '[') {
             throw x.syntaxError("A JSONArray text must start with '['");
         }
@@ -345,6 +362,17 @@ public class JSONArray {
     }
 
 
+    /**
+     * Remove all the values, so that the JSONArray can be filled again. The
+     * vector keeps its capacity.
+     * @return this.
+     */
+    public JSONArray reset() {
+        this.myArrayList.removeAllElements();
+        return this;
+    }
+
+
     /**
      * Get the optional object value associated with an index.
      * @param index The index must be between 0 and length() - 1.
@@ -134,6 +134,12 @@ public class JSONObject {
     private Hashtable myHashMap;
 
 
+    /**
+     * Set while the object is free in a JSONPool.
+     */
+    boolean myPooled;
+
+
     /**
      * It is sometimes more convenient and less ambiguous to have a
      * <code>NULL</code> object than to use Java's <code>null</code> value.
@@ -174,6 +180,17 @@ public class JSONObject {
      */
     public JSONObject(JSONTokener x) throws JSONException {
         this();
+        parse(x);
+    }
+
+
+    /**
+     * Read the pairs of a JSONObject text from a JSONTokener into this
+     * object.
+     * @param x A JSONTokener object containing the source string.
+     * @throws JSONException If there is a syntax error in the source string.
+     */
+    void parse(JSONTokener x) throws JSONException {
         char c;
         String key;
 
@@ -189,7 +206,7 @@ public class JSONObject {
                 return;
             default:
                 x.back();
-                key = x.nextValue().toString();
+                key = x.nextKey();
             }
 
             /*
@@ -567,6 +584,16 @@ public class JSONObject {
     }
 
 
+    /**
+     * Get an enumeration of the values of the JSONObject.
+     *
+     * @return An enumeration of the values.
+     */
+    Enumeration values() {
+        return this.myHashMap.elements();
+    }
+
+
     /**
      * Get the number of keys stored in the JSONObject.
      *
@@ -1026,6 +1053,17 @@ public class JSONObject {
         return this.myHashMap.remove(key);
     }
 
+
+    /**
+     * Remove all the pairs, so that the JSONObject can be filled again. The
+     * hash table keeps its capacity.
+     * @return this.
+     */
+    public JSONObject reset() {
+        this.myHashMap.clear();
+        return this;
+    }
+
     /**
      * Throw an exception if the object is an NaN or infinite number.
      * @param o The object to test.
@@ -0,0 +1,185 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.util.json;
+
+import java.util.Enumeration;
+
+/**
+ * A JSONPool keeps JSONObject and JSONArray instances which are no longer
+ * used, so that a parser can build its next trees from them instead of
+ * allocating new ones. A recycled node keeps its Hashtable or Vector, which
+ * is cleared but not reallocated.
+ * <p>
+ * Pooling is optional: a JSONPullParser or a JSONTokener only uses a pool
+ * after <code>setPool</code>. The owner of a tree gives it back with
+ * <code>release</code> when nothing refers to it any more. A tree which is
+ * never released is simply left to the garbage collector.
+ * <p>
+ * The pool is bounded, nodes released beyond its capacity are dropped. It
+ * may be shared by several threads.
+ */
+public class JSONPool {
+
+    /**
+     * The free objects, the last one is reused first.
+     */
+    private final JSONObject[] myObjects;
+
+    /**
+     * The number of free objects.
+     */
+    private int myObjectCount;
+
+    /**
+     * The free arrays, the last one is reused first.
+     */
+    private final JSONArray[] myArrays;
+
+    /**
+     * The number of free arrays.
+     */
+    private int myArrayCount;
+
+    /**
+     * The number of nodes which have been allocated because the pool was
+     * empty.
+     */
+    private int myAllocated;
+
+    /**
+     * The number of nodes which have been taken from the pool.
+     */
+    private int myReused;
+
+
+    /**
+     * Construct a pool.
+     *
+     * @param capacity The number of free objects, and of free arrays, which
+     * are kept.
+     */
+    public JSONPool(int capacity) {
+        this.myObjects = new JSONObject[capacity];
+        this.myArrays = new JSONArray[capacity];
+    }
+
+
+    /**
+     * Get an empty JSONObject, a free one if there is any.
+     *
+     * @return An empty JSONObject.
+     */
+    public synchronized JSONObject obtainObject() {
+        if (this.myObjectCount == 0) {
+            this.myAllocated += 1;
+            return new JSONObject();
+        }
+        this.myReused += 1;
+        this.myObjectCount -= 1;
+        JSONObject jo = this.myObjects[this.myObjectCount];
+        this.myObjects[this.myObjectCount] = null;
+        jo.myPooled = false;
+        return jo;
+    }
+
+
+    /**
+     * Get an empty JSONArray, a free one if there is any.
+     *
+     * @return An empty JSONArray.
+     */
+    public synchronized JSONArray obtainArray() {
+        if (this.myArrayCount == 0) {
+            this.myAllocated += 1;
+            return new JSONArray();
+        }
+        this.myReused += 1;
+        this.myArrayCount -= 1;
+        JSONArray ja = this.myArrays[this.myArrayCount];
+        this.myArrays[this.myArrayCount] = null;
+        ja.myPooled = false;
+        return ja;
+    }
+
+
+    /**
+     * Give back a tree. If the value is a JSONObject or a JSONArray, it and
+     * the objects and arrays it contains are reset and kept for reuse. Other
+     * values are ignored. A node which is already in the pool is not added
+     * again.
+     * <p>
+     * After this call neither the tree nor any part of it may be used.
+     *
+     * @param value The value, or null.
+     */
+    public void release(Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject jo = (JSONObject) value;
+            if (jo.myPooled) {
+                return;
+            }
+            Enumeration values = jo.values();
+            while (values.hasMoreElements()) {
+                release(values.nextElement());
+            }
+            jo.reset();
+            synchronized (this) {
+                jo.myPooled = true;
+                if (this.myObjectCount < this.myObjects.length) {
+                    this.myObjects[this.myObjectCount] = jo;
+                    this.myObjectCount += 1;
+                }
+            }
+        } else if (value instanceof JSONArray) {
+            JSONArray ja = (JSONArray) value;
+            if (ja.myPooled) {
+                return;
+            }
+            for (int i = ja.length() - 1; i >= 0; i -= 1) {
+                release(ja.opt(i));
+            }
+            ja.reset();
+            synchronized (this) {
+                ja.myPooled = true;
+                if (this.myArrayCount < this.myArrays.length) {
+                    this.myArrays[this.myArrayCount] = ja;
+                    this.myArrayCount += 1;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Get the number of nodes which have been allocated because the pool was
+     * empty.
+     *
+     * @return The number of allocated nodes.
+     */
+    public synchronized int getAllocated() {
+        return this.myAllocated;
+    }
+
+
+    /**
+     * Get the number of nodes which have been taken from the pool.
+     *
+     * @return The number of reused nodes.
+     */
+    public synchronized int getReused() {
+        return this.myReused;
+    }
+
+
+    /**
+     * Get the number of free nodes in the pool.
+     *
+     * @return The number of free objects and arrays.
+     */
+    public synchronized int size() {
+        return this.myObjectCount + this.myArrayCount;
+    }
+}
@@ -0,0 +1,826 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package amplia.util.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A JSONPullParser reads JSON text from a UTF-8 byte stream and reports it as
+ * a sequence of events, one for each call to <code>next</code>. No
+ * JSONObject or JSONArray is built unless it is asked for with
+ * <code>readTree</code>, so a reader which only needs a few fields of a
+ * document does not pay for the rest of it.
+ * <p>
+ * The text of the last key, string or number is kept in a reusable buffer.
+ * It can be compared with <code>textEquals</code> without making a String.
+ * <p>
+ * Only the formal JSON syntax is accepted: no comments, no single quoted or
+ * unquoted strings. The parser stops after the first complete value and does
+ * not read what follows it.
+ */
+public class JSONPullParser {
+
+    /** The beginning of an object, <code>{</code>. */
+    public static final int START_OBJECT = 1;
+
+    /** The end of an object, <code>}</code>. */
+    public static final int END_OBJECT = 2;
+
+    /** The beginning of an array, <code>[</code>. */
+    public static final int START_ARRAY = 3;
+
+    /** The end of an array, <code>]</code>. */
+    public static final int END_ARRAY = 4;
+
+    /** A key of an object. Its text is available. */
+    public static final int KEY = 5;
+
+    /** A string value. Its text is available. */
+    public static final int VALUE_STRING = 6;
+
+    /** A number value. Its text is available. */
+    public static final int VALUE_NUMBER = 7;
+
+    /** The value <code>true</code>. */
+    public static final int VALUE_TRUE = 8;
+
+    /** The value <code>false</code>. */
+    public static final int VALUE_FALSE = 9;
+
+    /** The value <code>null</code>. */
+    public static final int VALUE_NULL = 10;
+
+    /** The end of the value. Every later call returns it again. */
+    public static final int END_DOCUMENT = 11;
+
+    /**
+     * The size of the buffer used to read from a stream.
+     */
+    private static final int STREAM_BUFFER_SIZE = 256;
+
+    /**
+     * The digits of Long.MAX_VALUE and Long.MIN_VALUE.
+     */
+    private static final String LONG_MAX_DIGITS = "9223372036854775807";
+    private static final String LONG_MIN_DIGITS = "9223372036854775808";
+
+    /**
+     * The nesting depth allowed by default.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 32;
+
+    /*
+     * What the parser expects to read next.
+     */
+    private static final int STATE_VALUE = 0;
+    private static final int STATE_KEY_OR_END = 1;
+    private static final int STATE_KEY = 2;
+    private static final int STATE_VALUE_OR_END = 3;
+    private static final int STATE_COMMA_OR_END = 4;
+    private static final int STATE_DONE = 5;
+
+    /**
+     * The source stream, or null if the source is a byte array.
+     */
+    private InputStream myInput;
+
+    /**
+     * The bytes read from the stream, or the source byte array.
+     */
+    private byte[] myBuffer;
+
+    /**
+     * The position of the next byte in the buffer.
+     */
+    private int myBufferPosition;
+
+    /**
+     * The end of the bytes in the buffer.
+     */
+    private int myBufferLength;
+
+    /**
+     * The number of bytes consumed before the buffer, for error messages.
+     */
+    private int myOffset;
+
+    /**
+     * Set when the stream has been exhausted or has failed.
+     */
+    private boolean myEnd;
+
+    /**
+     * The error which has stopped reading, or null.
+     */
+    private IOException myReadError;
+
+    /**
+     * The text of the last key, string or number.
+     */
+    private char[] myText = new char[64];
+
+    /**
+     * The number of characters in myText.
+     */
+    private int myTextLength;
+
+    /**
+     * Set if the last number has no fraction and no exponent.
+     */
+    private boolean myIntegral;
+
+    /**
+     * The open containers, true for an object and false for an array.
+     */
+    private boolean[] myStack;
+
+    /**
+     * The number of open containers.
+     */
+    private int myDepth;
+
+    private int myState = STATE_VALUE;
+
+    private int myEvent = 0;
+
+    /**
+     * The pool the objects and arrays of readTree are taken from, or null.
+     */
+    private JSONPool myPool;
+
+
+    /**
+     * Construct a JSONPullParser which reads a stream through a small
+     * buffer. The bytes are decoded as UTF-8.
+     *
+     * @param input     A source stream.
+     */
+    public JSONPullParser(InputStream input) {
+        this(input, DEFAULT_MAX_DEPTH);
+    }
+
+
+    /**
+     * Construct a JSONPullParser which reads a stream through a small
+     * buffer, with a limit to the nesting of objects and arrays.
+     *
+     * @param input     A source stream.
+     * @param maxDepth  The deepest nesting accepted.
+     */
+    public JSONPullParser(InputStream input, int maxDepth) {
+        this.myInput = input;
+        this.myBuffer = new byte[STREAM_BUFFER_SIZE];
+        this.myStack = new boolean[maxDepth];
+    }
+
+
+    /**
+     * Construct a JSONPullParser over a part of a byte array, which is not
+     * copied. The bytes are decoded as UTF-8.
+     *
+     * @param bytes     The source bytes.
+     * @param offset    The position of the first byte.
+     * @param length    The number of bytes.
+     */
+    public JSONPullParser(byte[] bytes, int offset, int length) {
+        this.myBuffer = bytes;
+        this.myBufferPosition = offset;
+        this.myBufferLength = offset + length;
+        this.myOffset = -offset;
+        this.myEnd = true;
+        this.myStack = new boolean[DEFAULT_MAX_DEPTH];
+    }
+
+
+    /**
+     * Read the next event.
+     *
+     * @return The event, one of the constants of this class.
+     * @throws JSONException If the text is not valid JSON.
+     */
+    public int next() throws JSONException {
+        int c;
+        switch (this.myState) {
+            case STATE_DONE:
+                return this.myEvent = END_DOCUMENT;
+            case STATE_KEY_OR_END:
+                c = nextClean();
+                if (c == '}') {
+                    return endContainer(END_OBJECT);
+                }
+                return readKey(c);
+            case STATE_KEY:
+                return readKey(nextClean());
+            case STATE_VALUE_OR_END:
+                c = nextClean();
+                if (c == ']') {
+                    return endContainer(END_ARRAY);
+                }
+                return readValue(c);
+            case STATE_COMMA_OR_END:
+                c = nextClean();
+                boolean inObject = this.myStack[this.myDepth - 1];
+                if (c == ',') {
+                    if (inObject) {
+                        return readKey(nextClean());
+                    }
+                    return readValue(nextClean());
+                }
+                if (inObject && c == '}') {
+                    return endContainer(END_OBJECT);
+                }
+                if (!inObject && c == ']') {
+                    return endContainer(END_ARRAY);
+                }
+                throw syntaxError(inObject ? "Expected a ',' or '}'" :
+                    "Expected a ',' or ']'");
+            default:
+                return readValue(nextClean());
+        }
+    }
+
+
+    /**
+     * Get the last event returned by <code>next</code>.
+     *
+     * @return The event, or 0 before the first call to next.
+     */
+    public int getEvent() {
+        return this.myEvent;
+    }
+
+
+    /**
+     * Get the number of objects and arrays which are open.
+     *
+     * @return The nesting depth, 0 at the top level.
+     */
+    public int getDepth() {
+        return this.myDepth;
+    }
+
+
+    /**
+     * Get the text of the current key, string or number.
+     *
+     * @return A new string.
+     * @throws JSONException If the current event has no text.
+     */
+    public String getString() throws JSONException {
+        checkText();
+        return new String(this.myText, 0, this.myTextLength);
+    }
+
+
+    /**
+     * Get the text of the current key. The common keys of the operation
+     * messages are shared strings, not new ones.
+     *
+     * @return The key.
+     * @throws JSONException If the current event has no text.
+     */
+    private String getKey() throws JSONException {
+        String[] keys = JSONTokener.COMMON_KEYS;
+        for (int i = 0; i < keys.length; i++) {
+            if (textEquals(keys[i])) {
+                return keys[i];
+            }
+        }
+        return getString();
+    }
+
+
+    /**
+     * Compare the text of the current key, string or number with a string,
+     * without making a new string.
+     *
+     * @param s The string to compare.
+     * @return true if the current event has text and it is equal to s.
+     */
+    public boolean textEquals(String s) {
+        if (!hasText() || s.length() != this.myTextLength) {
+            return false;
+        }
+        for (int i = 0; i < this.myTextLength; i++) {
+            if (this.myText[i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Determine if the current number has no fraction and no exponent.
+     *
+     * @return true if the current event is an integral number.
+     */
+    public boolean isIntegral() {
+        return this.myEvent == VALUE_NUMBER && this.myIntegral;
+    }
+
+
+    /**
+     * Determine if the current number is integral and fits in a long.
+     *
+     * @return true if <code>getLong</code> returns the exact value.
+     */
+    public boolean isLong() {
+        if (!isIntegral()) {
+            return false;
+        }
+        boolean negative = this.myText[0] == '-';
+        String limit = negative ? LONG_MIN_DIGITS : LONG_MAX_DIGITS;
+        int start = negative ? 1 : 0;
+        int digits = this.myTextLength - start;
+        if (digits != limit.length()) {
+            return digits < limit.length();
+        }
+        // As many digits as the limit, there are no leading zeros
+        for (int i = 0; i < digits; i++) {
+            int c = this.myText[start + i] - limit.charAt(i);
+            if (c != 0) {
+                return c < 0;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Get the current number as a long. A fraction is truncated.
+     *
+     * @return The value.
+     * @throws JSONException If the current event is not a number, or if the
+     * number does not fit in a long.
+     */
+    public long getLong() throws JSONException {
+        if (this.myEvent != VALUE_NUMBER) {
+            throw syntaxError("Not a number");
+        }
+        if (!this.myIntegral) {
+            return (long) getDouble();
+        }
+        boolean negative = this.myText[0] == '-';
+        long value = 0;
+        for (int i = negative ? 1 : 0; i < this.myTextLength; i++) {
+            int digit = this.myText[i] - '0';
+            // Accumulated as a negative number, which has the larger range
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                throw syntaxError("Number out of range");
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                throw syntaxError("Number out of range");
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+
+    /**
+     * Get the current number as a double.
+     *
+     * @return The value.
+     * @throws JSONException If the current event is not a number.
+     */
+    public double getDouble() throws JSONException {
+        if (this.myEvent != VALUE_NUMBER) {
+            throw syntaxError("Not a number");
+        }
+        return Double.parseDouble(getString());
+    }
+
+
+    /**
+     * Set a pool to take the JSONObject and JSONArray values of
+     * <code>readTree</code> from. The caller gives the values back to the
+     * pool when it no longer needs them.
+     *
+     * @param pool The pool, or null to allocate new values.
+     */
+    public void setPool(JSONPool pool) {
+        this.myPool = pool;
+    }
+
+
+    /**
+     * Get the value which begins at the current event. An object or an array
+     * is read up to its end and returned as a JSONObject or a JSONArray.
+     * Numbers are returned as Integer, Long or Double, the smallest that
+     * holds them, like JSONTokener does. An integer which does not fit in a
+     * long is returned as a Double.
+     *
+     * @return The value: a Boolean, Double, Integer, JSONArray, JSONObject,
+     * Long, or String, or the JSONObject.NULL object.
+     * @throws JSONException If the current event does not begin a value, or
+     * if the text is not valid JSON.
+     */
+    public Object readTree() throws JSONException {
+        switch (this.myEvent) {
+            case START_OBJECT:
+                JSONObject jo = this.myPool != null ? this.myPool.obtainObject() : new JSONObject();
+                while (next() == KEY) {
+                    String key = getKey();
+                    next();
+                    jo.put(key, readTree());
+                }
+                return jo;
+            case START_ARRAY:
+                JSONArray ja = this.myPool != null ? this.myPool.obtainArray() : new JSONArray();
+                while (next() != END_ARRAY) {
+                    ja.put(readTree());
+                }
+                return ja;
+            case VALUE_STRING:
+                return getString();
+            case VALUE_NUMBER:
+                if (isLong()) {
+                    long value = getLong();
+                    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                        return new Integer((int) value);
+                    }
+                    return new Long(value);
+                }
+                return new Double(getDouble());
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return JSONObject.NULL;
+            default:
+                throw syntaxError("Missing value");
+        }
+    }
+
+
+    /**
+     * Skip the value which begins at the current event. An object or an
+     * array is read up to its end, its contents are checked but not kept.
+     *
+     * @throws JSONException If the text is not valid JSON.
+     */
+    public void skipValue() throws JSONException {
+        if (this.myEvent != START_OBJECT && this.myEvent != START_ARRAY) {
+            return;
+        }
+        int depth = this.myDepth;
+        while (this.myDepth >= depth) {
+            next();
+        }
+    }
+
+
+    /**
+     * Make a JSONException to signal a syntax error.
+     *
+     * @param message The error message.
+     * @return  A JSONException object, suitable for throwing
+     */
+    public JSONException syntaxError(String message) {
+        if (this.myReadError != null) {
+            return new JSONException(message + toString() + " (" +
+                this.myReadError.getMessage() + ")");
+        }
+        return new JSONException(message + toString());
+    }
+
+
+    /**
+     * Make a printable string of this JSONPullParser.
+     *
+     * @return " at byte [position]"
+     */
+    public String toString() {
+        return " at byte " + (this.myOffset + this.myBufferPosition);
+    }
+
+
+    private boolean hasText() {
+        return this.myEvent == KEY || this.myEvent == VALUE_STRING ||
+            this.myEvent == VALUE_NUMBER;
+    }
+
+
+    private void checkText() throws JSONException {
+        if (!hasText()) {
+            throw syntaxError("No text");
+        }
+    }
+
+
+    private int readKey(int c) throws JSONException {
+        if (c != '"') {
+            throw syntaxError("Expected a key");
+        }
+        readString();
+        if (nextClean() != ':') {
+            throw syntaxError("Expected a ':' after a key");
+        }
+        this.myState = STATE_VALUE;
+        return this.myEvent = KEY;
+    }
+
+
+    private int readValue(int c) throws JSONException {
+        switch (c) {
+            case '{':
+                push(true);
+                this.myState = STATE_KEY_OR_END;
+                return this.myEvent = START_OBJECT;
+            case '[':
+                push(false);
+                this.myState = STATE_VALUE_OR_END;
+                return this.myEvent = START_ARRAY;
+            case '"':
+                readString();
+                return endValue(VALUE_STRING);
+            case 't':
+                readLiteral("rue");
+                return endValue(VALUE_TRUE);
+            case 'f':
+                readLiteral("alse");
+                return endValue(VALUE_FALSE);
+            case 'n':
+                readLiteral("ull");
+                return endValue(VALUE_NULL);
+            case -1:
+                throw syntaxError("Unexpected end of text");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    readNumber(c);
+                    return endValue(VALUE_NUMBER);
+                }
+                throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+
+    private int endValue(int event) {
+        this.myState = this.myDepth == 0 ? STATE_DONE : STATE_COMMA_OR_END;
+        return this.myEvent = event;
+    }
+
+
+    private int endContainer(int event) {
+        this.myDepth -= 1;
+        return endValue(event);
+    }
+
+
+    private void push(boolean object) throws JSONException {
+        if (this.myDepth == this.myStack.length) {
+            throw syntaxError("Nesting too deep");
+        }
+        this.myStack[this.myDepth++] = object;
+    }
+
+
+    private void readLiteral(String rest) throws JSONException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (read() != rest.charAt(i)) {
+                throw syntaxError("Unexpected literal");
+            }
+        }
+    }
+
+
+    /**
+     * Read a number whose first character is c into myText, checking the
+     * JSON number syntax.
+     */
+    private void readNumber(int c) throws JSONException {
+        this.myTextLength = 0;
+        this.myIntegral = true;
+        if (c == '-') {
+            appendText('-');
+            c = read();
+        }
+        if (c == '0') {
+            appendText('0');
+        } else if (c >= '1' && c <= '9') {
+            appendText((char) c);
+            readDigits();
+        } else {
+            throw syntaxError("Invalid number");
+        }
+        if (peek() == '.') {
+            this.myIntegral = false;
+            appendText((char) read());
+            if (readDigits() == 0) {
+                throw syntaxError("Invalid number");
+            }
+        }
+        c = peek();
+        if (c == 'e' || c == 'E') {
+            this.myIntegral = false;
+            appendText((char) read());
+            c = peek();
+            if (c == '+' || c == '-') {
+                appendText((char) read());
+            }
+            if (readDigits() == 0) {
+                throw syntaxError("Invalid number");
+            }
+        }
+    }
+
+
+    private int readDigits() {
+        int count = 0;
+        for (int c = peek(); c >= '0' && c <= '9'; c = peek()) {
+            appendText((char) read());
+            count++;
+        }
+        return count;
+    }
+
+
+    /**
+     * Read the characters up to the closing quote into myText, decoding
+     * the escapes and UTF-8 sequences.
+     */
+    private void readString() throws JSONException {
+        this.myTextLength = 0;
+        for (;;) {
+            int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c < 0x20) {
+                throw syntaxError("Unterminated string");
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        break;
+                    case 'b':
+                        c = '\b';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'u':
+                        c = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int h = read();
+                            int d = h < 0 ? -1 : JSONTokener.dehexchar((char) h);
+                            if (d < 0) {
+                                throw syntaxError("Invalid escape");
+                            }
+                            c = (c << 4) | d;
+                        }
+                        break;
+                    default:
+                        throw syntaxError("Invalid escape");
+                }
+                appendText((char) c);
+            } else if (c < 0x80) {
+                appendText((char) c);
+            } else {
+                readMultiByte(c);
+            }
+        }
+    }
+
+
+    /**
+     * Decode a UTF-8 sequence whose first byte is c. A character outside
+     * the basic plane is stored as a surrogate pair.
+     */
+    private void readMultiByte(int c) throws JSONException {
+        int count;
+        int min;
+        if ((c & 0xE0) == 0xC0) {
+            count = 1;
+            min = 0x80;
+            c &= 0x1F;
+        } else if ((c & 0xF0) == 0xE0) {
+            count = 2;
+            min = 0x800;
+            c &= 0x0F;
+        } else if ((c & 0xF8) == 0xF0) {
+            count = 3;
+            min = 0x10000;
+            c &= 0x07;
+        } else {
+            throw syntaxError("Invalid UTF-8");
+        }
+        for (int i = 0; i < count; i++) {
+            int b = read();
+            if ((b & 0xC0) != 0x80) {
+                throw syntaxError("Invalid UTF-8");
+            }
+            c = (c << 6) | (b & 0x3F);
+        }
+        if (c < min || c > 0x10FFFF) {
+            throw syntaxError("Invalid UTF-8");
+        }
+        if (c >= 0x10000) {
+            c -= 0x10000;
+            appendText((char) (0xD800 | (c >> 10)));
+            appendText((char) (0xDC00 | (c & 0x3FF)));
+        } else {
+            appendText((char) c);
+        }
+    }
+
+
+    private void appendText(char c) {
+        if (this.myTextLength == this.myText.length) {
+            char[] text = new char[this.myText.length * 2];
+            System.arraycopy(this.myText, 0, text, 0, this.myTextLength);
+            this.myText = text;
+        }
+        this.myText[this.myTextLength++] = c;
+    }
+
+
+    /**
+     * Get the next byte which is not whitespace.
+     *
+     * @return The byte, or -1 at the end of the source.
+     */
+    private int nextClean() {
+        for (;;) {
+            int c = read();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+        }
+    }
+
+
+    /**
+     * Get the next byte.
+     *
+     * @return The byte, between 0 and 255, or -1 at the end of the source.
+     */
+    private int read() {
+        if (this.myBufferPosition == this.myBufferLength && !fill()) {
+            return -1;
+        }
+        return this.myBuffer[this.myBufferPosition++] & 0xFF;
+    }
+
+
+    /**
+     * Get the next byte without consuming it.
+     *
+     * @return The byte, between 0 and 255, or -1 at the end of the source.
+     */
+    private int peek() {
+        if (this.myBufferPosition == this.myBufferLength && !fill()) {
+            return -1;
+        }
+        return this.myBuffer[this.myBufferPosition] & 0xFF;
+    }
+
+
+    /**
+     * Read the next bytes from the stream into the buffer.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean fill() {
+        if (this.myEnd) {
+            return false;
+        }
+        this.myOffset += this.myBufferLength;
+        this.myBufferPosition = 0;
+        this.myBufferLength = 0;
+        try {
+            int n = this.myInput.read(this.myBuffer, 0, this.myBuffer.length);
+            if (n <= 0) {
+                this.myEnd = true;
+                return false;
+            }
+            this.myBufferLength = n;
+            return true;
+        } catch (IOException e) {
+            this.myReadError = e;
+            this.myEnd = true;
+            return false;
+        }
+    }
+}
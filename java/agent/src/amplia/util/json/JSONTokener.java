@@ -24,15 +24,40 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 SOFTWARE.
  */
 
+import java.io.IOException;
+import java.io.Reader;
+
 /**
  * A JSONTokener takes a source string and extracts characters and tokens from
  * it. It is used by the JSONObject and JSONArray constructors to parse
- * JSON source strings.
+ * JSON source strings. The source may also be a Reader, which is read through
+ * a small buffer, so the source text is never held in memory as a whole.
+ * <p>
+ * The source may also be a part of a char array or of a UTF-8 byte array,
+ * which is read in place without making a string of it. In every mode the
+ * unquoted tokens and the strings are collected in a reusable buffer, the
+ * literals and the numbers are recognised in that buffer, and the keys
+ * which the agent uses often are returned as shared strings.
  * @author JSON.org
  * @version 2
  */
 public class JSONTokener {
     
+    /**
+     * The size of the buffer used to read from a Reader.
+     */
+    private static final int READER_BUFFER_SIZE = 128;
+    
+    /**
+     * Keys which are returned as shared strings instead of new ones.
+     */
+    static final String[] COMMON_KEYS = {
+        "id", "name", "value", "path", "deviceId", "parameters",
+        "operation", "request", "requests", "response", "operations",
+        "timestamp", "timeout", "version", "resultCode",
+        "resultDescription", "error"
+    };
+    
     /**
      * The index of the next character.
      */
@@ -45,6 +70,112 @@ public class JSONTokener {
     private String mySource;
     
     
+    /**
+     * The source reader, or null if the source is a string.
+     */
+    private Reader myReader;
+    
+    
+    /**
+     * The characters read from the reader. The first character is the last
+     * one of the previous read, so that back() works after a refill.
+     */
+    private char[] myBuffer;
+    
+    
+    /**
+     * The position of the next character in the buffer.
+     */
+    private int myBufferPosition;
+    
+    
+    /**
+     * The number of characters in the buffer.
+     */
+    private int myBufferLength;
+    
+    
+    /**
+     * Set when the reader has been exhausted or has failed.
+     */
+    private boolean myEnd;
+    
+    
+    /**
+     * The error which has stopped reading, or null.
+     */
+    private IOException myReadError;
+    
+    
+    /**
+     * The source characters, or null if the source is not a char array.
+     */
+    private char[] myChars;
+    
+    
+    /**
+     * The source bytes, or null if the source is not a byte array.
+     */
+    private byte[] myBytes;
+    
+    
+    /**
+     * The position of the next element of the source array.
+     */
+    private int myPosition;
+    
+    
+    /**
+     * The first position of the source array.
+     */
+    private int myStart;
+    
+    
+    /**
+     * The end of the source array.
+     */
+    private int myLimit;
+    
+    
+    /**
+     * The number of bytes of the last character read from a byte array, so
+     * that back() can return to it.
+     */
+    private int myLastWidth;
+    
+    
+    /**
+     * The low surrogate of a character outside the basic plane read from a
+     * byte array, which is returned by the next call to next(), or 0.
+     */
+    private char myLow;
+    
+    
+    /**
+     * The low surrogate returned by the last call to next(), or 0.
+     */
+    private char myBackLow;
+    
+    
+    /**
+     * Set when the last call to next() on an array was past its end, so
+     * that back() has nothing to undo.
+     */
+    private boolean myPastEnd;
+    
+    
+    /**
+     * The characters of the current string or unquoted token.
+     */
+    private char[] myToken = new char[32];
+
+
+    /**
+     * The pool the objects and arrays are taken from, or null.
+     */
+    private JSONPool myPool;
+    
+    
     /**
      * Construct a JSONTokener from a string.
      *
@@ -56,13 +187,85 @@ public class JSONTokener {
     }
     
     
+    /**
+     * Construct a JSONTokener from a reader. The characters are read as they
+     * are needed. An error of the reader ends the source, it is reported with
+     * the syntax error it causes.
+     *
+     * @param reader     A source reader.
+     */
+    public JSONTokener(Reader reader) {
+        this.myIndex = 0;
+        this.myReader = reader;
+        this.myBuffer = new char[READER_BUFFER_SIZE];
+    }
+    
+    
+    /**
+     * Construct a JSONTokener from a part of a char array, which is read in
+     * place.
+     *
+     * @param chars     The source characters.
+     * @param offset    The position of the first character.
+     * @param length    The number of characters.
+     */
+    public JSONTokener(char[] chars, int offset, int length) {
+        this.myIndex = 0;
+        this.myChars = chars;
+        this.myStart = offset;
+        this.myPosition = offset;
+        this.myLimit = offset + length;
+    }
+    
+    
+    /**
+     * Construct a JSONTokener from a part of a byte array holding UTF-8
+     * text, which is decoded as it is read. An invalid sequence is read as
+     * the replacement character U+FFFD.
+     *
+     * @param bytes     The source bytes.
+     * @param offset    The position of the first byte.
+     * @param length    The number of bytes.
+     */
+    public JSONTokener(byte[] bytes, int offset, int length) {
+        this.myIndex = 0;
+        this.myBytes = bytes;
+        this.myStart = offset;
+        this.myPosition = offset;
+        this.myLimit = offset + length;
+    }
+    
+    
     /**
      * Back up one character. This provides a sort of lookahead capability,
      * so that you can test for a digit or letter before attempting to parse
      * the next number or identifier.
      */
     public void back() {
-        if (this.myIndex > 0) {
+        if (this.myChars != null || this.myBytes != null) {
+            if (this.myPastEnd) {
+                this.myPastEnd = false;
+            } else if (this.myBackLow != 0) {
+                this.myLow = this.myBackLow;
+                this.myBackLow = 0;
+                this.myIndex -= 1;
+            } else if (this.myChars != null) {
+                if (this.myPosition > this.myStart) {
+                    this.myPosition -= 1;
+                    this.myIndex -= 1;
+                }
+            } else if (this.myLastWidth > 0) {
+                this.myPosition -= this.myLastWidth;
+                this.myLastWidth = 0;
+                this.myLow = 0;
+                this.myIndex -= 1;
+            }
+        } else if (this.myReader != null) {
+            if (this.myBufferPosition > 0) {
+                this.myBufferPosition -= 1;
+                this.myIndex -= 1;
+            }
+        } else if (this.myIndex > 0) {
             this.myIndex -= 1;
         }
     }
@@ -95,16 +298,73 @@ public class JSONTokener {
      * @return true if not yet at the end of the source.
      */
     public boolean more() {
+        if (this.myChars != null || this.myBytes != null) {
+            return this.myLow != 0 || this.myPosition < this.myLimit;
+        }
+        if (this.myReader != null) {
+            if (this.myBufferPosition < this.myBufferLength) {
+                return true;
+            }
+            fill();
+            return this.myBufferPosition < this.myBufferLength;
+        }
         return this.myIndex < this.mySource.length();
     }
     
     
+    /**
+     * Read the next characters from the reader into the buffer, keeping the
+     * last character for back().
+     */
+    private void fill() {
+        if (this.myEnd) {
+            return;
+        }
+        if (this.myBufferLength > 0) {
+            this.myBuffer[0] = this.myBuffer[this.myBufferLength - 1];
+            this.myBufferLength = 1;
+        }
+        this.myBufferPosition = this.myBufferLength;
+        try {
+            int n = this.myReader.read(this.myBuffer, this.myBufferLength,
+                this.myBuffer.length - this.myBufferLength);
+            if (n < 0) {
+                this.myEnd = true;
+            } else {
+                this.myBufferLength += n;
+            }
+        } catch (IOException e) {
+            this.myReadError = e;
+            this.myEnd = true;
+        }
+    }
+    
+    
     /**
      * Get the next character in the source string.
      *
      * @return The next character, or 0 if past the end of the source string.
      */
     public char next() {
+        if (this.myChars != null) {
+            if (this.myPosition < this.myLimit) {
+                this.myPastEnd = false;
+                this.myIndex += 1;
+                return this.myChars[this.myPosition++];
+            }
+            this.myPastEnd = true;
+            return 0;
+        }
+        if (this.myBytes != null) {
+            return nextFromBytes();
+        }
+        if (this.myReader != null) {
+            if (more()) {
+                this.myIndex += 1;
+                return this.myBuffer[this.myBufferPosition++];
+            }
+            return 0;
+        }
         if (more()) {
             char c = this.mySource.charAt(this.myIndex);
             this.myIndex += 1;
@@ -114,6 +374,79 @@ public class JSONTokener {
     }
     
     
+    /**
+     * Decode the next character of the byte array.
+     *
+     * @return The next character, or 0 if past the end of the array.
+     */
+    private char nextFromBytes() {
+        this.myPastEnd = false;
+        this.myBackLow = 0;
+        if (this.myLow != 0) {
+            char low = this.myLow;
+            this.myLow = 0;
+            this.myBackLow = low;
+            this.myLastWidth = 0;
+            this.myIndex += 1;
+            return low;
+        }
+        if (this.myPosition >= this.myLimit) {
+            this.myPastEnd = true;
+            return 0;
+        }
+        this.myIndex += 1;
+        int b = this.myBytes[this.myPosition];
+        if (b >= 0) {
+            this.myPosition += 1;
+            this.myLastWidth = 1;
+            return (char) b;
+        }
+        int count;
+        int min;
+        if ((b & 0xE0) == 0xC0) {
+            count = 1;
+            min = 0x80;
+            b &= 0x1F;
+        } else if ((b & 0xF0) == 0xE0) {
+            count = 2;
+            min = 0x800;
+            b &= 0x0F;
+        } else if ((b & 0xF8) == 0xF0) {
+            count = 3;
+            min = 0x10000;
+            b &= 0x07;
+        } else {
+            count = -1;
+            min = 0;
+        }
+        if (count < 0 || this.myPosition + count >= this.myLimit) {
+            this.myPosition += 1;
+            this.myLastWidth = 1;
+            return '\uFFFD';
+        }
+        for (int k = 1; k <= count; k++) {
+            int c = this.myBytes[this.myPosition + k];
+            if ((c & 0xC0) != 0x80) {
+                this.myPosition += 1;
+                this.myLastWidth = 1;
+                return '\uFFFD';
+            }
+            b = (b << 6) | (c & 0x3F);
+        }
+        this.myLastWidth = count + 1;
+        this.myPosition += count + 1;
+        if (b < min || b > 0x10FFFF) {
+            return '\uFFFD';
+        }
+        if (b >= 0x10000) {
+            b -= 0x10000;
+            this.myLow = (char) (0xDC00 | (b & 0x3FF));
+            return (char) (0xD800 | (b >> 10));
+        }
+        return (char) b;
+    }
+    
+    
     /**
      * Consume the next character, and check that it matches a specified
      * character.
@@ -141,6 +474,16 @@ public class JSONTokener {
      *   n characters remaining in the source string.
      */
     public String next(int n) throws JSONException {
+        if (this.mySource == null) {
+            char[] chars = new char[n];
+            for (int k = 0; k < n; k++) {
+                if (!more()) {
+                    throw syntaxError("Substring bounds error");
+                }
+                chars[k] = next();
+            }
+            return new String(chars);
+        }
         int i = this.myIndex;
         int j = i + n;
         if (j >= this.mySource.length()) {
@@ -208,10 +551,37 @@ public class JSONTokener {
      * @throws JSONException Unterminated string.
      */
     public String nextString(char quote) throws JSONException {
-        char c;
-        StringBuffer sb = new StringBuffer();
+        return readString(quote, false);
+    }
+    
+    
+    /**
+     * Get the next key of an object. A quoted key which the agent uses often
+     * is returned as a shared string.
+     * @throws JSONException If syntax error.
+     * @return The key.
+     */
+    public String nextKey() throws JSONException {
+        char c = nextClean();
+        if (c == '"' || c == '\'') {
+            return readString(c, true);
+        }
+        back();
+        return nextValue().toString();
+    }
+    
+    
+    /**
+     * Read the characters up to the close quote into the token buffer.
+     * @param quote The quoting character.
+     * @param key   true to return a shared string if it is a common key.
+     * @return      A String.
+     * @throws JSONException Unterminated string.
+     */
+    private String readString(char quote, boolean key) throws JSONException {
+        int length = 0;
         for (;;) {
-            c = next();
+            char c = next();
             switch (c) {
                 case 0:
                 case '\n':
@@ -221,37 +591,119 @@ public class JSONTokener {
                     c = next();
                     switch (c) {
                         case 'b':
-                            sb.append('\b');
+                            c = '\b';
                             break;
                         case 't':
-                            sb.append('\t');
+                            c = '\t';
                             break;
                         case 'n':
-                            sb.append('\n');
+                            c = '\n';
                             break;
                         case 'f':
-                            sb.append('\f');
+                            c = '\f';
                             break;
                         case 'r':
-                            sb.append('\r');
+                            c = '\r';
                             break;
                         case 'u':
-                            sb.append((char)Integer.parseInt(next(4), 16));
+                            c = nextHex(4);
                             break;
                         case 'x' :
-                            sb.append((char) Integer.parseInt(next(2), 16));
+                            c = nextHex(2);
                             break;
                         default:
-                            sb.append(c);
                     }
+                    length = appendToken(length, c);
                     break;
                 default:
                     if (c == quote) {
-                        return sb.toString();
+                        if (key) {
+                            String common = commonKey(length);
+                            if (common != null) {
+                                return common;
+                            }
+                        }
+                        return new String(this.myToken, 0, length);
                     }
-                    sb.append(c);
+                    length = appendToken(length, c);
+            }
+        }
+    }
+    
+    
+    /**
+     * Read the hex digits of an escape.
+     * @param n The number of digits.
+     * @return  The character.
+     * @throws JSONException If a digit is not a hex digit.
+     */
+    private char nextHex(int n) throws JSONException {
+        int value = 0;
+        for (int k = 0; k < n; k++) {
+            int d = dehexchar(next());
+            if (d < 0) {
+                throw syntaxError("Illegal escape.");
             }
+            value = (value << 4) | d;
+        }
+        return (char) value;
+    }
+    
+    
+    /**
+     * Add a character to the token buffer, which grows as needed.
+     * @param length The number of characters in the buffer.
+     * @param c      The character.
+     * @return       The new number of characters.
+     */
+    private int appendToken(int length, char c) {
+        if (length == this.myToken.length) {
+            char[] token = new char[length * 2];
+            System.arraycopy(this.myToken, 0, token, 0, length);
+            this.myToken = token;
         }
+        this.myToken[length] = c;
+        return length + 1;
+    }
+    
+    
+    /**
+     * Find the common key which is equal to the token buffer.
+     * @param length The number of characters in the buffer.
+     * @return       The shared string, or null.
+     */
+    private String commonKey(int length) {
+        for (int i = 0; i < COMMON_KEYS.length; i++) {
+            String common = COMMON_KEYS[i];
+            if (common.length() == length && tokenMatches(length, common, false)) {
+                return common;
+            }
+        }
+        return null;
+    }
+    
+    
+    /**
+     * Compare the token buffer with a string.
+     * @param length     The number of characters in the buffer.
+     * @param s          The string.
+     * @param ignoreCase true to ignore the case of the letters.
+     * @return           true if they are equal.
+     */
+    private boolean tokenMatches(int length, String s, boolean ignoreCase) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            char c = this.myToken[k];
+            if (ignoreCase) {
+                c = Character.toLowerCase(c);
+            }
+            if (c != s.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
     }
     
     
@@ -299,6 +751,17 @@ public class JSONTokener {
     }
     
     
+    /**
+     * Set a pool to take the JSONObject and JSONArray values from. The caller
+     * gives the values back to the pool when it no longer needs them.
+     *
+     * @param pool The pool, or null to allocate new values.
+     */
+    public void setPool(JSONPool pool) {
+        this.myPool = pool;
+    }
+
+
     /**
      * Get the next value. The value can be a Boolean, Double, Integer,
      * JSONArray, JSONObject, Long, or String, or the JSONObject.NULL object.
@@ -316,9 +779,19 @@ public class JSONTokener {
                 return nextString(c);
             case '{':
                 back();
+                if (this.myPool != null) {
+                    JSONObject jo = this.myPool.obtainObject();
+                    jo.parse(this);
+                    return jo;
+                }
                 return new JSONObject(this);
             case '[':
                 back();
+                if (this.myPool != null) {
+                    JSONArray ja = this.myPool.obtainArray();
+                    ja.parse(this);
+                    return ja;
+                }
                 return new JSONArray(this);
         }
         
@@ -331,37 +804,40 @@ public class JSONTokener {
          * formatting character.
          */
         
-        StringBuffer sb = new StringBuffer();
+        int length = 0;
         char b = c;
         while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
-            sb.append(c);
+            length = appendToken(length, c);
             c = next();
         }
         back();
+        while (length > 0 && this.myToken[length - 1] <= ' ') {
+            length--;
+        }
         
         /*
-         * If it is true, false, or null, return the proper value.
+         * If it is true, false, or null, return the proper value. The token
+         * is compared in place, ignoring the case.
          */
         
-        s = sb.toString().trim();
-        if (s.equals("")) {
+        if (length == 0) {
             throw syntaxError("Missing value.");
         }
-        if (s.toLowerCase().equals("true")) {
+        if (tokenMatches(length, "true", true)) {
 //#if CLDC!="1.0"
             return Boolean.TRUE;
             //#else
 //#             return JSONObject.TRUE;
             //#endif
         }
-        if (s.toLowerCase().equals("false")) {
+        if (tokenMatches(length, "false", true)) {
 //#if CLDC!="1.0"
             return Boolean.FALSE;
             //#else
 //#             return JSONObject.FALSE;
             //#endif
         }
-        if (s.toLowerCase().equals("null")) {
+        if (tokenMatches(length, "null", true)) {
             return JSONObject.NULL;
         }
         
@@ -374,48 +850,145 @@ public class JSONTokener {
          */
         
         if ((b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+') {
-            if (b == '0') {
-                if (s.length() > 2 &&
-                    (s.charAt(1) == 'x' || s.charAt(1) == 'X')) {
-                    try {
-                        return new Integer(Integer.parseInt(s.substring(2),
-                            16));
-                    } catch (Exception e) {
-                        /* Ignore the error */
-                    }
-                } else {
-                    try {
-                        return new Integer(Integer.parseInt(s, 8));
-                    } catch (Exception e) {
-                        /* Ignore the error */
-                    }
+            Object number = tokenNumber(length);
+            if (number != null) {
+                return number;
+            }
+        }
+        return new String(this.myToken, 0, length);
+    }
+    
+    
+    /**
+     * Convert the token buffer to a number. The syntax is checked before
+     * converting, so no exception is thrown for a token which is not a
+     * number.
+     *
+     * @param length The number of characters in the buffer.
+     * @return An Integer, a Long or a Double, the smallest which holds the
+     * value, or null if the token is not a number.
+     */
+    private Object tokenNumber(int length) {
+        char[] t = this.myToken;
+        if (t[0] == '0' && length > 2 && (t[1] == 'x' || t[1] == 'X')) {
+            long value = 0;
+            for (int k = 2; k < length; k++) {
+                int d = dehexchar(t[k]);
+                if (d < 0) {
+                    return null;
+                }
+                value = (value << 4) | d;
+                if (value > Integer.MAX_VALUE) {
+                    return null;
                 }
             }
-            try {
-                return Integer.valueOf(s);
-            } catch (Exception e) {
-                try {
-                    return new Long(Long.parseLong(s));
-                } catch (Exception f) {
+            return new Integer((int) value);
+        }
+        if (t[0] == '0') {
+            int value = 0;
+            int k = 1;
+            while (k < length && t[k] >= '0' && t[k] <= '7' && value <= (Integer.MAX_VALUE >> 3)) {
+                value = (value << 3) | (t[k] - '0');
+                k++;
+            }
+            if (k == length) {
+                return new Integer(value);
+            }
+        }
+        
+        /*
+         * An integer is accumulated as a negative number, which has the
+         * larger range. One which does not fit in a long becomes a Double.
+         */
+        
+        boolean negative = t[0] == '-';
+        int k = t[0] == '-' || t[0] == '+' ? 1 : 0;
+        if (k < length) {
+            long value = 0;
+            boolean overflow = false;
+            int first = k;
+            while (k < length && t[k] >= '0' && t[k] <= '9') {
+                int digit = t[k] - '0';
+                if (value < (Long.MIN_VALUE + digit) / 10) {
+                    overflow = true;
+                }
+                value = value * 10 - digit;
+                k++;
+            }
+            if (k == length && !overflow && (negative || value != Long.MIN_VALUE)) {
+                if (!negative) {
+                    value = -value;
+                }
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    return new Integer((int) value);
+                }
+                return new Long(value);
+            }
+            k = first;
+        }
 //#if CLDC!="1.0"
-                    try {
-                        return Double.valueOf(s);
-                    }  catch (Exception g) {
-                        return s;
-                    }
-//#else
-//#                     return s;
+        if (length - k == 8 && new String(t, k, 8).equals("Infinity")) {
+            return new Double(negative ? Double.NEGATIVE_INFINITY :
+                Double.POSITIVE_INFINITY);
+        }
+        if (isDecimal(k, length)) {
+            return Double.valueOf(new String(t, 0, length));
+        }
 //#endif
-                }
+        return null;
+    }
+    
+    
+    /**
+     * Check the syntax of a decimal number: digits with an optional point,
+     * an optional exponent and an optional type suffix.
+     *
+     * @param k      The position after the sign.
+     * @param length The number of characters in the buffer.
+     * @return true if Double.valueOf accepts the token.
+     */
+    private boolean isDecimal(int k, int length) {
+        char[] t = this.myToken;
+        int digits = 0;
+        while (k < length && t[k] >= '0' && t[k] <= '9') {
+            k++;
+            digits++;
+        }
+        if (k < length && t[k] == '.') {
+            k++;
+            while (k < length && t[k] >= '0' && t[k] <= '9') {
+                k++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (k < length && (t[k] == 'e' || t[k] == 'E')) {
+            k++;
+            if (k < length && (t[k] == '+' || t[k] == '-')) {
+                k++;
+            }
+            int exponent = 0;
+            while (k < length && t[k] >= '0' && t[k] <= '9') {
+                k++;
+                exponent++;
             }
+            if (exponent == 0) {
+                return false;
+            }
+        }
+        if (k == length - 1 && "fFdD".indexOf(t[k]) >= 0) {
+            k++;
         }
-        return s;
+        return k == length;
     }
     
     
     /**
      * Skip characters until the next character is the requested character.
-     * If the requested character is not found, no characters are skipped.
+     * If the requested character is not found, no characters are skipped,
+     * unless the source is a reader which is left at its end.
      * @param to A character to skip to.
      * @return The requested character, or zero if the requested character
      * is not found.
@@ -423,10 +996,17 @@ public class JSONTokener {
     public char skipTo(char to) {
         char c;
         int index = this.myIndex;
+        int position = this.myPosition;
+        char low = this.myLow;
         do {
             c = next();
             if (c == 0) {
                 this.myIndex = index;
+                this.myPosition = position;
+                this.myLow = low;
+                this.myPastEnd = false;
+                this.myLastWidth = 0;
+                this.myBackLow = 0;
                 return c;
             }
         } while (c != to);
@@ -441,6 +1021,27 @@ public class JSONTokener {
      * @param to A string to skip past.
      */
     public void skipPast(String to) {
+        if (this.mySource == null) {
+            // The last characters are kept in a circular window and compared
+            // with the requested string after each character
+            int length = to.length();
+            char[] window = new char[length];
+            int count = 0;
+            while (more()) {
+                window[count % length] = next();
+                count++;
+                if (count >= length) {
+                    int k = 0;
+                    while (k < length && window[(count + k) % length] == to.charAt(k)) {
+                        k++;
+                    }
+                    if (k == length) {
+                        return;
+                    }
+                }
+            }
+            return;
+        }
         this.myIndex = this.mySource.indexOf(to, this.myIndex);
         if (this.myIndex < 0) {
             this.myIndex = this.mySource.length();
@@ -457,6 +1058,10 @@ public class JSONTokener {
      * @return  A JSONException object, suitable for throwing
      */
     public JSONException syntaxError(String message) {
+        if (this.myReadError != null) {
+            return new JSONException(message + toString() + " (" +
+                this.myReadError.getMessage() + ")");
+        }
         return new JSONException(message + toString());
     }
     
@@ -464,9 +1069,13 @@ public class JSONTokener {
     /**
      * Make a printable string of this JSONTokener.
      *
-     * @return " at character [this.myIndex] of [this.mySource]"
+     * @return " at character [this.myIndex] of [this.mySource]", the source
+     * is omitted if it is a reader or an array
      */
     public String toString() {
+        if (this.mySource == null) {
+            return " at character " + this.myIndex;
+        }
         return " at character " + this.myIndex + " of " + this.mySource;
     }
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2015, Oracle and/or its affiliates.  All rights reserved. 
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and the
+ * Universal Permissive License (UPL).  See the LICENSE file in the root directory
+ * for license terms.  You may choose either license, or both.
+ */
+package com.oracle.jmee.samples.webserver;
+
+/**
+ * Class which keeps a bounded number of byte buffers for reuse. A buffer is
+ * leased for the time it is needed, e.g. to receive a request or to send a
+ * response, and released afterwards, so it can be leased again by the same or
+ * another connection. In the steady state no buffers are allocated for
+ * I/O.<br><br>
+ *
+ * A lease returns a free buffer at least as large as requested, a new buffer
+ * is created only if there is none. Released buffers which are larger than
+ * the maximum pooled size or do not fit the pool are left to the garbage
+ * collector, so buffers grown for an unusually large request do not stay in
+ * memory.<br><br>
+ *
+ * A buffer must not be used after it has been released. This class is
+ * thread-safe.
+ */
+/* package */ class BufferArena {
+
+    // Free buffers, the first freeCount elements are used
+    private final byte[][] free;
+
+    // Number of free buffers
+    private int freeCount = 0;
+
+    // Maximum size of a buffer which is kept for reuse
+    private final int maximumPooledSize;
+
+    // Number of buffers which have been created because no free buffer fit
+    private int allocationsNumber = 0;
+
+    /**
+     * Creates a new arena.
+     *
+     * @param capacity maximum number of free buffers kept for reuse
+     * @param maximumPooledSize maximum size of a buffer kept for reuse
+     * @throws IllegalArgumentException if the capacity is negative
+     */
+    public BufferArena(int capacity, int maximumPooledSize) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative");
+        }
+        this.free = new byte[capacity][];
+        this.maximumPooledSize = maximumPooledSize;
+    }
+
+    /**
+     * Leases a buffer of at least the specified size. The buffer contains
+     * the data of its previous user.
+     *
+     * @param size the minimum size of the buffer
+     * @return the buffer which must be released when it is not needed
+     */
+    public byte[] lease(int size) {
+        synchronized (this) {
+            // The smallest free buffer which fits is taken
+            int best = -1;
+            for (int i = 0; i < freeCount; i++) {
+                int length = free[i].length;
+                if (length >= size && (best < 0 || length < free[best].length)) {
+                    best = i;
+                }
+            }
+            if (best >= 0) {
+                byte[] buffer = free[best];
+                free[best] = free[--freeCount];
+                free[freeCount] = null;
+                return buffer;
+            }
+            allocationsNumber++;
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Returns the buffer to the arena. Does nothing if the buffer is null.
+     *
+     * @param buffer the leased buffer
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length > maximumPooledSize) {
+            return;
+        }
+        synchronized (this) {
+            if (freeCount < free.length) {
+                free[freeCount++] = buffer;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of buffers which have been created because there
+     * was no suitable free buffer.
+     *
+     * @return the number of allocated buffers
+     */
+    public synchronized int getAllocationsNumber() {
+        return allocationsNumber;
+    }
+}
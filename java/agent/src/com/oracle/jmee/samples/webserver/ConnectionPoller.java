@@ -0,0 +1,392 @@
+/*
+ * Copyright © 2015, Oracle and/or its affiliates.  All rights reserved. 
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and the
+ * Universal Permissive License (UPL).  See the LICENSE file in the root directory
+ * for license terms.  You may choose either license, or both.
+ */
+package com.oracle.jmee.samples.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Vector;
+import javax.microedition.io.SocketConnection;
+import amplia.util.Objects;
+
+/**
+ * Class which watches all open client connections from a single thread. Java
+ * ME does not provide selectors, so the readiness of a connection is checked
+ * using {@link java.io.InputStream#available()} and only the bytes which are
+ * already available are read, the poller thread never blocks on a
+ * connection. When the request line and headers have been received, the
+ * connection is passed to the working threads of the executor, which read the
+ * body of the request directly from the connection. While the request is
+ * served the connection is not polled.<br><br>
+ *
+ * When no connection has made progress for a few passes the poller sleeps,
+ * doubling the sleep time up to {@link #MAXIMUM_SLEEP_MS} while the
+ * connections stay silent. A connection which has been registered or
+ * returned after serving a request wakes the poller immediately.<br><br>
+ *
+ * Connections which stay idle longer than the idle timeout are closed. As the
+ * end of the stream cannot be detected without a blocking read, connections
+ * closed by the client are also released this way. Busy connections whose
+ * working thread waits for the body longer than the idle timeout are closed
+ * too, which releases the working thread.
+ */
+/* package */ class ConnectionPoller implements Runnable {
+
+    // Minimum and maximum time to sleep when no connection is ready
+    private static final int MINIMUM_SLEEP_MS = 1;
+    public static final int MAXIMUM_SLEEP_MS = 50;
+
+    // Number of passes made without sleeping after a connection has made
+    // progress, the next request of an active client usually arrives sooner
+    // than the shortest sleep
+    private static final int SPIN_PASSES = 32;
+
+    // Connections which are served by this poller
+    private final Vector connections = new Vector(); // PolledConnection
+
+    // Copy of the connections which is iterated by the poller thread
+    private PolledConnection[] polled = new PolledConnection[16];
+
+    // Executor which serves the complete requests
+    private final WorkerPoolExecutor threadPool;
+
+    // Registry of the request handlers
+    private final RequestHandlersRegistry requestHandlersRegistry;
+
+    // Name of the server for the "Server" response header
+    private final String serverName;
+
+    // Maximum number of connections served at once
+    private final int maxConnections;
+
+    // Maximum time to wait for a request in milliseconds
+    private final int idleTimeoutMs;
+
+    // Flag which determines whether the connections should be persisted
+    private volatile boolean persistConnections = true;
+
+    // Maximum number of requests served over a persistent connection
+    private volatile int maxRequestsPerConnection = 0;
+
+    // Arena to lease the connection buffers from, may be null
+    private BufferArena bufferArena;
+
+    // Set when a connection has been registered or returned
+    private boolean wakeUp = false;
+
+    // Flag to check whether the poller is running
+    private volatile boolean shouldRun = false;
+
+    // Thread which polls the connections
+    private Thread thread;
+
+    /**
+     * Creates a new poller.
+     *
+     * @param threadPool the executor which serves the requests
+     * @param requestHandlersRegistry registry to locate the request handlers
+     * @param serverName name of the server
+     * @param maxConnections maximum number of connections served at once
+     * @param idleTimeoutMs maximum time in milliseconds a connection may wait
+     * for a request
+     * @throws NullPointerException if the executor or registry is null
+     * @throws IllegalArgumentException if the maximum number of connections or
+     * the idle timeout is zero or negative
+     */
+    public ConnectionPoller(WorkerPoolExecutor threadPool, RequestHandlersRegistry requestHandlersRegistry, String serverName, int maxConnections, int idleTimeoutMs) {
+        Objects.requireNonNull(threadPool, "Thread pool must not be null");
+        Objects.requireNonNull(requestHandlersRegistry, "Handlers registry must not be null");
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Maximum connections number must be bigger than 0");
+        }
+        if (idleTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be bigger than 0");
+        }
+        this.threadPool = threadPool;
+        this.requestHandlersRegistry = requestHandlersRegistry;
+        this.serverName = serverName;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Starts the poller thread.
+     */
+    public synchronized void start() {
+        if (shouldRun) {
+            return;
+        }
+        shouldRun = true;
+        thread = new Thread(this);
+        thread.start();
+    }
+
+    /**
+     * Stops the poller thread and closes the connections which are waiting
+     * for a request. Connections whose requests are being served are closed
+     * after their responses have been sent.
+     *
+     * @throws InterruptedException if interrupted while waiting for the
+     * poller thread to finish
+     */
+    public void stop() throws InterruptedException {
+        Thread pollerThread;
+        synchronized (this) {
+            if (!shouldRun) {
+                return;
+            }
+            shouldRun = false;
+            pollerThread = thread;
+            thread = null;
+        }
+        wakeUp();
+        pollerThread.join();
+
+        PolledConnection[] current = snapshot();
+        for (int i = 0; i < current.length && current[i] != null; i++) {
+            if (!current[i].isBusy()) {
+                remove(current[i]);
+            }
+        }
+    }
+
+    /**
+     * Adds the accepted connection to the polled ones. If there are too many
+     * connections already, the client is answered with "503 Service
+     * Unavailable" and the connection is closed.
+     *
+     * @param clientConnection the accepted client connection
+     * @param bufferSize initial size of the buffer to receive requests
+     * @param maximumHeadSize maximum size of the request headers
+     * @throws IOException if the connection streams cannot be opened
+     */
+    public void register(SocketConnection clientConnection, int bufferSize, int maximumHeadSize) throws IOException {
+        PolledConnection connection = new PolledConnection(clientConnection, this, bufferSize, maximumHeadSize);
+        synchronized (connections) {
+            if (shouldRun && connections.size() < maxConnections) {
+                connections.addElement(connection);
+                connection = null;
+            }
+        }
+        if (connection != null) {
+            System.out.println("Too many connections, rejecting client");
+            reject(connection);
+            return;
+        }
+        wakeUp();
+    }
+
+    /**
+     * Called by a working thread when the request of the connection has been
+     * served.
+     *
+     * @param connection the connection which request has been served
+     * @param persistConnection true if the connection should be polled for
+     * the next request, false if it should be closed
+     */
+    public void requestServed(PolledConnection connection, boolean persistConnection) {
+        if (persistConnection && shouldRun) {
+            connection.setBusy(false);
+            if (!shouldRun) {
+                // The poller has been stopped meanwhile and might have missed
+                // this connection while closing the idle ones
+                remove(connection);
+                return;
+            }
+            // Pipelined request may be already in the buffer
+            wakeUp();
+        } else {
+            remove(connection);
+        }
+    }
+
+    /**
+     * Returns the number of the polled connections.
+     *
+     * @return the number of connections
+     */
+    public int getConnectionsNumber() {
+        return connections.size();
+    }
+
+    /**
+     * Sets whether the connections are persisted if the requests suggest it.
+     *
+     * @param persistConnections true to persist connections
+     */
+    public void setPersistConnections(boolean persistConnections) {
+        this.persistConnections = persistConnections;
+    }
+
+    /**
+     * Sets the arena the connections lease their buffers from. Must be called
+     * before the poller is started.
+     *
+     * @param bufferArena the arena or null to allocate the buffers
+     */
+    public void setBufferArena(BufferArena bufferArena) {
+        this.bufferArena = bufferArena;
+    }
+
+    /**
+     * Sets the maximum number of requests served over a single connection.
+     *
+     * @param maxRequestsPerConnection the maximum number of requests or 0 for
+     * no limit
+     */
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    /* package */ boolean isPersistConnections() {
+        return persistConnections;
+    }
+
+    /* package */ int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    /* package */ RequestHandlersRegistry getRequestHandlersRegistry() {
+        return requestHandlersRegistry;
+    }
+
+    /* package */ String getServerName() {
+        return serverName;
+    }
+
+    /* package */ BufferArena getBufferArena() {
+        return bufferArena;
+    }
+
+    /**
+     * Polls the connections until the poller is stopped.
+     */
+    // @Override
+    public void run() {
+        System.out.println("Started polling connections...");
+        int sleepTime = MINIMUM_SLEEP_MS;
+        int spinPasses = 0;
+        while (shouldRun) {
+            boolean progress = pollConnections();
+            synchronized (this) {
+                if (progress || wakeUp) {
+                    wakeUp = false;
+                    sleepTime = MINIMUM_SLEEP_MS;
+                    spinPasses = SPIN_PASSES;
+                    continue;
+                }
+            }
+            if (spinPasses > 0) {
+                spinPasses--;
+                Thread.yield();
+                continue;
+            }
+            synchronized (this) {
+                try {
+                    wait(sleepTime);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (sleepTime < MAXIMUM_SLEEP_MS) {
+                sleepTime *= 2;
+                if (sleepTime > MAXIMUM_SLEEP_MS) {
+                    sleepTime = MAXIMUM_SLEEP_MS;
+                }
+            }
+        }
+    }
+
+    // Performs a single pass over the connections, returns true if any
+    // connection has received data
+    private boolean pollConnections() {
+        PolledConnection[] current = snapshot();
+        long now = System.currentTimeMillis();
+        boolean progress = false;
+        for (int i = 0; i < current.length; i++) {
+            PolledConnection connection = current[i];
+            if (connection == null) {
+                break;
+            }
+            current[i] = null;
+            if (connection.isBusy()) {
+                if (connection.getBodyReadingTime(now) > idleTimeoutMs) {
+                    System.out.println("Closing connection stalled while sending body");
+                    // The working thread fails to read and removes the
+                    // connection
+                    connection.closeConnection();
+                }
+                continue;
+            }
+            try {
+                if (connection.readAvailable(now)) {
+                    progress = true;
+                }
+                if (connection.hasCompleteRequest()) {
+                    dispatch(connection);
+                } else if (now - connection.getLastActivityTime() > idleTimeoutMs) {
+                    System.out.println("Closing idle connection after " + (now - connection.getLastActivityTime()) + " ms");
+                    remove(connection);
+                }
+            } catch (IllegalArgumentException e) {
+                // Malformed or too large request
+                System.out.println("Error while serving client: " + e.getMessage());
+                connection.sendError(HttpResponse.badRequest());
+                remove(connection);
+            } catch (EOFException e) {
+                remove(connection);
+            } catch (IOException e) {
+                System.out.println("Error while handling client: " + e.getMessage());
+                remove(connection);
+            }
+        }
+        return progress;
+    }
+
+    // Passes the connection with a complete request to the working threads
+    private void dispatch(PolledConnection connection) {
+        connection.setBusy(true);
+        if (!threadPool.execute(connection)) {
+            System.out.println("Too many pending requests, rejecting client");
+            reject(connection);
+            remove(connection);
+        }
+    }
+
+    private void reject(PolledConnection connection) {
+        HttpResponse response = new HttpResponse(Status.SERVICE_UNAVAILABLE);
+        response.addHeader("Retry-After", "1");
+        connection.sendError(response);
+        connection.closeConnection();
+    }
+
+    private void remove(PolledConnection connection) {
+        connections.removeElement(connection);
+        connection.dispose();
+    }
+
+    private void wakeUp() {
+        synchronized (this) {
+            wakeUp = true;
+            notify();
+        }
+    }
+
+    // Copies the connections into the reused array, the end of them is
+    // marked with null
+    private PolledConnection[] snapshot() {
+        synchronized (connections) {
+            int size = connections.size();
+            if (polled.length <= size) {
+                polled = new PolledConnection[size * 2];
+            }
+            connections.copyInto(polled);
+            polled[size] = null;
+            return polled;
+        }
+    }
+}
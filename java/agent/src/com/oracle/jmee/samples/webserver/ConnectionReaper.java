@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2015, Oracle and/or its affiliates.  All rights reserved. 
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and the
+ * Universal Permissive License (UPL).  See the LICENSE file in the root directory
+ * for license terms.  You may choose either license, or both.
+ */
+package com.oracle.jmee.samples.webserver;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+import amplia.util.Objects;
+
+/**
+ * Class which periodically closes client connections that have been waiting
+ * for a request for too long. A blocked read is released when its socket is
+ * closed, so reaping an idle connection frees the working thread which served
+ * it. This is needed because socket timeout option is not available on every
+ * platform.<br><br>
+ *
+ * A connection is reaped when it has been reading a request longer than the
+ * idle timeout. If there are accepted connections waiting for a working thread,
+ * persistent connections which are idle between requests are reaped sooner,
+ * after {@link #PRESSURE_IDLE_TIMEOUT_MS}, so they do not keep the waiting
+ * clients from being served.
+ */
+/* package */ class ConnectionReaper {
+
+    /**
+     * Time in milliseconds after which a persistent connection idle between
+     * requests is closed when other connections are waiting for a worker.
+     */
+    public static final int PRESSURE_IDLE_TIMEOUT_MS = 1000;
+
+    // Connection handlers which are currently served
+    private final Vector handlers = new Vector(); // SimpleHttpConnectionHandler
+
+    // Maximum time to wait for a request in milliseconds
+    private final int idleTimeoutMs;
+
+    // Executor which serves the connections, used to check pending ones
+    private final WorkerPoolExecutor threadPool;
+
+    // Timer which runs the checks
+    private Timer timer;
+
+    /**
+     * Creates a new reaper.
+     *
+     * @param idleTimeoutMs maximum time in milliseconds a connection may wait
+     * for a request
+     * @param threadPool the executor which serves the connections
+     * @throws NullPointerException if the executor is null
+     * @throws IllegalArgumentException if the idle timeout is zero or negative
+     */
+    public ConnectionReaper(int idleTimeoutMs, WorkerPoolExecutor threadPool) {
+        Objects.requireNonNull(threadPool, "Thread pool must not be null");
+        if (idleTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be bigger than 0");
+        }
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * Starts the periodic checks. Checks are performed twice per the pressure
+     * idle timeout.
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = new Timer();
+        timer.schedule(new TimerTask() {
+
+            // @Override
+            public void run() {
+                reapIdleConnections(threadPool.getQueuedTasksNumber() > 0, PRESSURE_IDLE_TIMEOUT_MS);
+            }
+        }, PRESSURE_IDLE_TIMEOUT_MS / 2, PRESSURE_IDLE_TIMEOUT_MS / 2);
+    }
+
+    /**
+     * Stops the periodic checks. Connections which are still registered are
+     * not closed.
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Adds the connection handler to the checked ones.
+     *
+     * @param handler the handler which starts serving its connection
+     */
+    public void register(SimpleHttpConnectionHandler handler) {
+        handlers.addElement(handler);
+    }
+
+    /**
+     * Removes the connection handler from the checked ones.
+     *
+     * @param handler the handler which has finished serving its connection
+     */
+    public void unregister(SimpleHttpConnectionHandler handler) {
+        handlers.removeElement(handler);
+    }
+
+    /**
+     * Closes all persistent connections which are waiting for the next
+     * request. It is used when the server is stopping.
+     */
+    public void closePersistentConnections() {
+        reapIdleConnections(true, 0);
+    }
+
+    private void reapIdleConnections(boolean underPressure, long pressureIdleTimeout) {
+        long now = System.currentTimeMillis();
+
+        // Copying handlers to avoid holding the lock while closing sockets
+        SimpleHttpConnectionHandler[] current;
+        synchronized (handlers) {
+            current = new SimpleHttpConnectionHandler[handlers.size()];
+            handlers.copyInto(current);
+        }
+
+        for (int i = 0; i < current.length; i++) {
+            SimpleHttpConnectionHandler handler = current[i];
+            long readingTime = handler.getReadingTime(now);
+            if (readingTime < 0) {
+                // Handler is busy serving a request
+                continue;
+            }
+            if (readingTime > idleTimeoutMs
+                || (underPressure && handler.isBetweenRequests() && readingTime >= pressureIdleTimeout)) {
+                System.out.println("Closing idle connection after " + readingTime + " ms");
+                handler.closeConnection();
+            }
+        }
+    }
+}
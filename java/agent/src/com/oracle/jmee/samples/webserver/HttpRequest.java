@@ -7,6 +7,9 @@
  */
 package com.oracle.jmee.samples.webserver;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Enumeration;
@@ -18,7 +21,6 @@ import java.util.Vector;
 //import java.util.List;
 //import java.util.Map;
 //import java.util.Set;
-import java.util.NoSuchElementException;
 import amplia.util.Objects;
 import amplia.util.StringTokenizer;
 
@@ -31,6 +33,11 @@ import amplia.util.StringTokenizer;
  * the returned by some getter methods collections may be modified. Defensive
  * copying is not performed to minimize memory consumption. <br><br>
  *
+ * Requests received by the web server refer to the receiving buffer of the
+ * connection: the header names and values are converted to strings only when
+ * they are asked for. The headers must be obtained while the request is being
+ * handled, the buffer is reused for the next request afterwards.<br><br>
+ *
  * For more information about HTTP protocol and HTTP requests please see <a
  * href="http://tools.ietf.org/html/rfc7230">RFC 7230</a>.<br><br>
  *
@@ -39,10 +46,10 @@ import amplia.util.StringTokenizer;
  */
 public class HttpRequest {
 
-    // Buffer which must be of enough size to fit the request header
+    // Initial size of the buffer to receive the request headers
     private final static int REQUEST_HEADERS_BUFFER_SIZE = 1024;
 
-    // Maximum length of the body that this server supports
+    // Maximum length of the body that may be read into an array
     private static final int MAXIMUM_BODY_LENGTH = 1024 * 1024;
 
     // Address of the request issuer
@@ -51,20 +58,38 @@ public class HttpRequest {
     // Exception message for a bad request
     private static final String BAD_REQUEST_EXCEPTION_MESSAGE = "Bad request";
 
-    // Minimum length of the request. This value is determined by the parsing
-    // algorithm. It checks four bytes at a time to find header end
-    private static final int MINIMUM_REQUEST_LENGTH = 4;
-
-    // Content-Length HTTP Request/Response header
-    private static final String CONTENT_LENGTH_HEADER_FIELD = "Content-Length";
-
-    // Map which is used to store header values identified by header names
+    // Lower case names of the headers which are looked up by the server
+    private static final byte[] CONNECTION_HEADER_BYTES = "connection".getBytes();
+    private static final byte[] COOKIE_HEADER_BYTES = "cookie".getBytes();
+
+    // Protocol versions which are reported without creating a string
+    /* package */ static final String HTTP_1_1_VERSION = "HTTP/1.1";
+    /* package */ static final String HTTP_1_0_VERSION = "HTTP/1.0";
+    private static final byte[] HTTP_1_1_VERSION_BYTES = "http/1.1".getBytes();
+    private static final byte[] HTTP_1_0_VERSION_BYTES = "http/1.0".getBytes();
+
+    // Names of the request methods in the order of their codes
+    private static final String[] METHOD_NAMES = {
+        "OPTIONS", "GET", "HEAD", "POST", "PUT", "DELETE", "TRACE", "CONNECT"
+    };
+    private static final byte[][] METHOD_NAMES_BYTES = {
+        "options".getBytes(), "get".getBytes(), "head".getBytes(), "post".getBytes(),
+        "put".getBytes(), "delete".getBytes(), "trace".getBytes(), "connect".getBytes()
+    };
+
+    // Map which is used to store header values identified by header names. It
+    // is created from the parser offsets when it is asked for
     // private final Map<String, String> headers = new HashMap<>();
-    private final Hashtable headers = new Hashtable(); // String, String
+    private Hashtable headers; // String, String
 
-    // List of the cookies that has been passed by the User-Agent
+    // Parser which holds the received headers, null after the headers have
+    // been materialized or released
+    private HttpRequestParser parser;
+
+    // List of the cookies that has been passed by the User-Agent, parsed
+    // when it is asked for
     // private List<HttpCookie> cookies = new ArrayList<>();
-    private Vector cookies = new Vector(); // HttpCookie
+    private Vector cookies; // HttpCookie
 
     // Parameters that have been passed in the URI
     // private final Map<String, String> uriParameters = new HashMap<>();
@@ -77,8 +102,13 @@ public class HttpRequest {
     // Flag to check whether body parameters have already been passed
     private boolean postParametersParsed = false;
 
-    // An initially empty array to hold body of the request
-    private byte[] body = new byte[0];
+    // Array which holds the body of the request, it is filled from the body
+    // stream when it is asked for
+    private byte[] body;
+
+    // Stream of the body which has not been read into the array yet, null if
+    // the request has no body
+    private RequestBodyInputStream bodyStream;
 
     // Request methods which are specified in the RFC 7231
     // https://tools.ietf.org/html/rfc7231#section-4.1
@@ -161,9 +191,15 @@ public class HttpRequest {
     // The path that has been requested
     private String requestPath;
 
-    // Parsed Content-Length header value
+    // Parsed Content-Length header value, -1 if the body is chunked
     private int contentLength;
 
+    // Length of the request line and headers
+    private int headLength;
+
+    // Route which the request has been dispatched to, null until then
+    private RouteMatch route;
+
     // Constructor is made private because there is nothing to override since
     // all object creation logic is contained in the static parsing methods
     private HttpRequest(String remoteAddress) {
@@ -235,30 +271,75 @@ public class HttpRequest {
      * @return the set which contains the names of the headers
      */
     public Enumeration getHeadersNames() {
-        return headers.keys();
+        return getHeaders().keys();
     }
 
     /**
-     * Returns the value of the header identified by the name.
+     * Returns the value of the header identified by the name. Header names
+     * are compared ignoring case. Only the value of the requested header is
+     * converted to a string.
      *
      * @param headerName name of the header to get the value
      * @return value of the header or null if it is absent
      */
     public String getHeaderValue(String headerName) {
-        return (String)headers.get(headerName);
+        if (headers == null) {
+            if (parser == null) {
+                return null;
+            }
+            int index = parser.findHeader(headerName.toLowerCase().getBytes());
+            return index < 0 ? null : headerString(index, 2);
+        }
+        String value = (String)headers.get(headerName);
+        if (value == null) {
+            for (Enumeration e = headers.keys(); e.hasMoreElements();) {
+                String name = (String)e.nextElement();
+                if (name.equalsIgnoreCase(headerName)) {
+                    return (String)headers.get(name);
+                }
+            }
+        }
+        return value;
     }
 
     /**
      * Returns the map which contains values of all headers identified by header
      * names. Changes made to this map are reflected in other headers-related
-     * methods.
+     * methods. The map is created when this method is called for the first
+     * time.
      *
      * @return the map with header name and value pairs
      */
     public Hashtable getHeaders() {
+        if (headers == null) {
+            headers = new Hashtable();
+            if (parser != null) {
+                // Cookies are parsed while the buffer is still referenced
+                getHttpCookies();
+                int headersNumber = parser.getHeadersNumber();
+                for (int i = 0; i < headersNumber; i++) {
+                    String name = headerString(i, 0);
+                    // The "Cookie" header is available as cookies
+                    if (!name.equalsIgnoreCase("cookie")) {
+                        headers.put(name, headerString(i, 2));
+                    }
+                }
+                parser = null;
+            }
+        }
         return headers;
     }
 
+    /**
+     * Releases the receiving buffer of the connection. Called by the server
+     * after the response has been sent, the buffer is reused for the next
+     * request then. Headers which have not been asked for before are not
+     * available afterwards.
+     */
+    /* package */ void release() {
+        parser = null;
+    }
+
     /**
      * Returns the set of URI parameter names which were specified in the
      * request. The removal of set elements is reflected in all URI parameter-
@@ -291,6 +372,33 @@ public class HttpRequest {
         return (String)uriParameters.get(parameterName);
     }
 
+    /**
+     * Returns the value of the path template variable captured when the
+     * request has been dispatched, e.g. "dev1" for the "deviceId" variable if
+     * the handler has been registered for "/devices/{deviceId}" and the
+     * request path is "/devices/dev1/status".
+     *
+     * @param variableName name of the variable without braces
+     * @return value of the variable or null if it is absent
+     */
+    public String getPathVariable(String variableName) {
+        return route == null ? null : route.getPathVariable(variableName);
+    }
+
+    /**
+     * Returns the route which the request has been dispatched to: the
+     * matched context path, the path template and the handler.
+     *
+     * @return the route or null if the request has not been dispatched
+     */
+    public RouteMatch getRoute() {
+        return route;
+    }
+
+    /* package */ void setRoute(RouteMatch route) {
+        this.route = route;
+    }
+
     /**
      * Returns the HTTP version string that has been specified in the request,
      * e.g. "HTTP/1.1".
@@ -309,6 +417,16 @@ public class HttpRequest {
      * @return list with the cookies that were provided in the request
      */
     public Vector getHttpCookies() {
+        if (cookies == null) {
+            String cookieHeader = null;
+            if (parser != null) {
+                int index = parser.findHeader(COOKIE_HEADER_BYTES);
+                if (index >= 0) {
+                    cookieHeader = headerString(index, 2);
+                }
+            }
+            cookies = cookieHeader == null ? new Vector() : HttpCookie.fromCookieHeader(cookieHeader);
+        }
         return cookies;
     }
 
@@ -322,7 +440,7 @@ public class HttpRequest {
      */
     public HttpCookie getHttpCookie(String cookieName) {
         Objects.requireNonNull(cookieName, "Cookie name must not be null");
-        for(Enumeration e = cookies.elements();e.hasMoreElements();)
+        for(Enumeration e = getHttpCookies().elements();e.hasMoreElements();)
         {
             HttpCookie cookie = (HttpCookie)e.nextElement();
             if (cookie.getName().equalsIgnoreCase(cookieName)) {
@@ -343,7 +461,7 @@ public class HttpRequest {
      */
     public String getHttpCookieValue(String cookieName) {
         Objects.requireNonNull(cookieName, "Cookie name must not be null");
-        for(Enumeration e = cookies.elements();e.hasMoreElements();)
+        for(Enumeration e = getHttpCookies().elements();e.hasMoreElements();)
         {
             HttpCookie cookie = (HttpCookie)e.nextElement();
             if (cookie.getName().equalsIgnoreCase(cookieName)) {
@@ -362,7 +480,7 @@ public class HttpRequest {
      */
     public Enumeration getPostParametersNames() {
         if (!postParametersParsed) {
-            parsePostParameters(new String(body), postParameters);
+            parsePostParameters(getRequestBodyAsString(), postParameters);
             postParametersParsed = true;
         }
         return postParameters.keys();
@@ -379,7 +497,7 @@ public class HttpRequest {
         Objects.requireNonNull(parameterName, "Parameter name must not be null");
 
         if (!postParametersParsed) {
-            parsePostParameters(new String(body), postParameters);
+            parsePostParameters(getRequestBodyAsString(), postParameters);
             postParametersParsed = true;
         }
         return (String)postParameters.get(parameterName);
@@ -394,19 +512,62 @@ public class HttpRequest {
      */
     public Hashtable getPostParameters() {
         if (!postParametersParsed) {
-            parsePostParameters(new String(body), postParameters);
+            parsePostParameters(getRequestBodyAsString(), postParameters);
             postParametersParsed = true;
         }
         return postParameters;
     }
 
+    /**
+     * Returns the length of the request body as specified by the
+     * Content-Length header.
+     *
+     * @return the length of the body, 0 if there is no body or -1 if the body
+     * uses the chunked transfer coding and its length is unknown
+     */
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns the stream to read the request body incrementally. The body is
+     * not stored in memory, so large bodies may be handled with a small
+     * buffer. The stream ends with the body. The stream must be read while the
+     * request is being handled, the part which has not been read is discarded
+     * by the server afterwards. A chunked body is decoded by the stream. If
+     * the body has already been obtained as an array, the stream reads that
+     * array.
+     *
+     * @return the stream of the request body, an empty stream if the request
+     * does not contain a body
+     */
+    public InputStream getRequestBodyStream() {
+        if (body != null || bodyStream == null) {
+            return new ByteArrayInputStream(getRequestBody());
+        }
+        return bodyStream;
+    }
+
     /**
      * Returns request body as an array of bytes. An empty array (zero length)
-     * is returned if the request does not contain a body.
+     * is returned if the request does not contain a body. The body is read
+     * into an array of its length when this method is called for the first
+     * time, a chunked body is collected in a growing array, so handlers which
+     * expect large bodies should use
+     * {@link #getRequestBodyStream()} instead.
      *
      * @return array of bytes which contains request body
+     * @throws IllegalArgumentException if the body is longer than the server
+     * supports or it cannot be read completely
      */
     public byte[] getRequestBody() {
+        if (body == null) {
+            if (bodyStream == null) {
+                body = new byte[0];
+            } else {
+                body = contentLength < 0 ? readChunkedBody(bodyStream) : readBody(bodyStream, contentLength);
+            }
+        }
         return body;
     }
 
@@ -415,9 +576,55 @@ public class HttpRequest {
      * request does not contain a body.
      *
      * @return string which contains request body
+     * @throws IllegalArgumentException if the body is longer than the server
+     * supports or it cannot be read completely
      */
     public String getRequestBodyAsString() {
-        return new String(body);
+        return new String(getRequestBody());
+    }
+
+    /**
+     * Reads and discards the part of the body which has not been read by the
+     * handler, so the next request over the same connection may be read.
+     *
+     * @param maxBytes maximum number of bytes to discard
+     * @return true if the body has been read completely, false if the rest is
+     * longer than the specified number of bytes or it cannot be read, so the
+     * connection should be closed instead
+     */
+    /* package */ boolean discardBody(int maxBytes) {
+        if (bodyStream == null) {
+            return true;
+        }
+        try {
+            return bodyStream.discard(maxBytes);
+        } catch (IOException e) {
+            System.out.println("Failed to discard request body: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of bytes in the buffer of the parser which belong to
+     * this request: the head and the part of the body which has been taken
+     * from the buffer. The bytes after them belong to the next requests.
+     *
+     * @return the number of bytes consumed from the buffer
+     */
+    public int getConsumedLength() {
+        return bodyStream == null ? headLength : bodyStream.getBufferPosition();
+    }
+
+    /**
+     * Returns for how long the body stream has been blocked reading from the
+     * connection.
+     *
+     * @param now current time in milliseconds
+     * @return the time in milliseconds or -1 if the body is not being read
+     */
+    /* package */ long getBodyReadingTime(long now) {
+        RequestBodyInputStream stream = bodyStream;
+        return stream == null ? -1 : stream.getReadingTime(now);
     }
 
     /**
@@ -435,7 +642,13 @@ public class HttpRequest {
         // Deciding whether to persist this connection according to the
         // algorithm which is described in the RFC 7230 6.3 Persistence
         // paragraph
-        String connectionOptions = (String)headers.get("Connection");
+        String connectionOptions;
+        if (headers == null && parser != null) {
+            int index = parser.findHeader(CONNECTION_HEADER_BYTES);
+            connectionOptions = index < 0 ? null : headerString(index, 2);
+        } else {
+            connectionOptions = getHeaderValue("Connection");
+        }
         if (connectionOptions == null) {
             connectionOptions = "";
         } else {
@@ -449,7 +662,7 @@ public class HttpRequest {
             // Connections are persisted by default when HTTP/1.1 is used. Also
             // connection should be persisted if HTTP/1.0 request has
             // "keep-alive" connection option set
-            return "HTTP/1.1".equals(httpVersion) || ("HTTP/1.0".equals(httpVersion) && (connectionOptions.indexOf("keep-alive")>=0));
+            return HTTP_1_1_VERSION.equals(httpVersion) || (HTTP_1_0_VERSION.equals(httpVersion) && (connectionOptions.indexOf("keep-alive")>=0));
         }
     }
 
@@ -475,185 +688,195 @@ public class HttpRequest {
     /**
      * Parses the HTTP request contained in the provided input stream using the
      * specified length of the buffer and returns its object representation.
-     * This method allows to configure the size of the buffer to read all
-     * request headers. Size must be big enough to fit request body. This method
-     * will allocate buffer of an appropriate length specially for request body.
+     * This method allows to configure the initial size of the buffer to read
+     * the request headers. The buffer grows if the headers do not fit it, up
+     * to {@link HttpRequestParser#DEFAULT_MAXIMUM_HEAD_SIZE} bytes. This
+     * method will allocate buffer of an appropriate length specially for
+     * request body.
      *
      * @param remoteAddress an address of the request sender. It should contain
      * IP address or domain name and a port delimited with ':', e.g
      * "127.0.0.1:56789".
      * @param inputStream an input stream containing request to parse
-     * @param receivingBufferSize the size of buffer. Must be positive. Make
-     * sure that it is big enough to fit all request headers.
+     * @param receivingBufferSize the initial size of buffer. Must be positive.
      * @return an object which represents the received request
+     * @throws EOFException if the stream ends before the request starts
      * @throws IOException if any I/O error occurs during request parsing
      * @throws NullPointerException if remote address or input stream is null
      * @throws IllegalArgumentException <ul><li>
      * if the input stream contains malformed request</li>
-     * <li>if the receiving buffer size was not big enough to parse the
-     * request</li>
+     * <li>if the request headers are too long</li>
      * <li>if the receiving buffer size is non-positive</li></ul>
      */
     public static HttpRequest parseRequest(String remoteAddress, InputStream inputStream, int receivingBufferSize) throws IOException {
+        HttpRequest request = parseRequest(remoteAddress, inputStream, new HttpRequestParser(receivingBufferSize));
+        // The stream is not kept by the caller, so the body is read now
+        request.getRequestBody();
+        return request;
+    }
+
+    /**
+     * Parses the HTTP request contained in the provided input stream using the
+     * specified parser and returns its object representation. The parser
+     * should be kept for the connection and reused for the following requests:
+     * it keeps the bytes of pipelined requests which have been received after
+     * this request and its buffer is not allocated again. The request body is
+     * not read by this method, it is available as a stream which reads the
+     * received part from the buffer of the parser and the rest directly from
+     * the input stream.<br><br>
+     *
+     * {@link HttpRequestParser#nextRequest(int)} must be called with
+     * {@link #getConsumedLength()} after the request has been served and its
+     * body has been read or discarded, before the next request is parsed.
+     *
+     * @param remoteAddress an address of the request sender. It should contain
+     * IP address or domain name and a port delimited with ':', e.g
+     * "127.0.0.1:56789".
+     * @param inputStream an input stream containing request to parse
+     * @param parser the parser of the connection
+     * @return an object which represents the received request
+     * @throws EOFException if the stream ends before the request starts
+     * @throws IOException if any I/O error occurs during request parsing
+     * @throws NullPointerException if remote address, input stream or parser
+     * is null
+     * @throws IllegalArgumentException if the input stream contains malformed
+     * request or the request headers are too long
+     */
+    public static HttpRequest parseRequest(String remoteAddress, InputStream inputStream, HttpRequestParser parser) throws IOException {
         Objects.requireNonNull(remoteAddress, "Remote address must not be null");
         Objects.requireNonNull(inputStream, "Input stream must not be null");
-        if (receivingBufferSize <= 0) {
-            throw new IllegalArgumentException("Illegal buffer size. Must be positive. Specified: " + receivingBufferSize);
-        }
-
-        byte[] buffer = new byte[receivingBufferSize];
-        int bufferOffset = 0;
-        int bytesRead;
-        int bodyStartIndex = -1;
-        int lineNumber = 0;
-        int lineStartIndex = 0;
-        int startParsingIndex = 0;
-
-        HttpRequest request = new HttpRequest(remoteAddress);
-        // Reading either full request or the part that should ideally contain
-        // all headers. If headers do not fit the provided buffer an exception
-        // it thrown further
-        // -1 is returned when socket is closed
-        while ((bytesRead = inputStream.read(buffer, bufferOffset, buffer.length - bufferOffset)) != -1) {
-
-            if (bytesRead == 0) {
-                // End of buffer has been reached. This request cannot be
-                // handled: it is too long for such server buffer size to parse.
-                // This implementation does not use any buffer cycling strategy.
-                break;
-            }
-
-            bufferOffset += bytesRead;
-            // Too little bytes were read to parse request
-            if (bufferOffset <= MINIMUM_REQUEST_LENGTH) {
-                continue;
-            }
-
-            // It is possible that next read is going to block (full request has
-            // been read, but connection is still alive), because -1 will
-            // be returned by read only when the client socket is closed. 
-            // By now bufferOffset contains number of data bytes that were read
-            for (int byteIndex = startParsingIndex; byteIndex < bufferOffset; byteIndex++) {
-
-                // Note: this implementation only parses correctly requests with
-                // \r\n end of line characters.
-                // Checking that we are on the end of line and that it is not the
-                // last CRLF which delimits header from body
-                if (buffer[byteIndex] == '\n' && buffer[byteIndex - 1] == '\r' && (buffer[byteIndex - 2] != '\n' && buffer[byteIndex - 3] != '\r')) {
-
-                    // Extracting line from the buffer. Line starts where prevoius
-                    // line ended and ends before new line characters.
-                    int endOfLineIndex = byteIndex - 2;
-
-                    String line = new String(buffer, lineStartIndex, endOfLineIndex - lineStartIndex + 1);
-                    // Changing index which points to the start of the next line
-                    lineStartIndex = byteIndex + 1;
-                    if (lineNumber == 0) {
-                        // Parsing http method, uri, version
-                        parseRequestLine(request, line);
-                    } else {
-                        // Parsing line as header
-                        parseRequestHeader(request, line);
-                    }
-                    lineNumber++;
-                }
-
-                // Trying to find end of headers
-                if (buffer[byteIndex] == '\n' && buffer[byteIndex - 1] == '\r'
-                    && buffer[byteIndex - 2] == '\n' && buffer[byteIndex - 3] == '\r') {
-                    bodyStartIndex = byteIndex + 1;
-                    break;
+        Objects.requireNonNull(parser, "Parser must not be null");
+
+        // Reading until the end of headers has been received. The bytes
+        // which have been read after it are kept by the parser
+        while (!parser.isHeadComplete()) {
+            // -1 is returned when socket is closed
+            if (parser.readFrom(inputStream, Integer.MAX_VALUE) == -1) {
+                if (parser.isEmpty()) {
+                    // Stream has ended before any byte of the request, e.g. a
+                    // persistent connection has been closed by the client
+                    throw new EOFException("Connection closed before request");
                 }
+                // This means that end of headers has not been found due to
+                // malformed request
+                throw new IllegalArgumentException(BAD_REQUEST_EXCEPTION_MESSAGE + ": failed to find end of headers");
             }
+        }
 
-            // Marking that next time parsing should be started from the current
-            // position
-            startParsingIndex = bufferOffset;
+        return parseReceivedRequest(remoteAddress, inputStream, parser);
+    }
 
-            if (bodyStartIndex != -1) {
-                // End of headers has been found
-                break;
-            }
+    /**
+     * Creates the request from the parser which has received the request
+     * line and headers. The body is read through the stream which reads the
+     * received part from the buffer of the parser and the rest from the
+     * specified input stream.
+     *
+     * @param remoteAddress an address of the request sender
+     * @param inputStream the stream to read the rest of the body from
+     * @param parser the parser which has received the request head
+     * @return an object which represents the received request
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    /* package */ static HttpRequest parseReceivedRequest(String remoteAddress, InputStream inputStream, HttpRequestParser parser) {
+        HttpRequest request = fromParser(remoteAddress, parser);
+        int bufferedLength = parser.getLength() - request.headLength;
+        if (parser.isChunked()) {
+            request.contentLength = -1;
+            request.bodyStream = new RequestBodyInputStream(parser.getBuffer(), request.headLength, bufferedLength, inputStream);
+        } else if (request.contentLength > 0) {
+            request.bodyStream = new RequestBodyInputStream(parser.getBuffer(), request.headLength,
+                bufferedLength, inputStream, request.contentLength);
         }
-
-        if (bufferOffset <= MINIMUM_REQUEST_LENGTH) {
-            throw new IllegalArgumentException(BAD_REQUEST_EXCEPTION_MESSAGE + ": request is too short. Length is " + bufferOffset);
+        if (request.bodyStream != null) {
+            request.bodyStream.setBufferArena(parser.getBufferArena());
         }
+        return request;
+    }
 
-        // This means that end of headers has not been found due to malformed
-        // request or end of headers exceeds the server buffer size
-        if (bodyStartIndex == -1) {
-            throw new IllegalArgumentException(BAD_REQUEST_EXCEPTION_MESSAGE + ": failed to find end of headers");
+    // Creates the request from the parsed head. Only the URI is converted
+    // to a string here, headers are converted when they are asked for
+    private static HttpRequest fromParser(String remoteAddress, HttpRequestParser parser) {
+        HttpRequest request = new HttpRequest(remoteAddress);
+        byte[] buffer = parser.getBuffer();
+
+        int methodStart = parser.getMethodStart();
+        int methodEnd = parser.getMethodEnd();
+        request.requestMethod = UNKNOWN_REQUEST_METHOD;
+        for (int i = 0; i < METHOD_NAMES_BYTES.length; i++) {
+            if (parser.equalsIgnoreCase(methodStart, methodEnd, METHOD_NAMES_BYTES[i])) {
+                request.requestMethod = i;
+                request.httpMethod = METHOD_NAMES[i];
+                break;
+            }
         }
-
-        if (request.contentLength > MAXIMUM_BODY_LENGTH) {
-            throw new IllegalArgumentException("Entity is too large: " + request.contentLength);
+        if (request.requestMethod == UNKNOWN_REQUEST_METHOD) {
+            request.httpMethod = new String(buffer, methodStart, methodEnd - methodStart);
         }
 
-        if (request.contentLength > 0) {
-            // Filling body from the request
-            request.body = new byte[request.contentLength];
-            fillBody(request, bufferOffset, bodyStartIndex, buffer, inputStream);
+        request.requestUri = decodeUri(buffer, parser.getUriStart(), parser.getUriEnd());
+        parseRequestUri(request);
+
+        int versionStart = parser.getVersionStart();
+        int versionEnd = parser.getVersionEnd();
+        if (parser.equalsIgnoreCase(versionStart, versionEnd, HTTP_1_1_VERSION_BYTES)) {
+            request.httpVersion = HTTP_1_1_VERSION;
+        } else if (parser.equalsIgnoreCase(versionStart, versionEnd, HTTP_1_0_VERSION_BYTES)) {
+            request.httpVersion = HTTP_1_0_VERSION;
+        } else {
+            request.httpVersion = new String(buffer, versionStart, versionEnd - versionStart);
         }
 
+        request.contentLength = parser.getContentLength();
+        request.headLength = parser.getHeadLength();
+        request.parser = parser;
         return request;
     }
 
-    private static void fillBody(HttpRequest request, int bufferOffset, int bodyStartIndex, byte[] buffer, InputStream inputStream) throws IOException, IllegalArgumentException {
+    private static byte[] readBody(InputStream bodyStream, int contentLength) throws IllegalArgumentException {
+        if (contentLength > MAXIMUM_BODY_LENGTH) {
+            throw new IllegalArgumentException("Entity is too large: " + contentLength);
+        }
+        byte[] body = new byte[contentLength];
         int bytesRead;
-        int totalRead;
-
-        // bufferOffset points to the position inside an array to start next
-        // reading, so the last element to copy is contained in the position
-        // bufferOffset - 1. The first element to copy is contained at the
-        // bodyStartIndex position. Then it is required to copy
-        // <end> - <start> + 1 elements. Expression is not optimized for
-        // clarity
-        int firstPartOfBodyLength = (bufferOffset - 1) - bodyStartIndex + 1;
-        // Filling part that has been read during headers reading
-        System.arraycopy(buffer, bodyStartIndex, request.body, 0, firstPartOfBodyLength);
-        totalRead = firstPartOfBodyLength;
-        // Checking that there is some data inside the stream which has not
-        // been read
-        // Filling part that is currently inside the stream (if any)
-        while (totalRead != request.contentLength && (bytesRead = inputStream.read(request.body, totalRead, request.contentLength - totalRead)) != -1) {
-            totalRead += bytesRead;
-        }
-
-        // Currently totalRead contains number of bytes that were read
-        // totally
+        int totalRead = 0;
+        try {
+            while (totalRead != contentLength && (bytesRead = bodyStream.read(body, totalRead, contentLength - totalRead)) != -1) {
+                totalRead += bytesRead;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(BAD_REQUEST_EXCEPTION_MESSAGE + ": failed to read body: " + e.getMessage());
+        }
+
         // Checking that needed amount of data has been read
-        if (totalRead != request.contentLength) {
-            throw new IllegalArgumentException(BAD_REQUEST_EXCEPTION_MESSAGE + "Wrong amount of data: content length: " + request.contentLength + " read: " + totalRead);
+        if (totalRead != contentLength) {
+            throw new IllegalArgumentException(BAD_REQUEST_EXCEPTION_MESSAGE + "Wrong amount of data: content length: " + contentLength + " read: " + totalRead);
         }
+        return body;
     }
 
-    private static void parseRequestLine(HttpRequest request, String line) {
-        StringTokenizer tokenizer = new StringTokenizer(line);
+    private static byte[] readChunkedBody(InputStream bodyStream) throws IllegalArgumentException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int bytesRead;
         try {
-            // Extracting and parsing needed information from request line
-            request.httpMethod = tokenizer.nextToken();
-            request.requestMethod = parseHttpMethod(request.httpMethod);
-
-            request.requestUri = decodeUri(tokenizer.nextToken());
-            parseRequestUri(request);
-
-            request.httpVersion = tokenizer.nextToken();
-        } catch (NoSuchElementException e) {
-            throw new IllegalArgumentException(BAD_REQUEST_EXCEPTION_MESSAGE + ": Failed to parse request line: " + line);
+            while ((bytesRead = bodyStream.read(buffer, 0, buffer.length)) != -1) {
+                if (body.size() + bytesRead > MAXIMUM_BODY_LENGTH) {
+                    throw new IllegalArgumentException("Entity is too large: more than " + MAXIMUM_BODY_LENGTH);
+                }
+                body.write(buffer, 0, bytesRead);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(BAD_REQUEST_EXCEPTION_MESSAGE + ": failed to read body: " + e.getMessage());
         }
+        return body.toByteArray();
     }
 
-    private static int parseHttpMethod(String method) {
-        if(method.equals("GET")) return GET_REQUEST_METHOD;
-        else if(method.equals("POST")) return POST_REQUEST_METHOD;
-        else if(method.equals("PUT")) return PUT_REQUEST_METHOD;
-        else if(method.equals("DELETE")) return DELETE_REQUEST_METHOD;
-        else if(method.equals("HEAD")) return HEAD_REQUEST_METHOD;
-        else if(method.equals("OPTIONS")) return OPTIONS_REQUEST_METHOD;
-        else if(method.equals("TRACE")) return TRACE_REQUEST_METHOD;
-        else if(method.equals("CONNECT")) return CONNECT_REQUEST_METHOD;
-        else return UNKNOWN_REQUEST_METHOD;
+    // Creates the string of the name (part 0) or value (part 2) of the header
+    private String headerString(int index, int part) {
+        int[] offsets = parser.getHeaderOffsets();
+        int start = offsets[index * 4 + part];
+        return new String(parser.getBuffer(), start, offsets[index * 4 + part + 1] - start);
     }
 
     private static void parseRequestUri(HttpRequest request) {
@@ -689,17 +912,30 @@ public class HttpRequest {
         }
     }
 
-    private static String decodeUri(String s) {
-        StringBuffer builder = new StringBuffer();
+    private static String decodeUri(byte[] buffer, int start, int end) {
+        // Most URIs are not encoded, they are converted to a string directly
+        int encodedIndex = start;
+        while (encodedIndex < end && buffer[encodedIndex] != '+' && buffer[encodedIndex] != '%') {
+            encodedIndex++;
+        }
+        if (encodedIndex == end) {
+            return new String(buffer, start, end - start);
+        }
+
+        StringBuffer builder = new StringBuffer(end - start);
         // Converting encoded characters to their original representation
-        for (int charIndex = 0; charIndex < s.length(); charIndex++) {
-            char character = s.charAt(charIndex);
+        for (int charIndex = start; charIndex < end; charIndex++) {
+            char character = (char)(buffer[charIndex] & 0xFF);
             if (character == '+') {
                 builder.append(' ');
             } else if (character == '%') {
                 // Need to substitute hexadecimals with a character
-                if (charIndex + 2 < s.length()) {
-                    builder.append((char) Integer.parseInt(s.substring(charIndex + 1, charIndex + 3), 16));
+                int high;
+                int low;
+                if (charIndex + 2 < end
+                    && (high = Character.digit((char)buffer[charIndex + 1], 16)) >= 0
+                    && (low = Character.digit((char)buffer[charIndex + 2], 16)) >= 0) {
+                    builder.append((char)(high * 16 + low));
                     charIndex += 2;
                 } else {
                     // does not contain enough chars
@@ -712,46 +948,6 @@ public class HttpRequest {
         return builder.toString();
     }
 
-    private static void parseRequestHeader(HttpRequest request, String line) {
-        int delimiter = line.indexOf(':');
-
-        if (delimiter > 0) {
-            String key = line.substring(0, delimiter).trim();
-            String value = line.substring(delimiter + 1, line.length()).trim();
-
-            // If there is a "Cookie" header, then this header value is parsed
-            // to get cookies
-            if (key.equalsIgnoreCase("cookie")) {
-                request.cookies = HttpCookie.fromCookieHeader(value);
-            } else {
-                // Checking whether the value of a header has a special meaning
-                checkForPredefinedHeaders(request, key, value);
-                request.headers.put(key, value);
-            }
-        } else {
-            throw new IllegalArgumentException("Header name and value are not separated with a colon: " + line);
-        }
-    }
-
-    private static void checkForPredefinedHeaders(HttpRequest request, String key, String value) {
-        
-        if(key.equals(CONTENT_LENGTH_HEADER_FIELD))
-        {
-            // Parsing Content-Length header to get length of the body
-            try {
-                request.contentLength = Integer.parseInt(value);
-                if (request.contentLength < 0) {
-                    throw new IllegalArgumentException(BAD_REQUEST_EXCEPTION_MESSAGE + ": Content length is negative: " + value);
-                }
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException(BAD_REQUEST_EXCEPTION_MESSAGE + ": Content length is not a number: " + value);
-            }            
-        } else
-        {
-            // It is not the predefined one. skipping it
-        }
-    }
-
     private static void parsePostParameters(String postData, Hashtable postParameters) {
         parseParametersToMap(postData, postParameters);
     }
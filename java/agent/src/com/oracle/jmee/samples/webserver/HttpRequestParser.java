@@ -0,0 +1,641 @@
+/*
+ * Copyright © 2015, Oracle and/or its affiliates.  All rights reserved. 
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and the
+ * Universal Permissive License (UPL).  See the LICENSE file in the root directory
+ * for license terms.  You may choose either license, or both.
+ */
+package com.oracle.jmee.samples.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Class which incrementally parses the head of HTTP requests (request line and
+ * headers) received over a single connection. The received bytes are stored
+ * in a buffer owned by the parser and may be provided in chunks of any size,
+ * either by reading directly from a stream into the buffer with
+ * {@link #readFrom(java.io.InputStream, int)} or by copying them with
+ * {@link #feed(byte[], int, int)}. Each byte is examined only once: the parser
+ * remembers its state between the chunks.<br><br>
+ *
+ * No strings are created while parsing. The parser only records the offsets
+ * of the request line parts and of the header names and values in the
+ * buffer. The strings are created by {@link HttpRequest} when the values are
+ * asked for.<br><br>
+ *
+ * The buffer grows when the head of the request does not fit it, up to the
+ * maximum size of the head specified during construction. The buffer and the
+ * offsets are reused for the following requests over the same connection, so
+ * the headers of the request which has been created from the parser are
+ * available until {@link #nextRequest()} is called. The bytes of pipelined
+ * requests which have been received after the current request are kept for
+ * the next one.<br><br>
+ *
+ * This class is not thread-safe.
+ */
+public class HttpRequestParser {
+
+    /**
+     * Maximum size of the request head which is used when it is not specified
+     * explicitly.
+     */
+    public static final int DEFAULT_MAXIMUM_HEAD_SIZE = 8192;
+
+    // States of the parser
+    private static final int STATE_REQUEST_LINE = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_HEAD_COMPLETE = 2;
+
+    // Number of ints used to store the offsets of a header
+    private static final int HEADER_OFFSETS_NUMBER = 4;
+
+    // Number of headers the offsets array is created for
+    private static final int INITIAL_HEADERS_NUMBER = 16;
+
+    // Lower case names of the headers which are recognized while parsing
+    private static final byte[] CONTENT_LENGTH_BYTES = "content-length".getBytes();
+    private static final byte[] TRANSFER_ENCODING_BYTES = "transfer-encoding".getBytes();
+
+    // The only transfer coding which is supported for request bodies
+    private static final byte[] CHUNKED_BYTES = "chunked".getBytes();
+
+    // Initial size of the buffer
+    private final int initialBufferSize;
+
+    // Maximum size of the request head
+    private final int maximumHeadSize;
+
+    // Arena to lease the buffer from, null if the buffer is owned by the
+    // parser
+    private final BufferArena bufferArena;
+
+    // Buffer which holds the received bytes, null while it is released to
+    // the arena
+    private byte[] buffer;
+
+    // Number of received bytes in the buffer
+    private int length = 0;
+
+    // Position of the next byte to examine
+    private int position = 0;
+
+    // Start of the line which is being parsed
+    private int lineStart = 0;
+
+    // Current state of the parser
+    private int state = STATE_REQUEST_LINE;
+
+    // Offsets of the request line parts: start and end (exclusive) of the
+    // method, URI and version
+    private int methodStart, methodEnd;
+    private int uriStart, uriEnd;
+    private int versionStart, versionEnd;
+
+    // Offsets of the headers: name start, name end, value start, value end
+    private int[] headerOffsets = new int[INITIAL_HEADERS_NUMBER * HEADER_OFFSETS_NUMBER];
+
+    // Number of parsed headers
+    private int headersNumber = 0;
+
+    // Length of the head including the empty line
+    private int headLength = 0;
+
+    // Value of the Content-Length header, 0 if absent
+    private int contentLength = 0;
+
+    // Flag to check whether the Content-Length header is present
+    private boolean contentLengthPresent = false;
+
+    // Flag to check whether the body uses the chunked transfer coding
+    private boolean chunked = false;
+
+    /**
+     * Creates a new parser with the specified initial buffer size and the
+     * default maximum size of the request head.
+     *
+     * @param initialBufferSize initial size of the buffer
+     * @throws IllegalArgumentException if the size is zero or negative
+     */
+    public HttpRequestParser(int initialBufferSize) {
+        this(initialBufferSize, DEFAULT_MAXIMUM_HEAD_SIZE);
+    }
+
+    /**
+     * Creates a new parser with the specified initial buffer size and maximum
+     * size of the request head. If the maximum size is less than the initial
+     * buffer size, the buffer does not grow.
+     *
+     * @param initialBufferSize initial size of the buffer
+     * @param maximumHeadSize maximum size of the request line and headers
+     * @throws IllegalArgumentException if the size is zero or negative
+     */
+    public HttpRequestParser(int initialBufferSize, int maximumHeadSize) {
+        this(initialBufferSize, maximumHeadSize, null);
+    }
+
+    /**
+     * Creates a new parser which leases its buffer from the arena. The buffer
+     * is leased when the first bytes are received and may be returned to the
+     * arena by {@link #releaseBuffer()} while no request is being received.
+     *
+     * @param initialBufferSize initial size of the buffer
+     * @param maximumHeadSize maximum size of the request line and headers
+     * @param bufferArena arena to lease the buffer from, null to allocate it
+     * @throws IllegalArgumentException if the size is zero or negative
+     */
+    /* package */ HttpRequestParser(int initialBufferSize, int maximumHeadSize, BufferArena bufferArena) {
+        if (initialBufferSize <= 0) {
+            throw new IllegalArgumentException("Illegal buffer size. Must be positive. Specified: " + initialBufferSize);
+        }
+        this.initialBufferSize = initialBufferSize;
+        this.maximumHeadSize = maximumHeadSize > initialBufferSize ? maximumHeadSize : initialBufferSize;
+        this.bufferArena = bufferArena;
+        if (bufferArena == null) {
+            this.buffer = new byte[initialBufferSize];
+        }
+    }
+
+    /**
+     * Reads the bytes from the stream directly into the buffer and parses
+     * them. At most <code>maxBytes</code> bytes are read. This method blocks
+     * only if the stream blocks. Nothing is read if the head of the request
+     * has been already parsed and the buffer has no free space.
+     *
+     * @param inputStream the stream to read from
+     * @param maxBytes maximum number of bytes to read
+     * @return the number of bytes read or -1 if the stream has ended
+     * @throws IOException if any I/O error occurs while reading
+     * @throws IllegalArgumentException if the request is malformed or its head
+     * is too long
+     */
+    public int readFrom(InputStream inputStream, int maxBytes) throws IOException {
+        if (!ensureFreeSpace()) {
+            return 0;
+        }
+        int toRead = buffer.length - length;
+        if (maxBytes < toRead) {
+            toRead = maxBytes;
+        }
+        int bytesRead = inputStream.read(buffer, length, toRead);
+        if (bytesRead > 0) {
+            length += bytesRead;
+            parse();
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Copies the bytes to the buffer and parses them.
+     *
+     * @param data array which contains the bytes
+     * @param offset position of the first byte
+     * @param dataLength number of bytes to add
+     * @throws IllegalArgumentException if the request is malformed or its head
+     * is too long
+     */
+    public void feed(byte[] data, int offset, int dataLength) {
+        while (dataLength > 0) {
+            if (!ensureFreeSpace()) {
+                // The head has been parsed, the rest belongs to the body
+                ensureCapacity(length + dataLength);
+            }
+            int toCopy = buffer.length - length;
+            if (dataLength < toCopy) {
+                toCopy = dataLength;
+            }
+            System.arraycopy(data, offset, buffer, length, toCopy);
+            length += toCopy;
+            offset += toCopy;
+            dataLength -= toCopy;
+            parse();
+        }
+    }
+
+    /**
+     * Returns true if the request line and all headers have been received.
+     *
+     * @return true if the head of the request has been parsed
+     */
+    public boolean isHeadComplete() {
+        return state == STATE_HEAD_COMPLETE;
+    }
+
+    /**
+     * Returns true if the head and the whole body of the request are in the
+     * buffer. The end of a chunked body is not known to the parser, so false
+     * is returned for chunked requests.
+     *
+     * @return true if the request has been completely received
+     */
+    public boolean isRequestComplete() {
+        return state == STATE_HEAD_COMPLETE && !chunked && length - headLength >= contentLength;
+    }
+
+    /**
+     * Returns true if no bytes of the current request have been received.
+     *
+     * @return true if the buffer is empty
+     */
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * Grows the buffer so it is able to hold the specified number of bytes.
+     * Used to receive a request body which does not fit the buffer without
+     * blocking.
+     *
+     * @param capacity the required size of the buffer
+     */
+    public void ensureCapacity(int capacity) {
+        if (buffer == null) {
+            buffer = allocate(capacity > initialBufferSize ? capacity : initialBufferSize);
+        } else if (capacity > buffer.length) {
+            int newSize = buffer.length * 2;
+            if (newSize < capacity) {
+                newSize = capacity;
+            }
+            grow(newSize);
+        }
+    }
+
+    /**
+     * Prepares the parser for the next request over the same connection. The
+     * bytes which have been received after the current request are moved to
+     * the start of the buffer and parsed. The buffer is shrunk if it has grown
+     * above the maximum head size to hold a body.
+     *
+     * @param consumedLength number of bytes of the current request, i.e. the
+     * head and the part of the body which has been taken from the buffer
+     */
+    public void nextRequest(int consumedLength) {
+        int remaining = length - consumedLength;
+        if (remaining < 0) {
+            remaining = 0;
+        }
+        if (buffer != null && buffer.length > maximumHeadSize && remaining <= initialBufferSize) {
+            byte[] shrunk = allocate(initialBufferSize);
+            System.arraycopy(buffer, consumedLength, shrunk, 0, remaining);
+            free(buffer);
+            buffer = shrunk;
+        } else if (remaining > 0) {
+            System.arraycopy(buffer, consumedLength, buffer, 0, remaining);
+        }
+        reset(remaining);
+        if (length > 0) {
+            parse();
+        }
+    }
+
+    /**
+     * Returns the buffer to the arena the parser has been created with, so
+     * it can be used by other connections while this one waits for a
+     * request. The received bytes are dropped, so it is called when the
+     * parser is empty or the connection is closed. A new buffer is leased
+     * when more bytes are received. Does nothing if the parser owns its
+     * buffer.
+     */
+    /* package */ void releaseBuffer() {
+        if (bufferArena == null || buffer == null) {
+            return;
+        }
+        bufferArena.release(buffer);
+        buffer = null;
+        reset(0);
+    }
+
+    /**
+     * Returns the arena the parser leases its buffer from.
+     *
+     * @return the arena or null if the parser owns its buffer
+     */
+    /* package */ BufferArena getBufferArena() {
+        return bufferArena;
+    }
+
+    /**
+     * Prepares the parser for the next request when the current request
+     * including its body has been served. The body bytes which have not been
+     * received into the buffer are assumed to be read directly from the
+     * stream. Must not be used for chunked requests, whose length is not known
+     * to the parser.
+     */
+    public void nextRequest() {
+        int requestLength = headLength + contentLength;
+        // The part of the body which has not been received into the buffer
+        // has been read directly from the stream
+        nextRequest(requestLength < length ? requestLength : length);
+    }
+
+    /**
+     * Returns the buffer which holds the received bytes. The offsets returned
+     * by the other methods refer to this buffer.
+     *
+     * @return the receiving buffer
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the number of the received bytes in the buffer.
+     *
+     * @return the number of bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the length of the request line and headers including the empty
+     * line. The body starts at this offset.
+     *
+     * @return the length of the head
+     */
+    public int getHeadLength() {
+        return headLength;
+    }
+
+    /**
+     * Returns the value of the Content-Length header.
+     *
+     * @return the length of the body or 0 if the header is absent
+     */
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns true if the body of the request uses the chunked transfer
+     * coding. The Content-Length header is absent in this case.
+     *
+     * @return true if the body is chunked
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * Returns the number of parsed headers.
+     *
+     * @return the number of headers
+     */
+    public int getHeadersNumber() {
+        return headersNumber;
+    }
+
+    /* package */ int[] getHeaderOffsets() {
+        return headerOffsets;
+    }
+
+    /* package */ int getMethodStart() {
+        return methodStart;
+    }
+
+    /* package */ int getMethodEnd() {
+        return methodEnd;
+    }
+
+    /* package */ int getUriStart() {
+        return uriStart;
+    }
+
+    /* package */ int getUriEnd() {
+        return uriEnd;
+    }
+
+    /* package */ int getVersionStart() {
+        return versionStart;
+    }
+
+    /* package */ int getVersionEnd() {
+        return versionEnd;
+    }
+
+    /**
+     * Returns the index of the header with the specified name. Header names
+     * are compared ignoring case.
+     *
+     * @param lowerCaseName the name of the header in lower case
+     * @return the index of the header or -1 if it is absent
+     */
+    /* package */ int findHeader(byte[] lowerCaseName) {
+        for (int i = 0; i < headersNumber; i++) {
+            int offset = i * HEADER_OFFSETS_NUMBER;
+            if (equalsIgnoreCase(headerOffsets[offset], headerOffsets[offset + 1], lowerCaseName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the bytes of the buffer with the specified lower case ASCII
+     * bytes ignoring case.
+     *
+     * @param start start of the compared range
+     * @param end end of the compared range, exclusive
+     * @param lowerCaseBytes bytes to compare with
+     * @return true if the range matches the bytes
+     */
+    /* package */ boolean equalsIgnoreCase(int start, int end, byte[] lowerCaseBytes) {
+        if (end - start != lowerCaseBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseBytes.length; i++) {
+            int b = buffer[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCaseBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Makes sure there is free space in the buffer while the head is being
+    // received. Returns false if the head is complete and the buffer is full
+    private boolean ensureFreeSpace() {
+        if (buffer == null) {
+            buffer = allocate(initialBufferSize);
+        }
+        if (length < buffer.length) {
+            return true;
+        }
+        if (state == STATE_HEAD_COMPLETE) {
+            return false;
+        }
+        if (buffer.length >= maximumHeadSize) {
+            throw new IllegalArgumentException("Bad request: request head is longer than " + maximumHeadSize + " bytes");
+        }
+        int newSize = buffer.length * 2;
+        if (newSize > maximumHeadSize) {
+            newSize = maximumHeadSize;
+        }
+        grow(newSize);
+        return true;
+    }
+
+    // Replaces the buffer with a larger one which keeps the received bytes
+    private void grow(int newSize) {
+        byte[] grown = allocate(newSize);
+        System.arraycopy(buffer, 0, grown, 0, length);
+        free(buffer);
+        buffer = grown;
+    }
+
+    // Leases a buffer from the arena or creates it if there is no arena. A
+    // leased buffer may be larger than requested
+    private byte[] allocate(int size) {
+        return bufferArena == null ? new byte[size] : bufferArena.lease(size);
+    }
+
+    // Returns a buffer which is not used anymore to the arena
+    private void free(byte[] unused) {
+        if (bufferArena != null) {
+            bufferArena.release(unused);
+        }
+    }
+
+    // Starts a new request which has the specified number of bytes already
+    // received at the start of the buffer
+    private void reset(int receivedLength) {
+        length = receivedLength;
+        position = 0;
+        lineStart = 0;
+        state = STATE_REQUEST_LINE;
+        headersNumber = 0;
+        headLength = 0;
+        contentLength = 0;
+        contentLengthPresent = false;
+        chunked = false;
+    }
+
+    // Examines the bytes which have not been examined yet
+    private void parse() {
+        while (state != STATE_HEAD_COMPLETE && position < length) {
+            if (buffer[position++] != '\n') {
+                continue;
+            }
+            // Line ends before CRLF or a bare LF
+            int lineEnd = position - 1;
+            if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (state == STATE_REQUEST_LINE) {
+                if (lineEnd > lineStart) {
+                    parseRequestLine(lineStart, lineEnd);
+                    state = STATE_HEADERS;
+                }
+                // Empty lines before the request line are ignored as
+                // RFC 7230 3.5 recommends
+            } else if (lineEnd == lineStart) {
+                if (chunked && contentLengthPresent) {
+                    // RFC 7230 3.3.3 allows to reject such a request, the
+                    // length is ambiguous
+                    throw new IllegalArgumentException("Bad request: both Content-Length and Transfer-Encoding are present");
+                }
+                headLength = position;
+                state = STATE_HEAD_COMPLETE;
+            } else {
+                parseHeader(lineStart, lineEnd);
+            }
+            lineStart = position;
+        }
+        if (state != STATE_HEAD_COMPLETE && length >= maximumHeadSize) {
+            // A leased buffer may be larger than the maximum head size
+            throw new IllegalArgumentException("Bad request: request head is longer than " + maximumHeadSize + " bytes");
+        }
+    }
+
+    private void parseRequestLine(int start, int end) {
+        methodStart = start;
+        methodEnd = indexOf(' ', start, end);
+        uriStart = skipSpaces(methodEnd, end);
+        uriEnd = indexOf(' ', uriStart, end);
+        versionStart = skipSpaces(uriEnd, end);
+        versionEnd = indexOf(' ', versionStart, end);
+        if (methodEnd == methodStart || uriEnd == uriStart || versionEnd == versionStart) {
+            throw new IllegalArgumentException("Bad request: Failed to parse request line: " + new String(buffer, start, end - start));
+        }
+    }
+
+    private void parseHeader(int start, int end) {
+        int colon = indexOf(':', start, end);
+        if (colon == end || colon == start) {
+            throw new IllegalArgumentException("Header name and value are not separated with a colon: " + new String(buffer, start, end - start));
+        }
+        int nameEnd = colon;
+        while (nameEnd > start && isSpace(buffer[nameEnd - 1])) {
+            nameEnd--;
+        }
+        int valueStart = skipSpaces(colon + 1, end);
+        int valueEnd = end;
+        while (valueEnd > valueStart && isSpace(buffer[valueEnd - 1])) {
+            valueEnd--;
+        }
+
+        if (headersNumber * HEADER_OFFSETS_NUMBER == headerOffsets.length) {
+            int[] grown = new int[headerOffsets.length * 2];
+            System.arraycopy(headerOffsets, 0, grown, 0, headerOffsets.length);
+            headerOffsets = grown;
+        }
+        int offset = headersNumber * HEADER_OFFSETS_NUMBER;
+        headerOffsets[offset] = start;
+        headerOffsets[offset + 1] = nameEnd;
+        headerOffsets[offset + 2] = valueStart;
+        headerOffsets[offset + 3] = valueEnd;
+        headersNumber++;
+
+        if (equalsIgnoreCase(start, nameEnd, CONTENT_LENGTH_BYTES)) {
+            contentLength = parseContentLength(valueStart, valueEnd);
+            contentLengthPresent = true;
+        } else if (equalsIgnoreCase(start, nameEnd, TRANSFER_ENCODING_BYTES)) {
+            // No other coding than chunked is supported
+            if (!equalsIgnoreCase(valueStart, valueEnd, CHUNKED_BYTES)) {
+                throw new IllegalArgumentException("Bad request: unsupported transfer coding: " + new String(buffer, valueStart, valueEnd - valueStart));
+            }
+            chunked = true;
+        }
+    }
+
+    private int parseContentLength(int start, int end) {
+        if (start == end) {
+            throw new IllegalArgumentException("Bad request: Content length is not a number");
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b < '0' || b > '9') {
+                throw new IllegalArgumentException("Bad request: Content length is not a number: " + new String(buffer, start, end - start));
+            }
+            if (value > (Integer.MAX_VALUE - 9) / 10) {
+                throw new IllegalArgumentException("Entity is too large: " + new String(buffer, start, end - start));
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private int skipSpaces(int start, int end) {
+        while (start < end && isSpace(buffer[start])) {
+            start++;
+        }
+        return start;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
@@ -74,6 +74,10 @@ public class HttpResponse {
     // Message which supplements status code
     private String statusReason;
 
+    // Predefined status which matches the status code and reason, null if
+    // the reason is not the predefined one
+    private Status status;
+
     // This header field represents the date and time at which the response has
     // been originated
     private Date creationDate;
@@ -113,6 +117,10 @@ public class HttpResponse {
 
         this.statusCode = statusCode;
         this.statusReason = statusReason;
+        Status predefined = Status.getByCode(statusCode);
+        if (predefined != null && predefined.getReason().equals(statusReason)) {
+            this.status = predefined;
+        }
         setCreationDateInternal(DateUtils.getCurrentGmtDateTime());
     }
 
@@ -142,6 +150,7 @@ public class HttpResponse {
 
         this.statusCode = status.getCode();
         this.statusReason = status.getReason();
+        this.status = status;
         setCreationDateInternal(DateUtils.getCurrentGmtDateTime());
     }
 
@@ -485,6 +494,7 @@ public class HttpResponse {
 
         this.statusCode = status.getCode();
         this.statusReason = status.getReason();
+        this.status = status;
         return this;
     }
 
@@ -511,6 +521,7 @@ public class HttpResponse {
             this.statusCode = statusCode;
             this.statusReason = "";
         }
+        this.status = status;
     }
 
     /**
@@ -525,6 +536,9 @@ public class HttpResponse {
         Objects.requireNonNull(statusReason, "Status reason must not be null");
 
         this.statusReason = statusReason;
+        if (status != null && !status.getReason().equals(statusReason)) {
+            status = null;
+        }
         return this;
     }
 
@@ -849,6 +863,16 @@ public class HttpResponse {
         return statusReason;
     }
 
+    /**
+     * Returns the predefined status which matches the status code and reason
+     * of this response.
+     *
+     * @return the status or null if the reason is not the predefined one
+     */
+    /* package */ Status getStatus() {
+        return status;
+    }
+
     /**
      * Return the value of the {@value #DATE_HEADER} header of this response.
      *
@@ -0,0 +1,322 @@
+/*
+ * Copyright © 2015, Oracle and/or its affiliates.  All rights reserved. 
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and the
+ * Universal Permissive License (UPL).  See the LICENSE file in the root directory
+ * for license terms.  You may choose either license, or both.
+ */
+package com.oracle.jmee.samples.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Class which writes HTTP responses to a connection. The status line, the
+ * headers, the cookies and the "Server" header are encoded into a buffer
+ * owned by the writer, which is reused for all responses sent over the
+ * connection. If the writer is created with a {@link BufferArena}, the buffer
+ * is leased only for the time a response is written. The body is read into the same buffer after the head, so the
+ * head and a body which fits the buffer are sent with a single write.<br><br>
+ *
+ * The parts which are the same for many responses are encoded once: status
+ * lines of the predefined {@link Status} values, the protocol versions and
+ * the "Server" header. Other strings are encoded directly into the buffer
+ * without creating intermediate strings or arrays, unless they contain
+ * non-ASCII characters.<br><br>
+ *
+ * This class is not thread-safe, a writer is used by a single connection.
+ */
+/* package */ class HttpResponseWriter {
+
+    // Initial space for the head of the response
+    private static final int INITIAL_HEAD_SIZE = 512;
+
+    // Space reserved before the data of a chunk for its size line: up to 8
+    // hexadecimal digits and CRLF
+    private static final int CHUNK_HEADER_SPACE = 10;
+
+    // Encoded constant parts of the head
+    private static final byte[] HTTP_1_1_BYTES = "HTTP/1.1".getBytes();
+    private static final byte[] HTTP_1_0_BYTES = "HTTP/1.0".getBytes();
+    private static final byte[] HEADER_SEPARATOR_BYTES = ": ".getBytes();
+    private static final byte[] SET_COOKIE_BYTES = "Set-Cookie: ".getBytes();
+    private static final byte[] TRANSFER_ENCODING_CHUNKED_BYTES = "Transfer-Encoding: chunked\r\n".getBytes();
+
+    // Digits of the chunk size
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+    // Last chunk of a chunked body with no trailers
+    private static final byte[] LAST_CHUNK_BYTES = "0\r\n\r\n".getBytes();
+
+    // The "Server" header which has been encoded last and the server name it
+    // has been encoded for. All servers usually share the same name, so the
+    // header is encoded once
+    private static String encodedServerName;
+    private static byte[] encodedServerHeader;
+
+    // Encoded "Server" header line of this writer
+    private final byte[] serverHeader;
+
+    // Size of the body part which is sent at once
+    private final int bufferSize;
+
+    // Arena to lease the buffer from, null if the buffer is owned by the
+    // writer
+    private final BufferArena bufferArena;
+
+    // Buffer for the head and the body, null while it is released to the
+    // arena
+    private byte[] buffer;
+
+    // Number of bytes in the buffer
+    private int length;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param serverName value of the "Server" header
+     * @param bufferSize size of the buffer to send the body
+     */
+    public HttpResponseWriter(String serverName, int bufferSize) {
+        this(serverName, bufferSize, null);
+    }
+
+    /**
+     * Creates a new writer which leases its buffer from the arena for the
+     * time of writing a response.
+     *
+     * @param serverName value of the "Server" header
+     * @param bufferSize size of the buffer to send the body
+     * @param bufferArena arena to lease the buffer from, null to allocate it
+     */
+    public HttpResponseWriter(String serverName, int bufferSize, BufferArena bufferArena) {
+        this.serverHeader = getServerHeader(serverName);
+        this.bufferSize = bufferSize;
+        this.bufferArena = bufferArena;
+        if (bufferArena == null) {
+            this.buffer = new byte[getRequiredBufferSize(bufferSize)];
+        }
+    }
+
+    /**
+     * Returns the size of the buffer a writer needs to send a response with
+     * a short head and a body in parts of the specified size.
+     *
+     * @param bufferSize size of the buffer to send the body
+     * @return the size of the writer buffer
+     */
+    public static int getRequiredBufferSize(int bufferSize) {
+        return INITIAL_HEAD_SIZE + CHUNK_HEADER_SPACE + bufferSize + 2;
+    }
+
+    /**
+     * Writes the response to the client output stream. The body is not sent
+     * if the request is unknown or uses HEAD method. If the length of the body
+     * is unknown and the protocol is HTTP/1.1, the body is sent using the
+     * chunked transfer coding, each chunk is written with a single write.
+     *
+     * @param clientOutput stream to write the response to
+     * @param protocol HTTP version to use in the status line
+     * @param response the response to send
+     * @param request the request which is answered, may be null
+     * @throws IOException if any I/O error occurs while writing
+     */
+    public void write(OutputStream clientOutput, String protocol, HttpResponse response, HttpRequest request) throws IOException {
+        boolean chunked = response.getContentLength() < 0 && HttpRequest.HTTP_1_1_VERSION.equals(protocol);
+        if (bufferArena != null) {
+            buffer = bufferArena.lease(getRequiredBufferSize(bufferSize));
+        }
+        try {
+            length = 0;
+            encodeHead(protocol, response, chunked);
+
+            // Body must not be sent if the request method is HEAD
+            boolean sendBody = request != null && request.getRequestMethod() != HttpRequest.HEAD_REQUEST_METHOD;
+            if (sendBody && chunked) {
+                writeChunkedBody(clientOutput, response.getBody());
+            } else if (sendBody && response.getBody() != null) {
+                writeBody(clientOutput, response.getBody());
+            } else {
+                clientOutput.write(buffer, 0, length);
+            }
+            clientOutput.flush();
+        } finally {
+            if (bufferArena != null) {
+                bufferArena.release(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    private void encodeHead(String protocol, HttpResponse response, boolean chunked) {
+        // Status line
+        if (HttpRequest.HTTP_1_1_VERSION.equals(protocol)) {
+            append(HTTP_1_1_BYTES);
+        } else if (HttpRequest.HTTP_1_0_VERSION.equals(protocol)) {
+            append(HTTP_1_0_BYTES);
+        } else {
+            append(protocol);
+        }
+        Status status = response.getStatus();
+        if (status != null) {
+            append(status.getStatusLineBytes());
+        } else {
+            appendByte(' ');
+            appendNumber(response.getStatusCode());
+            appendByte(' ');
+            append(response.getStatusReason());
+            appendLineEnd();
+        }
+
+        // Headers
+        Hashtable headers = response.getHeaders();
+        for (Enumeration en = headers.keys(); en.hasMoreElements();) {
+            String name = (String)en.nextElement();
+            append(name);
+            append(HEADER_SEPARATOR_BYTES);
+            append((String)headers.get(name));
+            appendLineEnd();
+        }
+        if (chunked) {
+            append(TRANSFER_ENCODING_CHUNKED_BYTES);
+        }
+        Vector cookies = response.getCookies();
+        for (int i = 0; i < cookies.size(); i++) {
+            append(SET_COOKIE_BYTES);
+            append(cookies.elementAt(i).toString());
+            appendLineEnd();
+        }
+        append(serverHeader);
+
+        // Empty line which ends the head
+        appendLineEnd();
+    }
+
+    // Sends the head together with the first part of the body, the rest of
+    // the body is sent in parts of the buffer size
+    private void writeBody(OutputStream clientOutput, InputStream body) throws IOException {
+        ensureCapacity(length + bufferSize);
+        int readBytes;
+        while (length < buffer.length && (readBytes = body.read(buffer, length, buffer.length - length)) != -1) {
+            length += readBytes;
+        }
+        clientOutput.write(buffer, 0, length);
+        if (length < buffer.length) {
+            // The whole body has been sent
+            return;
+        }
+        while ((readBytes = body.read(buffer, 0, buffer.length)) != -1) {
+            clientOutput.write(buffer, 0, readBytes);
+        }
+    }
+
+    // Writes the body using the chunked transfer coding. The data is read
+    // into the buffer after the space reserved for the size line, so the size
+    // line, the data and the line end are written at once. The head is moved
+    // right before the size line of the first chunk
+    private void writeChunkedBody(OutputStream clientOutput, InputStream body) throws IOException {
+        int headLength = length;
+        int dataStart = headLength + CHUNK_HEADER_SPACE;
+        ensureCapacity(dataStart + bufferSize + 2);
+        int readBytes;
+        while (body != null && (readBytes = body.read(buffer, dataStart, bufferSize)) != -1) {
+            if (readBytes == 0) {
+                continue;
+            }
+            // Writing the size line backwards before the data
+            int start = dataStart;
+            buffer[--start] = '\n';
+            buffer[--start] = '\r';
+            int size = readBytes;
+            do {
+                buffer[--start] = HEX_DIGITS[size & 0xF];
+                size >>>= 4;
+            } while (size != 0);
+            int end = dataStart + readBytes;
+            buffer[end++] = '\r';
+            buffer[end++] = '\n';
+            if (headLength > 0) {
+                System.arraycopy(buffer, 0, buffer, start - headLength, headLength);
+                start -= headLength;
+                headLength = 0;
+            }
+            clientOutput.write(buffer, start, end - start);
+            // The following chunks do not need space for the head
+            dataStart = CHUNK_HEADER_SPACE;
+        }
+        if (headLength > 0) {
+            clientOutput.write(buffer, 0, headLength);
+        }
+        clientOutput.write(LAST_CHUNK_BYTES);
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(length + bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    // Appends the string, ASCII characters are copied directly, other strings
+    // are encoded using the platform default encoding
+    private void append(String s) {
+        int stringLength = s.length();
+        ensureCapacity(length + stringLength);
+        for (int i = 0; i < stringLength; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                append(s.substring(i).getBytes());
+                return;
+            }
+            buffer[length++] = (byte)c;
+        }
+    }
+
+    private void appendByte(char c) {
+        ensureCapacity(length + 1);
+        buffer[length++] = (byte)c;
+    }
+
+    private void appendNumber(int number) {
+        if (number < 0 || number > 999) {
+            append(String.valueOf(number));
+            return;
+        }
+        ensureCapacity(length + 3);
+        buffer[length++] = (byte)('0' + number / 100);
+        buffer[length++] = (byte)('0' + number / 10 % 10);
+        buffer[length++] = (byte)('0' + number % 10);
+    }
+
+    private void appendLineEnd() {
+        ensureCapacity(length + 2);
+        buffer[length++] = '\r';
+        buffer[length++] = '\n';
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            int newSize = buffer.length * 2;
+            if (newSize < capacity) {
+                newSize = capacity;
+            }
+            byte[] grown = bufferArena == null ? new byte[newSize] : bufferArena.lease(newSize);
+            System.arraycopy(buffer, 0, grown, 0, length);
+            if (bufferArena != null) {
+                bufferArena.release(buffer);
+            }
+            buffer = grown;
+        }
+    }
+
+    private static synchronized byte[] getServerHeader(String serverName) {
+        if (encodedServerHeader == null || !encodedServerName.equals(serverName)) {
+            encodedServerHeader = ("Server: " + serverName + "\r\n").getBytes();
+            encodedServerName = serverName;
+        }
+        return encodedServerHeader;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright © 2015, Oracle and/or its affiliates.  All rights reserved. 
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and the
+ * Universal Permissive License (UPL).  See the LICENSE file in the root directory
+ * for license terms.  You may choose either license, or both.
+ */
+package com.oracle.jmee.samples.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.microedition.io.SocketConnection;
+
+/**
+ * Class which represents a client connection served by the
+ * {@link ConnectionPoller}. The poller reads the bytes which are available on
+ * the connection into a buffer owned by the connection, without blocking, until
+ * the request line and headers have been received. Then the connection is
+ * passed to a working thread as a Runnable task which creates the request,
+ * lets the suitable handler serve it and sends the response. The handler reads
+ * the body directly from the connection, so the body is never buffered as a
+ * whole. After that the connection is returned to the poller or closed.<br><br>
+ *
+ * The bytes are parsed by a {@link HttpRequestParser} as they arrive. The
+ * parser is accessed by the poller only while the connection is not busy and
+ * by the working thread only while it is busy, so no locking is needed for
+ * it. If the poller has a {@link BufferArena}, the receiving buffer is leased
+ * only while a request is being received and served, so idle connections do
+ * not hold buffers.
+ */
+/* package */ class PolledConnection implements Runnable {
+
+    // Socket connection with the client
+    private final SocketConnection clientConnection;
+
+    // Streams of the client connection
+    private final InputStream clientInput;
+    private final OutputStream clientOutput;
+
+    // Address of the client to be reported with requests
+    private final String clientAddress;
+
+    // Poller which owns this connection
+    private final ConnectionPoller poller;
+
+    // Size of the buffers to receive requests and to send response bodies
+    private final int bufferSize;
+
+    // Parser which receives the requests
+    private final HttpRequestParser parser;
+
+    // Writer which encodes the responses, created with the first response
+    private HttpResponseWriter responseWriter;
+
+    // Time of the last activity on the connection
+    private long lastActivityTime;
+
+    // Number of requests which have been served over the connection
+    private int requestsServed = 0;
+
+    // true while the request is served by a working thread
+    private volatile boolean busy = false;
+
+    // Request which is being served by a working thread
+    private volatile HttpRequest currentRequest;
+
+    // Flag to check whether the connection has been closed
+    private boolean connectionClosed = false;
+
+    // Flag to check whether the buffers have been finally released
+    private boolean disposed = false;
+
+    /**
+     * Creates a new polled connection and opens its streams.
+     *
+     * @param clientConnection the accepted client connection
+     * @param poller the poller which serves the connection
+     * @param bufferSize initial size of the buffer to receive requests
+     * @param maximumHeadSize maximum size of the request headers
+     * @throws IOException if the streams cannot be opened
+     */
+    public PolledConnection(SocketConnection clientConnection, ConnectionPoller poller, int bufferSize, int maximumHeadSize) throws IOException {
+        this.clientConnection = clientConnection;
+        this.poller = poller;
+        this.bufferSize = bufferSize;
+        this.clientInput = clientConnection.openInputStream();
+        this.clientOutput = clientConnection.openOutputStream();
+        this.clientAddress = clientConnection.getAddress() + ":" + clientConnection.getPort();
+        this.parser = new HttpRequestParser(bufferSize, maximumHeadSize, poller.getBufferArena());
+        this.lastActivityTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads the bytes which are available on the connection without blocking.
+     * Called by the poller only while the connection is not busy.
+     *
+     * @param now current time in milliseconds
+     * @return true if any bytes have been read
+     * @throws EOFException if the client has closed the connection
+     * @throws IOException if any I/O error occurs while reading
+     */
+    public boolean readAvailable(long now) throws IOException {
+        int available = clientInput.available();
+        if (available <= 0) {
+            return false;
+        }
+        int bytesRead = parser.readFrom(clientInput, available);
+        if (bytesRead < 0) {
+            throw new EOFException("Connection closed by client");
+        }
+        if (bytesRead > 0) {
+            lastActivityTime = now;
+        }
+        // Otherwise the buffer is full and the bytes of the next pipelined
+        // request are read after the current one has been served
+        return bytesRead > 0;
+    }
+
+    /**
+     * Checks whether the request line and headers have been received. The
+     * body is not waited for, it is read by the working thread.
+     *
+     * @return true if the request may be served
+     */
+    public boolean hasCompleteRequest() {
+        return parser.isHeadComplete();
+    }
+
+    /**
+     * Returns for how long the working thread has been blocked reading the
+     * body of the request from the connection.
+     *
+     * @param now current time in milliseconds
+     * @return the time in milliseconds or -1 if the body is not being read
+     */
+    public long getBodyReadingTime(long now) {
+        HttpRequest request = currentRequest;
+        return request == null ? -1 : request.getBodyReadingTime(now);
+    }
+
+    /**
+     * Returns the time when the connection was active for the last time.
+     *
+     * @return the time in milliseconds
+     */
+    public long getLastActivityTime() {
+        return lastActivityTime;
+    }
+
+    /**
+     * Returns true if the request is served by a working thread.
+     *
+     * @return true if the connection is busy
+     */
+    public boolean isBusy() {
+        return busy;
+    }
+
+    /**
+     * Marks the connection as served by a working thread.
+     *
+     * @param busy true when the request is passed to a working thread
+     */
+    public void setBusy(boolean busy) {
+        this.busy = busy;
+    }
+
+    /**
+     * Returns true if at least one request has been served over the
+     * connection.
+     *
+     * @return true if the connection has already served a request
+     */
+    public boolean isBetweenRequests() {
+        return requestsServed > 0 && parser.isEmpty();
+    }
+
+    /**
+     * Parses the received request, serves it and sends the response. The
+     * connection is returned to the poller afterwards if it is persisted.
+     * Intended to be run by a working thread.
+     */
+    // @Override
+    public void run() {
+        boolean persistConnection = false;
+        HttpRequest request = null;
+        try {
+            HttpResponse response;
+            try {
+                request = HttpRequest.parseReceivedRequest(clientAddress, clientInput, parser);
+            } catch (IllegalArgumentException e) {
+                // IllegalArgumentException is treated as a bad request
+                System.out.println("Error while serving client: " + e.getMessage());
+                sendError(HttpResponse.badRequest());
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("Error while serving client: " + e.getMessage());
+                sendError(HttpResponse.internalServerError());
+                return;
+            }
+            requestsServed++;
+            currentRequest = request;
+
+            int maxRequests = poller.getMaxRequestsPerConnection();
+            persistConnection = poller.isPersistConnections() && request.shouldPersistConnection()
+                && (maxRequests <= 0 || requestsServed < maxRequests);
+
+            String protocol = request.getHttpVersion();
+            response = SimpleHttpConnectionHandler.serveRequest(request, poller.getRequestHandlersRegistry());
+            if (!request.discardBody(SimpleHttpConnectionHandler.MAXIMUM_DISCARDED_BODY_LENGTH)) {
+                // The rest of the body is too long to be skipped
+                persistConnection = false;
+            }
+            persistConnection = SimpleHttpConnectionHandler.addConnectionHeader(response, protocol, persistConnection);
+
+            sendResponse(protocol, response, request);
+            System.out.println("Response to " + clientAddress + " has been sent");
+        } catch (IOException e) {
+            System.out.println("Error while handling client: " + e.getMessage());
+            persistConnection = false;
+        } finally {
+            currentRequest = null;
+            if (request != null) {
+                request.release();
+                if (persistConnection) {
+                    persistConnection = nextRequest(request.getConsumedLength());
+                }
+            }
+            if (persistConnection && parser.isEmpty()) {
+                // The buffer is leased again when the next request arrives
+                parser.releaseBuffer();
+            }
+            lastActivityTime = System.currentTimeMillis();
+            poller.requestServed(this, persistConnection);
+        }
+    }
+
+    // Keeps the bytes of the pipelined requests for the next request. Returns
+    // false if they are malformed and the connection must be closed
+    private boolean nextRequest(int consumedLength) {
+        try {
+            parser.nextRequest(consumedLength);
+            return true;
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error while serving client: " + e.getMessage());
+            sendError(HttpResponse.badRequest());
+            return false;
+        }
+    }
+
+    /**
+     * Sends the error response and marks the connection to be closed. Errors
+     * are sent using HTTP/1.0 because it is unknown which version the request
+     * has used.
+     *
+     * @param response the error response
+     */
+    public void sendError(HttpResponse response) {
+        response.addHeader("Connection", "close");
+        try {
+            sendResponse("HTTP/1.0", response, null);
+        } catch (IOException e) {
+            System.out.println("Error while sending error response: " + e.getMessage());
+        }
+    }
+
+    private void sendResponse(String protocol, HttpResponse response, HttpRequest request) throws IOException {
+        if (responseWriter == null) {
+            responseWriter = new HttpResponseWriter(poller.getServerName(), bufferSize, poller.getBufferArena());
+        }
+        responseWriter.write(clientOutput, protocol, response, request);
+    }
+
+    /**
+     * Closes the client connection if it has not been closed yet.
+     */
+    public void closeConnection() {
+        synchronized (clientConnection) {
+            if (connectionClosed) {
+                return;
+            }
+            connectionClosed = true;
+        }
+        try {
+            clientConnection.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close connection: " + e.getMessage());
+        }
+        System.out.println("Connection with client " + clientAddress + " has been closed");
+    }
+
+    /**
+     * Closes the client connection and returns the receiving buffer to the
+     * arena. Called when the connection is removed by the thread which owns
+     * it: the poller while the connection is not busy or the working thread.
+     */
+    public void dispose() {
+        closeConnection();
+        synchronized (clientConnection) {
+            if (disposed) {
+                return;
+            }
+            disposed = true;
+        }
+        parser.releaseBuffer();
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright © 2015, Oracle and/or its affiliates.  All rights reserved. 
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and the
+ * Universal Permissive License (UPL).  See the LICENSE file in the root directory
+ * for license terms.  You may choose either license, or both.
+ */
+package com.oracle.jmee.samples.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Class which represents the body of an HTTP request as a stream. The bytes of
+ * the body which have been received together with the request headers are
+ * read from the receiving buffer of the connection, the rest is read directly
+ * from the connection. The stream ends after the number of bytes specified by
+ * the Content-Length header or after the last chunk of a body which uses the
+ * chunked transfer coding, so the next request over the same connection is
+ * never read by a handler.<br><br>
+ *
+ * The chunked coding is decoded as the body is read: chunk sizes, extensions
+ * and trailers are consumed by this stream and never returned. Only the chunk
+ * data is returned.<br><br>
+ *
+ * Closing this stream does not close the connection. The part of the body
+ * which has not been read by the handler is discarded by the server before
+ * the next request is read.
+ */
+/* package */ class RequestBodyInputStream extends InputStream {
+
+    // Maximum length of a chunk size line or a trailer line
+    private static final int MAXIMUM_LINE_LENGTH = 1024;
+
+    // Size of the buffer to read the skipped bytes into
+    private static final int SKIP_BUFFER_SIZE = 512;
+
+    // Buffer which holds the received part of the body
+    private final byte[] buffer;
+
+    // Position of the next byte of the body in the buffer
+    private int bufferPosition;
+
+    // End of the received bytes in the buffer
+    private final int bufferEnd;
+
+    // Stream to read the rest of the body from
+    private final InputStream source;
+
+    // Flag to check whether the body uses the chunked transfer coding
+    private final boolean chunked;
+
+    // Number of bytes of the body, or of the current chunk if the body is
+    // chunked, which have not been read yet
+    private int remaining;
+
+    // Number of chunks which have been started
+    private int chunksNumber = 0;
+
+    // Set when the last chunk and the trailers have been read
+    private boolean lastChunkRead = false;
+
+    // Time when a blocking read from the connection has started, 0 if it is
+    // not reading
+    private volatile long readingSince = 0;
+
+    // Arena to lease the buffer for skipped bytes from, may be null
+    private BufferArena bufferArena;
+
+    /**
+     * Creates a new stream of the request body which length is specified by
+     * the Content-Length header.
+     *
+     * @param buffer buffer which holds the received part of the body
+     * @param offset position of the body in the buffer
+     * @param bufferedLength number of received bytes after the offset, may
+     * include the bytes of the next requests
+     * @param source stream to read the rest of the body from
+     * @param contentLength length of the body
+     */
+    public RequestBodyInputStream(byte[] buffer, int offset, int bufferedLength, InputStream source, int contentLength) {
+        this.buffer = buffer;
+        this.bufferPosition = offset;
+        this.bufferEnd = offset + bufferedLength;
+        this.source = source;
+        this.chunked = false;
+        this.remaining = contentLength;
+    }
+
+    /**
+     * Creates a new stream of the request body which uses the chunked
+     * transfer coding.
+     *
+     * @param buffer buffer which holds the received part of the body
+     * @param offset position of the body in the buffer
+     * @param bufferedLength number of received bytes after the offset, may
+     * include the bytes of the next requests
+     * @param source stream to read the rest of the body from
+     */
+    public RequestBodyInputStream(byte[] buffer, int offset, int bufferedLength, InputStream source) {
+        this.buffer = buffer;
+        this.bufferPosition = offset;
+        this.bufferEnd = offset + bufferedLength;
+        this.source = source;
+        this.chunked = true;
+        this.remaining = 0;
+    }
+
+    // @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        int b = readRaw();
+        remaining--;
+        return b;
+    }
+
+    // @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int bytesRead = readRaw(b, off, len < remaining ? len : remaining);
+        remaining -= bytesRead;
+        return bytesRead;
+    }
+
+    // @Override
+    public int available() throws IOException {
+        if (remaining == 0) {
+            // The size of the next chunk is not known yet
+            return 0;
+        }
+        int available = bufferPosition < bufferEnd ? bufferEnd - bufferPosition : source.available();
+        return available < remaining ? available : remaining;
+    }
+
+    // @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        byte[] skipBuffer = null;
+        try {
+            while (skipped < n && nextChunk()) {
+                int count = remaining;
+                if (count > n - skipped) {
+                    count = (int)(n - skipped);
+                }
+                if (bufferPosition < bufferEnd) {
+                    if (count > bufferEnd - bufferPosition) {
+                        count = bufferEnd - bufferPosition;
+                    }
+                    bufferPosition += count;
+                } else {
+                    if (skipBuffer == null) {
+                        skipBuffer = bufferArena == null ? new byte[SKIP_BUFFER_SIZE] : bufferArena.lease(SKIP_BUFFER_SIZE);
+                    }
+                    count = readRaw(skipBuffer, 0, count < skipBuffer.length ? count : skipBuffer.length);
+                }
+                remaining -= count;
+                skipped += count;
+            }
+        } finally {
+            if (bufferArena != null) {
+                bufferArena.release(skipBuffer);
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Sets the arena to lease the buffer for the skipped bytes from, so
+     * skipping the unread body does not allocate memory.
+     *
+     * @param bufferArena the arena, null to allocate the buffer
+     */
+    public void setBufferArena(BufferArena bufferArena) {
+        this.bufferArena = bufferArena;
+    }
+
+    /**
+     * Returns the number of bytes of the body which have not been read. For a
+     * chunked body only the rest of the current chunk is known.
+     *
+     * @return the number of remaining bytes
+     */
+    public int getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * Returns the position in the buffer after the last byte of the body
+     * which has been taken from the buffer. The bytes after it belong to the
+     * next requests.
+     *
+     * @return the position in the buffer
+     */
+    public int getBufferPosition() {
+        return bufferPosition;
+    }
+
+    /**
+     * Returns for how long the stream has been blocked reading from the
+     * connection.
+     *
+     * @param now current time in milliseconds
+     * @return the time in milliseconds or -1 if the stream is not reading
+     */
+    public long getReadingTime(long now) {
+        long since = readingSince;
+        return since == 0 ? -1 : now - since;
+    }
+
+    /**
+     * Reads and discards the rest of the body if it is not longer than the
+     * specified number of bytes.
+     *
+     * @param maxBytes maximum number of bytes to discard
+     * @return true if the whole body has been read, false if the rest of the
+     * body is too long to be discarded
+     * @throws IOException if any I/O error occurs while reading
+     */
+    public boolean discard(int maxBytes) throws IOException {
+        int discarded = 0;
+        while (nextChunk()) {
+            if (remaining > maxBytes - discarded) {
+                return false;
+            }
+            discarded += remaining;
+            skip(remaining);
+        }
+        return true;
+    }
+
+    // Makes sure there are bytes to read in the current chunk, the size of
+    // the next chunk is read if needed. Returns false at the end of the body
+    private boolean nextChunk() throws IOException {
+        if (remaining > 0) {
+            return true;
+        }
+        if (!chunked || lastChunkRead) {
+            return false;
+        }
+        if (chunksNumber > 0) {
+            // Line end after the data of the previous chunk
+            if (readLine(false) != 0) {
+                throw new IOException("Malformed chunk: data is longer than chunk size");
+            }
+        }
+        chunksNumber++;
+        int size = readLine(true);
+        if (size == 0) {
+            // Trailers end with an empty line, they are ignored
+            while (readLine(false) != 0) {
+            }
+            lastChunkRead = true;
+            return false;
+        }
+        remaining = size;
+        return true;
+    }
+
+    // Reads a line of the chunked coding. If the line is a chunk size line,
+    // the size is parsed and returned, the extensions are ignored. Otherwise
+    // the length of the line is returned
+    private int readLine(boolean chunkSize) throws IOException {
+        int length = 0;
+        int size = 0;
+        boolean digits = chunkSize;
+        for (;;) {
+            int b = readRaw();
+            if (b == '\n') {
+                break;
+            }
+            if (b == '\r') {
+                continue;
+            }
+            if (++length > MAXIMUM_LINE_LENGTH) {
+                throw new IOException("Malformed chunk: line is too long");
+            }
+            if (digits) {
+                int digit = Character.digit((char)b, 16);
+                if (digit < 0) {
+                    if (length == 1) {
+                        throw new IOException("Malformed chunk: size is not a number");
+                    }
+                    // Chunk extensions and whitespace are ignored
+                    digits = false;
+                } else if (size > (Integer.MAX_VALUE >> 4)) {
+                    throw new IOException("Malformed chunk: chunk is too large");
+                } else {
+                    size = (size << 4) + digit;
+                }
+            }
+        }
+        if (chunkSize && length == 0) {
+            throw new IOException("Malformed chunk: size is missing");
+        }
+        return chunkSize ? size : length;
+    }
+
+    // Reads a single byte from the buffer or the connection
+    private int readRaw() throws IOException {
+        if (bufferPosition < bufferEnd) {
+            return buffer[bufferPosition++] & 0xFF;
+        }
+        readingSince = System.currentTimeMillis();
+        int b;
+        try {
+            b = source.read();
+        } finally {
+            readingSince = 0;
+        }
+        if (b < 0) {
+            throw new IOException("Connection closed before the end of the body");
+        }
+        return b;
+    }
+
+    // Reads up to len bytes from the buffer or the connection
+    private int readRaw(byte[] b, int off, int len) throws IOException {
+        int bytesRead;
+        if (bufferPosition < bufferEnd) {
+            bytesRead = bufferEnd - bufferPosition;
+            if (bytesRead > len) {
+                bytesRead = len;
+            }
+            System.arraycopy(buffer, bufferPosition, b, off, bytesRead);
+            bufferPosition += bytesRead;
+        } else {
+            readingSince = System.currentTimeMillis();
+            try {
+                bytesRead = source.read(b, off, len);
+            } finally {
+                readingSince = 0;
+            }
+            if (bytesRead < 0) {
+                throw new IOException("Connection closed before the end of the body");
+            }
+        }
+        return bytesRead;
+    }
+}
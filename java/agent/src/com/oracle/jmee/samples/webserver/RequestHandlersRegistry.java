@@ -16,7 +16,12 @@ package com.oracle.jmee.samples.webserver;
  * the "/" context path which can be used to serve all requests or requests,
  * which will not be handled by other handlers (depending on the
  * implementation). It is up to implementations to decide what to do if null
- * context path is specified for the methods of the interface.
+ * context path is specified for the methods of the interface.<br><br>
+ *
+ * A handler may be registered for all request methods or for a single one.
+ * Implementations may support path templates, where a segment of the context
+ * path such as "{deviceId}" matches any segment of the request path and the
+ * matched value is captured (see {@link RouteMatch}).
  */
 public interface RequestHandlersRegistry {
 
@@ -34,6 +39,20 @@ public interface RequestHandlersRegistry {
      */
     public void add(String contextPath, RequestHandler handler);
 
+    /**
+     * Adds a request handler for the specified request method and context
+     * path. Handlers of different methods may be registered for the same
+     * context path. A handler registered for all methods serves the methods
+     * which have no handler of their own.
+     *
+     * @param method the request method, e.g. "GET", or null for all methods
+     * @param contextPath the starting part of the path of the URI which the
+     * provided handler is to serve
+     * @param handler the added request handler
+     * @throws NullPointerException if the handler is null
+     */
+    public void add(String method, String contextPath, RequestHandler handler);
+
     /**
      * Returns the suitable context for the provided path. Returned value will
      * be a starting substring of the full path if present.
@@ -43,6 +62,22 @@ public interface RequestHandlersRegistry {
      */
     public String findSuitableContext(String fullPath);
 
+    /**
+     * Returns the suitable context path for the provided request method and
+     * path together with the handler registered for them. Unlike calling
+     * {@link #findSuitableContext(java.lang.String)} and
+     * {@link #getByContextPath(java.lang.String)}, the context path and the
+     * handler are found by a single lookup. If the path matches a context
+     * path, but there is no handler for the method, the returned match has no
+     * handler and lists the allowed methods. A "HEAD" request is served by the
+     * "GET" handler if there is no handler for "HEAD".
+     *
+     * @param method the request method or null to match any method
+     * @param fullPath the request path to find suitable context path
+     * @return the match or null if there is no suitable context path
+     */
+    public RouteMatch findRoute(String method, String fullPath);
+
     /**
      * Gets the suitable request handler for the specified path if present.
      *
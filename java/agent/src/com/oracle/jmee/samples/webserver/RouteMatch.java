@@ -0,0 +1,140 @@
+/*
+ * Copyright © 2015, Oracle and/or its affiliates.  All rights reserved. 
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and the
+ * Universal Permissive License (UPL).  See the LICENSE file in the root directory
+ * for license terms.  You may choose either license, or both.
+ */
+package com.oracle.jmee.samples.webserver;
+
+/**
+ * Class which represents the result of locating the request handler for a
+ * request: the context path which matches the request path and the handler
+ * registered for it. Both are found by a single lookup, so they always belong
+ * to the same binding even if the registry is modified meanwhile.<br><br>
+ *
+ * If the handler has been registered for a path template such as
+ * "/devices/{deviceId}/operations", the context path is the part of the
+ * request path which matches the template and the values of the template
+ * variables are available by {@link #getPathVariable(java.lang.String)}. If
+ * the path matches, but no handler has been registered for the request
+ * method, the handler is null and {@link #getAllowedMethods()} returns the
+ * methods which are allowed. Instances are immutable.
+ */
+public class RouteMatch {
+
+    // Part of the request path which matches the registered context path
+    private final String contextPath;
+
+    // Handler registered for the context path, null if the method is not
+    // allowed
+    private final RequestHandler handler;
+
+    // Context path or path template the handler has been registered for
+    private final String pathTemplate;
+
+    // Names and values of the template variables, null if there are none
+    private final String[] variableNames;
+    private final String[] variableValues;
+
+    // Comma separated methods which have handlers, null if the handler is
+    // not null
+    private final String allowedMethods;
+
+    /**
+     * Creates a new match of a context path which has no variables.
+     *
+     * @param contextPath the context path which matches the request path
+     * @param handler the handler registered for the context path
+     */
+    public RouteMatch(String contextPath, RequestHandler handler) {
+        this(contextPath, handler, contextPath, null, null, null);
+    }
+
+    /**
+     * Creates a new match.
+     *
+     * @param contextPath the part of the request path which matches the
+     * registered context path
+     * @param handler the handler registered for the context path, null if the
+     * request method is not allowed
+     * @param pathTemplate the context path or path template the handler has
+     * been registered for
+     * @param variableNames names of the template variables, may be null
+     * @param variableValues values of the template variables in the same
+     * order as the names
+     * @param allowedMethods comma separated methods which have handlers, used
+     * if the handler is null
+     */
+    public RouteMatch(String contextPath, RequestHandler handler, String pathTemplate, String[] variableNames, String[] variableValues, String allowedMethods) {
+        this.contextPath = contextPath;
+        this.handler = handler;
+        this.pathTemplate = pathTemplate;
+        this.variableNames = variableNames;
+        this.variableValues = variableValues;
+        this.allowedMethods = allowedMethods;
+    }
+
+    /**
+     * Returns the part of the request path which matches the registered
+     * context path. It is a starting substring of the request path.
+     *
+     * @return the context path
+     */
+    public String getContextPath() {
+        return contextPath;
+    }
+
+    /**
+     * Returns the handler registered for the context path and the request
+     * method.
+     *
+     * @return the request handler or null if there is no handler for the
+     * request method
+     */
+    public RequestHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Returns the context path or the path template which the handler has been
+     * registered for, e.g. "/devices/{deviceId}".
+     *
+     * @return the registered path
+     */
+    public String getPathTemplate() {
+        return pathTemplate;
+    }
+
+    /**
+     * Returns the value of the path template variable, e.g. "dev1" for the
+     * "deviceId" variable when "/devices/dev1" matches "/devices/{deviceId}".
+     *
+     * @param name name of the variable without braces
+     * @return the value or null if the template has no such variable
+     */
+    public String getPathVariable(String name) {
+        if (variableNames != null) {
+            for (int i = 0; i < variableNames.length; i++) {
+                if (variableNames[i].equals(name)) {
+                    return variableValues[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    /* package */ String[] getVariableNames() {
+        return variableNames;
+    }
+
+    /**
+     * Returns the methods which have handlers for the matched path, to be sent
+     * in the "Allow" header of the "405 Method Not Allowed" response.
+     *
+     * @return comma separated methods or null if the handler is not null
+     */
+    public String getAllowedMethods() {
+        return allowedMethods;
+    }
+}
@@ -7,6 +7,7 @@
  */
 package com.oracle.jmee.samples.webserver;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -26,19 +27,31 @@ import javax.microedition.io.SocketConnection;
  * are defined in the <a
  * href="https://tools.ietf.org/html/rfc7230#section-6.3">Persistence paragraph
  * of the RFC 7230</a>. By default connections are persisted if HTTP request
- * suggests it.<br><br>
+ * suggests it. The number of requests served over a single connection may be
+ * limited by {@link #setMaxRequestsPerConnection(int)}. Connections whose
+ * responses have unknown length are never persisted.<br><br>
+ *
+ * If a {@link ConnectionReaper} is provided, the handler registers itself in
+ * it for the time of serving the connection, so a connection which waits for
+ * a request for too long is closed and does not hold the working
+ * thread.<br><br>
  *
  * This class uses the provided handlers registry to locate the appropriate
  * handler.
  */
 /* package */ class SimpleHttpConnectionHandler implements Runnable {
 
-    // New line characters bytes
-    private static final byte[] NEW_LINE_BYTES = "\r\n".getBytes();
+    // Maximum number of the body bytes which are skipped after the request
+    // has been served to keep the connection, a longer unread body closes the
+    // connection
+    /* package */ static final int MAXIMUM_DISCARDED_BODY_LENGTH = 64 * 1024;
 
     // Size of the buffer to read data from the client connection
     private int bufferSize;
 
+    // Maximum size of the request headers
+    private int maximumHeadSize = HttpRequestParser.DEFAULT_MAXIMUM_HEAD_SIZE;
+
     // Socket connection with the client
     private final SocketConnection clientConnection;
 
@@ -49,17 +62,43 @@ import javax.microedition.io.SocketConnection;
     // null
     private final String serverName;
 
+    // Writer which encodes the responses, created with the first response
+    private HttpResponseWriter responseWriter;
+
     // Flag which determines whether it connection will be persisted if HTTP
     // request suggests it
     private boolean persistConnectionIfSuggested = true;
 
+    // Maximum number of requests served over the connection, 0 for no limit
+    private int maxRequestsPerConnection = 0;
+
+    // Reaper which closes the connection if it is idle, may be null
+    private ConnectionReaper connectionReaper;
+
+    // Arena to lease the receiving and sending buffers from, may be null
+    private BufferArena bufferArena;
+
+    // Time when the handler has started reading a request, 0 if it is not
+    // reading
+    private volatile long readingSince = 0;
+
+    // Request which is being served, its body is read from the connection
+    private volatile HttpRequest currentRequest;
+
+    // Number of requests which have been served over the connection
+    private volatile int requestsServed = 0;
+
+    // Flag to check whether the connection has been closed
+    private boolean connectionClosed = false;
+
     /**
      * Creates a new SimpleHttpConnectionHandler to handle the client at the
      * specified connection. Connection handler will use the provided registry
      * to locate the suitable request handler to serve the HTTP request. The
      * provided server headers will be appended to each HTTP response. The
-     * specified buffer size is used to allocate buffers. Buffer size must be
-     * big enough to fit all HTTP request headers. It is not possible to
+     * specified buffer size is used to allocate buffers. The buffer to receive
+     * requests grows if the headers do not fit it, up to the maximum head
+     * size (see {@link #setMaximumHeadSize(int)}). It is not possible to
      * reinitialize the handler, so it becomes useless after it has performed
      * client connection handling in the {@link #run()} method.
      *
@@ -99,10 +138,22 @@ import javax.microedition.io.SocketConnection;
         boolean persistConnection = true;
         String clientAddress = null;
 
+        if (connectionReaper != null) {
+            connectionReaper.register(this);
+        }
+
+        // The parser keeps its buffer and the bytes of pipelined requests
+        // between the requests
+        HttpRequestParser parser = new HttpRequestParser(bufferSize, maximumHeadSize, bufferArena);
+
         try 
         {
             InputStream clientInput = clientConnection.openInputStream();
             OutputStream clientOutput = clientConnection.openOutputStream();
+
+            // Number of bytes of the previous request in the buffer, -1
+            // before the first request
+            int consumedLength = -1;
             
             while (persistConnection) {
                 clientAddress = clientConnection.getAddress() + ":" + clientConnection.getPort();
@@ -110,7 +161,14 @@ import javax.microedition.io.SocketConnection;
                 System.out.println("Started parsing new request");
                 HttpResponse response;
                 try {
-                    request = HttpRequest.parseRequest(clientAddress, clientInput, bufferSize);
+                    readingSince = System.currentTimeMillis();
+                    if (consumedLength >= 0) {
+                        // The pipelined bytes of the next request are parsed
+                        // here, so they are answered as a bad request if they
+                        // are malformed
+                        parser.nextRequest(consumedLength);
+                    }
+                    request = HttpRequest.parseRequest(clientAddress, clientInput, parser);
                 } catch (IllegalArgumentException e) {
                     // IllegalArgumentException is treated as a bad request
                     System.out.println("Error while serving client: " + e.getMessage());
@@ -119,77 +177,246 @@ import javax.microedition.io.SocketConnection;
                     // Errors are sent using HTTP/1.0 because it is unknown here
                     // which version the request has used
                     sendResponse(clientOutput, "HTTP/1.0", response, request);
-                    return;
+                    break;
                 } catch (RuntimeException e) {
                     System.out.println("Error while serving client: " + e.getMessage());
                     response = HttpResponse.internalServerError();
                     response.addHeader("Connection", "close");
                     sendResponse(clientOutput, "HTTP/1.0", response, request);
-                    return;
-                } catch (IOException e) {
-                    throw e;
+                    break;
+                } catch (EOFException e) {
+                    // Client has closed the connection instead of sending
+                    // another request
+                    break;
+                } finally {
+                    readingSince = 0;
                 }
+                requestsServed++;
+                currentRequest = request;
 
                 // Checking wheter it is needed to persist the client connection
-                persistConnection = persistConnectionIfSuggested && request.shouldPersistConnection();
+                persistConnection = persistConnectionIfSuggested && request.shouldPersistConnection()
+                    && (maxRequestsPerConnection <= 0 || requestsServed < maxRequestsPerConnection);
 
                 String protocol = request.getHttpVersion();
-                String path = request.getRequestPath();
-
-                String contextPath;
-                RequestHandler requestHandler;
-
-                // Obtaining a context path and a handler for this request
-                synchronized (requestHandlersRegistry) {
-                    contextPath = requestHandlersRegistry.findSuitableContext(path);
-                    requestHandler = requestHandlersRegistry.getByContextPath(contextPath);
-                }
 
-                if (requestHandler != null) {
-                    System.out.println("Found request handler for context: " + contextPath);
-
-                    String relativePath = path.substring(contextPath.length());
-                    System.out.println("Relative path is: " + relativePath);
-
-                    try {
-                        response = requestHandler.handle(request, contextPath, relativePath);
-                        
-                        System.out.println("Response-->"+response.toString());
-                         
-                    } catch (RuntimeException e) {
-                        System.out.println("Error while serving client: " + e.getMessage());
-                        response = HttpResponse.internalServerError();
-                    }
-
-                } else {
-                    System.out.println("No suitable request handler found for " + path);
-                    response = HttpResponse.notFound();
-                }
-                if (!persistConnection) {
-                    // Appending a header to signal that user agent must close
-                    // connection
-                    response.addHeader("Connection", "close");
+                response = serveRequest(request, requestHandlersRegistry);
+                if (!request.discardBody(MAXIMUM_DISCARDED_BODY_LENGTH)) {
+                    // The rest of the body is too long to be skipped
+                    persistConnection = false;
                 }
+                persistConnection = addConnectionHeader(response, protocol, persistConnection);
 
                 // Sending the response
                 sendResponse(clientOutput, protocol, response, request);
                 System.out.println("Response to " + clientAddress + " has been sent");
+
+                // The buffer of the parser is reused for the next request
+                currentRequest = null;
+                request.release();
+                consumedLength = request.getConsumedLength();
             }
 
         } catch (IOException e) {
             System.out.println("Error while handling client: " + e.getMessage());
+        } finally {
+            if (connectionReaper != null) {
+                connectionReaper.unregister(this);
+            }
+            parser.releaseBuffer();
+        }
+
+        closeConnection();
+        if (clientAddress != null) {
+            System.out.println("Connection with client " + clientAddress + " has been closed");
+        }
+    }
+
+    /**
+     * Locates the suitable request handler in the registry and lets it handle
+     * the request. If there is no suitable handler, a "404 Not Found" response
+     * is returned. If the path matches, but no handler serves the request
+     * method, a "405 Method Not Allowed" response listing the allowed methods
+     * is returned. If the handler fails, a "500 Internal Server Error"
+     * response is returned.
+     *
+     * @param request the request to serve
+     * @param requestHandlersRegistry registry to locate the request handler
+     * @return the response to send to the client
+     */
+    static HttpResponse serveRequest(HttpRequest request, RequestHandlersRegistry requestHandlersRegistry) {
+        String path = request.getRequestPath();
+
+        // Obtaining a context path and a handler for this request by a single
+        // lookup, the registry is responsible for its thread safety
+        RouteMatch route = requestHandlersRegistry.findRoute(request.getRequestMethodAsString(), path);
+
+        HttpResponse response;
+        if (route != null && route.getHandler() == null) {
+            System.out.println("Method " + request.getRequestMethodAsString() + " is not allowed for " + path);
+            response = HttpResponse.methodNotAllowed();
+            response.addHeader("Allow", route.getAllowedMethods());
+        } else if (route != null) {
+            request.setRoute(route);
+            String contextPath = route.getContextPath();
+            RequestHandler requestHandler = route.getHandler();
+            System.out.println("Found request handler for context: " + contextPath);
+
+            String relativePath = path.substring(contextPath.length());
+            System.out.println("Relative path is: " + relativePath);
+
+            try {
+                response = requestHandler.handle(request, contextPath, relativePath);
+                
+                System.out.println("Response-->"+response.toString());
+                 
+            } catch (RuntimeException e) {
+                System.out.println("Error while serving client: " + e.getMessage());
+                response = HttpResponse.internalServerError();
+            }
+
+        } else {
+            System.out.println("No suitable request handler found for " + path);
+            response = HttpResponse.notFound();
+        }
+        return response;
+    }
+
+    /**
+     * Adds the "Connection" header to the response according to the decision
+     * whether the connection is persisted. If the length of the response body
+     * is unknown, the body is sent using the chunked transfer coding to
+     * HTTP/1.1 clients. Older clients can only detect the end of such a body
+     * when the connection is closed, so it is not persisted.
+     *
+     * @param response the response to send
+     * @param protocol HTTP version of the request
+     * @param persistConnection true if the connection should be persisted
+     * @return true if the connection is persisted after the response
+     */
+    static boolean addConnectionHeader(HttpResponse response, String protocol, boolean persistConnection) {
+        if (persistConnection && response.getContentLength() < 0 && !"HTTP/1.1".equals(protocol)) {
+            // The end of the body is signaled by closing the
+            // connection when its length is unknown
+            persistConnection = false;
+        }
+        if (!persistConnection) {
+            // Appending a header to signal that user agent must close
+            // connection
+            response.addHeader("Connection", "close");
+        } else if (!"HTTP/1.1".equals(protocol)) {
+            // HTTP/1.0 clients must be told the connection is kept
+            response.addHeader("Connection", "keep-alive");
         }
+        return persistConnection;
+    }
 
+    /**
+     * Closes the client connection if it has not been closed yet. A thread
+     * blocked reading from the connection is released with an IOException.
+     */
+    public void closeConnection() {
+        synchronized (clientConnection) {
+            if (connectionClosed) {
+                return;
+            }
+            connectionClosed = true;
+        }
         try {
             clientConnection.close();
-            if (clientAddress != null) {
-                System.out.println("Connection with client " + clientAddress + " has been closed");
-            }
         } catch (IOException e) {
             System.out.println("Failed to close connection: " + e.getMessage());
         }
     }
 
+    /**
+     * Returns for how long the handler has been reading the current request,
+     * either its head or its body.
+     *
+     * @param now current time in milliseconds
+     * @return the time in milliseconds or -1 if the handler is not reading
+     */
+    public long getReadingTime(long now) {
+        long since = readingSince;
+        if (since != 0) {
+            return now - since;
+        }
+        HttpRequest request = currentRequest;
+        return request == null ? -1 : request.getBodyReadingTime(now);
+    }
+
+    /**
+     * Returns true if at least one request has been served over the
+     * connection, i.e. the connection is a persistent one waiting for the next
+     * request.
+     *
+     * @return true if the connection has already served a request
+     */
+    public boolean isBetweenRequests() {
+        return requestsServed > 0 && currentRequest == null;
+    }
+
+    /**
+     * Sets the maximum number of requests served over a single connection.
+     * The response to the last allowed request closes the connection.
+     *
+     * @param maxRequestsPerConnection the maximum number of requests or 0 for
+     * no limit
+     */
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    /**
+     * Sets the maximum size of the request line and headers. The buffer to
+     * receive a request grows up to this size if the headers do not fit it.
+     *
+     * @param maximumHeadSize the maximum size in bytes
+     */
+    public void setMaximumHeadSize(int maximumHeadSize) {
+        this.maximumHeadSize = maximumHeadSize;
+    }
+
+    /**
+     * Sets the reaper which closes the connection if it stays idle for too
+     * long. Must be called before the handler is run.
+     *
+     * @param connectionReaper the reaper or null to disable idle checks
+     */
+    public void setConnectionReaper(ConnectionReaper connectionReaper) {
+        this.connectionReaper = connectionReaper;
+    }
+
+    /**
+     * Sets the arena the buffers to receive requests and to send responses
+     * are leased from. Must be called before the handler is run.
+     *
+     * @param bufferArena the arena or null to allocate the buffers
+     */
+    public void setBufferArena(BufferArena bufferArena) {
+        this.bufferArena = bufferArena;
+    }
+
+    /**
+     * Rejects the client connection without reading the request. A "503
+     * Service Unavailable" HTTP response is sent and the connection is closed.
+     * This method is intended to be called by the accepting thread when there
+     * are no resources to serve the client, so it must not block for long.
+     */
+    public void reject() {
+        try {
+            OutputStream clientOutput = clientConnection.openOutputStream();
+            HttpResponse response = new HttpResponse(Status.SERVICE_UNAVAILABLE);
+            response.addHeader("Connection", "close");
+            response.addHeader("Retry-After", "1");
+            sendResponse(clientOutput, "HTTP/1.0", response, null);
+        } catch (IOException e) {
+            System.out.println("Error while rejecting client: " + e.getMessage());
+        }
+
+        closeConnection();
+    }
+
     /**
      * Returns true if this handler will persist connection with the client if
      * HTTP request suggests it.
@@ -213,34 +440,9 @@ import javax.microedition.io.SocketConnection;
     }
 
     private void sendResponse(final OutputStream clientOutput, String protocol, HttpResponse response, HttpRequest request) throws IOException {
-        // Sending status line
-        clientOutput.write((protocol + " " + response.getStatusCode() + " " + response.getStatusReason() + "\r\n").getBytes());
-
-        // Sending the headers part
-        clientOutput.write(response.getHeadersAsString().getBytes());
-        clientOutput.write("Server: ".getBytes());
-        clientOutput.write(serverName.getBytes());
-        clientOutput.write(NEW_LINE_BYTES);
-
-        clientOutput.write(NEW_LINE_BYTES);
-
-        // Sending the headers first
-        clientOutput.flush();
-
-        if (request != null && request.getRequestMethod() != HttpRequest.HEAD_REQUEST_METHOD) {
-            // Sending the body if it is present. Also body must not be sent if
-            // the request method is HEAD
-            InputStream body = response.getBody();
-            if (body != null) {
-                // Using the size of the buffer which has been set up during
-                // the connection handler construction
-                byte[] buffer = new byte[bufferSize];
-                int readBytes;
-                while ((readBytes = body.read(buffer)) != -1) {
-                    clientOutput.write(buffer, 0, readBytes);
-                }
-                clientOutput.flush();
-            }
+        if (responseWriter == null) {
+            responseWriter = new HttpResponseWriter(serverName, bufferSize, bufferArena);
         }
+        responseWriter.write(clientOutput, protocol, response, request);
     }
 }
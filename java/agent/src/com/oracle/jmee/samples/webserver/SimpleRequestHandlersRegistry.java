@@ -27,7 +27,8 @@ import amplia.util.Objects;
  * {@link #get(java.lang.String)} methods are called. "/", which is treated the
  * same as an empty string and null, context path allows to set default context
  * handler, which will be returned if none of the bindings match the request
- * path. Paths are normalized before they are used.
+ * path. Paths are normalized before they are used. Path templates are not
+ * supported, braces in context paths are matched literally.
  */
 public class SimpleRequestHandlersRegistry implements RequestHandlersRegistry {
 
@@ -39,6 +40,10 @@ public class SimpleRequestHandlersRegistry implements RequestHandlersRegistry {
     // private final Map<String, RequestHandler> handlers = new HashMap<>();
     private final Hashtable handlers = new Hashtable();
 
+    // Map to store bindings of the handlers registered for a single method:
+    // context path to a map of method to handler
+    private final Hashtable methodHandlers = new Hashtable();
+
     /**
      * Creates a new SimpleRequestHandlersRegistry.
      */
@@ -67,7 +72,7 @@ public class SimpleRequestHandlersRegistry implements RequestHandlersRegistry {
         }
     }
 
-    private String prepareContextPath(String contextPath) {
+    /* package */ static String prepareContextPath(String contextPath) {
         // Making context path start with a dash and removing trailing dashes if
         // there are any of them
         if (contextPath == null) {
@@ -87,6 +92,35 @@ public class SimpleRequestHandlersRegistry implements RequestHandlersRegistry {
         return contextPath;
     }
 
+    /**
+     * {@inheritDoc}. Providing null or an empty string as a path is treated
+     * like the root context path is provided.
+     *
+     * @param method {@inheritDoc}
+     * @param contextPath {@inheritDoc}
+     * @param handler {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    // @Override
+    public void add(String method, String contextPath, RequestHandler handler) {
+        if (method == null) {
+            add(contextPath, handler);
+            return;
+        }
+        Objects.requireNonNull(handler, "Handler must not be null");
+        contextPath = prepareContextPath(contextPath);
+        Hashtable handlersByMethod = (Hashtable)methodHandlers.get(contextPath);
+        if (handlersByMethod == null) {
+            handlersByMethod = new Hashtable();
+            methodHandlers.put(contextPath, handlersByMethod);
+        }
+        if (handlersByMethod.containsKey(method)) {
+            System.out.println("Registry already contains a binding for the provided method and context path: " + method + " " + contextPath);
+        } else {
+            handlersByMethod.put(method, handler);
+        }
+    }
+
     private static String normalizeIndependentFromFileSystem(String path) {
         try {
             // String fileSeparator = FileSystems.getDefault().getSeparator();
@@ -113,10 +147,16 @@ public class SimpleRequestHandlersRegistry implements RequestHandlersRegistry {
 
     private String getSuitableContextPath(String path) {
         path = prepareContextPath(path);
-        String returnedContextPath = null;
-        int longestMatch = -1;
+        String returnedContextPath = getSuitableContextPath(path, handlers, null);
+        return getSuitableContextPath(path, methodHandlers, returnedContextPath);
+    }
+
+    // Returns the longest of the specified context path and the keys of the
+    // map which match the path
+    private static String getSuitableContextPath(String path, Hashtable bindings, String returnedContextPath) {
+        int longestMatch = returnedContextPath == null ? -1 : returnedContextPath.length();
         
-        for (Enumeration en=handlers.keys();en.hasMoreElements();)
+        for (Enumeration en=bindings.keys();en.hasMoreElements();)
         {
             String contextPath = (String)en.nextElement();
             // Checking that path starts with any of the stored context paths.
@@ -132,25 +172,88 @@ public class SimpleRequestHandlersRegistry implements RequestHandlersRegistry {
         return returnedContextPath;
     }
 
+    /**
+     * {@inheritDoc}. The lookup is synchronized on the registry, so it does
+     * not interleave with modifications synchronized on it.
+     *
+     * @param method {@inheritDoc}
+     * @param path {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    // @Override
+    public synchronized RouteMatch findRoute(String method, String path) {
+        String suitableContextPath = getSuitableContextPath(path);
+        if (suitableContextPath == null) {
+            return null;
+        }
+        Hashtable handlersByMethod = (Hashtable)methodHandlers.get(suitableContextPath);
+        RequestHandler handler = null;
+        if (handlersByMethod != null && method != null) {
+            handler = (RequestHandler)handlersByMethod.get(method);
+            if (handler == null && method.equals("HEAD")) {
+                handler = (RequestHandler)handlersByMethod.get("GET");
+            }
+        }
+        if (handler == null) {
+            // The handler for all methods serves the other methods, any
+            // handler is returned if the method is not specified
+            handler = method == null ? getByContextPath(suitableContextPath) : (RequestHandler)handlers.get(suitableContextPath);
+        }
+        if (handler != null) {
+            return new RouteMatch(suitableContextPath, handler);
+        }
+
+        // Listing the methods for the "Allow" header
+        StringBuffer allowedMethods = new StringBuffer();
+        for (Enumeration en = handlersByMethod.keys(); en.hasMoreElements();) {
+            if (allowedMethods.length() > 0) {
+                allowedMethods.append(", ");
+            }
+            allowedMethods.append((String)en.nextElement());
+        }
+        if (handlersByMethod.containsKey("GET") && !handlersByMethod.containsKey("HEAD")) {
+            allowedMethods.append(", HEAD");
+        }
+        return new RouteMatch(suitableContextPath, null, suitableContextPath, null, null, allowedMethods.toString());
+    }
+
     // @Override
     public RequestHandler get(String path) {
         String suitableContextPath = getSuitableContextPath(path);
         if (suitableContextPath != null) {
-            return (RequestHandler)handlers.get(suitableContextPath);
+            return getByContextPath(suitableContextPath);
         }
         return null;
     }
 
+    /**
+     * {@inheritDoc}. If there is no handler registered for all methods, the
+     * handler of any method registered for the context path is returned.
+     *
+     * @param contextPath {@inheritDoc}
+     * @return {@inheritDoc}
+     */
     // @Override
     public RequestHandler getByContextPath(String contextPath) {
         contextPath = prepareContextPath(contextPath);
-        return (RequestHandler)handlers.get(contextPath);
+        RequestHandler handler = (RequestHandler)handlers.get(contextPath);
+        if (handler == null) {
+            Hashtable handlersByMethod = (Hashtable)methodHandlers.get(contextPath);
+            if (handlersByMethod != null) {
+                Enumeration en = handlersByMethod.elements();
+                if (en.hasMoreElements()) {
+                    handler = (RequestHandler)en.nextElement();
+                }
+            }
+        }
+        return handler;
     }
 
     // @Override
     public void removeContextPath(String contextPath) {
         contextPath = prepareContextPath(contextPath);
         handlers.remove(contextPath);
+        methodHandlers.remove(contextPath);
     }
 
     /**
@@ -182,10 +285,34 @@ public class SimpleRequestHandlersRegistry implements RequestHandlersRegistry {
             String key = (String)en.nextElement();
             handlers.remove(key);
         }
+
+        // Removing the bindings of single methods
+        keysToDelete.removeAllElements();
+        for (Enumeration en = methodHandlers.keys(); en.hasMoreElements();) {
+            String key = (String)en.nextElement();
+            Hashtable handlersByMethod = (Hashtable)methodHandlers.get(key);
+            Vector methodsToDelete = new Vector();
+            for (Enumeration methods = handlersByMethod.keys(); methods.hasMoreElements();) {
+                String method = (String)methods.nextElement();
+                if (handlersByMethod.get(method) == handler) {
+                    methodsToDelete.addElement(method);
+                }
+            }
+            for (Enumeration methods = methodsToDelete.elements(); methods.hasMoreElements();) {
+                handlersByMethod.remove(methods.nextElement());
+            }
+            if (handlersByMethod.isEmpty()) {
+                keysToDelete.addElement(key);
+            }
+        }
+        for (Enumeration en = keysToDelete.elements(); en.hasMoreElements();) {
+            methodHandlers.remove(en.nextElement());
+        }
     }
 
     // @Override
     public void clear() {
         handlers.clear();
+        methodHandlers.clear();
     }
 }
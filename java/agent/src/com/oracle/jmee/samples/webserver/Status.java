@@ -261,6 +261,10 @@ public class Status {
     // Status reason
     private final String reason;
 
+    // Encoded status line without the protocol version: the code, the reason
+    // and the line end
+    private final byte[] statusLineBytes;
+
     /**
      * Creates a status instance by specified status code and status reason.
      *
@@ -270,6 +274,7 @@ public class Status {
     Status(int code, String reason) {
         this.code = code;
         this.reason = reason;
+        this.statusLineBytes = (" " + code + " " + reason + "\r\n").getBytes();
         
         ms_statusList.addElement(this);
         
@@ -293,6 +298,17 @@ public class Status {
         return reason;
     }
 
+    /**
+     * Returns the status line of the status without the protocol version,
+     * encoded once and shared by all responses with this status. The returned
+     * array must not be modified.
+     *
+     * @return the bytes of the status code, reason and the line end
+     */
+    /* package */ byte[] getStatusLineBytes() {
+        return statusLineBytes;
+    }
+
     /**
      * Gets the status by the specified status code.
      *
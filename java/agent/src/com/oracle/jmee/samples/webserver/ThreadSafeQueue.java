@@ -7,47 +7,346 @@
  */
 package com.oracle.jmee.samples.webserver;
 
-// import java.util.ArrayDeque;
-// import java.util.Queue;
-import java.util.Vector;
-
 /**
- * Class which represents thread-safe FIFO (first-in-first-out) queue. It
- * provides the blocking methods to add and to take elements.
+ * Class which represents thread-safe FIFO (first-in-first-out) queue of a
+ * fixed capacity. It provides the blocking methods to add and to take
+ * elements.<br><br>
+ *
+ * Elements are stored in a circular array, so both adding and taking are
+ * constant time operations regardless of the number of queued elements. Only
+ * a single waiting thread is woken up when an element is added, unless
+ * threads are waiting for free space at the same time.<br><br>
+ *
+ * Elements taken by {@link #drainAndHold(Object[], int, int)} keep using
+ * space in the queue until each of them is released with
+ * {@link #releaseHeld()}. This allows a consumer to take several elements at
+ * once without increasing the number of pending elements beyond the
+ * capacity.<br><br>
+ *
+ * After the queue has been closed by calling {@link #close()} no more elements
+ * are accepted, but the elements which are already queued can still be taken.
  *
  * @param <E> the type of elements in this queue
  */
 public class ThreadSafeQueue {
 
-    private final Vector queue = new Vector();
+    // Capacity which is used when the capacity is not specified explicitly
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Circular array which holds the elements
+    private final Object[] elements;
+
+    // Index of the element which will be taken next
+    private int head = 0;
+
+    // Index where the next element will be stored
+    private int tail = 0;
+
+    // Number of elements in the queue
+    private int count = 0;
+
+    // Number of elements taken by drainAndHold which have not been released
+    private int held = 0;
+
+    // Number of threads waiting for free space
+    private int waitingForSpace = 0;
+
+    // true if this queue does not accept new elements anymore
+    private boolean closed = false;
+
+    /**
+     * Creates a new queue with the default capacity.
+     */
+    public ThreadSafeQueue() {
+        this(DEFAULT_CAPACITY);
+    }
 
     /**
-     * Method to add the element to the tail of this queue.
+     * Creates a new queue which holds at most the specified number of elements.
+     *
+     * @param capacity maximum number of elements in this queue
+     *
+     * @throws IllegalArgumentException if capacity is zero or negative
+     */
+    public ThreadSafeQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be bigger than 0");
+        }
+        this.elements = new Object[capacity];
+    }
+
+    /**
+     * Method to add the element to the tail of this queue. Waiting for free
+     * space to become available, if necessary.
      *
      * @param element the element to add
+     * @return true if the element has been added, false if the queue has been
+     * closed
      *
      * @throws NullPointerException if the specified element is
      * <code>null</code>
+     * @throws InterruptedException if interrupted while waiting
      */
-    public synchronized void add(Object element) {
-        queue.addElement(element);
-        notifyAll();
+    public synchronized boolean add(Object element) throws InterruptedException {
+        checkElement(element);
+        while (count + held == elements.length && !closed) {
+            waitForSpace(0);
+        }
+        if (closed) {
+            return false;
+        }
+        enqueue(element);
+        return true;
+    }
+
+    /**
+     * Method to add the element to the tail of this queue if there is free
+     * space in it. This method never blocks.
+     *
+     * @param element the element to add
+     * @return true if the element has been added, false if the queue is full
+     * or has been closed
+     *
+     * @throws NullPointerException if the specified element is
+     * <code>null</code>
+     */
+    public synchronized boolean offer(Object element) {
+        checkElement(element);
+        if (closed || count + held == elements.length) {
+            return false;
+        }
+        enqueue(element);
+        return true;
+    }
+
+    /**
+     * Method to add the element to the tail of this queue, waiting up to the
+     * specified time for free space to become available.
+     *
+     * @param element the element to add
+     * @param timeoutMs maximum time to wait in milliseconds
+     * @return true if the element has been added, false if the time has
+     * elapsed or the queue has been closed
+     *
+     * @throws NullPointerException if the specified element is
+     * <code>null</code>
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean offer(Object element, long timeoutMs) throws InterruptedException {
+        checkElement(element);
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining = timeoutMs;
+        while (count + held == elements.length && !closed) {
+            if (remaining <= 0) {
+                return false;
+            }
+            waitForSpace(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        if (closed) {
+            return false;
+        }
+        enqueue(element);
+        return true;
     }
 
     /**
      * Method to retrieve and remove an element from the head of this queue.
-     * Waiting for an element to become available, if necessary.
+     * Waiting for an element to become available, if necessary. If the queue
+     * has been closed and all elements have been taken, null is returned.
      *
-     * @return the head of this queue
+     * @return the head of this queue or null if the queue is closed and empty
      *
      * @throws InterruptedException if interrupted while waiting
      */
     public synchronized Object take() throws InterruptedException {
-        while (queue.isEmpty()) {
-            wait();
+        while (count == 0) {
+            if (closed) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Passing a possibly consumed notification to another waiter
+                notify();
+                throw e;
+            }
+        }
+        Object ret = dequeue();
+        if (count > 0) {
+            // More elements are available, letting another waiter take them
+            notify();
         }
-        Object ret= queue.firstElement();
-        if(ret!=null) queue.removeElement(ret);
+        signalSpace();
         return ret;
     }
+
+    /**
+     * Moves the elements which are currently in this queue to the specified
+     * array without waiting. At most <code>maxElements</code> elements are
+     * moved, they are stored starting from the specified offset in the same
+     * order as they would be taken.
+     *
+     * @param batch array to store the elements into
+     * @param offset position in the array to store the first element
+     * @param maxElements maximum number of elements to move
+     * @return the number of elements which have been moved
+     *
+     * @throws IndexOutOfBoundsException if the array is too small
+     */
+    public synchronized int drainTo(Object[] batch, int offset, int maxElements) {
+        if (offset < 0 || maxElements < 0 || offset + maxElements > batch.length) {
+            throw new IndexOutOfBoundsException("Batch does not fit the array");
+        }
+        int drained = maxElements < count ? maxElements : count;
+        for (int i = 0; i < drained; i++) {
+            batch[offset + i] = dequeue();
+        }
+        if (drained > 0) {
+            signalSpace();
+        }
+        return drained;
+    }
+
+    /**
+     * Moves the elements which are currently in this queue to the specified
+     * array without waiting, like {@link #drainTo(Object[], int, int)}, but
+     * the moved elements keep using space in this queue. The space of each
+     * element must be released by calling {@link #releaseHeld()} once it is
+     * no longer pending, e.g. when its processing starts.
+     *
+     * @param batch array to store the elements into
+     * @param offset position in the array to store the first element
+     * @param maxElements maximum number of elements to move
+     * @return the number of elements which have been moved
+     *
+     * @throws IndexOutOfBoundsException if the array is too small
+     */
+    public synchronized int drainAndHold(Object[] batch, int offset, int maxElements) {
+        if (offset < 0 || maxElements < 0 || offset + maxElements > batch.length) {
+            throw new IndexOutOfBoundsException("Batch does not fit the array");
+        }
+        int drained = maxElements < count ? maxElements : count;
+        for (int i = 0; i < drained; i++) {
+            batch[offset + i] = dequeue();
+        }
+        held += drained;
+        return drained;
+    }
+
+    /**
+     * Releases the space of an element which has been taken by
+     * {@link #drainAndHold(Object[], int, int)}.
+     *
+     * @throws IllegalStateException if there are no held elements
+     */
+    public synchronized void releaseHeld() {
+        if (held == 0) {
+            throw new IllegalStateException("No element is held");
+        }
+        held--;
+        signalSpace();
+    }
+
+    /**
+     * Moves all the elements which are currently in this queue to the
+     * specified array without waiting, as many as fit into it.
+     *
+     * @param batch array to store the elements into
+     * @return the number of elements which have been moved
+     */
+    public int drainTo(Object[] batch) {
+        return drainTo(batch, 0, batch.length);
+    }
+
+    /**
+     * Returns the number of elements which are currently in this queue.
+     *
+     * @return the number of queued elements
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Returns the number of elements which are using space in this queue:
+     * the queued ones and the held ones which have not been released.
+     *
+     * @return the number of pending elements
+     */
+    public synchronized int pendingSize() {
+        return count + held;
+    }
+
+    /**
+     * Returns the maximum number of elements this queue can hold.
+     *
+     * @return the capacity of this queue
+     */
+    public int capacity() {
+        return elements.length;
+    }
+
+    /**
+     * Closes the queue. Subsequent offers are refused and threads waiting in
+     * {@link #take()} are released once the queue becomes empty.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private static void checkElement(Object element) {
+        if (element == null) {
+            throw new NullPointerException("Element must not be null");
+        }
+    }
+
+    // Must be called while holding the lock of this queue
+    private void enqueue(Object element) {
+        elements[tail] = element;
+        tail++;
+        if (tail == elements.length) {
+            tail = 0;
+        }
+        count++;
+        if (waitingForSpace == 0) {
+            // Only takers may be waiting, one of them is enough
+            notify();
+        } else {
+            notifyAll();
+        }
+    }
+
+    // Must be called while holding the lock of this queue
+    private Object dequeue() {
+        Object element = elements[head];
+        // Releasing the reference for the element to be collected
+        elements[head] = null;
+        head++;
+        if (head == elements.length) {
+            head = 0;
+        }
+        count--;
+        return element;
+    }
+
+    // Must be called while holding the lock of this queue
+    private void signalSpace() {
+        if (waitingForSpace > 0) {
+            // Takers and adders share the monitor, waking all of them so an
+            // adder is not missed
+            notifyAll();
+        }
+    }
+
+    // Must be called while holding the lock of this queue
+    private void waitForSpace(long timeoutMs) throws InterruptedException {
+        waitingForSpace++;
+        try {
+            wait(timeoutMs);
+        } finally {
+            waitingForSpace--;
+        }
+    }
 }
@@ -0,0 +1,605 @@
+/*
+ * Copyright © 2015, Oracle and/or its affiliates.  All rights reserved. 
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and the
+ * Universal Permissive License (UPL).  See the LICENSE file in the root directory
+ * for license terms.  You may choose either license, or both.
+ */
+package com.oracle.jmee.samples.webserver;
+
+import amplia.util.Objects;
+
+/**
+ * An implementation of registry of the HTTP request handlers which stores the
+ * bindings in a trie of the path segments. A request path is matched in a
+ * single pass over its segments, the deepest node with a handler gives the
+ * longest matching context path. The lookup does not depend on the number of
+ * registered context paths and does not create objects unless the matched
+ * context path has variables.<br><br>
+ *
+ * Context paths may be path templates: a segment in braces, e.g.
+ * "/devices/{deviceId}/operations", matches any non-empty segment of the
+ * request path and its value is captured into the returned
+ * {@link RouteMatch}. Templates are compiled into the trie when they are
+ * added, all variable segments at the same position share a single node. A
+ * literal segment is preferred to a variable one if both lead to equally long
+ * matches. Handlers may be registered for a single request method, the
+ * handler registered for all methods serves the other methods.<br><br>
+ *
+ * The trie is never modified in place. A modification copies the nodes on the
+ * way from the root to the modified node and publishes the new root, so
+ * lookups read a consistent snapshot without locking, while the modifications
+ * are serialized. This suits a registry which is filled at start up and read
+ * by all the working threads afterwards.<br><br>
+ *
+ * Matching rules of literal context paths are the same as of the
+ * {@link SimpleRequestHandlersRegistry}: a context path matches whole segments
+ * only, e.g. "/books" matches "/books" and "/books/5" but not "/bookshelf",
+ * and "/", which is treated the same as an empty string and null, is the
+ * default context path.
+ */
+public class TrieRequestHandlersRegistry implements RequestHandlersRegistry {
+
+    // Delimiter of the path segments
+    private static final char URI_PARTS_DELIMITER_CHARACTER = '/';
+
+    // Characters which enclose the name of a template variable
+    private static final char VARIABLE_START_CHARACTER = '{';
+    private static final char VARIABLE_END_CHARACTER = '}';
+
+    // Maximum number of children which are searched linearly, comparing
+    // the whole segments at once is faster than a binary search for a few
+    // children
+    private static final int LINEAR_SEARCH_LIMIT = 8;
+
+    // Nodes which have no children share this array
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    // Root of the current snapshot, it is the node of the "/" context path
+    private volatile Node root = new Node("", 0, null, NO_CHILDREN, null);
+
+    /**
+     * Creates a new TrieRequestHandlersRegistry.
+     */
+    public TrieRequestHandlersRegistry() {
+    }
+
+    /**
+     * {@inheritDoc}. Providing null or an empty string as a path is treated
+     * like the root context path is provided. The handler serves all request
+     * methods.
+     *
+     * @param contextPath {@inheritDoc}
+     * @param handler {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    // @Override
+    public void add(String contextPath, RequestHandler handler) {
+        add(null, contextPath, handler);
+    }
+
+    /**
+     * {@inheritDoc}. Providing null or an empty string as a path is treated
+     * like the root context path is provided. Segments of the context path
+     * in braces are template variables.
+     *
+     * @param method {@inheritDoc}
+     * @param contextPath {@inheritDoc}
+     * @param handler {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    // @Override
+    public synchronized void add(String method, String contextPath, RequestHandler handler) {
+        Objects.requireNonNull(handler, "Handler must not be null");
+        contextPath = SimpleRequestHandlersRegistry.prepareContextPath(contextPath);
+        Node node = findNode(root, contextPath);
+        Binding binding = node == null ? null : node.binding;
+        if (binding != null && binding.hasHandler(method)) {
+            System.out.println("Registry already contains a binding for the provided context path: " + (method == null ? "" : method + " ") + contextPath);
+            return;
+        }
+        RouteMatch match = new RouteMatch(contextPath, handler, contextPath, getVariableNames(contextPath), null, null);
+        root = put(root, contextPath, 1, binding == null ? new Binding(contextPath, method, match) : binding.withHandler(method, match));
+    }
+
+    // @Override
+    public String findSuitableContext(String path) {
+        RouteMatch match = findRoute(null, path);
+        return match == null ? null : match.getContextPath();
+    }
+
+    // @Override
+    public RouteMatch findRoute(String method, String path) {
+        if (path == null) {
+            path = "";
+        }
+        int length = path.length();
+        int start = length > 0 && path.charAt(0) == URI_PARTS_DELIMITER_CHARACTER ? 1 : 0;
+        Node node = match(root, path, start, length);
+        if (node == null) {
+            return null;
+        }
+        RouteMatch match = node.binding.getMatch(method);
+        if (match.getVariableNames() == null) {
+            // The context path is the same for all requests
+            return match;
+        }
+        return capture(match, path, start, node.depth);
+    }
+
+    // @Override
+    public RequestHandler get(String path) {
+        RouteMatch match = findRoute(null, path);
+        return match == null ? null : match.getHandler();
+    }
+
+    /**
+     * {@inheritDoc}. Segments in braces match the variable segments of the
+     * registered templates. If there is no handler registered for all
+     * methods, the handler of any method registered for the context path is
+     * returned.
+     *
+     * @param contextPath {@inheritDoc}
+     * @return {@inheritDoc}
+     */
+    // @Override
+    public RequestHandler getByContextPath(String contextPath) {
+        Node node = findNode(root, SimpleRequestHandlersRegistry.prepareContextPath(contextPath));
+        return node == null || node.binding == null ? null : node.binding.getMatch(null).getHandler();
+    }
+
+    // @Override
+    public synchronized void removeContextPath(String contextPath) {
+        contextPath = SimpleRequestHandlersRegistry.prepareContextPath(contextPath);
+        if (findNode(root, contextPath) != null) {
+            root = put(root, contextPath, 1, null);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @param handler {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    // @Override
+    public synchronized void remove(RequestHandler handler) {
+        Objects.requireNonNull(handler, "Handler must not be null");
+        root = removeHandler(root, handler);
+    }
+
+    // @Override
+    public synchronized void clear() {
+        root = new Node("", 0, null, NO_CHILDREN, null);
+    }
+
+    // Returns the deepest node with a binding which matches the segments of
+    // the path starting at the specified position, or null if there is no
+    // such node. The literal child is tried first and the variable child
+    // replaces its match only if it leads to a deeper node
+    private static Node match(Node node, String path, int start, int length) {
+        Node best = node.binding != null ? node : null;
+        if (start >= length) {
+            return best;
+        }
+        int end = path.indexOf(URI_PARTS_DELIMITER_CHARACTER, start);
+        if (end < 0) {
+            end = length;
+        }
+        Node child = node.getChild(path, start, end);
+        if (child != null) {
+            Node found = match(child, path, end + 1, length);
+            if (found != null && (best == null || found.depth > best.depth)) {
+                best = found;
+            }
+        }
+        if (node.variable != null && end > start) {
+            Node found = match(node.variable, path, end + 1, length);
+            if (found != null && (best == null || found.depth > best.depth)) {
+                best = found;
+            }
+        }
+        return best;
+    }
+
+    // Creates the match of a template for the request path: the values of
+    // the variables are taken from the path segments at the positions of
+    // the variable segments of the template
+    private static RouteMatch capture(RouteMatch match, String path, int start, int depth) {
+        String template = match.getPathTemplate();
+        String[] variableNames = match.getVariableNames();
+        String[] variableValues = new String[variableNames.length];
+        int variablesNumber = 0;
+        int templateStart = 1;
+        int end = start;
+        for (int i = 0; i < depth; i++) {
+            end = path.indexOf(URI_PARTS_DELIMITER_CHARACTER, start);
+            if (end < 0) {
+                end = path.length();
+            }
+            int templateEnd = template.indexOf(URI_PARTS_DELIMITER_CHARACTER, templateStart);
+            if (templateEnd < 0) {
+                templateEnd = template.length();
+            }
+            if (isVariable(template, templateStart, templateEnd)) {
+                variableValues[variablesNumber++] = path.substring(start, end);
+            }
+            start = end + 1;
+            templateStart = templateEnd + 1;
+        }
+        return new RouteMatch(path.substring(0, end), match.getHandler(), template, variableNames, variableValues, match.getAllowedMethods());
+    }
+
+    // Returns the names of the variables of the prepared context path or
+    // null if it has no variables
+    private static String[] getVariableNames(String contextPath) {
+        int variablesNumber = 0;
+        int length = contextPath.length();
+        for (int start = 1; start < length;) {
+            int end = contextPath.indexOf(URI_PARTS_DELIMITER_CHARACTER, start);
+            if (end < 0) {
+                end = length;
+            }
+            if (isVariable(contextPath, start, end)) {
+                variablesNumber++;
+            }
+            start = end + 1;
+        }
+        if (variablesNumber == 0) {
+            return null;
+        }
+        String[] variableNames = new String[variablesNumber];
+        variablesNumber = 0;
+        for (int start = 1; start < length;) {
+            int end = contextPath.indexOf(URI_PARTS_DELIMITER_CHARACTER, start);
+            if (end < 0) {
+                end = length;
+            }
+            if (isVariable(contextPath, start, end)) {
+                variableNames[variablesNumber++] = contextPath.substring(start + 1, end - 1);
+            }
+            start = end + 1;
+        }
+        return variableNames;
+    }
+
+    private static boolean isVariable(String contextPath, int start, int end) {
+        return end - start >= 2 && contextPath.charAt(start) == VARIABLE_START_CHARACTER && contextPath.charAt(end - 1) == VARIABLE_END_CHARACTER;
+    }
+
+    // Finds the node of the prepared context path, which must start with a
+    // delimiter. Returns null if there is no such node
+    private static Node findNode(Node node, String contextPath) {
+        int length = contextPath.length();
+        int start = 1;
+        while (node != null && start < length) {
+            int end = contextPath.indexOf(URI_PARTS_DELIMITER_CHARACTER, start);
+            if (end < 0) {
+                end = length;
+            }
+            node = isVariable(contextPath, start, end) ? node.variable : node.getChild(contextPath, start, end);
+            start = end + 1;
+        }
+        return node;
+    }
+
+    // Returns a copy of the node where the binding of the context path
+    // segments starting at the specified position is replaced. A null binding
+    // removes the binding, nodes left without bindings and children are
+    // removed as well
+    private static Node put(Node node, String contextPath, int start, Binding binding) {
+        int length = contextPath.length();
+        if (start >= length) {
+            return node.withBinding(binding);
+        }
+        int end = contextPath.indexOf(URI_PARTS_DELIMITER_CHARACTER, start);
+        if (end < 0) {
+            end = length;
+        }
+        if (isVariable(contextPath, start, end)) {
+            Node child = node.variable;
+            if (child == null) {
+                if (binding == null) {
+                    // Nothing to remove
+                    return node;
+                }
+                child = new Node(null, node.depth + 1, null, NO_CHILDREN, null);
+            }
+            return node.withVariable(prune(put(child, contextPath, end + 1, binding)));
+        }
+        int index = node.indexOfChild(contextPath, start, end);
+        Node child;
+        if (index >= 0) {
+            child = node.children[index];
+        } else if (binding != null) {
+            child = new Node(contextPath.substring(start, end), node.depth + 1, null, NO_CHILDREN, null);
+        } else {
+            // Nothing to remove
+            return node;
+        }
+        return node.withChild(index, prune(put(child, contextPath, end + 1, binding)));
+    }
+
+    // Returns a copy of the subtree without the bindings of the handler or
+    // the same subtree if the handler is not bound in it
+    private static Node removeHandler(Node node, RequestHandler handler) {
+        Node result = node;
+        if (node.binding != null) {
+            Binding binding = node.binding.withoutHandler(handler);
+            if (binding != node.binding) {
+                result = result.withBinding(binding);
+            }
+        }
+        // Children are examined backwards, so removing a child does not
+        // shift the ones which have not been examined yet
+        for (int i = node.children.length - 1; i >= 0; i--) {
+            Node child = node.children[i];
+            Node replaced = removeHandler(child, handler);
+            if (replaced != child) {
+                result = result.withChild(i, prune(replaced));
+            }
+        }
+        if (node.variable != null) {
+            Node replaced = removeHandler(node.variable, handler);
+            if (replaced != node.variable) {
+                result = result.withVariable(prune(replaced));
+            }
+        }
+        return result;
+    }
+
+    // Returns null if the node has neither a binding nor children, so it is
+    // removed from its parent
+    private static Node prune(Node node) {
+        return node.binding == null && node.children.length == 0 && node.variable == null ? null : node;
+    }
+
+    /**
+     * Handlers registered for a context path: the handler for all methods and
+     * the handlers for single methods, each one kept in the match which is
+     * returned for it. Bindings are immutable.
+     */
+    private static class Binding {
+
+        // Context path of the first registered handler
+        private final String contextPath;
+
+        // Match of the handler for all methods, may be null
+        private final RouteMatch anyMethodMatch;
+
+        // Methods which have their own handlers and the matches of these
+        // handlers
+        private final String[] methods;
+        private final RouteMatch[] methodMatches;
+
+        // Match without a handler which is returned for the other methods,
+        // null if there is a handler for all methods
+        private final RouteMatch notAllowedMatch;
+
+        Binding(String contextPath, String method, RouteMatch match) {
+            this(contextPath, method == null ? match : null,
+                method == null ? new String[0] : new String[] {method},
+                method == null ? new RouteMatch[0] : new RouteMatch[] {match});
+        }
+
+        private Binding(String contextPath, RouteMatch anyMethodMatch, String[] methods, RouteMatch[] methodMatches) {
+            this.contextPath = contextPath;
+            this.anyMethodMatch = anyMethodMatch;
+            this.methods = methods;
+            this.methodMatches = methodMatches;
+            if (anyMethodMatch != null) {
+                this.notAllowedMatch = null;
+            } else {
+                // Listing the methods for the "Allow" header
+                StringBuffer allowedMethods = new StringBuffer();
+                for (int i = 0; i < methods.length; i++) {
+                    if (i > 0) {
+                        allowedMethods.append(", ");
+                    }
+                    allowedMethods.append(methods[i]);
+                }
+                if (indexOf("GET") >= 0 && indexOf("HEAD") < 0) {
+                    allowedMethods.append(", HEAD");
+                }
+                this.notAllowedMatch = new RouteMatch(contextPath, null, contextPath, getVariableNames(contextPath), null, allowedMethods.toString());
+            }
+        }
+
+        // Returns true if there is a handler for the method, or for all
+        // methods if the method is null
+        boolean hasHandler(String method) {
+            return method == null ? anyMethodMatch != null : indexOf(method) >= 0;
+        }
+
+        // Returns the match for the method. If the method is null, the match
+        // of any handler is returned
+        RouteMatch getMatch(String method) {
+            if (method == null) {
+                return anyMethodMatch != null ? anyMethodMatch : methodMatches[0];
+            }
+            int index = indexOf(method);
+            if (index < 0 && method.equals("HEAD")) {
+                index = indexOf("GET");
+            }
+            if (index >= 0) {
+                return methodMatches[index];
+            }
+            return anyMethodMatch != null ? anyMethodMatch : notAllowedMatch;
+        }
+
+        // Returns a copy of the binding with the handler for the method added
+        Binding withHandler(String method, RouteMatch match) {
+            if (method == null) {
+                return new Binding(contextPath, match, methods, methodMatches);
+            }
+            String[] newMethods = new String[methods.length + 1];
+            RouteMatch[] newMethodMatches = new RouteMatch[methods.length + 1];
+            System.arraycopy(methods, 0, newMethods, 0, methods.length);
+            System.arraycopy(methodMatches, 0, newMethodMatches, 0, methods.length);
+            newMethods[methods.length] = method;
+            newMethodMatches[methods.length] = match;
+            return new Binding(contextPath, anyMethodMatch, newMethods, newMethodMatches);
+        }
+
+        // Returns a copy of the binding without the handler, the same binding
+        // if it has no such handler or null if no handlers are left
+        Binding withoutHandler(RequestHandler handler) {
+            int removed = 0;
+            for (int i = 0; i < methods.length; i++) {
+                if (methodMatches[i].getHandler() == handler) {
+                    removed++;
+                }
+            }
+            boolean anyMethodRemoved = anyMethodMatch != null && anyMethodMatch.getHandler() == handler;
+            if (removed == 0 && !anyMethodRemoved) {
+                return this;
+            }
+            RouteMatch newAnyMethodMatch = anyMethodRemoved ? null : anyMethodMatch;
+            if (removed == methods.length && newAnyMethodMatch == null) {
+                return null;
+            }
+            String[] newMethods = new String[methods.length - removed];
+            RouteMatch[] newMethodMatches = new RouteMatch[methods.length - removed];
+            int count = 0;
+            for (int i = 0; i < methods.length; i++) {
+                if (methodMatches[i].getHandler() != handler) {
+                    newMethods[count] = methods[i];
+                    newMethodMatches[count] = methodMatches[i];
+                    count++;
+                }
+            }
+            return new Binding(contextPath, newAnyMethodMatch, newMethods, newMethodMatches);
+        }
+
+        private int indexOf(String method) {
+            for (int i = 0; i < methods.length; i++) {
+                if (methods[i].equals(method)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Node of the trie. The literal children are sorted by their segments, so
+     * a child of a node with many children is found by binary search. The
+     * variable child matches any segment. Nodes are immutable.
+     */
+    private static class Node {
+
+        // Path segment of the node, null for a variable segment
+        private final String segment;
+
+        // Number of segments from the root to this node
+        private final int depth;
+
+        // Handlers of the context path which ends at this node, may be null
+        private final Binding binding;
+
+        // Nodes of the following literal segments
+        private final Node[] children;
+
+        // Node of the following variable segment, may be null
+        private final Node variable;
+
+        Node(String segment, int depth, Binding binding, Node[] children, Node variable) {
+            this.segment = segment;
+            this.depth = depth;
+            this.binding = binding;
+            this.children = children;
+            this.variable = variable;
+        }
+
+        // Returns the child which segment equals to the part of the path
+        // between the specified positions or null if there is no such child
+        Node getChild(String path, int start, int end) {
+            if (children.length <= LINEAR_SEARCH_LIMIT) {
+                int partLength = end - start;
+                for (int i = 0; i < children.length; i++) {
+                    String childSegment = children[i].segment;
+                    if (childSegment.length() == partLength && path.regionMatches(false, start, childSegment, 0, partLength)) {
+                        return children[i];
+                    }
+                }
+                return null;
+            }
+            int index = indexOfChild(path, start, end);
+            return index < 0 ? null : children[index];
+        }
+
+        // Returns the index of the child which segment equals to the part of
+        // the path, or -(insertion point + 1) if there is no such child
+        int indexOfChild(String path, int start, int end) {
+            int low = 0;
+            int high = children.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int comparison = compare(children[middle].segment, path, start, end);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+
+        // Returns a copy of the node with another binding
+        Node withBinding(Binding newBinding) {
+            return new Node(segment, depth, newBinding, children, variable);
+        }
+
+        // Returns a copy of the node with another variable child
+        Node withVariable(Node newVariable) {
+            return new Node(segment, depth, binding, children, newVariable);
+        }
+
+        // Returns a copy of the node where the child at the specified index
+        // is replaced, inserted before -(index + 1) if the index is negative,
+        // or removed if the new child is null
+        Node withChild(int index, Node child) {
+            Node[] newChildren;
+            if (index < 0) {
+                if (child == null) {
+                    return this;
+                }
+                int position = -(index + 1);
+                newChildren = new Node[children.length + 1];
+                System.arraycopy(children, 0, newChildren, 0, position);
+                newChildren[position] = child;
+                System.arraycopy(children, position, newChildren, position + 1, children.length - position);
+            } else if (child == null) {
+                if (children.length == 1) {
+                    newChildren = NO_CHILDREN;
+                } else {
+                    newChildren = new Node[children.length - 1];
+                    System.arraycopy(children, 0, newChildren, 0, index);
+                    System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+                }
+            } else {
+                newChildren = new Node[children.length];
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+                newChildren[index] = child;
+            }
+            return new Node(segment, depth, binding, newChildren, variable);
+        }
+
+        // Compares the segment with the part of the path like
+        // String.compareTo does, without creating a substring
+        private static int compare(String segment, String path, int start, int end) {
+            int segmentLength = segment.length();
+            int partLength = end - start;
+            int common = segmentLength < partLength ? segmentLength : partLength;
+            for (int i = 0; i < common; i++) {
+                int difference = segment.charAt(i) - path.charAt(start + i);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return segmentLength - partLength;
+        }
+    }
+}
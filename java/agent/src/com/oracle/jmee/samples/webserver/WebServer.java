@@ -26,36 +26,94 @@ import javax.microedition.io.SocketConnection;
  * added in advance in order not to miss any client requests.<br><br>
  *
  * It is also possible to configure the web server by setting persistent
- * connections handling policy and a size of the transfer buffer. Since web
+ * connections handling policy, a size of the transfer buffer and a capacity
+ * of the queue of connections waiting for a working thread. Since web
  * server supports both HTTP 1.0 and 1.1 versions, it supports persistent
  * connections if the client HTTP request suggests their usage. By default
  * persistent connections support is enabled. It can be changed using the
- * {@link #setPersistConnections(boolean)} method. The server is written to use
- * the optional Java ME feature of socket timeout to prevent web server from
- * hanging, but it may be not implemented on the specific platform. These
- * parameters may be set at any time of the web server work, but it is advised
- * to set them up prior to starting for a consistent user-experience of
- * clients<br><br>
+ * {@link #setPersistConnections(boolean)} method. Since the optional Java ME
+ * feature of socket timeout may be not implemented on the specific platform,
+ * the server closes connections which have been waiting for a request longer
+ * than the idle timeout (see {@link #setConnectionIdleTimeout(int)}) by itself,
+ * so an idle persistent connection does not hold a working thread forever. The
+ * number of requests served over a single persistent connection may be limited
+ * using {@link #setMaxRequestsPerConnection(int)}. These parameters may be set
+ * at any time of the web server work, but it is advised to set them up prior
+ * to starting for a consistent user-experience of clients<br><br>
  *
  * After that web server may be started using {@link #start()} method. Use
  * {@link #stop()} method in order to stop the server. It is possible to restart
  * the server after stopping by calling the same {@link #start()}
  * method.<br><br>
  *
- * This class differs from the one which is used in the full version of the
- * demo: support of multiple working threads was removed.
+ * Connections are served by a fixed number of working threads which is
+ * specified during construction. Accepted connections wait for a free working
+ * thread in a bounded queue. If the queue is full, the client is answered with
+ * "503 Service Unavailable" immediately instead of waiting for its turn. When
+ * the server is stopped, the connections which have already been accepted are
+ * served before the working threads finish.<br><br>
+ *
+ * The way connections are served is selected during construction. The
+ * {@link #BLOCKING_ENGINE} dedicates a working thread to a connection for as
+ * long as the connection is open, so the number of working threads limits the
+ * number of clients served at once. The {@link #POLLING_ENGINE} watches all
+ * open connections from a single thread, reads only the bytes which are
+ * already available and passes complete requests to the working threads, so
+ * many idle or slow clients may stay connected while a few threads serve the
+ * requests. The maximum number of connections watched at once is set using
+ * {@link #setMaxConnections(int)}.
  */
 public class WebServer {
 
+    /**
+     * Engine which serves each connection by a dedicated working thread
+     * performing blocking reads.
+     */
+    public static final int BLOCKING_ENGINE = 0;
+
+    /**
+     * Engine which polls all connections from a single thread and uses the
+     * working threads only to serve the complete requests.
+     */
+    public static final int POLLING_ENGINE = 1;
+
     // Web server name for the "Server" response header
     private static final String SERVER_NAME = "Java ME Embedded Web Server/1.0";
 
     // Socket timeout in milliseconds
     private static final int DEFAULT_READ_WRITE_TIMEOUT_MS = 10000;
 
+    // Maximum number of requests over a persistent connection which is used
+    // when it is not specified explicitly
+    private static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+
+    // Number of working threads which is used when it is not specified
+    // explicitly
+    private static final int DEFAULT_WORKERS_NUMBER = 1;
+
+    // Capacity of the queue of accepted connections which is used when it is
+    // not specified explicitly
+    private static final int DEFAULT_TASK_QUEUE_CAPACITY = 16;
+
+    // Maximum number of connections watched by the polling engine which is
+    // used when it is not specified explicitly
+    private static final int DEFAULT_MAX_CONNECTIONS = 256;
+
     // Port on which the server listens for incoming connections
     private int listeningPort;
 
+    // Number of threads which serve the connections
+    private final int workersNumber;
+
+    // Engine which serves the connections
+    private final int engine;
+
+    // Maximum number of connections watched by the polling engine
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    // Maximum number of accepted connections waiting for a working thread
+    private volatile int taskQueueCapacity = DEFAULT_TASK_QUEUE_CAPACITY;
+
     // Buffer size which is used when the buffer size is not specified
     // explicitly
     private static final int DEFAULT_TRANSFER_BUFFER_SIZE = 1024;
@@ -63,6 +121,18 @@ public class WebServer {
     // Used buffer size to perform reading of the request
     private volatile int transferBufferSize = DEFAULT_TRANSFER_BUFFER_SIZE;
 
+    // Maximum size of the request line and headers
+    private volatile int maximumHeadSize = HttpRequestParser.DEFAULT_MAXIMUM_HEAD_SIZE;
+
+    // Number of free buffers kept for reuse per working thread: a thread
+    // uses a receiving buffer, a sending buffer and a buffer to skip the
+    // unread body
+    private static final int POOLED_BUFFERS_PER_WORKER = 3;
+
+    // Arena the connections lease their buffers from, created when the
+    // server is started
+    private BufferArena bufferArena;
+
     // Server socket to listen for incoming connections
     private ServerSocketConnection serverSocket;
 
@@ -72,11 +142,23 @@ public class WebServer {
     // Flag which determines whether the connections should be persisted
     private volatile boolean persistConnections;
 
+    // Time in milliseconds a connection may wait for a request
+    private volatile int connectionIdleTimeout = DEFAULT_READ_WRITE_TIMEOUT_MS;
+
+    // Maximum number of requests served over a persistent connection
+    private volatile int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+
+    // Closes connections which wait for a request for too long
+    private ConnectionReaper connectionReaper;
+
+    // Watches the connections when the polling engine is used
+    private ConnectionPoller connectionPoller;
+
     // Thread which is used to accept clients
     private Thread thread;
 
     // Thread pool to execute connection handling tasks
-    private SingleWorkerPoolExecutor threadPool;
+    private WorkerPoolExecutor threadPool;
 
     // Registry of the request handlers
     private final RequestHandlersRegistry requestHandlersRegistry;
@@ -90,20 +172,56 @@ public class WebServer {
     }
 
     /**
-     * Creates a new web server instance with the provided number of threads
-     * which is listening on the specified port.
+     * Creates a new web server instance with a single working thread which is
+     * listening on the specified port.
      *
      * @param listeningPort the port to listen for incoming connections
      * @throws IllegalArgumentException if the listening port is less than 0 or
      * more than 65535
      */
     public WebServer(int listeningPort) {
+        this(listeningPort, DEFAULT_WORKERS_NUMBER);
+    }
+
+    /**
+     * Creates a new web server instance with the provided number of threads
+     * which is listening on the specified port.
+     *
+     * @param listeningPort the port to listen for incoming connections
+     * @param workersNumber the number of threads which serve connections
+     * @throws IllegalArgumentException if the listening port is less than 0 or
+     * more than 65535 or if the number of threads is zero or negative
+     */
+    public WebServer(int listeningPort, int workersNumber) {
+        this(listeningPort, workersNumber, BLOCKING_ENGINE);
+    }
+
+    /**
+     * Creates a new web server instance with the provided number of threads
+     * and engine which is listening on the specified port.
+     *
+     * @param listeningPort the port to listen for incoming connections
+     * @param workersNumber the number of threads which serve requests
+     * @param engine either {@link #BLOCKING_ENGINE} or {@link #POLLING_ENGINE}
+     * @throws IllegalArgumentException if the listening port is less than 0 or
+     * more than 65535, if the number of threads is zero or negative or if the
+     * engine is unknown
+     */
+    public WebServer(int listeningPort, int workersNumber, int engine) {
         System.out.println("WebServer(int listeningPort)-->1");
         if (listeningPort < 0 || listeningPort > 65535) {
             throw new IllegalArgumentException("Listening port must be in [0,65535] range");
         }
+        if (workersNumber <= 0) {
+            throw new IllegalArgumentException("Workers number must be bigger than 0");
+        }
+        if (engine != BLOCKING_ENGINE && engine != POLLING_ENGINE) {
+            throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
         this.listeningPort = listeningPort;
-        requestHandlersRegistry = new SimpleRequestHandlersRegistry();
+        this.workersNumber = workersNumber;
+        this.engine = engine;
+        requestHandlersRegistry = new TrieRequestHandlersRegistry();
         // requestHandlersRegistry = null;
         System.out.println("WebServer(int listeningPort)-->2");
         System.out.flush();
@@ -131,7 +249,25 @@ public class WebServer {
             serverSocket = (ServerSocketConnection) Connector.open("socket://:" + listeningPort);
 
             // Initializing thread pool with working threads number
-            threadPool = new SingleWorkerPoolExecutor();
+            threadPool = new WorkerPoolExecutor(workersNumber, taskQueueCapacity);
+
+            // Buffers of all the connections are reused, buffers grown above
+            // the usual size are left to the garbage collector
+            int pooledBufferSize = HttpResponseWriter.getRequiredBufferSize(transferBufferSize);
+            if (pooledBufferSize < maximumHeadSize) {
+                pooledBufferSize = maximumHeadSize;
+            }
+            bufferArena = new BufferArena(workersNumber * POOLED_BUFFERS_PER_WORKER, pooledBufferSize);
+            if (engine == POLLING_ENGINE) {
+                connectionPoller = new ConnectionPoller(threadPool, requestHandlersRegistry, SERVER_NAME, maxConnections, connectionIdleTimeout);
+                connectionPoller.setBufferArena(bufferArena);
+                connectionPoller.setPersistConnections(persistConnections);
+                connectionPoller.setMaxRequestsPerConnection(maxRequestsPerConnection);
+                connectionPoller.start();
+            } else {
+                connectionReaper = new ConnectionReaper(connectionIdleTimeout, threadPool);
+                connectionReaper.start();
+            }
             shouldRun = true;
 
             // Starting a server thread
@@ -150,26 +286,47 @@ public class WebServer {
                     try {
                         SocketConnection clientConnection = (SocketConnection) serverSocket.acceptAndOpen();
 
-                        // Note that some implementations may not support
-                        // timeout connection option and simply do nothing when
-                        // it is being set. In such case server will be limited
-                        // to the specific number of working threads and if all
-                        // of them will be blocked by persistent connections
-                        // then no further clients will be served until any
-                        // thread becomes available.
-                        // OJO Javier clientConnection.setSocketOption(SocketConnection.TIMEOUT, DEFAULT_READ_WRITE_TIMEOUT_MS);
+                        // Responses are written in several parts, waiting
+                        // for the acknowledgement of the previous segment would
+                        // delay each response on a persistent connection
+                        try {
+                            clientConnection.setSocketOption(SocketConnection.DELAY, 0);
+                        } catch (Exception e) {
+                            // Option is not supported, Nagle's algorithm stays on
+                        }
+
+                        // Socket timeout connection option is not supported
+                        // by every implementation. Instead of it the
+                        // connection reaper closes connections which wait for
+                        // a request for too long, so persistent connections do
+                        // not block the working threads.
 
                         System.out.println("New client has connected: " + clientConnection.getAddress() + ":" + clientConnection.getPort());
 
+                        if (connectionPoller != null) {
+                            // The poller reads the requests, working threads
+                            // are used only to serve them
+                            connectionPoller.register(clientConnection, transferBufferSize, maximumHeadSize);
+                            continue;
+                        }
+
                         synchronized (lockObject) {
                             // Creating an initializing handler which will serve
                             // the opened connection
                             SimpleHttpConnectionHandler simpleHttpConnectionHandler = new SimpleHttpConnectionHandler(clientConnection, requestHandlersRegistry, SERVER_NAME, transferBufferSize);
                             simpleHttpConnectionHandler.setShouldPersistConnection(persistConnections);
+                            simpleHttpConnectionHandler.setMaxRequestsPerConnection(maxRequestsPerConnection);
+                            simpleHttpConnectionHandler.setMaximumHeadSize(maximumHeadSize);
+                            simpleHttpConnectionHandler.setConnectionReaper(connectionReaper);
+                            simpleHttpConnectionHandler.setBufferArena(bufferArena);
 
                             // Adding a handler to the queue for execution in
-                            // the thread pool
-                            threadPool.execute(simpleHttpConnectionHandler);
+                            // the thread pool. If all working threads are busy
+                            // and the queue is full, the client is rejected
+                            if (!threadPool.execute(simpleHttpConnectionHandler)) {
+                                System.out.println("Too many pending connections, rejecting client");
+                                simpleHttpConnectionHandler.reject();
+                            }
                         }
                     } catch (Exception e) {
                         System.out.println("Error while accepting clients: " + e.getMessage());
@@ -199,6 +356,97 @@ public class WebServer {
      */
     public void setPersistConnections(boolean persistConnections) {
         this.persistConnections = persistConnections;
+        ConnectionPoller poller = connectionPoller;
+        if (poller != null) {
+            poller.setPersistConnections(persistConnections);
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds a connection may wait for a request
+     * before it is closed by the server.
+     *
+     * @return the idle timeout in milliseconds
+     */
+    public int getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds a connection may wait for a request,
+     * either the first one or the next one over a persistent connection,
+     * before it is closed by the server. The value is applied when the server
+     * is started.
+     *
+     * @param connectionIdleTimeout the idle timeout in milliseconds
+     * @throws IllegalArgumentException if the timeout is zero or negative
+     */
+    public void setConnectionIdleTimeout(int connectionIdleTimeout) {
+        if (connectionIdleTimeout <= 0) {
+            throw new IllegalArgumentException("Connection idle timeout must be bigger than 0");
+        }
+        this.connectionIdleTimeout = connectionIdleTimeout;
+    }
+
+    /**
+     * Returns the maximum number of requests served over a single persistent
+     * connection.
+     *
+     * @return the maximum number of requests or 0 if it is not limited
+     */
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    /**
+     * Sets the maximum number of requests served over a single persistent
+     * connection. The connection is closed after the response to the last
+     * allowed request.
+     *
+     * @param maxRequestsPerConnection the maximum number of requests or 0 for
+     * no limit
+     */
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        ConnectionPoller poller = connectionPoller;
+        if (poller != null) {
+            poller.setMaxRequestsPerConnection(maxRequestsPerConnection);
+        }
+    }
+
+    /**
+     * Returns the engine which serves the connections.
+     *
+     * @return either {@link #BLOCKING_ENGINE} or {@link #POLLING_ENGINE}
+     */
+    public int getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the maximum number of connections the polling engine watches at
+     * once.
+     *
+     * @return the maximum number of connections
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of connections the polling engine watches at
+     * once. Clients connecting above the limit are answered with "503 Service
+     * Unavailable". The value is applied when the server is started and is not
+     * used by the blocking engine.
+     *
+     * @param maxConnections the maximum number of connections
+     * @throws IllegalArgumentException if the number is zero or negative
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Maximum connections number must be bigger than 0");
+        }
+        this.maxConnections = maxConnections;
     }
 
     /**
@@ -211,8 +459,9 @@ public class WebServer {
     }
 
     /**
-     * Sets the size of the transfer buffer which is used to read requests. It
-     * must be big enough for an HTTP request headers part to fit in.
+     * Sets the size of the transfer buffer which is used to read requests. The
+     * buffer of a connection grows if the request headers do not fit it, up to
+     * the maximum head size.
      *
      * @param transferBufferSize size of the buffer to read data into
      */
@@ -220,6 +469,64 @@ public class WebServer {
         this.transferBufferSize = transferBufferSize;
     }
 
+    /**
+     * Returns the maximum size of the request line and headers.
+     *
+     * @return the maximum size in bytes
+     */
+    public int getMaximumHeadSize() {
+        return maximumHeadSize;
+    }
+
+    /**
+     * Sets the maximum size of the request line and headers. Requests with
+     * longer headers are answered with "400 Bad Request".
+     *
+     * @param maximumHeadSize the maximum size in bytes
+     * @throws IllegalArgumentException if the size is zero or negative
+     */
+    public void setMaximumHeadSize(int maximumHeadSize) {
+        if (maximumHeadSize <= 0) {
+            throw new IllegalArgumentException("Maximum head size must be bigger than 0");
+        }
+        this.maximumHeadSize = maximumHeadSize;
+    }
+
+    /**
+     * Returns the number of threads which serve the connections.
+     *
+     * @return the number of working threads
+     */
+    public int getWorkersNumber() {
+        return workersNumber;
+    }
+
+    /**
+     * Returns the maximum number of accepted connections which may wait for a
+     * working thread.
+     *
+     * @return the capacity of the connections queue
+     */
+    public int getTaskQueueCapacity() {
+        return taskQueueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of accepted connections which may wait for a
+     * working thread. Connections which do not fit the queue are answered with
+     * "503 Service Unavailable". The value is applied when the server is
+     * started.
+     *
+     * @param taskQueueCapacity the capacity of the connections queue
+     * @throws IllegalArgumentException if the capacity is zero or negative
+     */
+    public void setTaskQueueCapacity(int taskQueueCapacity) {
+        if (taskQueueCapacity <= 0) {
+            throw new IllegalArgumentException("Task queue capacity must be bigger than 0");
+        }
+        this.taskQueueCapacity = taskQueueCapacity;
+    }
+
     /**
      * Adds the request handler to serve HTTP requests which address the
      * resources by the specified context path. There may be only one handler
@@ -246,6 +553,29 @@ public class WebServer {
         }
     }
 
+    /**
+     * Adds the request handler which serves the requests with the specified
+     * method to the context path. Segments of the context path in braces are
+     * path template variables, e.g. "/devices/{deviceId}/operations" serves
+     * "/devices/dev1/operations" and the handler obtains "dev1" by
+     * {@link HttpRequest#getPathVariable(java.lang.String)}. Requests with
+     * other methods are served by the handler registered for all methods if
+     * there is one, otherwise a "405 Method Not Allowed" response is sent.
+     * HEAD requests are served by the GET handler unless there is a HEAD
+     * handler.
+     *
+     * @param method the request method, e.g. "POST", or null for all methods
+     * @param contextPath the context path or the path template which the
+     * handler is to serve
+     * @param requestHandler the handler to serve the matching requests
+     * @throws NullPointerException if the request handler is null
+     */
+    public void addRequestHandler(String method, String contextPath, RequestHandler requestHandler) {
+        synchronized (requestHandlersRegistry) {
+            requestHandlersRegistry.add(method, contextPath, requestHandler);
+        }
+    }
+
     /**
      * Removes the request handler which serves the specified context path.
      * Other mappings if any for the deleted handler are retained. If there is
@@ -283,7 +613,7 @@ public class WebServer {
 
     /**
      * Stops the server. Server stops to accept clients and waits for the
-     * currently served requests to be handled. If the server is already
+     * currently served and already accepted requests to be handled. If the server is already
      * stopped, nothing will happen. After the server has been stopped, it is
      * possible to restart it using {@link #start()} method.
      *
@@ -299,7 +629,19 @@ public class WebServer {
             }
             shouldRun = false;
             serverSocket.close();
-            threadPool.stop();
+            if (connectionPoller != null) {
+                // Idle connections are closed, the ones being served are
+                // closed after their responses
+                connectionPoller.stop();
+                threadPool.stop();
+                connectionPoller = null;
+            } else {
+                // Idle persistent connections would delay the draining of the
+                // working threads until their idle timeout
+                connectionReaper.closePersistentConnections();
+                threadPool.stop();
+                connectionReaper.stop();
+            }
 
             thread.join();
         }
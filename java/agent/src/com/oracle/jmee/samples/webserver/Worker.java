@@ -16,8 +16,12 @@ import amplia.util.Objects;
  * Worker runs in a separate thread and should be started like a thread. After
  * Worker has been started, it takes out a task from the queue to execute it. It
  * takes another task after the previous is completed. If there is no available
- * task, Worker waits for it to appear. Worker stops after it has been
- * interrupted by calling {@link #interrupt()} method.
+ * task, Worker waits for it to appear. A Worker may be configured to take
+ * several pending tasks at once, which are then executed one after another.
+ * These tasks keep using space in the queue until they start.
+ * Worker stops after the queue has been
+ * closed and drained or after it has been interrupted by calling
+ * {@link #interrupt()} method.
  *
  * @see ThreadSafeQueue
  */
@@ -26,6 +30,12 @@ import amplia.util.Objects;
     // queue to obtain Runnable tasks
     private final ThreadSafeQueue queue;
 
+    // executor to notify when this worker finishes, may be null
+    private final WorkerPoolExecutor executor;
+
+    // tasks taken from the queue at once
+    private final Object[] batch;
+
     /**
      * Constructor to create Worker with the specified {@link ThreadSafeQueue}.
      *
@@ -34,30 +44,74 @@ import amplia.util.Objects;
      * @throws NullPointerException if queue is null
      */
     public Worker(ThreadSafeQueue queue) {
+        this(queue, null, 1);
+    }
+
+    /**
+     * Constructor to create Worker with the specified {@link ThreadSafeQueue}
+     * which reports its termination to the owning executor.
+     *
+     * @param queue the queue to obtain Runnable tasks
+     * @param executor the executor which owns this worker, may be null
+     * @param batchSize maximum number of tasks taken from the queue at once
+     *
+     * @throws NullPointerException if queue is null
+     * @throws IllegalArgumentException if batch size is zero or negative
+     */
+    public Worker(ThreadSafeQueue queue, WorkerPoolExecutor executor, int batchSize) {
         Objects.requireNonNull(queue, "Queue must not be null!");
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be bigger than 0");
+        }
         this.queue = queue;
+        this.executor = executor;
+        this.batch = new Object[batchSize];
     }
 
     /**
      * Method to obtain Runnable tasks from the specified
-     * {@link ThreadSafeQueue} and execute them. This method finishes when this
-     * Worker is interrupted.
+     * {@link ThreadSafeQueue} and execute them. This method finishes when the
+     * queue has been closed and drained or when this Worker is interrupted.
      *
      * @see Thread#run()
      */
     // @Override
     public void run() {
         try {
-            // while (!this.isInterrupted()) {
-            while (this.isAlive()) {
+            while (true) {
                 // obtaining Runnable task;
                 // this is a blocking call - it waits for at least one task is available in the queue
-                Runnable currentTask = (Runnable)queue.take();
-                // executing the task
-                currentTask.run();
+                Object firstTask = queue.take();
+                if (firstTask == null) {
+                    // queue has been closed and there are no more tasks
+                    break;
+                }
+                batch[0] = firstTask;
+                // grabbing other pending tasks without blocking; they keep
+                // their space in the queue until they start, so the queue
+                // capacity still bounds the pending tasks
+                int tasksNumber = 1 + queue.drainAndHold(batch, 1, batch.length - 1);
+                for (int i = 0; i < tasksNumber; i++) {
+                    Runnable currentTask = (Runnable)batch[i];
+                    batch[i] = null;
+                    if (i > 0) {
+                        queue.releaseHeld();
+                    }
+                    // executing the task; a failing task must not kill the
+                    // worker
+                    try {
+                        currentTask.run();
+                    } catch (RuntimeException e) {
+                        System.out.println("Worker: task failed: " + e.toString());
+                    }
+                }
             }
         } catch (InterruptedException ex) {
             // this happens when Worker is interrupted while waiting for tasks
+        } finally {
+            if (executor != null) {
+                executor.workerFinished();
+            }
         }
     }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright © 2015, Oracle and/or its affiliates.  All rights reserved. 
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and the
+ * Universal Permissive License (UPL).  See the LICENSE file in the root directory
+ * for license terms.  You may choose either license, or both.
+ */
+package com.oracle.jmee.samples.webserver;
+
+import amplia.util.Objects;
+
+/**
+ * Class which executes Runnable tasks using a fixed number of worker threads.
+ * Tasks are placed in a bounded queue shared by all the workers. If the queue
+ * is full, the task is not queued and {@link #execute(java.lang.Runnable)}
+ * returns false, so the caller is able to reject the work immediately instead
+ * of waiting for a worker to become available.<br><br>
+ *
+ * A single worker takes all the pending tasks from the queue at once to reduce
+ * the handoff cost. The tasks it has taken but not started yet still count
+ * against the queue capacity. When there are several workers, each of them takes one
+ * task at a time so a pending task is never held by a busy worker while
+ * another one is idle.<br><br>
+ *
+ * This executor starts to process tasks after it is created and finishes after
+ * {@link #stop()} method has been called. Stopping is graceful: the tasks
+ * which have already been queued are executed before the workers finish. This
+ * executor cannot be restarted.
+ */
+public class WorkerPoolExecutor {
+
+    // Time to wait for the queued tasks to be finished while stopping
+    private static final long DEFAULT_DRAIN_TIMEOUT_MS = 10000;
+
+    // Maximum number of tasks a single worker takes from the queue at once
+    private static final int SINGLE_WORKER_BATCH_SIZE = 8;
+
+    // queue to hold tasks passed for execution
+    private final ThreadSafeQueue taskQueue; // Runnable
+
+    // workers to execute Runnable objects
+    private final Worker[] workers;
+
+    // Number of workers which have not finished yet
+    private int runningWorkers;
+
+    // Object which is used to wait for the workers to finish
+    private final Object workersLock = new Object();
+
+    // true if this executor has been stopped
+    private boolean isStopped = false;
+
+    /**
+     * Constructor to create WorkerPoolExecutor with the specified number of
+     * workers and capacity of the task queue.
+     *
+     * @param workersNumber number of threads which execute tasks
+     * @param queueCapacity maximum number of tasks waiting for a worker
+     *
+     * @throws IllegalArgumentException if workers number or queue capacity is
+     * zero or negative
+     */
+    public WorkerPoolExecutor(int workersNumber, int queueCapacity) {
+        if (workersNumber <= 0) {
+            throw new IllegalArgumentException("Workers number must be bigger than 0");
+        }
+        this.taskQueue = new ThreadSafeQueue(queueCapacity);
+        this.workers = new Worker[workersNumber];
+        this.runningWorkers = workersNumber;
+
+        int batchSize = workersNumber == 1 ? SINGLE_WORKER_BATCH_SIZE : 1;
+        for (int i = 0; i < workersNumber; i++) {
+            workers[i] = new Worker(taskQueue, this, batchSize);
+        }
+        // Nothing bad as workers are blocked by an emptiness of a task
+        // queue. Adding to this task queue will be possible after worker pool
+        // finishes construction
+        for (int i = 0; i < workersNumber; i++) {
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Method to execute a given Runnable task asynchronously. The task is
+     * refused if all workers are busy and the task queue is full or if this
+     * executor has been stopped.
+     *
+     * @param task the task to execute
+     * @return true if the task has been queued for execution, false if it has
+     * been rejected
+     *
+     * @throws NullPointerException if the task is null
+     */
+    public boolean execute(Runnable task) {
+        Objects.requireNonNull(task, "Task must not be null");
+        if (isStopped) {
+            System.out.println("WorkerPoolExecutor has been stopped!");
+            return false;
+        }
+        return taskQueue.offer(task);
+    }
+
+    /**
+     * Returns the number of tasks waiting for a worker, including the ones
+     * a worker has taken but not started yet.
+     *
+     * @return the number of queued tasks
+     */
+    public int getQueuedTasksNumber() {
+        return taskQueue.pendingSize();
+    }
+
+    /**
+     * Method to stop this WorkerPoolExecutor. New tasks are refused, already
+     * queued tasks are executed and then workers finish. If the tasks have not
+     * been finished in time, the workers are interrupted. Calling this method
+     * after executor has already been stopped has no effect.
+     */
+    public void stop() {
+        if (isStopped) {
+            return;
+        }
+        isStopped = true;
+
+        // Closing the queue releases the workers once it has been drained
+        taskQueue.close();
+
+        synchronized (workersLock) {
+            long deadline = System.currentTimeMillis() + DEFAULT_DRAIN_TIMEOUT_MS;
+            long remaining = DEFAULT_DRAIN_TIMEOUT_MS;
+            while (runningWorkers > 0 && remaining > 0) {
+                try {
+                    workersLock.wait(remaining);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (runningWorkers == 0) {
+                return;
+            }
+        }
+
+        System.out.println("WorkerPoolExecutor: tasks were not finished in time, interrupting workers");
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].interrupt();
+        }
+    }
+
+    /**
+     * Called by a worker when it finishes.
+     */
+    /* package */ void workerFinished() {
+        synchronized (workersLock) {
+            runningWorkers--;
+            workersLock.notifyAll();
+        }
+    }
+}